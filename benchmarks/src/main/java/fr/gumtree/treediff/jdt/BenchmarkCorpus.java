@@ -0,0 +1,51 @@
+package fr.gumtree.treediff.jdt;
+
+/**
+ * Generates the pairs of Java files of the benchmarks. The size of a file is
+ * given in lines, from a tiny class up to a 20k-line file, and the right file is
+ * the left one with a few edits (updated literals and inserted statements) in a
+ * small proportion of its methods, as in a typical commit.
+ *
+ * The generation is deterministic, so the results of different runs can be
+ * compared.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class BenchmarkCorpus {
+
+	/** the sizes used by the benchmarks, in lines */
+	public static final String[] SIZES = { "10", "100", "1000", "5000", "20000" };
+
+	private static final int LINES_PER_METHOD = 7;
+
+	/** one method of each EDIT_PERIOD is edited */
+	private static final int EDIT_PERIOD = 25;
+
+	public static String left(int lines) {
+		return generate(lines, false);
+	}
+
+	public static String right(int lines) {
+		return generate(lines, true);
+	}
+
+	private static String generate(int lines, boolean edited) {
+		int methods = Math.max(1, (lines - 2) / LINES_PER_METHOD);
+		StringBuilder content = new StringBuilder("class Main" + lines + " {\n");
+		for (int i = 0; i < methods; i++) {
+			boolean edit = edited && (i % EDIT_PERIOD == 0);
+			content.append("    int m" + i + "(int x, String s) {\n");
+			content.append("        if (x > " + (edit ? i + 1 : i) + " && s.length() < 10) {\n");
+			content.append("            return a.b(x + 1).c(\"s" + i + "\");\n");
+			content.append("        }\n");
+			if (edit && (i / EDIT_PERIOD) % 2 == 0) {
+				content.append("        log(s);\n");
+			}
+			content.append("        return x * 2;\n");
+			content.append("    }\n");
+		}
+		return content.append("}\n").toString();
+	}
+
+}
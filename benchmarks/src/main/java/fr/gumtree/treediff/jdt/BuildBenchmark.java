@@ -0,0 +1,73 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Benchmark of the complete TreeDiff of two files:
+ * {@link TreeDiffFormatBuilder#build(File, File, String, String)} parses,
+ * matches, computes the edit script and creates the Json.
+ *
+ * @author Matias Martinez
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildBenchmark {
+
+	@Param({ "10", "100", "1000", "5000", "20000" })
+	public int lines;
+
+	@Param({ "false", "true" })
+	public boolean storeTrees;
+
+	@Param({ "false", "true" })
+	public boolean storeMappings;
+
+	File left;
+	File right;
+	TreeDiffFormatBuilder builder;
+
+	@Setup
+	public void setUp() throws IOException {
+		left = File.createTempFile("left", ".java");
+		right = File.createTempFile("right", ".java");
+		Files.write(left.toPath(), BenchmarkCorpus.left(lines).getBytes(StandardCharsets.UTF_8));
+		Files.write(right.toPath(), BenchmarkCorpus.right(lines).getBytes(StandardCharsets.UTF_8));
+		builder = new TreeDiffFormatBuilder(storeTrees, storeMappings);
+	}
+
+	@TearDown
+	public void tearDown() {
+		left.delete();
+		right.delete();
+	}
+
+	@Benchmark
+	public JsonElement build() throws IOException {
+		return builder.build(left, right, "gumtree", "3.0.0");
+	}
+
+}
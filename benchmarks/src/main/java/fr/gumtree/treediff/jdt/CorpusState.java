@@ -0,0 +1,61 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.github.gumtreediff.actions.Diff;
+import com.github.gumtreediff.actions.EditScript;
+import com.github.gumtreediff.actions.SimplifiedChawatheScriptGenerator;
+import com.github.gumtreediff.gen.jdt.JdtTreeGenerator;
+import com.github.gumtreediff.matchers.CompositeMatchers;
+import com.github.gumtreediff.matchers.MappingStore;
+import com.github.gumtreediff.tree.TreeContext;
+
+/**
+ * The sources of a pair of files of the corpus, and the results of each stage
+ * of the diff, used as input of the next stage.
+ *
+ * The trees given to the matcher are parsed apart from the ones of the diff,
+ * because the script generator modifies the right tree (it adds a fake root).
+ *
+ * @author Matias Martinez
+ *
+ */
+@State(Scope.Benchmark)
+public class CorpusState {
+
+	@Param({ "10", "100", "1000", "5000", "20000" })
+	public int lines;
+
+	public String left;
+	public String right;
+
+	/** trees only used for matching */
+	public TreeContext leftContext;
+	public TreeContext rightContext;
+
+	public MappingStore mappings;
+
+	public Diff diff;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		left = BenchmarkCorpus.left(lines);
+		right = BenchmarkCorpus.right(lines);
+
+		leftContext = new JdtTreeGenerator().generateFrom().string(left);
+		rightContext = new JdtTreeGenerator().generateFrom().string(right);
+
+		TreeContext ctxL = new JdtTreeGenerator().generateFrom().string(left);
+		TreeContext ctxR = new JdtTreeGenerator().generateFrom().string(right);
+		mappings = new CompositeMatchers.SimpleGumtree().match(ctxL.getRoot(), ctxR.getRoot());
+		EditScript actions = new SimplifiedChawatheScriptGenerator().computeActions(mappings);
+		diff = new Diff(ctxL, ctxR, mappings, actions);
+	}
+
+}
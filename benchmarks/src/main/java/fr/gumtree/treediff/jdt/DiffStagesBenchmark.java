@@ -0,0 +1,51 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.gumtreediff.actions.EditScript;
+import com.github.gumtreediff.actions.SimplifiedChawatheScriptGenerator;
+import com.github.gumtreediff.gen.jdt.JdtTreeGenerator;
+import com.github.gumtreediff.matchers.CompositeMatchers;
+import com.github.gumtreediff.matchers.MappingStore;
+import com.github.gumtreediff.tree.TreeContext;
+
+/**
+ * Benchmarks of the stages computed by gumtree before the serialization:
+ * parsing, matching and generation of the edit script.
+ *
+ * @author Matias Martinez
+ *
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiffStagesBenchmark {
+
+	@Benchmark
+	public TreeContext parse(CorpusState corpus) throws IOException {
+		return new JdtTreeGenerator().generateFrom().string(corpus.left);
+	}
+
+	@Benchmark
+	public MappingStore match(CorpusState corpus) {
+		return new CompositeMatchers.SimpleGumtree().match(corpus.leftContext.getRoot(),
+				corpus.rightContext.getRoot());
+	}
+
+	@Benchmark
+	public EditScript editScript(CorpusState corpus) {
+		return new SimplifiedChawatheScriptGenerator().computeActions(corpus.mappings);
+	}
+
+}
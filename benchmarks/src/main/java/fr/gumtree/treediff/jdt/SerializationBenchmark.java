@@ -0,0 +1,61 @@
+package fr.gumtree.treediff.jdt;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+
+/**
+ * Benchmarks of the creation of the Json representation of each part of a
+ * TreeDiff by {@link TreeDiffFormatBuilder}.
+ *
+ * @author Matias Martinez
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+	/** the actions include the complete subtree of their node */
+	@Param({ "false", "true" })
+	public boolean storeTrees;
+
+	TreeDiffFormatBuilder builder;
+
+	@Setup
+	public void setUp() {
+		builder = new TreeDiffFormatBuilder(storeTrees, true);
+	}
+
+	@Benchmark
+	public JsonArray buildEditScript(CorpusState corpus) {
+		return builder.buildEditScript(corpus.diff);
+	}
+
+	@Benchmark
+	public JsonElement convertTreeToJSon(CorpusState corpus) {
+		return builder.convertTreeToJSon(corpus.diff.src.getRoot());
+	}
+
+	@Benchmark
+	public JsonElement createMappingJson(CorpusState corpus) {
+		return builder.createMappingJson(corpus.mappings);
+	}
+
+}
@@ -0,0 +1,30 @@
+#!/bin/sh
+# Builds the command line jar and a class data sharing archive (AppCDS) of the
+# classes loaded by a training run, so JDT, GumTree and TreeDiffFormat classes
+# are mapped pre-parsed at startup instead of being loaded from the jar.
+#
+# Requires a JDK 13 or later to run. The archive is only valid for the same JDK
+# and the same jar path:
+#   java -XX:SharedArchiveFile=target/treediff-cli.jsa -jar target/treediff-cli.jar <left> <right>
+set -e
+cd "$(dirname "$0")/.."
+
+JAR=target/treediff-cli.jar
+ARCHIVE=target/treediff-cli.jsa
+TRAINING=target/appcds-training
+
+if [ "$1" != "--no-build" ]; then
+	mvn -B -q package -Pcli -DskipTests
+fi
+
+# training input: a source file of the project and a modified copy of it
+rm -rf "$TRAINING"
+mkdir -p "$TRAINING"
+SOURCE=src/main/java/fr/gumtree/treediff/jdt/TreeDiffFormatBuilder.java
+cp "$SOURCE" "$TRAINING/Left.java"
+sed -e 's/protected /private /' -e 's/ == null/ != null/' "$SOURCE" > "$TRAINING/Right.java"
+
+rm -f "$ARCHIVE"
+java -XX:ArchiveClassesAtExit="$ARCHIVE" -jar "$JAR" -t -m "$TRAINING/Left.java" "$TRAINING/Right.java" \
+	> /dev/null
+echo "Created $ARCHIVE"
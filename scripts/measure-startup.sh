@@ -0,0 +1,33 @@
+#!/bin/sh
+# Measures the wall time of the command line on a small diff, without and with
+# the AppCDS archive created by build-appcds.sh. Prints the median of each.
+set -e
+cd "$(dirname "$0")/.."
+
+JAR=target/treediff-cli.jar
+ARCHIVE=target/treediff-cli.jsa
+RUNS=${RUNS:-10}
+DIR=target/startup-input
+
+mkdir -p "$DIR"
+printf 'class A {\n  int f(int x) {\n    return x + 1;\n  }\n}\n' > "$DIR/Left.java"
+printf 'class A {\n  int f(int x) {\n    return x * 2 + 1;\n  }\n}\n' > "$DIR/Right.java"
+
+median() {
+	sort -n | awk '{ a[NR] = $1 } END { print a[int((NR + 1) / 2)] }'
+}
+
+measure() {
+	i=0
+	while [ $i -lt "$RUNS" ]; do
+		start=$(date +%s%N)
+		java "$@" -jar "$JAR" "$DIR/Left.java" "$DIR/Right.java" > /dev/null
+		end=$(date +%s%N)
+		echo $(( (end - start) / 1000000 ))
+		i=$((i + 1))
+	done | median
+}
+
+echo "default:      $(measure -Xshare:auto) ms"
+echo "AppCDS:       $(measure -XX:SharedArchiveFile="$ARCHIVE") ms"
+echo "AppCDS + C1:  $(measure -XX:SharedArchiveFile="$ARCHIVE" -XX:TieredStopAtLevel=1) ms"
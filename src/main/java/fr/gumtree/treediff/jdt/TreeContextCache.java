@@ -0,0 +1,212 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.gumtreediff.tree.Tree;
+import com.github.gumtreediff.tree.TreeContext;
+
+/**
+ * A cache of the trees generated by {@link TreeDiffParser}, keyed by the hash
+ * of the content of the parsed file. The cache is bounded by the total number
+ * of nodes of the trees it contains, and evicts the least recently used trees
+ * first.
+ *
+ * The cache never returns the trees it keeps but a copy of them: the edit
+ * script generators modify the trees they receive (e.g., the parent of the
+ * right root), so a tree can not be shared between diffs. Copying a tree is
+ * much cheaper than parsing the file again. The cache can be used from several
+ * threads.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeContextCache {
+
+	protected final long maxNodes;
+
+	protected final LinkedHashMap<String, TreeContext> trees = new LinkedHashMap<>(16, 0.75f, true);
+
+	protected long nodes = 0;
+
+	protected long hits = 0;
+	protected long misses = 0;
+	protected long evictions = 0;
+
+	/**
+	 *
+	 * @param maxNodes the max number of nodes (summing all the trees) kept in the
+	 *                 cache
+	 */
+	public TreeContextCache(long maxNodes) {
+		super();
+		this.maxNodes = maxNodes;
+	}
+
+	/**
+	 * Returns the tree of the file, parsing it only if a file with the same
+	 * content is not in the cache.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public TreeContext get(File file) throws IOException {
+		return get(Files.readAllBytes(file.toPath()));
+	}
+
+	/**
+	 * Returns the tree of the content (in UTF-8), parsing it only if it is not in
+	 * the cache.
+	 *
+	 * @param content
+	 * @return
+	 * @throws IOException
+	 */
+	public TreeContext get(byte[] content) throws IOException {
+		String key = contentHash(content);
+
+		TreeContext cached;
+		synchronized (this) {
+			cached = trees.get(key);
+			if (cached != null) {
+				hits++;
+			} else {
+				misses++;
+			}
+		}
+		if (cached != null) {
+			return copy(cached);
+		}
+
+		// Parsed outside the lock: two threads can parse the same content, the
+		// first tree stored is kept.
+		TreeContext context = new TreeDiffParser().generateFrom().stream(new ByteArrayInputStream(content));
+		int size = context.getRoot().getMetrics().size;
+		TreeContext copy = copy(context);
+
+		synchronized (this) {
+			if (size <= maxNodes && !trees.containsKey(key)) {
+				trees.put(key, context);
+				nodes += size;
+				evict();
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Copies the tree of a context, like {@link Tree#deepCopy()} but without
+	 * recursion, so the depth of the tree is not bounded by the stack. The cached
+	 * trees are only read, so several threads can copy the same tree at the same
+	 * time.
+	 *
+	 * @param context
+	 * @return
+	 */
+	protected TreeContext copy(TreeContext context) {
+		TreeContext copy = new TreeContext();
+		Tree root = context.getRoot();
+		Tree rootCopy = copyNode(copy, root);
+		copy.setRoot(rootCopy);
+
+		// the nodes to copy in pre-order, and the copies of their parents
+		Deque<Tree> nodes = new ArrayDeque<>();
+		Deque<Tree> parents = new ArrayDeque<>();
+		pushChildren(root, rootCopy, nodes, parents);
+		while (!nodes.isEmpty()) {
+			Tree node = nodes.pop();
+			Tree nodeCopy = copyNode(copy, node);
+			parents.pop().addChild(nodeCopy);
+			pushChildren(node, nodeCopy, nodes, parents);
+		}
+		return copy;
+	}
+
+	private static Tree copyNode(TreeContext context, Tree node) {
+		Tree copy = context.createTree(node.getType(), node.getLabel());
+		copy.setPos(node.getPos());
+		copy.setLength(node.getLength());
+		return copy;
+	}
+
+	private static void pushChildren(Tree node, Tree nodeCopy, Deque<Tree> nodes, Deque<Tree> parents) {
+		List<Tree> children = node.getChildren();
+		for (int i = children.size() - 1; i >= 0; i--) {
+			nodes.push(children.get(i));
+			parents.push(nodeCopy);
+		}
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, TreeContext>> eldest = trees.entrySet().iterator();
+		while (nodes > maxNodes && eldest.hasNext()) {
+			TreeContext evicted = eldest.next().getValue();
+			eldest.remove();
+			nodes -= evicted.getRoot().getMetrics().size;
+			evictions++;
+		}
+	}
+
+	public synchronized void clear() {
+		trees.clear();
+		nodes = 0;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 *
+	 * @return the number of nodes of all the trees in the cache
+	 */
+	public synchronized long getNodes() {
+		return nodes;
+	}
+
+	public synchronized int size() {
+		return trees.size();
+	}
+
+	/**
+	 * Returns the hash (SHA-256, in hexadecimal) used as key of a content.
+	 *
+	 * @param content
+	 * @return
+	 */
+	public static String contentHash(byte[] content) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-256 is available in every Java platform
+			throw new IllegalStateException(e);
+		}
+		byte[] hash = digest.digest(content);
+		StringBuilder hex = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+}
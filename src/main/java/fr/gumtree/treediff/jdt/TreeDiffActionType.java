@@ -0,0 +1,76 @@
+package fr.gumtree.treediff.jdt;
+
+import com.github.gumtreediff.actions.model.Action;
+import com.github.gumtreediff.actions.model.Delete;
+import com.github.gumtreediff.actions.model.Insert;
+import com.github.gumtreediff.actions.model.Move;
+import com.github.gumtreediff.actions.model.TreeDelete;
+import com.github.gumtreediff.actions.model.TreeInsert;
+import com.github.gumtreediff.actions.model.Update;
+
+/**
+ * The kinds of action of the TreeDiff format, with the name written in the
+ * "type" property of each element of "diff".
+ *
+ * @author Matias Martinez
+ *
+ */
+public enum TreeDiffActionType {
+
+	INSERT_NODE("insert-node"), INSERT_SUBTREE("insert-subtree"), DELETE_NODE("delete-node"),
+	DELETE_SUBTREE("delete-subtree"), MOVE_SUBTREE("move-subtree"), UPDATE_NODE("update-node");
+
+	private final String jsonName;
+
+	private TreeDiffActionType(String jsonName) {
+		this.jsonName = jsonName;
+	}
+
+	/**
+	 *
+	 * @return the name used in the "type" property of the TreeDiff action
+	 */
+	public String getJsonName() {
+		return jsonName;
+	}
+
+	/**
+	 * Classifies a GumTree action.
+	 *
+	 * @param action an action from an edit script
+	 * @return the TreeDiff kind of the action
+	 * @throws IllegalAccessError if the action is not recognized
+	 */
+	public static TreeDiffActionType of(Action action) throws IllegalAccessError {
+		if (action instanceof Insert) {
+			return INSERT_NODE;
+		} else if (action instanceof TreeInsert) {
+			return INSERT_SUBTREE;
+		} else if (action instanceof Delete) {
+			return DELETE_NODE;
+		} else if (action instanceof TreeDelete) {
+			return DELETE_SUBTREE;
+		} else if (action instanceof Move) {
+			return MOVE_SUBTREE;
+		} else if (action instanceof Update) {
+			return UPDATE_NODE;
+		}
+		throw new IllegalAccessError("Action not recognized: " + action.getClass().getCanonicalName());
+	}
+
+	/**
+	 *
+	 * @return true if the node of the action belongs to the right (after) tree
+	 */
+	public boolean isAddition() {
+		return this == INSERT_NODE || this == INSERT_SUBTREE;
+	}
+
+	/**
+	 *
+	 * @return true if the node of the action is mapped to a node of the right tree
+	 */
+	public boolean isMapped() {
+		return this == MOVE_SUBTREE || this == UPDATE_NODE;
+	}
+}
@@ -0,0 +1,409 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ * Random access to the TreeDiffs of an archive written by a
+ * {@link TreeDiffShardWriter}, by key.
+ *
+ * The sidecar indexes of the shards are merged, by {@link #writeIndex}, in one
+ * binary index file ({@code <prefix>.tdx}): the names of the shards, a table of
+ * entries sorted by the hash of their keys, and the keys. The table and the
+ * keys are memory-mapped, so a lookup is a binary search of the hash followed
+ * by a comparison of the key, without reading the index; the document is then
+ * read with a positioned read of the shard (and decompressed from the start of
+ * its block when the shard is compressed with gzip blocks). When a key was
+ * written several times, the last document is indexed.
+ *
+ * An archive can be read by several threads.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffArchive implements Closeable {
+
+	public static final String INDEX_EXTENSION = ".tdx";
+
+	static final int MAGIC = 0x54445849; // "TDXI"
+	static final int FORMAT_VERSION = 1;
+	/** hash, block, offset, key position (longs), length, shard (ints) */
+	static final int ENTRY_LENGTH = 40;
+
+	protected final File directory;
+	protected final FileChannel[] shards;
+	protected final boolean[] compressed;
+	protected final MappedByteBuffer entries;
+	protected final MappedByteBuffer keys;
+	protected final int size;
+
+	/**
+	 * Opens the archive, whose index must have been written.
+	 *
+	 * @param directory the directory of the shards and the index
+	 * @param prefix    the prefix of the shards
+	 * @throws IOException
+	 */
+	public TreeDiffArchive(File directory, String prefix) throws IOException {
+		super();
+		this.directory = directory;
+		File indexFile = new File(directory, prefix + INDEX_EXTENSION);
+		try (FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(20);
+			readFully(index, header, 0);
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+				throw new IOException("Not a TreeDiff archive index: " + indexFile);
+			}
+			this.size = header.getInt();
+			int shardCount = header.getInt();
+			int namesLength = header.getInt();
+
+			ByteBuffer names = ByteBuffer.allocate(namesLength);
+			readFully(index, names, 20);
+			names.flip();
+			this.shards = new FileChannel[shardCount];
+			this.compressed = new boolean[shardCount];
+			try {
+				for (int i = 0; i < shardCount; i++) {
+					byte[] name = new byte[names.getShort() & 0xFFFF];
+					names.get(name);
+					String shard = new String(name, StandardCharsets.UTF_8);
+					this.compressed[i] = shard.endsWith(".gz");
+					this.shards[i] = FileChannel.open(new File(directory, shard).toPath(), StandardOpenOption.READ);
+				}
+				long entriesStart = 20 + namesLength;
+				long keysStart = entriesStart + (long) size * ENTRY_LENGTH;
+				long keysLength = index.size() - keysStart;
+				if (keysStart > index.size() || keysStart - entriesStart > Integer.MAX_VALUE
+						|| keysLength > Integer.MAX_VALUE) {
+					throw new IOException("Invalid TreeDiff archive index: " + indexFile);
+				}
+				this.entries = index.map(FileChannel.MapMode.READ_ONLY, entriesStart, keysStart - entriesStart);
+				this.keys = index.map(FileChannel.MapMode.READ_ONLY, keysStart, keysLength);
+			} catch (IOException e) {
+				closeShards();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Merges the sidecar indexes of the shards {@code <prefix>-<number>} of a
+	 * directory in the index of the archive, in the order of the numbers of the
+	 * shards.
+	 *
+	 * @param directory
+	 * @param prefix
+	 * @return the index
+	 * @throws IOException
+	 */
+	public static File writeIndex(File directory, String prefix) throws IOException {
+		Pattern shardName = shardNamePattern(prefix);
+		File[] shardFiles = directory.listFiles((d, name) -> shardName.matcher(name).matches()
+				&& new File(d, name + TreeDiffShardWriter.INDEX_EXTENSION).isFile());
+		if (shardFiles == null) {
+			throw new IOException("Not a directory: " + directory);
+		}
+		// the shards are numbered in the order they were written
+		Arrays.sort(shardFiles, Comparator.comparingLong(file -> shardNumber(shardName, file)));
+
+		Map<String, long[]> documents = new LinkedHashMap<>();
+		for (int shard = 0; shard < shardFiles.length; shard++) {
+			File sidecar = new File(shardFiles[shard].getPath() + TreeDiffShardWriter.INDEX_EXTENSION);
+			for (String line : Files.readAllLines(sidecar.toPath(), StandardCharsets.UTF_8)) {
+				String[] columns = line.split("\t");
+				if (columns.length != 4) {
+					throw new IOException("Invalid line of " + sidecar + ": " + line);
+				}
+				documents.put(columns[0], new long[] { shard, Long.parseLong(columns[1]),
+						Long.parseLong(columns[2]), Long.parseLong(columns[3]) });
+			}
+		}
+
+		List<String> sortedKeys = new ArrayList<>(documents.keySet());
+		long[] hashes = new long[sortedKeys.size()];
+		Integer[] order = new Integer[sortedKeys.size()];
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = hash(sortedKeys.get(i).getBytes(StandardCharsets.UTF_8));
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+
+		File index = new File(directory, prefix + INDEX_EXTENSION);
+		File tmp = new File(directory, prefix + INDEX_EXTENSION + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+			byte[][] names = new byte[shardFiles.length][];
+			int namesLength = 0;
+			for (int i = 0; i < shardFiles.length; i++) {
+				names[i] = shardFiles[i].getName().getBytes(StandardCharsets.UTF_8);
+				namesLength += 2 + names[i].length;
+			}
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(sortedKeys.size());
+			out.writeInt(shardFiles.length);
+			out.writeInt(namesLength);
+			for (byte[] name : names) {
+				out.writeShort(name.length);
+				out.write(name);
+			}
+
+			long keyPosition = 0;
+			for (int i : order) {
+				long[] document = documents.get(sortedKeys.get(i));
+				out.writeLong(hashes[i]);
+				out.writeLong(document[1]);
+				out.writeLong(document[2]);
+				out.writeLong(keyPosition);
+				out.writeInt((int) document[3]);
+				out.writeInt((int) document[0]);
+				keyPosition += 4 + sortedKeys.get(i).getBytes(StandardCharsets.UTF_8).length;
+			}
+			for (int i : order) {
+				byte[] key = sortedKeys.get(i).getBytes(StandardCharsets.UTF_8);
+				out.writeInt(key.length);
+				out.write(key);
+			}
+		}
+		Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		return index;
+	}
+
+	/**
+	 * The names of the shards written by {@link TreeDiffShardWriter} with a
+	 * prefix, whose group 1 is the number of the shard.
+	 */
+	static Pattern shardNamePattern(String prefix) {
+		StringBuilder extensions = new StringBuilder();
+		for (TreeDiffShardWriter.Compression compression : TreeDiffShardWriter.Compression.values()) {
+			extensions.append((extensions.length() == 0) ? "" : "|").append(Pattern.quote(compression.getExtension()));
+		}
+		return Pattern.compile(Pattern.quote(prefix) + "-(\\d{1,18})(?:" + extensions + ")");
+	}
+
+	static long shardNumber(Pattern shardName, File shard) {
+		Matcher matcher = shardName.matcher(shard.getName());
+		matcher.matches();
+		return Long.parseLong(matcher.group(1));
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of a key.
+	 */
+	static long hash(byte[] key) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : key) {
+			hash ^= (b & 0xFF);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return the position of the entry of the key in the table, or -1
+	 */
+	protected int find(String key) {
+		byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+		long hash = hash(bytes);
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long middleHash = entries.getLong(middle * ENTRY_LENGTH);
+			if (middleHash < hash) {
+				low = middle + 1;
+			} else if (middleHash > hash) {
+				high = middle - 1;
+			} else {
+				// the keys of the same hash are consecutive
+				int first = middle;
+				while (first > 0 && entries.getLong((first - 1) * ENTRY_LENGTH) == hash) {
+					first--;
+				}
+				for (int i = first; i < size && entries.getLong(i * ENTRY_LENGTH) == hash; i++) {
+					if (keyEquals(i, bytes)) {
+						return i;
+					}
+				}
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	private boolean keyEquals(int entry, byte[] key) {
+		int position = (int) entries.getLong(entry * ENTRY_LENGTH + 24);
+		if (keys.getInt(position) != key.length) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (keys.get(position + 4 + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean contains(String key) {
+		return find(key) >= 0;
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return the TreeDiff of the key, in UTF-8, or null when the archive does not
+	 *         contain the key
+	 * @throws IOException
+	 */
+	public byte[] read(String key) throws IOException {
+		int entry = find(key);
+		if (entry < 0) {
+			return null;
+		}
+		int base = entry * ENTRY_LENGTH;
+		long block = entries.getLong(base + 8);
+		long offset = entries.getLong(base + 16);
+		int length = entries.getInt(base + 32);
+		int shard = entries.getInt(base + 36);
+
+		byte[] document = new byte[length];
+		if (!compressed[shard]) {
+			readFully(shards[shard], ByteBuffer.wrap(document), block + offset);
+			return document;
+		}
+		try (InputStream in = new GZIPInputStream(new ChannelInputStream(shards[shard], block), 1 << 13)) {
+			long skipped = 0;
+			while (skipped < offset) {
+				long n = in.skip(offset - skipped);
+				if (n <= 0) {
+					throw new EOFException("Truncated block of " + key);
+				}
+				skipped += n;
+			}
+			int read = 0;
+			while (read < length) {
+				int n = in.read(document, read, length - read);
+				if (n < 0) {
+					throw new EOFException("Truncated document of " + key);
+				}
+				read += n;
+			}
+		}
+		return document;
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return the TreeDiff of the key, or null when the archive does not contain
+	 *         the key
+	 * @throws IOException
+	 */
+	public JsonElement get(String key) throws IOException {
+		byte[] document = read(key);
+		if (document == null) {
+			return null;
+		}
+		return new JsonParser().parse(new String(document, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 *
+	 * @return the number of documents of the archive
+	 */
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closeShards();
+	}
+
+	private void closeShards() throws IOException {
+		IOException error = null;
+		for (FileChannel shard : shards) {
+			if (shard == null) {
+				continue;
+			}
+			try {
+				shard.close();
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			position += n;
+		}
+	}
+
+	/**
+	 * Reads a channel from a position, with positioned reads, so several threads
+	 * can read the same channel.
+	 */
+	private static class ChannelInputStream extends InputStream {
+		final FileChannel channel;
+		long position;
+
+		ChannelInputStream(FileChannel channel, long position) {
+			this.channel = channel;
+			this.position = position;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+			if (n > 0) {
+				position += n;
+			}
+			return n;
+		}
+	}
+
+}
@@ -0,0 +1,304 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Computes the TreeDiff of many pairs of files in parallel, using a
+ * {@link TreeDiffFormatBuilder} for each pair.
+ *
+ * The number of pairs submitted but not yet delivered is bounded: the thread
+ * that provides the pairs blocks until a result is consumed (backpressure). A
+ * failure in one pair is reported in its {@link Result} and does not stop the
+ * batch, except an {@link Error} (other than a {@link StackOverflowError}),
+ * which stops the batch and is thrown by {@code build}. Results are delivered
+ * to the consumer one at a time, either in the order of the input or as soon
+ * as they are computed.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffBatchBuilder implements AutoCloseable {
+
+	/**
+	 * A pair of files to diff.
+	 */
+	public static class FilePair {
+
+		public final File left;
+		public final File right;
+
+		public FilePair(File left, File right) {
+			super();
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public String toString() {
+			return left + " -> " + right;
+		}
+	}
+
+	/**
+	 * The outcome of diffing one pair: either a TreeDiff or the error thrown
+	 * while computing it.
+	 */
+	public static class Result {
+
+		public final long index;
+		public final FilePair pair;
+		public final JsonElement treeDiff;
+		public final Throwable error;
+
+		public Result(long index, FilePair pair, JsonElement treeDiff, Throwable error) {
+			super();
+			this.index = index;
+			this.pair = pair;
+			this.treeDiff = treeDiff;
+			this.error = error;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+	}
+
+	protected final TreeDiffFormatBuilder builder;
+	protected final ExecutorService executor;
+	protected final boolean ownsExecutor;
+	protected final int maxPending;
+	protected final boolean ordered;
+
+	/**
+	 * Creates a batch builder with a work-stealing pool of one thread per core,
+	 * which delivers the results in the order of the input.
+	 *
+	 * @param builder the builder used to compute each TreeDiff
+	 */
+	public TreeDiffBatchBuilder(TreeDiffFormatBuilder builder) {
+		this(builder, Runtime.getRuntime().availableProcessors(), true);
+	}
+
+	/**
+	 *
+	 * @param builder     the builder used to compute each TreeDiff
+	 * @param parallelism number of threads of the work-stealing pool
+	 * @param ordered     indicates if results are delivered in the order of the
+	 *                    input
+	 */
+	public TreeDiffBatchBuilder(TreeDiffFormatBuilder builder, int parallelism, boolean ordered) {
+		this(builder, new ForkJoinPool(parallelism), true, 4 * parallelism, ordered);
+	}
+
+	/**
+	 *
+	 * @param builder      the builder used to compute each TreeDiff
+	 * @param executor     the executor that computes the diffs
+	 * @param ownsExecutor indicates if {@link #close()} shuts down the executor
+	 * @param maxPending   max number of pairs submitted and not yet delivered
+	 * @param ordered      indicates if results are delivered in the order of the
+	 *                     input
+	 */
+	public TreeDiffBatchBuilder(TreeDiffFormatBuilder builder, ExecutorService executor, boolean ownsExecutor,
+			int maxPending, boolean ordered) {
+		super();
+		if (maxPending < 1) {
+			throw new IllegalArgumentException("maxPending must be positive: " + maxPending);
+		}
+		this.builder = builder;
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		this.maxPending = maxPending;
+		this.ordered = ordered;
+	}
+
+	/**
+	 * Diffs all the pairs and returns the results in the order of the input.
+	 *
+	 * @param pairs
+	 * @param algorithmName
+	 * @param algorithmVersion
+	 * @return one result per pair
+	 * @throws InterruptedException
+	 */
+	public List<Result> build(List<FilePair> pairs, String algorithmName, String algorithmVersion)
+			throws InterruptedException {
+		List<Result> results = new ArrayList<>(pairs.size());
+		for (int i = 0; i < pairs.size(); i++) {
+			results.add(null);
+		}
+		build(pairs.iterator(), algorithmName, algorithmVersion, r -> results.set((int) r.index, r));
+		return results;
+	}
+
+	public void build(Stream<FilePair> pairs, String algorithmName, String algorithmVersion,
+			Consumer<Result> consumer) throws InterruptedException {
+		build(pairs.iterator(), algorithmName, algorithmVersion, consumer);
+	}
+
+	/**
+	 * Diffs the pairs provided by the iterator and delivers each result to the
+	 * consumer. The consumer is never called concurrently. The method returns
+	 * once all the results were delivered, or once the pairs already submitted
+	 * are done if the iterator, the consumer or a diff throws.
+	 *
+	 * @param pairs            the pairs to diff, pulled only when there is room
+	 *                         for a new pending pair
+	 * @param algorithmName
+	 * @param algorithmVersion
+	 * @param consumer         receives the results
+	 * @throws InterruptedException
+	 */
+	public void build(Iterator<FilePair> pairs, String algorithmName, String algorithmVersion,
+			Consumer<Result> consumer) throws InterruptedException {
+
+		Semaphore pending = new Semaphore(maxPending);
+		Delivery delivery = new Delivery(consumer, pending);
+		long index = 0;
+
+		try {
+			while (delivery.isRunning() && pairs.hasNext()) {
+				pending.acquire();
+				FilePair pair;
+				try {
+					pair = pairs.next();
+				} catch (RuntimeException | Error e) {
+					pending.release();
+					throw e;
+				}
+				long pairIndex = index++;
+				try {
+					executor.execute(() -> {
+						Result result;
+						try {
+							result = diff(pairIndex, pair, algorithmName, algorithmVersion);
+						} catch (Error e) {
+							delivery.fail(e);
+							throw e;
+						}
+						delivery.deliver(result);
+					});
+				} catch (RejectedExecutionException e) {
+					pending.release();
+					throw e;
+				}
+			}
+		} finally {
+			// waits until all the submitted pairs are delivered
+			pending.acquireUninterruptibly(maxPending);
+			pending.release(maxPending);
+		}
+
+		if (delivery.error != null) {
+			throw delivery.error;
+		}
+		if (delivery.consumerError != null) {
+			throw delivery.consumerError;
+		}
+	}
+
+	/**
+	 * Computes the TreeDiff of one pair, capturing any failure.
+	 *
+	 * @param index
+	 * @param pair
+	 * @param algorithmName
+	 * @param algorithmVersion
+	 * @return
+	 */
+	protected Result diff(long index, FilePair pair, String algorithmName, String algorithmVersion) {
+		try {
+			return new Result(index, pair, builder.build(pair.left, pair.right, algorithmName, algorithmVersion),
+					null);
+		} catch (Exception | StackOverflowError e) {
+			return new Result(index, pair, null, e);
+		}
+	}
+
+	/**
+	 * Serializes the calls to the consumer and, when the results are ordered,
+	 * buffers the ones that arrive before their predecessors. A pending permit is
+	 * released only once its result is delivered, so the buffer is also bounded.
+	 * After an error, the results are dropped and their permits released.
+	 */
+	protected class Delivery {
+
+		final Consumer<Result> consumer;
+		final Semaphore pending;
+		final Map<Long, Result> waiting = new HashMap<>();
+		long next = 0;
+		volatile RuntimeException consumerError = null;
+		volatile Error error = null;
+
+		Delivery(Consumer<Result> consumer, Semaphore pending) {
+			this.consumer = consumer;
+			this.pending = pending;
+		}
+
+		boolean isRunning() {
+			return consumerError == null && error == null;
+		}
+
+		synchronized void deliver(Result result) {
+			if (error != null) {
+				pending.release();
+				return;
+			}
+			if (!ordered) {
+				accept(result);
+				return;
+			}
+			waiting.put(result.index, result);
+			Result nextResult;
+			while ((nextResult = waiting.remove(next)) != null) {
+				next++;
+				accept(nextResult);
+			}
+		}
+
+		/**
+		 * Stops the delivery after a diff threw an error. The results waiting for
+		 * the one that failed are never delivered.
+		 */
+		synchronized void fail(Error e) {
+			if (error == null) {
+				error = e;
+			}
+			pending.release(waiting.size() + 1);
+			waiting.clear();
+		}
+
+		private void accept(Result result) {
+			try {
+				if (consumerError == null) {
+					consumer.accept(result);
+				}
+			} catch (RuntimeException e) {
+				consumerError = e;
+			} finally {
+				pending.release();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		if (ownsExecutor) {
+			executor.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,266 @@
+package fr.gumtree.treediff.jdt;
+
+import static fr.gumtree.treediff.jdt.TreeDiffBinaryEncoder.MAGIC;
+import static fr.gumtree.treediff.jdt.TreeDiffBinaryEncoder.TAG_ARRAY;
+import static fr.gumtree.treediff.jdt.TreeDiffBinaryEncoder.TAG_FALSE;
+import static fr.gumtree.treediff.jdt.TreeDiffBinaryEncoder.TAG_INT;
+import static fr.gumtree.treediff.jdt.TreeDiffBinaryEncoder.TAG_NULL;
+import static fr.gumtree.treediff.jdt.TreeDiffBinaryEncoder.TAG_NUMBER;
+import static fr.gumtree.treediff.jdt.TreeDiffBinaryEncoder.TAG_OBJECT;
+import static fr.gumtree.treediff.jdt.TreeDiffBinaryEncoder.TAG_STRING;
+import static fr.gumtree.treediff.jdt.TreeDiffBinaryEncoder.TAG_TRUE;
+import static fr.gumtree.treediff.jdt.TreeDiffBinaryEncoder.VERSION;
+import static fr.gumtree.treediff.jdt.TreeDiffBinaryEncoder.deltaBase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Decodes the binary form written by {@link TreeDiffBinaryEncoder} into the
+ * Json representation of the TreeDiff.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffBinaryDecoder {
+
+	public JsonElement decode(byte[] encoded) throws IOException {
+		return decode(new ByteArrayInputStream(encoded));
+	}
+
+	/**
+	 * Decodes one document. The stream is read up to the end of the document and
+	 * is not closed, so the bytes that follow the document can still be read
+	 * from it. The stream is read byte by byte, so it should be buffered (e.g., a
+	 * {@link java.io.BufferedInputStream}).
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException if the content is not a binary TreeDiff, or is
+	 *                     truncated or corrupt
+	 */
+	public JsonElement decode(InputStream in) throws IOException {
+		for (byte expected : MAGIC) {
+			if (in.read() != expected) {
+				throw new IOException("Not a binary TreeDiff");
+			}
+		}
+		int version = in.read();
+		if (version != VERSION) {
+			throw new IOException("Unsupported version of binary TreeDiff: " + version);
+		}
+		return new Decoding(in).decode();
+	}
+
+	/**
+	 * An object or array being decoded.
+	 */
+	private static class Frame {
+		final JsonElement container;
+		final List<String> keys;
+		final String key;
+		final int count;
+		/** the integers already read in the object, by key */
+		final Map<String, Long> ints;
+		int index = 0;
+
+		Frame(JsonElement container, List<String> keys, String key, int count) {
+			this.container = container;
+			this.keys = keys;
+			this.key = key;
+			this.count = count;
+			this.ints = (keys != null) ? new HashMap<>() : null;
+		}
+	}
+
+	/**
+	 * The state of one decoding, which mirrors the one of the encoder.
+	 */
+	private static class Decoding {
+
+		/**
+		 * the capacity allocated before reading the elements of an array, the keys
+		 * of a shape or the bytes of a string, so a corrupt size can not allocate a
+		 * huge buffer: the content grows while it is read
+		 */
+		static final int MAX_INITIAL_CAPACITY = 8192;
+
+		final InputStream in;
+		final List<String> strings = new ArrayList<>();
+		final List<List<String>> shapes = new ArrayList<>();
+		final Map<String, long[]> lastInts = new HashMap<>();
+
+		Decoding(InputStream in) {
+			this.in = in;
+		}
+
+		JsonElement decode() throws IOException {
+			Deque<Frame> open = new ArrayDeque<>();
+			JsonElement root = read("", null, open);
+
+			while (!open.isEmpty()) {
+				Frame frame = open.peek();
+				if (frame.index == frame.count) {
+					open.pop();
+					continue;
+				}
+				if (frame.keys != null) {
+					String key = frame.keys.get(frame.index);
+					((JsonObject) frame.container).add(key, read(key, frame, open));
+				} else {
+					((JsonArray) frame.container).add(read(frame.key, frame, open));
+				}
+				frame.index++;
+			}
+			return root;
+		}
+
+		/**
+		 * Reads a value. Objects and arrays are returned empty and pushed, to be
+		 * filled by the loop of {@link #decode()}.
+		 */
+		private JsonElement read(String key, Frame parent, Deque<Frame> open) throws IOException {
+			int tag = readByte();
+			switch (tag) {
+			case TAG_NULL:
+				return JsonNull.INSTANCE;
+			case TAG_FALSE:
+				return new JsonPrimitive(false);
+			case TAG_TRUE:
+				return new JsonPrimitive(true);
+			case TAG_INT:
+				long[] last = lastInts.computeIfAbsent(key, k -> new long[1]);
+				long value = deltaBase(key, last, (parent != null) ? parent.ints : null) + unzigzag(readVarint());
+				last[0] = value;
+				if (parent != null && parent.ints != null) {
+					parent.ints.put(key, value);
+				}
+				return (value == (int) value) ? new JsonPrimitive((int) value) : new JsonPrimitive(value);
+			case TAG_NUMBER:
+				String number = readString();
+				try {
+					return new JsonPrimitive(new BigDecimal(number));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid number in binary TreeDiff: " + number, e);
+				}
+			case TAG_STRING:
+				return new JsonPrimitive(readString());
+			case TAG_ARRAY:
+				int size = readSize();
+				JsonArray array = new JsonArray(Math.min(size, MAX_INITIAL_CAPACITY));
+				open.push(new Frame(array, null, key, size));
+				return array;
+			case TAG_OBJECT:
+				List<String> keys = readShape();
+				JsonObject object = new JsonObject();
+				open.push(new Frame(object, keys, key, keys.size()));
+				return object;
+			default:
+				throw new IOException("Unknown tag in binary TreeDiff: " + tag);
+			}
+		}
+
+		private List<String> readShape() throws IOException {
+			int index = readIndex(shapes.size(), "shape");
+			if (index > 0) {
+				return shapes.get(index - 1);
+			}
+			int size = readSize();
+			List<String> keys = new ArrayList<>(Math.min(size, MAX_INITIAL_CAPACITY));
+			for (int i = 0; i < size; i++) {
+				keys.add(readString());
+			}
+			keys = Collections.unmodifiableList(keys);
+			shapes.add(keys);
+			return keys;
+		}
+
+		private String readString() throws IOException {
+			int index = readIndex(strings.size(), "string");
+			if (index > 0) {
+				return strings.get(index - 1);
+			}
+			int length = readSize();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(length, MAX_INITIAL_CAPACITY));
+			byte[] buffer = new byte[Math.min(length, MAX_INITIAL_CAPACITY)];
+			int remaining = length;
+			while (remaining > 0) {
+				int n = in.read(buffer, 0, Math.min(remaining, buffer.length));
+				if (n < 0) {
+					throw new EOFException();
+				}
+				bytes.write(buffer, 0, n);
+				remaining -= n;
+			}
+			String value = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+			strings.add(value);
+			return value;
+		}
+
+		/**
+		 * Reads a reference to a string or a shape already read (from 1), or 0 for
+		 * a new one.
+		 */
+		private int readIndex(int known, String what) throws IOException {
+			long index = readVarint();
+			if (index < 0 || index > known) {
+				throw new IOException("Invalid " + what + " reference in binary TreeDiff: " + index);
+			}
+			return (int) index;
+		}
+
+		private int readSize() throws IOException {
+			long size = readVarint();
+			if (size < 0 || size > Integer.MAX_VALUE) {
+				throw new IOException("Invalid size in binary TreeDiff: " + size);
+			}
+			return (int) size;
+		}
+
+		private long readVarint() throws IOException {
+			long value = 0;
+			int shift = 0;
+			int b;
+			do {
+				if (shift > 63) {
+					throw new IOException("Invalid varint in binary TreeDiff");
+				}
+				b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
+		private int readByte() throws IOException {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			return b;
+		}
+	}
+
+	static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+}
@@ -0,0 +1,272 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Encodes a TreeDiff (or any Json document) in a compact binary form, which
+ * {@link TreeDiffBinaryDecoder} decodes back to the same Json.
+ *
+ * The encoding removes the repetitions of the Json text:
+ * <ul>
+ * <li>strings (keys, node types such as "SimpleName", labels) are written once
+ * and then referenced by their index in a dictionary built while encoding,</li>
+ * <li>the list of keys of an object (its shape, e.g. the keys of an action) is
+ * written once and then referenced by index,</li>
+ * <li>integers (e.g. char positions) are written as zigzag varints, as the
+ * difference with the last integer written for the same key, or for end
+ * positions, with the start of the same node.</li>
+ * </ul>
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffBinaryEncoder {
+
+	static final byte[] MAGIC = { 'T', 'D', 'B' };
+	static final int VERSION = 1;
+
+	static final int TAG_NULL = 0;
+	static final int TAG_FALSE = 1;
+	static final int TAG_TRUE = 2;
+	static final int TAG_INT = 3;
+	static final int TAG_NUMBER = 4;
+	static final int TAG_STRING = 5;
+	static final int TAG_OBJECT = 6;
+	static final int TAG_ARRAY = 7;
+
+	/**
+	 * Encodes the document into a byte array.
+	 *
+	 * @param treeDiff
+	 * @return
+	 */
+	public byte[] encode(JsonElement treeDiff) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			encode(treeDiff, out);
+		} catch (IOException e) {
+			// ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encodes the document. The stream is flushed but not closed.
+	 *
+	 * @param treeDiff
+	 * @param out
+	 * @throws IOException
+	 */
+	public void encode(JsonElement treeDiff, OutputStream out) throws IOException {
+		OutputStream buffered = new BufferedOutputStream(out);
+		buffered.write(MAGIC);
+		buffered.write(VERSION);
+		new Encoding(buffered).encode(treeDiff);
+		buffered.flush();
+	}
+
+	/**
+	 * An object or array being encoded.
+	 */
+	private static class Frame {
+		final Iterator<?> members;
+		final String key;
+		/** the integers already written in the object, by key */
+		final Map<String, Long> ints;
+
+		Frame(Iterator<?> members, String key, boolean isObject) {
+			this.members = members;
+			this.key = key;
+			this.ints = (isObject) ? new HashMap<>() : null;
+		}
+	}
+
+	/**
+	 * The state of one encoding: dictionaries and last integer per key.
+	 */
+	private static class Encoding {
+
+		final OutputStream out;
+		final Map<String, Integer> strings = new HashMap<>();
+		final Map<List<String>, Integer> shapes = new HashMap<>();
+		final Map<String, long[]> lastInts = new HashMap<>();
+
+		Encoding(OutputStream out) {
+			this.out = out;
+		}
+
+		/**
+		 * Encodes the values in pre-order with an explicit stack of open objects
+		 * and arrays, so deep documents do not overflow the thread stack.
+		 */
+		void encode(JsonElement root) throws IOException {
+			Deque<Frame> open = new ArrayDeque<>();
+			write(root, "", null, open);
+
+			while (!open.isEmpty()) {
+				Frame frame = open.peek();
+				if (!frame.members.hasNext()) {
+					open.pop();
+					continue;
+				}
+				Object next = frame.members.next();
+				if (next instanceof Entry) {
+					@SuppressWarnings("unchecked")
+					Entry<String, JsonElement> member = (Entry<String, JsonElement>) next;
+					write(member.getValue(), member.getKey(), frame, open);
+				} else {
+					// the elements of an array share the key of the array
+					write((JsonElement) next, frame.key, frame, open);
+				}
+			}
+		}
+
+		private void write(JsonElement element, String key, Frame parent, Deque<Frame> open) throws IOException {
+			if (element == null || element.isJsonNull()) {
+				out.write(TAG_NULL);
+			} else if (element.isJsonPrimitive()) {
+				writePrimitive(element.getAsJsonPrimitive(), key, parent);
+			} else if (element.isJsonArray()) {
+				JsonArray array = element.getAsJsonArray();
+				out.write(TAG_ARRAY);
+				writeVarint(array.size());
+				open.push(new Frame(array.iterator(), key, false));
+			} else {
+				JsonObject object = element.getAsJsonObject();
+				out.write(TAG_OBJECT);
+				writeShape(object);
+				open.push(new Frame(object.entrySet().iterator(), key, true));
+			}
+		}
+
+		private void writePrimitive(JsonPrimitive primitive, String key, Frame parent) throws IOException {
+			if (primitive.isBoolean()) {
+				out.write(primitive.getAsBoolean() ? TAG_TRUE : TAG_FALSE);
+			} else if (primitive.isNumber()) {
+				String text = primitive.getAsString();
+				Long value = parseLong(text);
+				if (value != null) {
+					out.write(TAG_INT);
+					long[] last = lastInts.computeIfAbsent(key, k -> new long[1]);
+					writeVarint(zigzag(value - deltaBase(key, last, (parent != null) ? parent.ints : null)));
+					last[0] = value;
+					if (parent != null && parent.ints != null) {
+						parent.ints.put(key, value);
+					}
+				} else {
+					out.write(TAG_NUMBER);
+					writeString(text);
+				}
+			} else {
+				out.write(TAG_STRING);
+				writeString(primitive.getAsString());
+			}
+		}
+
+		/**
+		 * Writes the index of the shape plus one, or 0 followed by the keys when the
+		 * shape is new.
+		 */
+		private void writeShape(JsonObject object) throws IOException {
+			List<String> keys = new ArrayList<>(object.keySet());
+			Integer index = shapes.get(keys);
+			if (index != null) {
+				writeVarint(index + 1);
+				return;
+			}
+			shapes.put(keys, shapes.size());
+			writeVarint(0);
+			writeVarint(keys.size());
+			for (String key : keys) {
+				writeString(key);
+			}
+		}
+
+		/**
+		 * Writes the index of the string plus one, or 0 followed by the length and
+		 * the UTF-8 bytes when the string is new.
+		 */
+		private void writeString(String value) throws IOException {
+			Integer index = strings.get(value);
+			if (index != null) {
+				writeVarint(index + 1);
+				return;
+			}
+			strings.put(value, strings.size());
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarint(0);
+			writeVarint(bytes.length);
+			out.write(bytes);
+		}
+
+		private void writeVarint(long value) throws IOException {
+			while ((value & ~0x7FL) != 0) {
+				out.write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			out.write((int) value);
+		}
+	}
+
+	/**
+	 * Returns the key of the start position that matches an end position (e.g.
+	 * "location-before-char-start" for "location-before-char-end"), or null. An
+	 * end is written relative to its start if the start was already written in
+	 * the same object, so the length of the node is written.
+	 */
+	static String startKeyOf(String key) {
+		return key.endsWith("end") ? key.substring(0, key.length() - "end".length()) + "start" : null;
+	}
+
+	/**
+	 * Returns the value an integer is written relative to: the matching start
+	 * written in the same object (see {@link #startKeyOf(String)}), otherwise the
+	 * last integer written for the same key.
+	 */
+	static long deltaBase(String key, long[] lastForKey, Map<String, Long> objectInts) {
+		String startKey = startKeyOf(key);
+		if (startKey != null && objectInts != null) {
+			Long start = objectInts.get(startKey);
+			if (start != null) {
+				return start;
+			}
+		}
+		return lastForKey[0];
+	}
+
+	/**
+	 * Returns the value of a number written as an integer without loss (e.g.,
+	 * "56" but not "56.0" nor "056"), null otherwise.
+	 */
+	static Long parseLong(String text) {
+		try {
+			long value = Long.parseLong(text);
+			return Long.toString(value).equals(text) ? value : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+}
@@ -0,0 +1,198 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.github.gumtreediff.tree.TreeContext;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Computes the TreeDiffs of the consecutive versions of one file (v1 → v2, v2 →
+ * v3, ...), using the configuration of a {@link TreeDiffFormatBuilder}.
+ *
+ * Each version is parsed only once: its tree is the right side of one diff and
+ * the left side of the next one. In the same way, its "after-file" (the tree or
+ * the node table) is reused as the "before-file" of the next TreeDiff, so
+ * consecutive TreeDiffs share that JSON element and must not be modified. The
+ * files are not reused when the types or labels are interned, as the indexes
+ * of the strings are specific to each document.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffChainBuilder {
+
+	/**
+	 * A version of the file, with its tree and, once created, its "before-file"
+	 * / "after-file".
+	 */
+	protected static class Version {
+		final File file;
+		final TreeContext context;
+		/** the content, only read when the builder has a fast path */
+		final byte[] content;
+		TreeNodeTable table;
+		JsonElement json;
+
+		Version(File file, TreeContext context, byte[] content) {
+			this.file = file;
+			this.context = context;
+			this.content = content;
+		}
+	}
+
+	protected final TreeDiffFormatBuilder builder;
+
+	public TreeDiffChainBuilder(TreeDiffFormatBuilder builder) {
+		super();
+		this.builder = builder;
+	}
+
+	/**
+	 * Diffs each version with the next one.
+	 *
+	 * @param versions         the versions of the file, from the oldest one
+	 * @param algorithmName
+	 * @param algorithmVersion
+	 * @return the n-1 TreeDiffs, in order
+	 * @throws IOException
+	 */
+	public List<JsonElement> build(List<File> versions, String algorithmName, String algorithmVersion)
+			throws IOException {
+		List<JsonElement> treeDiffs = new ArrayList<>(Math.max(0, versions.size() - 1));
+		build(versions.iterator(), algorithmName, algorithmVersion, treeDiffs::add);
+		return treeDiffs;
+	}
+
+	/**
+	 * Diffs each version provided by the iterator with the next one, and delivers
+	 * each TreeDiff to the consumer as soon as it is created. Only the trees of
+	 * two versions are kept in memory.
+	 *
+	 * @param versions         the versions of the file, from the oldest one
+	 * @param algorithmName
+	 * @param algorithmVersion
+	 * @param consumer         receives the TreeDiffs, in order
+	 * @throws IOException
+	 */
+	public void build(Iterator<File> versions, String algorithmName, String algorithmVersion,
+			Consumer<JsonElement> consumer) throws IOException {
+		Version left = null;
+		long parseNanos = 0;
+		while (versions.hasNext()) {
+			long start = System.nanoTime();
+			Version right = read(versions.next());
+			long end = System.nanoTime();
+			parseNanos += end - start;
+
+			if (left != null) {
+				consumer.accept(build(left, right, end - parseNanos, parseNanos, algorithmName, algorithmVersion));
+				parseNanos = 0;
+			}
+			left = right;
+		}
+	}
+
+	protected Version read(File file) throws IOException {
+		if (builder.getFastPath() != null) {
+			byte[] content = Files.readAllBytes(file.toPath());
+			return new Version(file, builder.parse(content), content);
+		}
+		return new Version(file, builder.parse(file), null);
+	}
+
+	/**
+	 * Creates the TreeDiff of two consecutive versions.
+	 *
+	 * @param left
+	 * @param right
+	 * @param start            when the diff started, including the parsing
+	 * @param parseNanos       the time spent parsing the versions of this diff
+	 * @param algorithmName
+	 * @param algorithmVersion
+	 * @return
+	 * @throws IOException
+	 */
+	protected JsonElement build(Version left, Version right, long start, long parseNanos, String algorithmName,
+			String algorithmVersion) throws IOException {
+
+		TreeDiffMetrics metrics = builder.createMetrics(left.file, right.file);
+		if (metrics != null) {
+			metrics.record(TreeDiffMetrics.Phase.PARSE, parseNanos);
+		}
+
+		TreeDiffFastPath fastPath = builder.getFastPath();
+		TreeDiffFastPath.Outcome outcome = (fastPath != null && left.content != null)
+				? fastPath.check(left.content, right.content)
+				: TreeDiffFastPath.Outcome.DIFFERENT;
+
+		TreeDiffFormatBuilder.MatchedDiff matched;
+		if (outcome != TreeDiffFastPath.Outcome.DIFFERENT) {
+			matched = builder.createEqualDiff(left.context, right.context, outcome);
+			if (metrics != null) {
+				metrics.record(matched.diff);
+			}
+		} else {
+			long deadline = builder.getMatchingStrategy().deadline(start);
+			matched = builder.computeDiff(left.context, right.context, deadline, metrics);
+		}
+		// the edit script generator sets a fake parent to the right root, which is
+		// the left root of the next diff
+		right.context.getRoot().setParent(null);
+
+		long serializeStart = (metrics != null) ? System.nanoTime() : 0;
+		JsonObject toolInfo = builder.createToolInfo(algorithmName, algorithmVersion, matched.matcherName,
+				matched.generatorName);
+		builder.addMatchingInfo(matched, toolInfo);
+		JsonElement treeDiff = build(left, right, matched, toolInfo);
+
+		if (metrics != null) {
+			metrics.record(TreeDiffMetrics.Phase.SERIALIZE, System.nanoTime() - serializeStart);
+			if (builder.isStoreStats()) {
+				toolInfo.add("stats", metrics.toJson());
+			}
+			builder.notifyMetrics(metrics);
+		}
+		return treeDiff;
+	}
+
+	private JsonElement build(Version left, Version right, TreeDiffFormatBuilder.MatchedDiff matched,
+			JsonObject toolInfo) {
+		if (builder.summaryOnly || builder.createStringTable() != null
+				|| !(builder.storeTrees || builder.storeNodeTable)) {
+			return builder.build(matched.diff, left.context.getRoot(), right.context.getRoot(), left.file,
+					right.file, toolInfo);
+		}
+
+		if (builder.storeNodeTable) {
+			createNodeTable(left);
+			createNodeTable(right);
+			return builder.buildWithNodeTable(left.table, left.json, right.table, right.json, matched.diff,
+					toolInfo);
+		}
+
+		createTree(left);
+		createTree(right);
+		return builder.build(left.json, right.json, matched.diff, toolInfo);
+	}
+
+	private void createNodeTable(Version version) {
+		if (version.table == null) {
+			version.table = new TreeNodeTable(version.context.getRoot());
+			version.json = builder.buildNodeTable(version.table, version.file.getAbsolutePath());
+		}
+	}
+
+	private void createTree(Version version) {
+		if (version.json == null) {
+			version.json = builder.buildTree(version.context.getRoot(), version.file.getAbsolutePath());
+		}
+	}
+
+}
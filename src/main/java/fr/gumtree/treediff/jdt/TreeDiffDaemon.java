@@ -0,0 +1,628 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * A long-running server that computes TreeDiffs for local clients, so the JVM
+ * start, the loading of the classes of JDT and GumTree and the compilation of
+ * the hot code are paid once, and not for each diff. The builder, its caches
+ * and the pool of threads stay resident between requests.
+ *
+ * The daemon listens on a TCP socket bound to the loopback address only, and
+ * only answers the batches that carry its token: a random string written when
+ * the daemon starts in {@link #getTokenFile()}, which only the user running the
+ * daemon can read. So the other users of the machine can not make the daemon
+ * read files on their behalf. The protocol is line-based, in UTF-8: each line
+ * sent by a client is a batch of diffs:
+ *
+ * <pre>
+ * {"token": "...", "id": "r1", "pairs": [
+ *   {"left": "/path/A.java", "right": "/path/B.java"},
+ *   {"left-content": "class A {}", "right-content": "class A { int x; }",
+ *    "left-path": "A.java", "right-path": "A.java"}]}
+ * </pre>
+ *
+ * A pair refers either to two files or to their contents ("left-path" and
+ * "right-path" are then the paths written in the TreeDiff). The pairs of a
+ * batch are diffed in parallel, and the daemon answers with one line per pair,
+ * in the order of the batch, as soon as it is computed:
+ * {@code {"id": "r1", "index": 0, "treediff": {...}}}, or
+ * {@code {"id": "r1", "index": 1, "error": "..."}} if the pair fails; then a
+ * last line {@code {"id": "r1", "done": true, "count": 2}}. A line that is not
+ * a batch, or has not the token, is answered with {@code {"error": "..."}}. A
+ * client can send several batches on the same connection; they are answered
+ * one after the other. A line longer than the max length (16M characters by
+ * default) is answered with an error, and the connection is closed, as the
+ * line is read before its token can be checked.
+ *
+ * The contents of a pair are written in files whose paths only depend on the
+ * paths and the contents of the pair, so a pair sent again has the same
+ * TreeDiff key in the result cache of the builder while the daemon runs.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffDaemon implements Closeable {
+
+	/** how long {@link #close()} waits for the batches in progress */
+	public static final long DRAIN_TIMEOUT_SECONDS = 30;
+
+	/** the default max length of a line of a client, in characters */
+	public static final int MAX_LINE_LENGTH = 16 << 20;
+
+	protected final TreeDiffFormatBuilder builder;
+	protected final String algorithmName;
+	protected final String algorithmVersion;
+	protected final ServerSocket serverSocket;
+	/** computes the diffs of all the connections */
+	protected final ForkJoinPool diffPool;
+	protected final int maxPending;
+	protected final int maxLineLength;
+	/** one thread per connection, reading its batches */
+	protected final ExecutorService connectionPool;
+	protected final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+	/**
+	 * where the contents received inline are written to be diffed, and the
+	 * token; only its owner can read it
+	 */
+	protected final File contentDirectory;
+	protected final String token;
+	protected final File tokenFile;
+	/**
+	 * the directories of the contents being diffed, with the number of pairs
+	 * diffing them
+	 */
+	protected final Map<File, Integer> contentUses = new HashMap<>();
+	protected final Thread acceptThread;
+
+	protected volatile boolean closed = false;
+
+	/**
+	 * Creates a daemon that diffs with one thread per core.
+	 *
+	 * @param builder          the builder that computes the TreeDiffs
+	 * @param port             the port, or 0 for any free port
+	 * @param algorithmName
+	 * @param algorithmVersion
+	 * @throws IOException if the socket cannot be bound
+	 */
+	public TreeDiffDaemon(TreeDiffFormatBuilder builder, int port, String algorithmName, String algorithmVersion)
+			throws IOException {
+		this(builder, port, algorithmName, algorithmVersion, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 *
+	 * @param builder          the builder that computes the TreeDiffs
+	 * @param port             the port, or 0 for any free port
+	 * @param algorithmName
+	 * @param algorithmVersion
+	 * @param parallelism      the number of threads that compute the diffs
+	 * @throws IOException if the socket cannot be bound
+	 */
+	public TreeDiffDaemon(TreeDiffFormatBuilder builder, int port, String algorithmName, String algorithmVersion,
+			int parallelism) throws IOException {
+		this(builder, port, algorithmName, algorithmVersion, parallelism, MAX_LINE_LENGTH);
+	}
+
+	/**
+	 *
+	 * @param builder          the builder that computes the TreeDiffs
+	 * @param port             the port, or 0 for any free port
+	 * @param algorithmName
+	 * @param algorithmVersion
+	 * @param parallelism      the number of threads that compute the diffs
+	 * @param maxLineLength    the max length of a line of a client, in
+	 *                         characters
+	 * @throws IOException if the socket cannot be bound
+	 */
+	public TreeDiffDaemon(TreeDiffFormatBuilder builder, int port, String algorithmName, String algorithmVersion,
+			int parallelism, int maxLineLength) throws IOException {
+		super();
+		this.builder = builder;
+		this.algorithmName = algorithmName;
+		this.algorithmVersion = algorithmVersion;
+		this.diffPool = new ForkJoinPool(parallelism);
+		this.maxPending = 4 * parallelism;
+		this.maxLineLength = maxLineLength;
+		this.connectionPool = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "treediff-daemon-connection");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.contentDirectory = Files.createTempDirectory("treediff-daemon").toFile();
+		this.token = createToken();
+		this.tokenFile = writeToken(new File(contentDirectory, "token"), token);
+		this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+
+		this.acceptThread = new Thread(this::accept, "treediff-daemon");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	/**
+	 *
+	 * @return the port the daemon listens to
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 *
+	 * @return the file that contains the token the clients must send, readable
+	 *         only by the user running the daemon
+	 */
+	public File getTokenFile() {
+		return tokenFile;
+	}
+
+	private static String createToken() {
+		byte[] bytes = new byte[32];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder token = new StringBuilder();
+		for (byte b : bytes) {
+			token.append(String.format("%02x", b));
+		}
+		return token.toString();
+	}
+
+	/**
+	 * Writes the token in a file created readable only by its owner (the
+	 * directory of the file is already private).
+	 */
+	private static File writeToken(File file, String token) throws IOException {
+		Path path = file.toPath();
+		if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		}
+		Files.write(path, token.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	/**
+	 * Diffs a few generated files, so the classes are loaded and the hot code is
+	 * compiled before the first request.
+	 *
+	 * @param iterations the number of diffs
+	 * @throws IOException
+	 */
+	public void warmUp(int iterations) throws IOException {
+		File left = File.createTempFile("warmup-left", ".java", contentDirectory);
+		File right = File.createTempFile("warmup-right", ".java", contentDirectory);
+		try {
+			for (int i = 0; i < iterations; i++) {
+				Files.write(left.toPath(), warmUpClass(i, 0).getBytes(StandardCharsets.UTF_8));
+				Files.write(right.toPath(), warmUpClass(i, 1).getBytes(StandardCharsets.UTF_8));
+				builder.build(left, right, algorithmName, algorithmVersion);
+			}
+		} finally {
+			left.delete();
+			right.delete();
+		}
+	}
+
+	private static String warmUpClass(int iteration, int version) {
+		StringBuilder content = new StringBuilder("class WarmUp" + iteration + " {\n");
+		for (int i = 0; i < 20; i++) {
+			content.append("  int m" + i + "(int x) {\n    if (x > " + (i + version * (i % 3)) + ") {\n      return f(x"
+					+ (version == 1 && i % 4 == 0 ? ", " + i : "") + ");\n    }\n    return x * 2;\n  }\n");
+		}
+		return content.append("}\n").toString();
+	}
+
+	private void accept() {
+		while (!closed) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				// the server socket is closed
+				return;
+			}
+			connections.add(socket);
+			try {
+				connectionPool.execute(() -> serve(socket));
+			} catch (RejectedExecutionException e) {
+				// the daemon is closed
+				connections.remove(socket);
+				try {
+					socket.close();
+				} catch (IOException closing) {
+					// closed anyway
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Answers the batches of a connection until the client or the daemon closes
+	 * it.
+	 *
+	 * @param socket
+	 */
+	protected void serve(Socket socket) {
+		try (Socket s = socket;
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+				Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while (!closed && (line = readLine(in, maxLineLength)) != null) {
+				if (line.length() > maxLineLength) {
+					writeError("Line longer than " + maxLineLength + " characters", out);
+					return;
+				}
+				if (!line.trim().isEmpty()) {
+					serveBatch(line, out);
+				}
+			}
+		} catch (SocketException e) {
+			// the connection or the daemon is closed
+		} catch (IOException | InterruptedException | UncheckedIOException e) {
+			// the client is gone
+		} finally {
+			connections.remove(socket);
+		}
+	}
+
+	/**
+	 * Reads a line, without its end ("\n" or "\r\n"), but not more than one
+	 * character past the max length.
+	 *
+	 * @param in
+	 * @param maxLength
+	 * @return the line, longer than the max length if it is too long, or null at
+	 *         the end of the stream
+	 * @throws IOException
+	 */
+	static String readLine(BufferedReader in, int maxLength) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) >= 0 && c != '\n') {
+			line.append((char) c);
+			// the "\r" of the end of the line is not counted
+			if (line.length() > maxLength + 1
+					|| (line.length() == maxLength + 1 && line.charAt(maxLength) != '\r')) {
+				return line.toString();
+			}
+		}
+		if (c < 0 && line.length() == 0) {
+			return null;
+		}
+		int length = line.length();
+		if (length > 0 && line.charAt(length - 1) == '\r') {
+			line.setLength(length - 1);
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Diffs the pairs of a batch and writes one line per pair, then the last
+	 * line of the batch.
+	 *
+	 * @param line the batch
+	 * @param out  the stream of the client
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	protected void serveBatch(String line, Writer out) throws IOException, InterruptedException {
+		JsonElement id;
+		List<Pair> pairs = new ArrayList<>();
+		try {
+			JsonElement parsed = new JsonParser().parse(line);
+			if (!parsed.isJsonObject()) {
+				throw new IllegalArgumentException("not an object");
+			}
+			JsonObject batch = parsed.getAsJsonObject();
+			if (!isValidToken(Pair.string(batch, "token", false))) {
+				writeError("Invalid token", out);
+				return;
+			}
+			id = batch.get("id");
+			if (id == null || !id.isJsonPrimitive()) {
+				throw new IllegalArgumentException("no \"id\"");
+			}
+			JsonElement pairsElement = batch.get("pairs");
+			if (pairsElement == null || !pairsElement.isJsonArray()) {
+				throw new IllegalArgumentException("no array of \"pairs\"");
+			}
+			for (JsonElement pair : pairsElement.getAsJsonArray()) {
+				if (!pair.isJsonObject()) {
+					throw new IllegalArgumentException("a pair is not an object: " + pair);
+				}
+				pairs.add(new Pair(pair.getAsJsonObject()));
+			}
+		} catch (JsonParseException | IllegalArgumentException e) {
+			writeError("Not a batch of pairs: " + e.getMessage(), out);
+			return;
+		}
+
+		List<TreeDiffBatchBuilder.FilePair> files = new ArrayList<>();
+		try {
+			for (Pair pair : pairs) {
+				files.add(toFiles(pair));
+			}
+
+			TreeDiffBatchBuilder batchBuilder = new TreeDiffBatchBuilder(builder, diffPool, false, maxPending, true);
+			batchBuilder.build(files.iterator(), algorithmName, algorithmVersion, result -> {
+				JsonObject response = new JsonObject();
+				response.add("id", id);
+				response.addProperty("index", result.index);
+				if (result.isSuccess()) {
+					response.add("treediff", pairs.get((int) result.index).restorePaths(result.treeDiff));
+				} else {
+					response.addProperty("error", String.valueOf(result.error));
+				}
+				try {
+					writeLine(response, out);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} finally {
+			for (int i = 0; i < files.size(); i++) {
+				releaseFiles(pairs.get(i), files.get(i));
+			}
+		}
+
+		JsonObject done = new JsonObject();
+		done.add("id", id);
+		done.addProperty("done", true);
+		done.addProperty("count", pairs.size());
+		writeLine(done, out);
+	}
+
+	/**
+	 * Returns the files of a pair. The contents of a pair are written in a
+	 * directory named after the hash of the pair, unless another pair with the
+	 * same hash is being diffed.
+	 */
+	protected TreeDiffBatchBuilder.FilePair toFiles(Pair pair) throws IOException {
+		if (!pair.isInline()) {
+			return new TreeDiffBatchBuilder.FilePair(new File(pair.left), new File(pair.right));
+		}
+		File directory = new File(contentDirectory, pair.contentHash());
+		TreeDiffBatchBuilder.FilePair files = new TreeDiffBatchBuilder.FilePair(new File(directory, "left.java"),
+				new File(directory, "right.java"));
+		synchronized (contentUses) {
+			Integer uses = contentUses.get(directory);
+			if (uses == null) {
+				directory.mkdir();
+				Files.write(files.left.toPath(), pair.leftContent.getBytes(StandardCharsets.UTF_8));
+				Files.write(files.right.toPath(), pair.rightContent.getBytes(StandardCharsets.UTF_8));
+			}
+			contentUses.put(directory, (uses == null) ? 1 : uses + 1);
+		}
+		return files;
+	}
+
+	/**
+	 * Deletes the contents of a pair written by {@link #toFiles(Pair)}, once no
+	 * other pair diffs them.
+	 */
+	protected void releaseFiles(Pair pair, TreeDiffBatchBuilder.FilePair files) {
+		if (!pair.isInline()) {
+			return;
+		}
+		File directory = files.left.getParentFile();
+		synchronized (contentUses) {
+			int uses = contentUses.get(directory);
+			if (uses > 1) {
+				contentUses.put(directory, uses - 1);
+				return;
+			}
+			contentUses.remove(directory);
+			files.left.delete();
+			files.right.delete();
+			directory.delete();
+		}
+	}
+
+	private boolean isValidToken(String received) {
+		return received != null && MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+				received.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void writeError(String message, Writer out) throws IOException {
+		JsonObject error = new JsonObject();
+		error.addProperty("error", message);
+		writeLine(error, out);
+	}
+
+	private static void writeLine(JsonObject response, Writer out) throws IOException {
+		out.write(new Gson().toJson(response));
+		out.write('\n');
+		out.flush();
+	}
+
+	/**
+	 * A pair of a batch: two files, or two contents written into files to be
+	 * diffed.
+	 */
+	protected static class Pair {
+
+		final String left;
+		final String right;
+		final String leftContent;
+		final String rightContent;
+
+		/**
+		 *
+		 * @param pair
+		 * @throws IllegalArgumentException if the pair has neither two files nor
+		 *                                  two contents
+		 */
+		Pair(JsonObject pair) {
+			this.leftContent = string(pair, "left-content", false);
+			this.rightContent = string(pair, "right-content", false);
+			if (leftContent != null || rightContent != null) {
+				if (leftContent == null || rightContent == null) {
+					throw new IllegalArgumentException("both contents are required: " + pair);
+				}
+				this.left = string(pair, "left-path", false);
+				this.right = string(pair, "right-path", false);
+			} else {
+				this.left = string(pair, "left", true);
+				this.right = string(pair, "right", true);
+			}
+		}
+
+		/**
+		 *
+		 * @param object
+		 * @param name
+		 * @param required
+		 * @return the string, or null if it is absent and not required
+		 * @throws IllegalArgumentException if the value is not a string, or is
+		 *                                  absent and required
+		 */
+		static String string(JsonObject object, String name, boolean required) {
+			JsonElement value = object.get(name);
+			if (value == null || value.isJsonNull()) {
+				if (required) {
+					throw new IllegalArgumentException("\"" + name + "\" is required: " + object);
+				}
+				return null;
+			}
+			if (!value.isJsonPrimitive() || !value.getAsJsonPrimitive().isString()) {
+				throw new IllegalArgumentException("\"" + name + "\" is not a string: " + object);
+			}
+			return value.getAsString();
+		}
+
+		boolean isInline() {
+			return leftContent != null;
+		}
+
+		/**
+		 *
+		 * @return the hash of the paths and the contents of the pair, in hex
+		 */
+		String contentHash() {
+			StringBuilder description = new StringBuilder();
+			for (String value : new String[] { left, right, leftContent, rightContent }) {
+				// the length separates the values
+				description.append((value != null) ? value.length() : -1).append(':')
+						.append((value != null) ? value : "").append('\n');
+			}
+			StringBuilder hash = new StringBuilder();
+			for (byte b : TreeDiffResultCache.key(description.toString())) {
+				hash.append(String.format("%02x", b));
+			}
+			return hash.toString();
+		}
+
+		/**
+		 * Replaces the paths of the files of the contents by the paths of the
+		 * request.
+		 */
+		JsonElement restorePaths(JsonElement treeDiff) {
+			if (isInline() && treeDiff.isJsonObject()) {
+				restorePath(treeDiff.getAsJsonObject().get("before-file"), (left != null) ? left : "left");
+				restorePath(treeDiff.getAsJsonObject().get("after-file"), (right != null) ? right : "right");
+			}
+			return treeDiff;
+		}
+
+		private static void restorePath(JsonElement file, String path) {
+			if (file != null && file.isJsonObject() && file.getAsJsonObject().has("path")) {
+				file.getAsJsonObject().addProperty("path", path);
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting connections and batches, lets the batches in progress be
+	 * answered, then closes the connections and releases the threads. The
+	 * connections whose batch is not answered within
+	 * {@link #DRAIN_TIMEOUT_SECONDS} (e.g., their client does not read) are
+	 * closed, which stops their batch once its pending diffs are done.
+	 *
+	 * The diffs are never cancelled: a batch waits for the diffs it submitted,
+	 * so cancelling them would block it forever.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		serverSocket.close();
+		try {
+			acceptThread.join(TimeUnit.SECONDS.toMillis(10));
+
+			// the connections read no more batch
+			for (Socket socket : connections) {
+				try {
+					socket.shutdownInput();
+				} catch (IOException e) {
+					// already closed
+				}
+			}
+			connectionPool.shutdown();
+			if (!connectionPool.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				for (Socket socket : connections) {
+					socket.close();
+				}
+				connectionPool.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			}
+			diffPool.shutdown();
+			diffPool.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		deleteDirectory(contentDirectory);
+	}
+
+	/**
+	 * Deletes a directory and its files, and the files of its subdirectories
+	 * (the contents of the pairs).
+	 */
+	private static void deleteDirectory(File directory) {
+		File[] contents = directory.listFiles();
+		if (contents != null) {
+			for (File content : contents) {
+				if (content.isDirectory()) {
+					deleteDirectory(content);
+				} else {
+					content.delete();
+				}
+			}
+		}
+		directory.delete();
+	}
+
+}
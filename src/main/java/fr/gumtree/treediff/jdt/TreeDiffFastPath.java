@@ -0,0 +1,183 @@
+package fr.gumtree.treediff.jdt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.core.ToolFactory;
+import org.eclipse.jdt.core.compiler.IScanner;
+import org.eclipse.jdt.core.compiler.ITerminalSymbols;
+import org.eclipse.jdt.core.compiler.InvalidInputException;
+
+/**
+ * Detects the pairs of files whose trees are equal without parsing them: the
+ * files have the same content, or the same tokens once the whitespace and the
+ * comments are ignored. The javadoc comments are part of the trees, so they are
+ * compared as tokens, with their exact content.
+ *
+ * The tokens are read by the scanner of JDT, with the source level used by
+ * {@link com.github.gumtreediff.gen.jdt.JdtTreeGenerator}, and compared while
+ * they are read, so the comparison stops at the first different token. A file
+ * that the scanner can not read is never considered equal.
+ *
+ * Two equal files that do not compile are equal for the fast path, so their
+ * TreeDiff is empty, while diffing them throws a
+ * {@link com.github.gumtreediff.gen.SyntaxException}. When the syntax is
+ * checked, the left file (which compiles if and only if the right one does, as
+ * they have the same tokens) is parsed, without creating its tree, and the
+ * files are never equal if it does not compile. The check costs a parse, so it
+ * is off by default.
+ *
+ * The fast path counts the pairs it checked and the ones that were equal. It
+ * can be used from several threads.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffFastPath {
+
+	public enum Outcome {
+		/** the files have the same content */
+		IDENTICAL,
+		/** the files differ only in whitespace or comments */
+		EQUIVALENT,
+		/** the trees of the files must be diffed */
+		DIFFERENT
+	}
+
+	protected static final String SOURCE_LEVEL = "14";
+
+	protected final boolean checkSyntax;
+
+	protected final AtomicLong checked = new AtomicLong();
+	protected final AtomicLong identical = new AtomicLong();
+	protected final AtomicLong equivalent = new AtomicLong();
+
+	/**
+	 * Creates a fast path that does not check the syntax of the files.
+	 */
+	public TreeDiffFastPath() {
+		this(false);
+	}
+
+	/**
+	 *
+	 * @param checkSyntax indicates if the files that do not compile are never
+	 *                    equal, so that their diff throws as without the fast
+	 *                    path
+	 */
+	public TreeDiffFastPath(boolean checkSyntax) {
+		super();
+		this.checkSyntax = checkSyntax;
+	}
+
+	public boolean isCheckSyntax() {
+		return checkSyntax;
+	}
+
+	/**
+	 * Compares the contents (in UTF-8) of two files.
+	 *
+	 * @param left
+	 * @param right
+	 * @return
+	 */
+	public Outcome check(byte[] left, byte[] right) {
+		checked.incrementAndGet();
+		char[] sourceLeft = null;
+		Outcome outcome = Outcome.DIFFERENT;
+		if (Arrays.equals(left, right)) {
+			outcome = Outcome.IDENTICAL;
+		} else {
+			sourceLeft = new String(left, StandardCharsets.UTF_8).toCharArray();
+			if (sameTokens(sourceLeft, new String(right, StandardCharsets.UTF_8).toCharArray())) {
+				outcome = Outcome.EQUIVALENT;
+			}
+		}
+		if (outcome == Outcome.DIFFERENT) {
+			return outcome;
+		}
+		if (checkSyntax && TreeDiffParser.isMalformed(
+				(sourceLeft != null) ? sourceLeft : new String(left, StandardCharsets.UTF_8).toCharArray())) {
+			return Outcome.DIFFERENT;
+		}
+		(outcome == Outcome.IDENTICAL ? identical : equivalent).incrementAndGet();
+		return outcome;
+	}
+
+	/**
+	 * Compares the tokens of two sources, ignoring the whitespace and the line and
+	 * block comments.
+	 *
+	 * @param left
+	 * @param right
+	 * @return
+	 */
+	protected boolean sameTokens(char[] left, char[] right) {
+		IScanner scannerLeft = createScanner(left);
+		IScanner scannerRight = createScanner(right);
+		try {
+			while (true) {
+				int token = nextToken(scannerLeft);
+				if (token != nextToken(scannerRight)) {
+					return false;
+				}
+				if (token == ITerminalSymbols.TokenNameEOF) {
+					return true;
+				}
+				if (!Arrays.equals(scannerLeft.getRawTokenSource(), scannerRight.getRawTokenSource())) {
+					return false;
+				}
+			}
+		} catch (InvalidInputException e) {
+			return false;
+		}
+	}
+
+	private static IScanner createScanner(char[] source) {
+		IScanner scanner = ToolFactory.createScanner(true, false, false, SOURCE_LEVEL, SOURCE_LEVEL);
+		scanner.setSource(source);
+		return scanner;
+	}
+
+	private static int nextToken(IScanner scanner) throws InvalidInputException {
+		int token;
+		do {
+			token = scanner.getNextToken();
+		} while (token == ITerminalSymbols.TokenNameCOMMENT_LINE || token == ITerminalSymbols.TokenNameCOMMENT_BLOCK);
+		return token;
+	}
+
+	/**
+	 *
+	 * @return the number of pairs checked
+	 */
+	public long getChecked() {
+		return checked.get();
+	}
+
+	/**
+	 *
+	 * @return the number of pairs with the same content
+	 */
+	public long getIdentical() {
+		return identical.get();
+	}
+
+	/**
+	 *
+	 * @return the number of pairs that differ only in whitespace or comments
+	 */
+	public long getEquivalent() {
+		return equivalent.get();
+	}
+
+	/**
+	 *
+	 * @return the number of pairs that took the fast path
+	 */
+	public long getFastPathPairs() {
+		return identical.get() + equivalent.get();
+	}
+
+}
@@ -0,0 +1,183 @@
+package fr.gumtree.treediff.jdt;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.github.gumtreediff.actions.Diff;
+import com.github.gumtreediff.actions.model.Action;
+import com.github.gumtreediff.tree.Tree;
+
+/**
+ * Selects the actions of a TreeDiff and the properties written for each of
+ * them. The filter is applied by {@link TreeDiffFormatBuilder} and
+ * {@link TreeDiffStreamWriter} before creating the JSON of an action, so the
+ * actions filtered out and the properties not written cost nothing to
+ * serialize.
+ *
+ * By default, all the actions and all the properties are written. An action is
+ * kept when its kind, the type of its node and its location are selected. The
+ * location of an insertion is in the right file, the location of a deletion in
+ * the left file, and the location of a move or an update in either of them.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffFilter {
+
+	/**
+	 * The properties of an action that can be left out. The "type" of the
+	 * action is always written.
+	 */
+	public enum Field {
+		/** "node" (or "node-id" and "node-after-id" in node-table mode) */
+		NODE,
+		/** "node-str" */
+		NODE_STR,
+		/** "location-before-char-start" and "location-before-char-end" */
+		LOCATION_BEFORE,
+		/** "location-after-char-start" and "location-after-char-end" */
+		LOCATION_AFTER,
+		/** "meta" */
+		META
+	}
+
+	protected Set<TreeDiffActionType> actionTypes = EnumSet.allOf(TreeDiffActionType.class);
+	/** the names of the types of nodes, or null to keep all of them */
+	protected Set<String> nodeTypes = null;
+	protected int rangeStart = 0;
+	protected int rangeEnd = Integer.MAX_VALUE;
+	protected Set<Field> fields = EnumSet.allOf(Field.class);
+
+	/**
+	 * Creates a filter that keeps everything.
+	 */
+	public TreeDiffFilter() {
+		super();
+	}
+
+	/**
+	 * Creates a filter that selects the same actions and properties than another
+	 * one.
+	 *
+	 * @param other
+	 */
+	public TreeDiffFilter(TreeDiffFilter other) {
+		super();
+		this.actionTypes = EnumSet.noneOf(TreeDiffActionType.class);
+		this.actionTypes.addAll(other.actionTypes);
+		this.nodeTypes = (other.nodeTypes == null) ? null : new TreeSet<>(other.nodeTypes);
+		this.rangeStart = other.rangeStart;
+		this.rangeEnd = other.rangeEnd;
+		this.fields = EnumSet.noneOf(Field.class);
+		this.fields.addAll(other.fields);
+	}
+
+	/**
+	 * Sets the kinds of actions kept.
+	 *
+	 * @param actionTypes
+	 */
+	public void setActionTypes(Set<TreeDiffActionType> actionTypes) {
+		this.actionTypes = actionTypes.isEmpty() ? EnumSet.noneOf(TreeDiffActionType.class)
+				: EnumSet.copyOf(actionTypes);
+	}
+
+	public Set<TreeDiffActionType> getActionTypes() {
+		return Collections.unmodifiableSet(actionTypes);
+	}
+
+	/**
+	 * Sets the types of the nodes (e.g., "MethodInvocation") of the actions kept.
+	 *
+	 * @param nodeTypes the names of the types, or null to keep all the types
+	 */
+	public void setNodeTypes(Set<String> nodeTypes) {
+		this.nodeTypes = (nodeTypes == null) ? null : new TreeSet<>(nodeTypes);
+	}
+
+	public Set<String> getNodeTypes() {
+		return (nodeTypes == null) ? null : Collections.unmodifiableSet(nodeTypes);
+	}
+
+	/**
+	 * Keeps only the actions whose node is inside a range of characters.
+	 *
+	 * @param start the first character of the range
+	 * @param end   the end of the range (exclusive)
+	 */
+	public void setCharRange(int start, int end) {
+		this.rangeStart = start;
+		this.rangeEnd = end;
+	}
+
+	public int getRangeStart() {
+		return rangeStart;
+	}
+
+	public int getRangeEnd() {
+		return rangeEnd;
+	}
+
+	/**
+	 * Sets the properties written for each action.
+	 *
+	 * @param fields
+	 */
+	public void setFields(Set<Field> fields) {
+		this.fields = fields.isEmpty() ? EnumSet.noneOf(Field.class) : EnumSet.copyOf(fields);
+	}
+
+	public Set<Field> getFields() {
+		return Collections.unmodifiableSet(fields);
+	}
+
+	/**
+	 *
+	 * @param field
+	 * @return true if the property is written
+	 */
+	public boolean isWritten(Field field) {
+		return fields.contains(field);
+	}
+
+	/**
+	 *
+	 * @param diff
+	 * @param action an action of the edit script of the diff
+	 * @param type   the kind of the action
+	 * @return true if the action is kept
+	 */
+	public boolean accept(Diff diff, Action action, TreeDiffActionType type) {
+		if (!actionTypes.contains(type)) {
+			return false;
+		}
+		Tree node = action.getNode();
+		if (nodeTypes != null && !nodeTypes.contains(node.getType().name)) {
+			return false;
+		}
+		if (rangeStart <= 0 && rangeEnd == Integer.MAX_VALUE) {
+			return true;
+		}
+		if (isInRange(node)) {
+			return true;
+		}
+		return type.isMapped() && isInRange(diff.mappings.getDstForSrc(node));
+	}
+
+	private boolean isInRange(Tree node) {
+		return node.getPos() >= rangeStart && node.getEndPos() <= rangeEnd;
+	}
+
+	/**
+	 * Describes the filter; two filters with the same description select the
+	 * same actions and properties.
+	 */
+	@Override
+	public String toString() {
+		return "actions=" + actionTypes + " nodes=" + nodeTypes + " range=" + rangeStart + "-" + rangeEnd
+				+ " fields=" + fields;
+	}
+
+}
@@ -1,42 +1,95 @@
 package fr.gumtree.treediff.jdt;
 
 import java.io.File;
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
 
 import com.github.gumtreediff.actions.Diff;
 import com.github.gumtreediff.actions.EditScript;
 import com.github.gumtreediff.actions.EditScriptGenerator;
-import com.github.gumtreediff.actions.SimplifiedChawatheScriptGenerator;
 import com.github.gumtreediff.actions.model.Action;
-import com.github.gumtreediff.actions.model.Delete;
-import com.github.gumtreediff.actions.model.Insert;
-import com.github.gumtreediff.actions.model.Move;
-import com.github.gumtreediff.actions.model.TreeDelete;
-import com.github.gumtreediff.actions.model.TreeInsert;
-import com.github.gumtreediff.actions.model.Update;
-import com.github.gumtreediff.gen.jdt.JdtTreeGenerator;
-import com.github.gumtreediff.matchers.CompositeMatchers;
 import com.github.gumtreediff.matchers.Mapping;
 import com.github.gumtreediff.matchers.MappingStore;
 import com.github.gumtreediff.matchers.Matcher;
 import com.github.gumtreediff.tree.Tree;
 import com.github.gumtreediff.tree.TreeContext;
+import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.internal.LazilyParsedNumber;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 /**
- * 
+ * Builds the TreeDiff of two files, trees or diffs.
+ *
+ * The configuration of a builder (see {@link TreeDiffFormatConfig}) is
+ * immutable, and the builder keeps no state between two TreeDiffs: a builder
+ * can be shared by the threads of a pipeline, without locking. The objects
+ * that are costly to set up and keep the state of a diff (the parsers and the
+ * matchers) are reused by each thread, see {@link TreeDiffParser} and
+ * {@link TreeDiffMatchingStrategy}.
+ *
  * @author Matias Martinez
  *
  */
 public class TreeDiffFormatBuilder {
 
-	boolean storeTrees = false;
-	boolean storeMappings = false;
+	final TreeDiffFormatConfig config;
+
+	final boolean storeTrees;
+	final boolean storeMappings;
+
+	final boolean storeNodeTable;
+
+	final boolean storeTypeTable;
+	final boolean storeLabelTable;
+
+	final TreeContextCache treeContextCache;
+
+	final List<TreeDiffMetricsListener> metricsListeners = new CopyOnWriteArrayList<>();
+
+	final boolean storeStats;
+
+	final TreeDiffMatchingStrategy matchingStrategy;
+
+	final TreeDiffPartitionedDiffer partitionedDiffer;
+
+	final TreeDiffFastPath fastPath;
+
+	final TreeDiffResultCache resultCache;
+
+	final boolean summaryOnly;
+
+	final TreeDiffFilter filter;
+
+	final boolean compactMappings;
+	final boolean omitIsomorphicMappings;
+
+	final int parallelSerializationThreshold;
+	final int parallelSerializationChunkSize;
 
 	public TreeDiffFormatBuilder() {
-		this(false, false);
+		this(TreeDiffFormatConfig.DEFAULT);
 	}
 
 	/**
@@ -44,79 +97,1096 @@ public class TreeDiffFormatBuilder {
 	 * @param storeTrees    indicates if it stores the complete Trees
 	 * @param storeMappings indicates if it stores the mappings
 	 */
-	public TreeDiffFormatBuilder(boolean storeTrees, boolean storeMappings) {
-		super();
-		this.storeTrees = storeTrees;
-		this.storeMappings = storeMappings;
+	public TreeDiffFormatBuilder(boolean storeTrees, boolean storeMappings) {
+		this(TreeDiffFormatConfig.builder().setStoreTrees(storeTrees).setStoreMappings(storeMappings).build());
+	}
+
+	/**
+	 * 
+	 * @param config the configuration of the TreeDiffs
+	 */
+	public TreeDiffFormatBuilder(TreeDiffFormatConfig config) {
+		super();
+		this.config = config;
+		this.storeTrees = config.storeTrees;
+		this.storeMappings = config.storeMappings;
+		this.storeNodeTable = config.storeNodeTable;
+		this.storeTypeTable = config.storeTypeTable;
+		this.storeLabelTable = config.storeLabelTable;
+		this.treeContextCache = config.treeContextCache;
+		this.storeStats = config.storeStats;
+		this.matchingStrategy = config.matchingStrategy;
+		this.partitionedDiffer = config.partitionedDiffer;
+		this.fastPath = config.fastPath;
+		this.resultCache = config.resultCache;
+		this.summaryOnly = config.summaryOnly;
+		this.filter = config.filter;
+		this.compactMappings = config.compactMappings;
+		this.omitIsomorphicMappings = config.omitIsomorphicMappings;
+		this.parallelSerializationThreshold = config.parallelSerializationThreshold;
+		this.parallelSerializationChunkSize = config.parallelSerializationChunkSize;
+	}
+
+	public TreeDiffFormatConfig getConfig() {
+		return config;
+	}
+
+	public boolean isStoreTrees() {
+		return storeTrees;
+	}
+
+	public boolean isStoreMappings() {
+		return storeMappings;
+	}
+
+	public TreeContextCache getTreeContextCache() {
+		return treeContextCache;
+	}
+
+	public TreeDiffMatchingStrategy getMatchingStrategy() {
+		return matchingStrategy;
+	}
+
+	public TreeDiffPartitionedDiffer getPartitionedDiffer() {
+		return partitionedDiffer;
+	}
+
+	public TreeDiffFastPath getFastPath() {
+		return fastPath;
+	}
+
+	public TreeDiffResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * Registers a listener that receives the measures of each diff computed from
+	 * files. When no listener is registered and the stats are not stored, no
+	 * measure is taken. The listeners can be registered while the builder is
+	 * used, and are called by the threads that compute the diffs.
+	 * 
+	 * @param listener
+	 */
+	public void addMetricsListener(TreeDiffMetricsListener listener) {
+		metricsListeners.add(listener);
+	}
+
+	public void removeMetricsListener(TreeDiffMetricsListener listener) {
+		metricsListeners.remove(listener);
+	}
+
+	public boolean isStoreStats() {
+		return storeStats;
+	}
+
+	/**
+	 * Creates the object that collects the measures of a diff.
+	 * 
+	 * @param fileLeft
+	 * @param fileRight
+	 * @return the metrics, or null if nobody uses them
+	 */
+	protected TreeDiffMetrics createMetrics(File fileLeft, File fileRight) {
+		if (metricsListeners.isEmpty() && !storeStats) {
+			return null;
+		}
+		return new TreeDiffMetrics(fileLeft.getPath(), fileRight.getPath());
+	}
+
+	protected void notifyMetrics(TreeDiffMetrics metrics) {
+		for (TreeDiffMetricsListener listener : metricsListeners) {
+			listener.onDiff(metrics);
+		}
+	}
+
+	public boolean isStoreNodeTable() {
+		return storeNodeTable;
+	}
+
+	public boolean isStoreTypeTable() {
+		return storeTypeTable;
+	}
+
+	public boolean isStoreLabelTable() {
+		return storeLabelTable;
+	}
+
+	public boolean isSummaryOnly() {
+		return summaryOnly;
+	}
+
+	/**
+	 * 
+	 * @return a copy of the filter, or null
+	 */
+	public TreeDiffFilter getFilter() {
+		return config.getFilter();
+	}
+
+	/**
+	 * 
+	 * @param diff
+	 * @param action
+	 * @param type
+	 * @return true if the action is written
+	 */
+	protected boolean accept(Diff diff, Action action, TreeDiffActionType type) {
+		return filter == null || filter.accept(diff, action, type);
+	}
+
+	/**
+	 * 
+	 * @param field
+	 * @return true if the property is written in the actions
+	 */
+	protected boolean isWritten(TreeDiffFilter.Field field) {
+		return filter == null || filter.isWritten(field);
+	}
+
+	public boolean isCompactMappings() {
+		return compactMappings;
+	}
+
+	public boolean isOmitIsomorphicMappings() {
+		return omitIsomorphicMappings;
+	}
+
+	public int getParallelSerializationThreshold() {
+		return parallelSerializationThreshold;
+	}
+
+	public int getParallelSerializationChunkSize() {
+		return parallelSerializationChunkSize;
+	}
+
+	/**
+	 * Converts the actions of an edit script: in the calling thread, or, if there
+	 * are at least {@link #getParallelSerializationThreshold()} actions, in chunks
+	 * converted in parallel by the threads of the common pool. The first chunk is
+	 * converted by the calling thread.
+	 * 
+	 * @param actions   the actions of the edit script
+	 * @param converter converts a chunk of consecutive actions
+	 * @return the conversion of each chunk, in the order of the actions
+	 */
+	protected <T> List<T> convertInChunks(List<Action> actions, Function<List<Action>, T> converter) {
+		int chunkSize = parallelSerializationChunkSize;
+		if (actions.size() < parallelSerializationThreshold || actions.size() <= chunkSize) {
+			return Collections.singletonList(converter.apply(actions));
+		}
+
+		List<ForkJoinTask<T>> tasks = new ArrayList<>();
+		for (int start = chunkSize; start < actions.size(); start += chunkSize) {
+			List<Action> chunk = actions.subList(start, Math.min(start + chunkSize, actions.size()));
+			tasks.add(ForkJoinPool.commonPool().submit(() -> converter.apply(chunk)));
+		}
+		List<T> chunks = new ArrayList<>(tasks.size() + 1);
+		try {
+			chunks.add(converter.apply(actions.subList(0, chunkSize)));
+			for (ForkJoinTask<T> task : tasks) {
+				chunks.add(task.join());
+			}
+		} finally {
+			for (ForkJoinTask<T> task : tasks) {
+				task.cancel(false);
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * Creates the string tables of a new document.
+	 * 
+	 * @return the tables, or null if neither types nor labels are interned
+	 */
+	protected TreeDiffStringTable createStringTable() {
+		if (!storeTypeTable && !storeLabelTable) {
+			return null;
+		}
+		return new TreeDiffStringTable(storeTypeTable, storeLabelTable);
+	}
+
+	/**
+	 * It creates the representation only using the Diff information.
+	 * 
+	 * @param diff
+	 * @return
+	 */
+	public JsonElement build(Diff diff) {
+
+		if (storeNodeTable) {
+			return buildWithNodeTable(diff.src.getRoot(), "unknowpath", diff.dst.getRoot(), "unknowpath", diff, null);
+		}
+
+		TreeDiffStringTable strings = createStringTable();
+		if (strings != null) {
+			return buildWithStringTable(diff.src.getRoot(), "unknowpath", diff.dst.getRoot(), "unknowpath", diff, null,
+					strings);
+		}
+
+		return build(buildTree(diff.src.getRoot(), "unknowpath"), buildTree(diff.dst.getRoot(), "unknowpath"), diff,
+				null);
+
+	}
+
+	public JsonElement build(File fileLeft, File fileRight, String algorithmName, String algorithmVersion)
+			throws IOException {
+
+		TreeDiffMetrics metrics = createMetrics(fileLeft, fileRight);
+
+		// the stats describe the run that computed them, so they are not cached
+		TreeDiffResultCache cache = resultCache;
+		if (cache == null || storeStats) {
+			MatchedDiff matched = computeDiff(fileLeft, fileRight, metrics);
+			return buildComputed(matched, fileLeft, fileRight, algorithmName, algorithmVersion, metrics);
+		}
+
+		long start = (metrics != null) ? System.nanoTime() : 0;
+		byte[] key = resultCacheKey(fileLeft, fileRight, algorithmName, algorithmVersion);
+		byte[] cached = cache.get(key);
+		if (cached != null) {
+			JsonElement treeDiff = parseCached(cached);
+			if (metrics != null) {
+				metrics.record(TreeDiffMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+				notifyMetrics(metrics);
+			}
+			return treeDiff;
+		}
+
+		MatchedDiff matched = computeDiff(fileLeft, fileRight, metrics);
+		JsonElement treeDiff = buildComputed(matched, fileLeft, fileRight, algorithmName, algorithmVersion, metrics);
+		if (!matched.degraded) {
+			StringWriter json = new StringWriter();
+			writeCached(treeDiff, json);
+			byte[] document = json.toString().getBytes(StandardCharsets.UTF_8);
+			if (document.length <= cache.getMaxDocumentBytes()) {
+				cache.put(key, document);
+			}
+		}
+		return treeDiff;
+	}
+
+	private JsonElement buildComputed(MatchedDiff matched, File fileLeft, File fileRight, String algorithmName,
+			String algorithmVersion, TreeDiffMetrics metrics) throws IOException {
+
+		Diff diff = matched.diff;
+
+		long start = (metrics != null) ? System.nanoTime() : 0;
+		JsonElement treeDiff = build(diff, (diff.src != null) ? diff.src.getRoot() : null,
+				(diff.dst != null) ? diff.dst.getRoot() : null, fileLeft, fileRight, algorithmName, algorithmVersion,
+				matched.matcherName, matched.generatorName);
+
+		JsonObject toolInfo = treeDiff.getAsJsonObject().get("tool-info").getAsJsonObject();
+		addMatchingInfo(matched, toolInfo);
+		if (metrics != null) {
+			metrics.record(TreeDiffMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+			if (storeStats) {
+				toolInfo.add("stats", metrics.toJson());
+			}
+			notifyMetrics(metrics);
+		}
+		return treeDiff;
+	}
+
+	/**
+	 * Computes the diff between two files and writes the TreeDiff directly into
+	 * the writer received as parameter, without building the Json representation
+	 * in memory.
+	 * 
+	 * @param fileLeft
+	 * @param fileRight
+	 * @param algorithmName
+	 * @param algorithmVersion
+	 * @param out              the destination of the TreeDiff
+	 * @throws IOException
+	 */
+	public void write(File fileLeft, File fileRight, String algorithmName, String algorithmVersion, Writer out)
+			throws IOException {
+
+		TreeDiffMetrics metrics = createMetrics(fileLeft, fileRight);
+
+		// the stats describe the run that computed them, so they are not cached
+		TreeDiffResultCache cache = resultCache;
+		if (cache == null || storeStats) {
+			MatchedDiff matched = computeDiff(fileLeft, fileRight, metrics);
+			writeComputed(matched, fileLeft, fileRight, algorithmName, algorithmVersion, metrics, out);
+			return;
+		}
+
+		long start = (metrics != null) ? System.nanoTime() : 0;
+		byte[] key = resultCacheKey(fileLeft, fileRight, algorithmName, algorithmVersion);
+		byte[] cached = cache.get(key);
+		if (cached != null) {
+			out.write(new String(cached, StandardCharsets.UTF_8));
+			out.flush();
+			if (metrics != null) {
+				metrics.record(TreeDiffMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+				metrics.setOutputBytes(cached.length);
+				notifyMetrics(metrics);
+			}
+			return;
+		}
+
+		// the TreeDiff is copied while it is written, unless it is too large
+		MatchedDiff matched = computeDiff(fileLeft, fileRight, metrics);
+		CopyingWriter copy = new CopyingWriter(out, cache.getMaxDocumentBytes());
+		writeComputed(matched, fileLeft, fileRight, algorithmName, algorithmVersion, metrics, copy);
+		if (!matched.degraded && copy.copy != null) {
+			byte[] document = copy.copy.toString().getBytes(StandardCharsets.UTF_8);
+			if (document.length <= cache.getMaxDocumentBytes()) {
+				cache.put(key, document);
+			}
+		}
+	}
+
+	/**
+	 * A writer that keeps a copy of what it writes, until the copy has more
+	 * characters than a limit: then the copy is dropped.
+	 */
+	private static class CopyingWriter extends FilterWriter {
+
+		StringBuilder copy = new StringBuilder();
+
+		final long limit;
+
+		CopyingWriter(Writer out, long limit) {
+			super(out);
+			this.limit = limit;
+		}
+
+		@Override
+		public void write(int c) throws IOException {
+			out.write(c);
+			if (copy != null) {
+				copy.append((char) c);
+				checkLimit();
+			}
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			out.write(cbuf, off, len);
+			if (copy != null) {
+				copy.append(cbuf, off, len);
+				checkLimit();
+			}
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			out.write(str, off, len);
+			if (copy != null) {
+				copy.append(str, off, off + len);
+				checkLimit();
+			}
+		}
+
+		/** A character is encoded in at least one byte. */
+		private void checkLimit() {
+			if (copy.length() > limit) {
+				copy = null;
+			}
+		}
+	}
+
+	/**
+	 * Writes the TreeDiff of a diff computed from two files.
+	 * 
+	 * @param metrics where the measures are recorded and then notified, or null
+	 *                to not measure
+	 */
+	private void writeComputed(MatchedDiff matched, File fileLeft, File fileRight, String algorithmName,
+			String algorithmVersion, TreeDiffMetrics metrics, Writer out) throws IOException {
+
+		Diff diff = matched.diff;
+
+		JsonObject toolInfo = createToolInfo(algorithmName, algorithmVersion, matched.matcherName,
+				matched.generatorName);
+		addMatchingInfo(matched, toolInfo);
+		if (metrics != null && storeStats) {
+			toolInfo.add("stats", metrics.toJson());
+		}
+
+		long start = (metrics != null) ? System.nanoTime() : 0;
+		TreeDiffMetrics.CountingWriter counter = (metrics != null) ? new TreeDiffMetrics.CountingWriter(out) : null;
+
+		if (summaryOnly) {
+			new Gson().toJson(buildSummary(diff, fileLeft.getAbsolutePath(), fileRight.getAbsolutePath(), toolInfo),
+					(counter != null) ? counter : out);
+			out.flush();
+		} else {
+			boolean writeTrees = storeTrees || storeNodeTable;
+			new TreeDiffStreamWriter(this).write((writeTrees) ? diff.src.getRoot() : null, fileLeft.getAbsolutePath(),
+					(writeTrees) ? diff.dst.getRoot() : null, fileRight.getAbsolutePath(), diff, toolInfo,
+					(counter != null) ? counter : out);
+		}
+
+		if (metrics != null) {
+			metrics.record(TreeDiffMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+			metrics.setOutputBytes(counter.bytes);
+			notifyMetrics(metrics);
+		}
+	}
+
+	/**
+	 * Writes a TreeDiff built in memory as Gson writes it, without the nulls.
+	 * The trees can be deeper than what the recursive writer of Gson supports,
+	 * so the document is written without recursion.
+	 * 
+	 * @param treeDiff
+	 * @param out
+	 * @throws IOException
+	 */
+	protected void writeCached(JsonElement treeDiff, Writer out) throws IOException {
+		JsonWriter writer = new Gson().newJsonWriter(out);
+		// the members and elements left to write in each open object or array
+		Deque<Iterator<?>> open = new ArrayDeque<>();
+		Deque<Boolean> arrays = new ArrayDeque<>();
+		JsonElement value = treeDiff;
+		while (true) {
+			if (value != null) {
+				if (value.isJsonObject()) {
+					writer.beginObject();
+					open.push(value.getAsJsonObject().entrySet().iterator());
+					arrays.push(false);
+				} else if (value.isJsonArray()) {
+					writer.beginArray();
+					open.push(value.getAsJsonArray().iterator());
+					arrays.push(true);
+				} else if (value.isJsonNull()) {
+					writer.nullValue();
+				} else {
+					JsonPrimitive primitive = value.getAsJsonPrimitive();
+					if (primitive.isNumber()) {
+						writer.value(primitive.getAsNumber());
+					} else if (primitive.isBoolean()) {
+						writer.value(primitive.getAsBoolean());
+					} else {
+						writer.value(primitive.getAsString());
+					}
+				}
+			}
+			value = null;
+			Iterator<?> members = open.peek();
+			if (members == null) {
+				break;
+			}
+			if (!members.hasNext()) {
+				open.pop();
+				if (arrays.pop()) {
+					writer.endArray();
+				} else {
+					writer.endObject();
+				}
+				continue;
+			}
+			Object next = members.next();
+			if (next instanceof Map.Entry) {
+				Map.Entry<?, ?> member = (Map.Entry<?, ?>) next;
+				writer.name((String) member.getKey());
+				value = (JsonElement) member.getValue();
+			} else {
+				value = (JsonElement) next;
+			}
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Parses a TreeDiff read from the result cache. The trees can be deeper than
+	 * what the recursive parser of Gson supports, so the document is parsed
+	 * without recursion. The nulls are not written, so the "meta" of the actions
+	 * is added back, as the builder creates it.
+	 * 
+	 * @param cached the TreeDiff, in UTF-8
+	 * @return
+	 * @throws IOException if the TreeDiff is not valid Json
+	 */
+	protected JsonElement parseCached(byte[] cached) throws IOException {
+		JsonReader reader = new JsonReader(new StringReader(new String(cached, StandardCharsets.UTF_8)));
+		Deque<JsonElement> open = new ArrayDeque<>();
+		JsonElement root = null;
+		JsonElement actions = null;
+		boolean meta = isWritten(TreeDiffFilter.Field.META);
+		String name = null;
+		do {
+			JsonElement value;
+			switch (reader.peek()) {
+			case BEGIN_OBJECT:
+				reader.beginObject();
+				value = new JsonObject();
+				break;
+			case BEGIN_ARRAY:
+				reader.beginArray();
+				value = new JsonArray();
+				if (open.size() == 1 && "diff".equals(name)) {
+					actions = value;
+				}
+				break;
+			case END_OBJECT:
+				reader.endObject();
+				JsonElement closed = open.pop();
+				if (meta && actions != null && open.peek() == actions) {
+					closed.getAsJsonObject().add("meta", JsonNull.INSTANCE);
+				}
+				continue;
+			case END_ARRAY:
+				reader.endArray();
+				open.pop();
+				continue;
+			case NAME:
+				name = reader.nextName();
+				continue;
+			case STRING:
+				value = new JsonPrimitive(reader.nextString());
+				break;
+			case NUMBER:
+				value = new JsonPrimitive(new LazilyParsedNumber(reader.nextString()));
+				break;
+			case BOOLEAN:
+				value = new JsonPrimitive(reader.nextBoolean());
+				break;
+			case NULL:
+				reader.nextNull();
+				value = JsonNull.INSTANCE;
+				break;
+			default:
+				throw new IOException("Truncated TreeDiff in the result cache");
+			}
+			JsonElement parent = open.peek();
+			if (parent == null) {
+				root = value;
+			} else if (parent.isJsonObject()) {
+				parent.getAsJsonObject().add(name, value);
+			} else {
+				parent.getAsJsonArray().add(value);
+			}
+			if (value.isJsonObject() || value.isJsonArray()) {
+				open.push(value);
+			}
+		} while (!open.isEmpty());
+		return root;
+	}
+
+	/**
+	 * Creates the key of the persistent cache of a TreeDiff: it depends on the
+	 * contents of the files, on everything that changes the TreeDiff (the
+	 * algorithm, the matchers, the generator, what is stored, the format
+	 * version), and on the paths of the files if the document contains them
+	 * (when the trees are stored, and in the summaries).
+	 * 
+	 * @param fileLeft
+	 * @param fileRight
+	 * @param algorithmName
+	 * @param algorithmVersion
+	 * @return
+	 * @throws IOException
+	 */
+	protected byte[] resultCacheKey(File fileLeft, File fileRight, String algorithmName, String algorithmVersion)
+			throws IOException {
+		TreeDiffMatchingStrategy strategy = matchingStrategy;
+		TreeDiffPartitionedDiffer partitioned = partitionedDiffer;
+
+		StringBuilder key = new StringBuilder();
+		key.append(TreeDiffResultCache.FORMAT_VERSION).append('\n');
+		key.append(TreeContextCache.contentHash(Files.readAllBytes(fileLeft.toPath()))).append('\n');
+		key.append(TreeContextCache.contentHash(Files.readAllBytes(fileRight.toPath()))).append('\n');
+		key.append(algorithmName).append('\n').append(algorithmVersion).append('\n');
+		key.append(strategy.getClass().getName()).append(' ').append(strategy.createFullMatcher().getClass().getName())
+				.append(' ').append(strategy.createCheapMatcher().getClass().getName()).append(' ')
+				.append(strategy.getLargeTreeThreshold()).append('\n');
+		key.append(strategy.createGenerator().getClass().getName()).append('\n');
+		key.append((partitioned != null) ? partitioned.getClass().getName() : "-").append('\n');
+		key.append((fastPath != null) ? fastPath.getClass().getName() : "-").append('\n');
+		key.append(storeTrees).append(' ').append(storeMappings).append(' ').append(storeNodeTable).append(' ')
+				.append(storeTypeTable).append(' ').append(storeLabelTable).append(' ').append(storeStats)
+				.append(' ').append(summaryOnly).append(' ').append(compactMappings).append(' ')
+				.append(omitIsomorphicMappings).append('\n');
+		key.append((filter != null) ? filter.toString() : "-").append('\n');
+		if (storeTrees || storeNodeTable || summaryOnly) {
+			key.append(fileLeft.getAbsolutePath()).append('\n').append(fileRight.getAbsolutePath()).append('\n');
+		}
+		return TreeDiffResultCache.key(key.toString());
+	}
+
+	/**
+	 * A diff, with the names of the matcher and the generator that computed it.
+	 */
+	protected static class MatchedDiff {
+		final Diff diff;
+		final String matcherName;
+		final String generatorName;
+		final boolean degraded;
+		final boolean partitioned;
+		final TreeDiffFastPath.Outcome fastPath;
+
+		MatchedDiff(Diff diff, String matcherName, String generatorName, boolean degraded) {
+			this(diff, matcherName, generatorName, degraded, false, null);
+		}
+
+		MatchedDiff(Diff diff, String matcherName, String generatorName, boolean degraded, boolean partitioned,
+				TreeDiffFastPath.Outcome fastPath) {
+			this.diff = diff;
+			this.matcherName = matcherName;
+			this.generatorName = generatorName;
+			this.degraded = degraded;
+			this.partitioned = partitioned;
+			this.fastPath = fastPath;
+		}
+	}
+
+	/**
+	 * Adds to the "tool-info" how the diff was computed, when it was not computed
+	 * by matching the complete trees.
+	 * 
+	 * @param matched
+	 * @param toolInfo
+	 */
+	protected void addMatchingInfo(MatchedDiff matched, JsonObject toolInfo) {
+		if (matched.fastPath != null) {
+			toolInfo.addProperty("fast-path", matched.fastPath.name().toLowerCase());
+		}
+		if (matched.partitioned) {
+			toolInfo.addProperty("partitioned", true);
+		}
+		if (matched.degraded) {
+			toolInfo.addProperty("degraded", true);
+		}
+	}
+
+	/**
+	 * Parses both files, matches the trees and computes the edit script with the
+	 * matcher and generator chosen by the matching strategy, within its time
+	 * budget. If a partitioned differ is set, only the declarations that changed
+	 * are matched, and the measure of the matching includes the edit script. If
+	 * a fast path is set and the files are equal, nothing is matched.
+	 * 
+	 * @param fileLeft
+	 * @param fileRight
+	 * @param metrics   where the measures are recorded, or null to not measure
+	 * @return the diff between the two files
+	 * @throws IOException              if a file cannot be read
+	 * @throws TreeDiffTimeoutException if the time budget is exceeded and the
+	 *                                  strategy cancels the diff
+	 */
+	protected MatchedDiff computeDiff(File fileLeft, File fileRight, TreeDiffMetrics metrics) throws IOException {
+		TreeDiffMatchingStrategy strategy = matchingStrategy;
+
+		long start = System.nanoTime();
+		long deadline = strategy.deadline(start);
+
+		TreeDiffFastPath fast = fastPath;
+		TreeContext ctxL;
+		TreeContext ctxR;
+		if (fast != null) {
+			byte[] contentLeft = Files.readAllBytes(fileLeft.toPath());
+			byte[] contentRight = Files.readAllBytes(fileRight.toPath());
+			TreeDiffFastPath.Outcome outcome = fast.check(contentLeft, contentRight);
+			if (outcome != TreeDiffFastPath.Outcome.DIFFERENT) {
+				return computeEqualDiff(contentLeft, contentRight, outcome, start, metrics);
+			}
+			ctxL = parse(contentLeft);
+			ctxR = parse(contentRight);
+		} else {
+			ctxL = parse(fileLeft);
+			ctxR = parse(fileRight);
+		}
+
+		if (metrics != null) {
+			metrics.record(TreeDiffMetrics.Phase.PARSE, System.nanoTime() - start);
+		}
+
+		return computeDiff(ctxL, ctxR, deadline, metrics);
+	}
+
+	/**
+	 * Matches two parsed trees and computes the edit script, as
+	 * {@link #computeDiff(File, File, TreeDiffMetrics)} does after parsing the
+	 * files.
+	 * 
+	 * @param ctxL
+	 * @param ctxR
+	 * @param deadline see {@link TreeDiffMatchingStrategy#deadline(long)}
+	 * @param metrics  where the measures are recorded, or null to not measure
+	 * @return the diff between the two trees
+	 * @throws TreeDiffTimeoutException if the time budget is exceeded and the
+	 *                                  strategy cancels the diff
+	 */
+	protected MatchedDiff computeDiff(TreeContext ctxL, TreeContext ctxR, long deadline, TreeDiffMetrics metrics)
+			throws IOException {
+		TreeDiffMatchingStrategy strategy = matchingStrategy;
+		long start = System.nanoTime();
+
+		TreeDiffPartitionedDiffer partitioned = partitionedDiffer;
+		if (partitioned != null) {
+			TreeDiffPartitionedDiffer.Result result = partitioned.diff(ctxL, ctxR, strategy, deadline);
+			if (metrics != null) {
+				metrics.record(TreeDiffMetrics.Phase.MATCH, System.nanoTime() - start);
+				metrics.record(result.getDiff());
+			}
+			return new MatchedDiff(result.getDiff(), result.getMatcherName(), result.getGeneratorName(),
+					result.isDegraded(), true, null);
+		}
+
+		TreeDiffMatchingStrategy.Matching matching = strategy.match(ctxL.getRoot(), ctxR.getRoot(), deadline);
+
+		if (metrics != null) {
+			long end = System.nanoTime();
+			metrics.record(TreeDiffMetrics.Phase.MATCH, end - start);
+			start = end;
+		}
+
+		strategy.checkDeadline(deadline, "the edit script");
+		EditScriptGenerator generator = strategy.createGenerator();
+		EditScript actions = generator.computeActions(matching.getMappings());
+
+		Diff diff = new Diff(ctxL, ctxR, matching.getMappings(), actions);
+
+		if (metrics != null) {
+			metrics.record(TreeDiffMetrics.Phase.EDIT_SCRIPT, System.nanoTime() - start);
+			metrics.record(diff);
+		}
+		return new MatchedDiff(diff, matching.getMatcherName(), generator.getClass().getName(),
+				matching.isDegraded());
+	}
+
+	/**
+	 * Creates the diff of two files whose trees are equal, with no action. The
+	 * files are only parsed if the trees or the mappings are stored: then all the
+	 * nodes are mapped, without running the matcher.
+	 * 
+	 * @param contentLeft
+	 * @param contentRight
+	 * @param outcome      how the files are equal
+	 * @param start        when the diff started
+	 * @param metrics      where the measures are recorded, or null to not measure
+	 * @return
+	 * @throws IOException
+	 */
+	protected MatchedDiff computeEqualDiff(byte[] contentLeft, byte[] contentRight, TreeDiffFastPath.Outcome outcome,
+			long start, TreeDiffMetrics metrics) throws IOException {
+		MatchedDiff matched;
+		if (!summaryOnly && (storeTrees || storeNodeTable || storeMappings)) {
+			TreeContext ctxL = parse(contentLeft);
+			TreeContext ctxR = (outcome == TreeDiffFastPath.Outcome.IDENTICAL) ? ctxL : parse(contentRight);
+			matched = createEqualDiff(ctxL, ctxR, outcome);
+		} else {
+			matched = createEqualDiff(null, null, outcome);
+		}
+
+		if (metrics != null) {
+			metrics.record(TreeDiffMetrics.Phase.PARSE, System.nanoTime() - start);
+			metrics.record(matched.diff);
+		}
+		return matched;
+	}
+
+	/**
+	 * Creates the diff of two equal trees, with no action, mapping all their
+	 * nodes.
+	 * 
+	 * @param ctxL    the left tree, or null if the trees are not stored
+	 * @param ctxR    the right tree, or null if the trees are not stored
+	 * @param outcome how the files are equal
+	 * @return
+	 */
+	protected MatchedDiff createEqualDiff(TreeContext ctxL, TreeContext ctxR, TreeDiffFastPath.Outcome outcome) {
+		Diff diff;
+		if (ctxL != null && ctxR != null) {
+			MappingStore mappings = new MappingStore(ctxL.getRoot(), ctxR.getRoot());
+			mappings.addMappingRecursively(ctxL.getRoot(), ctxR.getRoot());
+			diff = new Diff(ctxL, ctxR, mappings, new EditScript());
+		} else {
+			diff = new Diff(null, null, new MappingStore(null, null), new EditScript());
+		}
+		String name = TreeDiffFastPath.class.getName();
+		return new MatchedDiff(diff, name, name, false, false, outcome);
+	}
+
+	/**
+	 * Parses both files, matches the trees and computes the edit script.
+	 * 
+	 * @param fileLeft
+	 * @param fileRight
+	 * @param matcher
+	 * @param generator
+	 * @return the diff between the two files
+	 * @throws IOException
+	 */
+	protected Diff computeDiff(File fileLeft, File fileRight, Matcher matcher, EditScriptGenerator generator)
+			throws IOException {
+		return computeDiff(fileLeft, fileRight, matcher, generator, null);
+	}
+
+	/**
+	 * Parses both files, matches the trees and computes the edit script, measuring
+	 * each phase.
+	 * 
+	 * @param fileLeft
+	 * @param fileRight
+	 * @param matcher
+	 * @param generator
+	 * @param metrics   where the measures are recorded, or null to not measure
+	 * @return the diff between the two files
+	 * @throws IOException
+	 */
+	protected Diff computeDiff(File fileLeft, File fileRight, Matcher matcher, EditScriptGenerator generator,
+			TreeDiffMetrics metrics) throws IOException {
+
+		long start = (metrics != null) ? System.nanoTime() : 0;
+
+		TreeContext ctxL = parse(fileLeft);
+		Tree left = ctxL.getRoot();
+
+		TreeContext ctxR = parse(fileRight);
+		Tree right = ctxR.getRoot();
+
+		if (metrics != null) {
+			long end = System.nanoTime();
+			metrics.record(TreeDiffMetrics.Phase.PARSE, end - start);
+			start = end;
+		}
+
+		MappingStore mappings = matcher.match(left, right);
+
+		if (metrics != null) {
+			long end = System.nanoTime();
+			metrics.record(TreeDiffMetrics.Phase.MATCH, end - start);
+			start = end;
+		}
+
+		EditScript computeActions = generator.computeActions(mappings);
+
+		Diff diff = new Diff(ctxL, ctxR, mappings, computeActions);
+
+		if (metrics != null) {
+			metrics.record(TreeDiffMetrics.Phase.EDIT_SCRIPT, System.nanoTime() - start);
+			metrics.record(diff);
+		}
+		return diff;
+	}
+
+	public JsonElement build(Diff diff, Tree left, Tree right, File fileLeft, File fileRight, String algorithmName,
+			String algorithmVersion, String matcherName, String editScriptGenerator) throws IOException {
+
+		JsonElement toolInfo = createToolInfo(algorithmName, algorithmVersion, matcherName, editScriptGenerator);
+		return build(diff, left, right, fileLeft, fileRight, toolInfo);
+	}
+
+	/**
+	 * Creates the TreeDiff of two files with the "tool-info" received as
+	 * parameter.
+	 * 
+	 * @param diff
+	 * @param left
+	 * @param right
+	 * @param fileLeft
+	 * @param fileRight
+	 * @param toolInfo
+	 * @return
+	 */
+	protected JsonElement build(Diff diff, Tree left, Tree right, File fileLeft, File fileRight,
+			JsonElement toolInfo) {
+
+		if (summaryOnly) {
+			return buildSummary(diff, fileLeft.getAbsolutePath(), fileRight.getAbsolutePath(), toolInfo);
+		}
+
+		if (storeNodeTable) {
+			return buildWithNodeTable(left, fileLeft.getAbsolutePath(), right, fileRight.getAbsolutePath(), diff,
+					toolInfo);
+		}
+
+		TreeDiffStringTable strings = createStringTable();
+		if (strings != null) {
+			return buildWithStringTable((storeTrees) ? left : null, fileLeft.getAbsolutePath(),
+					(storeTrees) ? right : null, fileRight.getAbsolutePath(), diff, toolInfo, strings);
+		}
+
+		JsonElement jsonLeft = (storeTrees) ? buildTree(left, fileLeft.getAbsolutePath()) : new JsonObject();
+		JsonElement jsonRight = (storeTrees) ? buildTree(right, fileRight.getAbsolutePath()) : new JsonObject();
+		return build(jsonLeft, jsonRight, diff, toolInfo);
+	}
+
+	/**
+	 * Generates the tree of a file, using the cache if there is one.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	protected TreeContext parse(File file) throws IOException {
+		if (treeContextCache != null) {
+			return treeContextCache.get(file);
+		}
+		return new TreeDiffParser().generateFrom().file(file);
+	}
+
+	/**
+	 * Generates the tree of the content of a file (in UTF-8), using the cache if
+	 * there is one.
+	 * 
+	 * @param content
+	 * @return
+	 * @throws IOException
+	 */
+	protected TreeContext parse(byte[] content) throws IOException {
+		if (treeContextCache != null) {
+			return treeContextCache.get(content);
+		}
+		return new TreeDiffParser().generateFrom().string(new String(content, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Creates the "tool-info" object of a TreeDiff.
+	 * 
+	 * @param algorithmName
+	 * @param algorithmVersion
+	 * @param matcherName
+	 * @param editScriptGenerator
+	 * @return
+	 */
+	public JsonObject createToolInfo(String algorithmName, String algorithmVersion, String matcherName,
+			String editScriptGenerator) {
+		JsonObject toolInfo = new JsonObject();
+		toolInfo.addProperty("name", algorithmName);
+		toolInfo.addProperty("version", algorithmVersion);
+		toolInfo.addProperty("matcher", matcherName);
+
+		toolInfo.addProperty("editscriptgenerator", editScriptGenerator);
+		return toolInfo;
+	}
+
+	/**
+	 * It build the JSon of each Tree and then it calls to build to compute the
+	 * representation of the edit script
+	 * 
+	 * @param treeLeft
+	 * @param pathFileLeft
+	 * @param treeRight
+	 * @param pathFileRight
+	 * @param diff
+	 * @param toolInfo
+	 * @param mappingInfo
+	 * @return
+	 */
+	public JsonElement build(Tree treeLeft, String pathFileLeft, Tree treeRight, String pathFileRight, Diff diff,
+			JsonElement toolInfo) {
+
+		if (storeNodeTable) {
+			return buildWithNodeTable(treeLeft, pathFileLeft, treeRight, pathFileRight, diff, toolInfo);
+		}
+
+		TreeDiffStringTable strings = createStringTable();
+		if (strings != null) {
+			return buildWithStringTable(treeLeft, pathFileLeft, treeRight, pathFileRight, diff, toolInfo, strings);
+		}
+
+		return build(buildTree(treeLeft, pathFileLeft), buildTree(treeRight, pathFileRight), diff, toolInfo);
 	}
 
 	/**
-	 * It creates the representation only using the Diff information.
+	 * Creates the TreeDiff in node-table mode: "before-file" and "after-file"
+	 * contain the table of nodes of each tree, and the actions and mappings refer
+	 * to the nodes by id.
 	 * 
+	 * @param treeLeft
+	 * @param pathFileLeft
+	 * @param treeRight
+	 * @param pathFileRight
 	 * @param diff
+	 * @param toolInfo
 	 * @return
 	 */
-	public JsonElement build(Diff diff) {
+	public JsonElement buildWithNodeTable(Tree treeLeft, String pathFileLeft, Tree treeRight, String pathFileRight,
+			Diff diff, JsonElement toolInfo) {
 
-		return build(buildTree(diff.src.getRoot(), "unknowpath"), buildTree(diff.dst.getRoot(), "unknowpath"), diff,
-				null);
+		TreeNodeTable before = new TreeNodeTable(treeLeft);
+		TreeNodeTable after = new TreeNodeTable(treeRight);
+		TreeDiffStringTable strings = createStringTable();
 
-	}
+		JsonObject root = new JsonObject();
 
-	public JsonElement build(File fileLeft, File fileRight, String algorithmName, String algorithmVersion)
-			throws IOException {
+		root.add("tool-info", toolInfo);
 
-		TreeContext ctxL = new JdtTreeGenerator().generateFrom().file(fileLeft);
-		Tree left = ctxL.getRoot();
+		root.add("diff", buildEditScript(diff, before, after));
 
-		TreeContext ctxR = new JdtTreeGenerator().generateFrom().file(fileRight);
-		Tree right = ctxR.getRoot();
+		root.add("before-file", buildNodeTable(before, pathFileLeft, strings));
+		root.add("after-file", buildNodeTable(after, pathFileRight, strings));
 
-		Matcher matcher = new CompositeMatchers.SimpleGumtree();
-		MappingStore mappings = matcher.match(left, right);
+		root.add("mapping", buildMapping(diff, before, after));
 
-		EditScriptGenerator generator = new SimplifiedChawatheScriptGenerator();
-		EditScript computeActions = generator.computeActions(mappings);
+		if (strings != null) {
+			root.add("string-table", strings.toJson());
+		}
 
-		Diff diff = new Diff(ctxL, ctxR, mappings, computeActions);
+		return root;
+	}
 
-		return build(diff, left, right, fileLeft, fileRight, algorithmName, algorithmVersion,
-				matcher.getClass().getName(), generator.getClass().getName());
+	/**
+	 * Creates the TreeDiff in node-table mode from node tables already built, and
+	 * whose "before-file" and "after-file" are already created (without interned
+	 * strings).
+	 * 
+	 * @param before     the node table of the left tree
+	 * @param fileBefore the "before-file" created from the left table
+	 * @param after      the node table of the right tree
+	 * @param fileAfter  the "after-file" created from the right table
+	 * @param diff
+	 * @param toolInfo
+	 * @return
+	 */
+	protected JsonElement buildWithNodeTable(TreeNodeTable before, JsonElement fileBefore, TreeNodeTable after,
+			JsonElement fileAfter, Diff diff, JsonElement toolInfo) {
 
-	}
+		JsonObject root = new JsonObject();
 
-	public JsonElement build(Diff diff, Tree left, Tree right, File fileLeft, File fileRight, String algorithmName,
-			String algorithmVersion, String matcherName, String editScriptGenerator) throws IOException {
+		root.add("tool-info", toolInfo);
 
-		JsonObject toolInfo = new JsonObject();
-		toolInfo.addProperty("name", algorithmName);
-		toolInfo.addProperty("version", algorithmVersion);
-		toolInfo.addProperty("matcher", matcherName);
+		root.add("diff", buildEditScript(diff, before, after));
 
-		toolInfo.addProperty("editscriptgenerator", editScriptGenerator);
+		root.add("before-file", fileBefore);
+		root.add("after-file", fileAfter);
 
-		JsonElement jsonLeft = (storeTrees) ? buildTree(left, fileLeft.getAbsolutePath()) : new JsonObject();
-		JsonElement jsonRight = (storeTrees) ? buildTree(right, fileRight.getAbsolutePath()) : new JsonObject();
-		return build(jsonLeft, jsonRight, diff, toolInfo);
+		root.add("mapping", buildMapping(diff, before, after));
+
+		return root;
 	}
 
 	/**
-	 * It build the JSon of each Tree and then it calls to build to compute the
-	 * representation of the edit script
+	 * Creates the TreeDiff with interned types and/or labels. The parts of the
+	 * document are created in the order they are written, so the indexes of the
+	 * strings are the same than the ones of {@link TreeDiffStreamWriter}, and the
+	 * tables are added at the end.
 	 * 
-	 * @param treeLeft
+	 * @param treeLeft      the left tree, or null to not store it
 	 * @param pathFileLeft
-	 * @param treeRight
+	 * @param treeRight     the right tree, or null to not store it
 	 * @param pathFileRight
 	 * @param diff
 	 * @param toolInfo
-	 * @param mappingInfo
+	 * @param strings       the tables to fill
 	 * @return
 	 */
-	public JsonElement build(Tree treeLeft, String pathFileLeft, Tree treeRight, String pathFileRight, Diff diff,
-			JsonElement toolInfo) {
+	protected JsonElement buildWithStringTable(Tree treeLeft, String pathFileLeft, Tree treeRight,
+			String pathFileRight, Diff diff, JsonElement toolInfo, TreeDiffStringTable strings) {
 
-		return build(buildTree(treeLeft, pathFileLeft), buildTree(treeRight, pathFileRight), diff, toolInfo);
+		JsonObject root = new JsonObject();
+
+		root.add("tool-info", toolInfo);
+
+		root.add("diff", buildEditScript(diff, strings));
+
+		root.add("before-file",
+				(treeLeft != null) ? buildTree(treeLeft, pathFileLeft, strings) : new JsonObject());
+		root.add("after-file",
+				(treeRight != null) ? buildTree(treeRight, pathFileRight, strings) : new JsonObject());
+
+		root.add("mapping", buildMapping(diff, null, null));
+
+		root.add("string-table", strings.toJson());
+
+		return root;
 	}
 
 	/**
@@ -141,32 +1211,98 @@ public class TreeDiffFormatBuilder {
 		root.add("before-file", fileBefore);
 		root.add("after-file", fileAfter);
 
-		JsonElement mappingInfo = (storeMappings) ? createMappingJson(diff.mappings) : new JsonObject();
-		root.add("mapping", mappingInfo);
+		root.add("mapping", buildMapping(diff, null, null));
+
+		return root;
+	}
+
+	/**
+	 * Creates the TreeDiff in summary mode: the paths of the files and the
+	 * counts of the actions, in "summary".
+	 * 
+	 * @param diff
+	 * @param pathFileLeft
+	 * @param pathFileRight
+	 * @param toolInfo
+	 * @return
+	 */
+	public JsonElement buildSummary(Diff diff, String pathFileLeft, String pathFileRight, JsonElement toolInfo) {
+		TreeDiffSummary summary = new TreeDiffSummary();
+		summary.add(diff, filter);
+
+		JsonObject root = new JsonObject();
+		root.add("tool-info", toolInfo);
+
+		JsonObject fileBefore = new JsonObject();
+		fileBefore.addProperty("path", pathFileLeft);
+		root.add("before-file", fileBefore);
+		JsonObject fileAfter = new JsonObject();
+		fileAfter.addProperty("path", pathFileRight);
+		root.add("after-file", fileAfter);
 
+		root.add("summary", summary.toJson());
 		return root;
 	}
 
 	public JsonArray buildEditScript(Diff diff) throws IllegalAccessError {
+		return buildEditScript(diff, (TreeDiffStringTable) null);
+	}
+
+	/**
+	 * Creates the actions of the edit script.
+	 * 
+	 * @param diff
+	 * @param strings the tables where the types and labels of the nodes are
+	 *                interned, or null
+	 * @return
+	 * @throws IllegalAccessError
+	 */
+	public JsonArray buildEditScript(Diff diff, TreeDiffStringTable strings) throws IllegalAccessError {
+		if (strings != null) {
+			// the strings are interned in the order of the actions
+			return buildEditScript(diff, diff.editScript.asList(), strings);
+		}
+		return concat(convertInChunks(diff.editScript.asList(), chunk -> buildEditScript(diff, chunk, null)));
+	}
+
+	/**
+	 * Creates the actions of a part of the edit script.
+	 * 
+	 * @param diff
+	 * @param actions consecutive actions of the edit script of the diff
+	 * @param strings the tables where the types and labels of the nodes are
+	 *                interned, or null
+	 * @return
+	 */
+	protected JsonArray buildEditScript(Diff diff, List<Action> actions, TreeDiffStringTable strings) {
 		JsonArray diffs = new JsonArray();
 
-		for (Action iAction : diff.editScript.asList()) {
+		for (Action iAction : actions) {
 
+			TreeDiffActionType type = TreeDiffActionType.of(iAction);
+			if (!accept(diff, iAction, type)) {
+				continue;
+			}
 			JsonElement elementToAdd = null;
-			if (iAction instanceof Insert) {
-				elementToAdd = createInsert(diff, iAction, "insert-node");
-			} else if (iAction instanceof TreeInsert) {
-				elementToAdd = createInsert(diff, iAction, "insert-subtree");
-			} else if (iAction instanceof Delete) {
-				elementToAdd = createDelete(diff, iAction, "delete-node");
-			} else if (iAction instanceof TreeDelete) {
-				elementToAdd = createDelete(diff, iAction, "delete-subtree");
-			} else if (iAction instanceof Move) {
-				elementToAdd = createMove(diff, iAction);
-			} else if (iAction instanceof Update) {
-				elementToAdd = createUpdate(diff, iAction);
-			} else {
-				throw new IllegalAccessError("Action not recognized: " + iAction.getClass().getCanonicalName());
+			switch (type) {
+			case INSERT_NODE:
+				elementToAdd = createInsert(diff, iAction, "insert-node", strings);
+				break;
+			case INSERT_SUBTREE:
+				elementToAdd = createInsert(diff, iAction, "insert-subtree", strings);
+				break;
+			case DELETE_NODE:
+				elementToAdd = createDelete(diff, iAction, "delete-node", strings);
+				break;
+			case DELETE_SUBTREE:
+				elementToAdd = createDelete(diff, iAction, "delete-subtree", strings);
+				break;
+			case MOVE_SUBTREE:
+				elementToAdd = createMove(diff, iAction, strings);
+				break;
+			case UPDATE_NODE:
+				elementToAdd = createUpdate(diff, iAction, strings);
+				break;
 			}
 			if (elementToAdd != null) {
 				diffs.add(elementToAdd);
@@ -175,14 +1311,124 @@ public class TreeDiffFormatBuilder {
 		return diffs;
 	}
 
+	/**
+	 * Creates the actions of the edit script referring to the nodes by id.
+	 * 
+	 * @param diff
+	 * @param before the node table of the left tree
+	 * @param after  the node table of the right tree
+	 * @return
+	 */
+	public JsonArray buildEditScript(Diff diff, TreeNodeTable before, TreeNodeTable after) {
+		return concat(convertInChunks(diff.editScript.asList(), chunk -> {
+			JsonArray diffs = new JsonArray();
+			for (Action iAction : chunk) {
+				TreeDiffActionType type = TreeDiffActionType.of(iAction);
+				if (accept(diff, iAction, type)) {
+					diffs.add(createActionWithNodeIds(diff, iAction, type, before, after));
+				}
+			}
+			return diffs;
+		}));
+	}
+
+	private static JsonArray concat(List<JsonArray> chunks) {
+		if (chunks.size() == 1) {
+			return chunks.get(0);
+		}
+		JsonArray diffs = new JsonArray();
+		for (JsonArray chunk : chunks) {
+			diffs.addAll(chunk);
+		}
+		return diffs;
+	}
+
+	/**
+	 * Creates the json of a table of nodes. The id of each node is its index in
+	 * the array "nodes".
+	 * 
+	 * @param table
+	 * @param path
+	 * @return
+	 */
+	public JsonElement buildNodeTable(TreeNodeTable table, String path) {
+		return buildNodeTable(table, path, null);
+	}
+
+	/**
+	 * Creates the json of a table of nodes, interning the types and labels.
+	 * 
+	 * @param table
+	 * @param path
+	 * @param strings the tables of strings, or null
+	 * @return
+	 */
+	public JsonElement buildNodeTable(TreeNodeTable table, String path, TreeDiffStringTable strings) {
+		return buildNodeTable(table.getSnapshot(), path, strings);
+	}
+
+	/**
+	 * Creates the json of a table of nodes from the snapshot of the tree.
+	 * 
+	 * @param snapshot
+	 * @param path
+	 * @param strings  the tables of strings, or null
+	 * @return
+	 */
+	public JsonElement buildNodeTable(TreeSnapshot snapshot, String path, TreeDiffStringTable strings) {
+		JsonArray nodes = new JsonArray();
+		for (int id = 0; id < snapshot.size(); id++) {
+			JsonObject nodeJson = convertSnapshotNodeToJson(snapshot, id, strings);
+			nodeJson.addProperty("parent", snapshot.parentOf(id));
+			nodeJson.addProperty("start", snapshot.getPos(id));
+			nodeJson.addProperty("end", snapshot.getEndPos(id));
+			nodes.add(nodeJson);
+		}
+
+		JsonObject fileJSon = new JsonObject();
+		fileJSon.addProperty("path", path);
+		fileJSon.add("nodes", nodes);
+		return fileJSon;
+	}
+
 	public JsonElement buildTree(Tree tree, String path) {
+		return buildTree(tree, path, null);
+	}
+
+	public JsonElement buildTree(Tree tree, String path, TreeDiffStringTable strings) {
+		return buildTree(new TreeSnapshot(tree), path, strings);
+	}
+
+	public JsonElement buildTree(TreeSnapshot snapshot, String path, TreeDiffStringTable strings) {
 
 		JsonObject fileJSon = new JsonObject();
 		fileJSon.addProperty("path", path);
-		fileJSon.add("ast", convertTreeToJSon(tree));
+		fileJSon.add("ast", convertSnapshotToJson(snapshot, strings));
 		return fileJSon;
 	}
 
+	/**
+	 * Creates the "mapping" of a TreeDiff: an empty object if the mappings are
+	 * not stored, their compact encoding, or the array of mappings.
+	 * 
+	 * @param diff
+	 * @param before the node table of the left tree, or null if the nodes are not
+	 *               referred by id
+	 * @param after  the node table of the right tree, or null
+	 * @return
+	 */
+	protected JsonElement buildMapping(Diff diff, TreeNodeTable before, TreeNodeTable after) {
+		if (!storeMappings) {
+			return new JsonObject();
+		}
+		if (compactMappings) {
+			return new TreeDiffMappingCodec(omitIsomorphicMappings).encode(diff.mappings,
+					(before != null) ? before : new TreeNodeTable(diff.src.getRoot()),
+					(after != null) ? after : new TreeNodeTable(diff.dst.getRoot()));
+		}
+		return (before != null) ? createMappingJson(diff.mappings, before, after) : createMappingJson(diff.mappings);
+	}
+
 	/**
 	 * Creates the JSON representation from a Mapping
 	 * 
@@ -204,35 +1450,75 @@ public class TreeDiffFormatBuilder {
 		return mappingsJson;
 	}
 
-	private JsonElement createDelete(Diff diff, Action iAction, String type) {
+	/**
+	 * Creates the JSON representation of a Mapping in node-table mode: pairs of
+	 * ids of nodes.
+	 * 
+	 * @param mappings
+	 * @param before
+	 * @param after
+	 * @return
+	 */
+	public JsonElement createMappingJson(MappingStore mappings, TreeNodeTable before, TreeNodeTable after) {
+		JsonArray mappingsJson = new JsonArray();
+		for (Mapping oneMap : mappings.asSet()) {
+
+			JsonObject mapJson = new JsonObject();
+
+			mapJson.addProperty("src", before.idOf(oneMap.first));
+			mapJson.addProperty("dst", after.idOf(oneMap.second));
+			mappingsJson.add(mapJson);
+
+		}
+
+		return mappingsJson;
+	}
+
+	private JsonElement createDelete(Diff diff, Action iAction, String type, TreeDiffStringTable strings) {
 		JsonObject deletedNodeJson = new JsonObject();
 		deletedNodeJson.addProperty("type", type);
-		JsonElement convertTreeToJSon = (storeTrees) ? convertTreeToJSon(iAction.getNode())
-				: convertTreeToJsonSingleNode(iAction.getNode());
-		deletedNodeJson.add("node", convertTreeToJSon);
+		if (isWritten(TreeDiffFilter.Field.NODE)) {
+			JsonElement convertTreeToJSon = (storeTrees) ? convertTreeToJSon(iAction.getNode(), strings)
+					: convertTreeToJsonSingleNode(iAction.getNode(), strings);
+			deletedNodeJson.add("node", convertTreeToJSon);
+		}
 
-		deletedNodeJson.addProperty("location-before-char-start", iAction.getNode().getPos());
-		deletedNodeJson.addProperty("location-before-char-end", iAction.getNode().getEndPos());
+		if (isWritten(TreeDiffFilter.Field.LOCATION_BEFORE)) {
+			deletedNodeJson.addProperty("location-before-char-start", iAction.getNode().getPos());
+			deletedNodeJson.addProperty("location-before-char-end", iAction.getNode().getEndPos());
+		}
 
-		deletedNodeJson.addProperty("node-str", iAction.getNode().getLabel());
-		deletedNodeJson.add("meta", null);
+		if (isWritten(TreeDiffFilter.Field.NODE_STR)) {
+			deletedNodeJson.addProperty("node-str", iAction.getNode().getLabel());
+		}
+		if (isWritten(TreeDiffFilter.Field.META)) {
+			deletedNodeJson.add("meta", null);
+		}
 
 		return deletedNodeJson;
 	}
 
-	private JsonElement createInsert(Diff diff, Action iAction, String type) {
+	private JsonElement createInsert(Diff diff, Action iAction, String type, TreeDiffStringTable strings) {
 		JsonObject insertNodeJson = new JsonObject();
 		insertNodeJson.addProperty("type", type);
 
-		JsonElement convertTreeToJSon = (storeTrees) ? convertTreeToJSon(iAction.getNode())
-				: convertTreeToJsonSingleNode(iAction.getNode());
-		insertNodeJson.add("node", convertTreeToJSon);
+		if (isWritten(TreeDiffFilter.Field.NODE)) {
+			JsonElement convertTreeToJSon = (storeTrees) ? convertTreeToJSon(iAction.getNode(), strings)
+					: convertTreeToJsonSingleNode(iAction.getNode(), strings);
+			insertNodeJson.add("node", convertTreeToJSon);
+		}
 
-		insertNodeJson.addProperty("location-after-char-start", iAction.getNode().getPos());
-		insertNodeJson.addProperty("location-after-char-end", iAction.getNode().getEndPos());
+		if (isWritten(TreeDiffFilter.Field.LOCATION_AFTER)) {
+			insertNodeJson.addProperty("location-after-char-start", iAction.getNode().getPos());
+			insertNodeJson.addProperty("location-after-char-end", iAction.getNode().getEndPos());
+		}
 
-		insertNodeJson.addProperty("node-str", iAction.getNode().getLabel());
-		insertNodeJson.add("meta", null);
+		if (isWritten(TreeDiffFilter.Field.NODE_STR)) {
+			insertNodeJson.addProperty("node-str", iAction.getNode().getLabel());
+		}
+		if (isWritten(TreeDiffFilter.Field.META)) {
+			insertNodeJson.add("meta", null);
+		}
 
 		return insertNodeJson;
 	}
@@ -252,16 +1538,16 @@ public class TreeDiffFormatBuilder {
 		return node;
 	}
 
-	private JsonElement createMove(Diff diff, Action iAction) {
+	private JsonElement createMove(Diff diff, Action iAction, TreeDiffStringTable strings) {
 		String type = "move-subtree";
-		JsonObject movedNodeJson = createMappedNode(diff, iAction, type);
+		JsonObject movedNodeJson = createMappedNode(diff, iAction, type, strings);
 
 		return movedNodeJson;
 	}
 
-	private JsonElement createUpdate(Diff diff, Action iAction) {
+	private JsonElement createUpdate(Diff diff, Action iAction, TreeDiffStringTable strings) {
 		String type = "update-node";
-		JsonObject updatedNodeJson = createMappedNode(diff, iAction, type);
+		JsonObject updatedNodeJson = createMappedNode(diff, iAction, type, strings);
 
 		return updatedNodeJson;
 	}
@@ -277,27 +1563,102 @@ public class TreeDiffFormatBuilder {
 	 * @return
 	 */
 	public JsonObject createMappedNode(Diff diff, Action iAction, String type) {
+		return createMappedNode(diff, iAction, type, null);
+	}
+
+	public JsonObject createMappedNode(Diff diff, Action iAction, String type, TreeDiffStringTable strings) {
 
 		JsonObject mappedNodeJson = new JsonObject();
 
 		mappedNodeJson.addProperty("type", type);
-		JsonElement convertTreeToJSon = (storeTrees) ? convertTreeToJSon(iAction.getNode())
-				: convertTreeToJsonSingleNode(iAction.getNode());
-		mappedNodeJson.add("node", convertTreeToJSon);
+		if (isWritten(TreeDiffFilter.Field.NODE)) {
+			JsonElement convertTreeToJSon = (storeTrees) ? convertTreeToJSon(iAction.getNode(), strings)
+					: convertTreeToJsonSingleNode(iAction.getNode(), strings);
+			mappedNodeJson.add("node", convertTreeToJSon);
+		}
 
-		mappedNodeJson.addProperty("location-before-char-start", iAction.getNode().getPos());
-		mappedNodeJson.addProperty("location-before-char-end", iAction.getNode().getEndPos());
+		if (isWritten(TreeDiffFilter.Field.LOCATION_BEFORE)) {
+			mappedNodeJson.addProperty("location-before-char-start", iAction.getNode().getPos());
+			mappedNodeJson.addProperty("location-before-char-end", iAction.getNode().getEndPos());
+		}
 
 		Tree dstMoved = diff.mappings.getDstForSrc(iAction.getNode());
-		mappedNodeJson.addProperty("location-after-char-start", dstMoved.getPos());
-		mappedNodeJson.addProperty("location-after-char-end", dstMoved.getEndPos());
+		if (isWritten(TreeDiffFilter.Field.LOCATION_AFTER)) {
+			mappedNodeJson.addProperty("location-after-char-start", dstMoved.getPos());
+			mappedNodeJson.addProperty("location-after-char-end", dstMoved.getEndPos());
+		}
 
-		mappedNodeJson.addProperty("node-str", dstMoved.getLabel()); // optional
-		mappedNodeJson.add("meta", null);
+		if (isWritten(TreeDiffFilter.Field.NODE_STR)) {
+			mappedNodeJson.addProperty("node-str", dstMoved.getLabel()); // optional
+		}
+		if (isWritten(TreeDiffFilter.Field.META)) {
+			mappedNodeJson.add("meta", null);
+		}
 
 		return mappedNodeJson;
 	}
 
+	/**
+	 * Creates an action that refers to its node(s) by id: "node-id" is the id in
+	 * the left table, or in the right table for insertions, and "node-after-id"
+	 * the id of the mapped node in the right table (moves and updates).
+	 * 
+	 * @param diff
+	 * @param iAction
+	 * @param type
+	 * @param before
+	 * @param after
+	 * @return
+	 */
+	protected JsonObject createActionWithNodeIds(Diff diff, Action iAction, TreeDiffActionType type,
+			TreeNodeTable before, TreeNodeTable after) {
+		Tree node = iAction.getNode();
+		String label = node.getLabel();
+
+		boolean writeNode = isWritten(TreeDiffFilter.Field.NODE);
+		boolean writeAfter = isWritten(TreeDiffFilter.Field.LOCATION_AFTER);
+
+		JsonObject actionJson = new JsonObject();
+		actionJson.addProperty("type", type.getJsonName());
+
+		if (type.isAddition()) {
+			if (writeNode) {
+				actionJson.addProperty("node-id", after.idOf(node));
+			}
+			if (writeAfter) {
+				actionJson.addProperty("location-after-char-start", node.getPos());
+				actionJson.addProperty("location-after-char-end", node.getEndPos());
+			}
+		} else {
+			if (writeNode) {
+				actionJson.addProperty("node-id", before.idOf(node));
+			}
+			if (isWritten(TreeDiffFilter.Field.LOCATION_BEFORE)) {
+				actionJson.addProperty("location-before-char-start", node.getPos());
+				actionJson.addProperty("location-before-char-end", node.getEndPos());
+			}
+			if (type.isMapped()) {
+				Tree dst = diff.mappings.getDstForSrc(node);
+				if (writeNode) {
+					actionJson.addProperty("node-after-id", after.idOf(dst));
+				}
+				if (writeAfter) {
+					actionJson.addProperty("location-after-char-start", dst.getPos());
+					actionJson.addProperty("location-after-char-end", dst.getEndPos());
+				}
+				label = dst.getLabel();
+			}
+		}
+
+		if (isWritten(TreeDiffFilter.Field.NODE_STR)) {
+			actionJson.addProperty("node-str", label);
+		}
+		if (isWritten(TreeDiffFilter.Field.META)) {
+			actionJson.add("meta", null);
+		}
+		return actionJson;
+	}
+
 	public JsonObject fromSimpleAction(String type, int startLeft, int endLeft, int startRight, int endRight,
 			String label) {
 		JsonObject actionJson = new JsonObject();
@@ -316,20 +1677,113 @@ public class TreeDiffFormatBuilder {
 	}
 
 	/**
-	 * Creates a Json from a Tree. It includes the children.
+	 * Creates a Json from a Tree. It includes the children. The tree is traversed
+	 * in pre-order with an explicit stack, so the depth of the tree is not limited
+	 * by the size of the thread stack.
 	 * 
 	 * @param nodeTree the tree to represent
 	 * @return the json representation
 	 */
 	protected JsonElement convertTreeToJSon(Tree nodeTree) {
+		return convertTreeToJSon(nodeTree, null);
+	}
+
+	/**
+	 * Creates a Json from a Tree, interning the types and labels of the nodes.
+	 * 
+	 * @param nodeTree the tree to represent
+	 * @param strings  the tables of strings, or null
+	 * @return the json representation
+	 */
+	protected JsonElement convertTreeToJSon(Tree nodeTree, TreeDiffStringTable strings) {
+
+		JsonObject rootJson = convertTreeToJsonSingleNode(nodeTree, strings);
+		JsonArray rootChildren = new JsonArray();
+		rootJson.add("children", rootChildren);
+
+		// each node to convert, with the array of children of its parent
+		Deque<Tree> nodes = new ArrayDeque<>();
+		Deque<JsonArray> parents = new ArrayDeque<>();
+		pushChildren(nodeTree, rootChildren, nodes, parents);
+
+		while (!nodes.isEmpty()) {
+			Tree node = nodes.pop();
+			JsonArray parentChildren = parents.pop();
+
+			JsonObject nodeJson = convertTreeToJsonSingleNode(node, strings);
+			JsonArray children = new JsonArray();
+			nodeJson.add("children", children);
+			parentChildren.add(nodeJson);
+
+			pushChildren(node, children, nodes, parents);
+		}
+		return rootJson;
+	}
 
-		JsonObject nodeJson = convertTreeToJsonSingleNode(nodeTree);
-		JsonArray children = new JsonArray();
-		nodeJson.add("children", children);
+	/**
+	 * Pushes the children in reverse order, so they are popped in order.
+	 */
+	private void pushChildren(Tree node, JsonArray children, Deque<Tree> nodes, Deque<JsonArray> parents) {
+		List<Tree> nodeChildren = node.getChildren();
+		for (int i = nodeChildren.size() - 1; i >= 0; i--) {
+			nodes.push(nodeChildren.get(i));
+			parents.push(children);
+		}
+	}
 
-		for (Tree child : nodeTree.getChildren()) {
-			children.add(convertTreeToJSon(child));
+	/**
+	 * Creates the Json of a tree from its snapshot, with the same content as
+	 * {@link #convertTreeToJSon(Tree, TreeDiffStringTable)}. The nodes are
+	 * created in pre-order, which is the order of their ids, so each node is
+	 * added to the array of children of its parent, created before.
+	 * 
+	 * @param snapshot
+	 * @param strings  the tables of strings, or null
+	 * @return the json representation
+	 */
+	protected JsonElement convertSnapshotToJson(TreeSnapshot snapshot, TreeDiffStringTable strings) {
+		JsonArray[] children = new JsonArray[snapshot.size()];
+		JsonObject rootJson = null;
+		for (int id = 0; id < snapshot.size(); id++) {
+			JsonObject nodeJson = convertSnapshotNodeToJson(snapshot, id, strings);
+			JsonArray nodeChildren = new JsonArray();
+			nodeJson.add("children", nodeChildren);
+			if (snapshot.firstChildOf(id) >= 0) {
+				children[id] = nodeChildren;
+			}
+			if (id == 0) {
+				rootJson = nodeJson;
+			} else {
+				int parent = snapshot.parentOf(id);
+				children[parent].add(nodeJson);
+				// the array is not needed after the last child
+				if (snapshot.nextSiblingOf(id) < 0) {
+					children[parent] = null;
+				}
+			}
+		}
+		return rootJson;
+	}
 
+	/**
+	 * Creates the Json of a node of a snapshot, without children.
+	 * 
+	 * @param snapshot
+	 * @param id       the id of the node
+	 * @param strings  the tables of strings, or null
+	 * @return
+	 */
+	public JsonObject convertSnapshotNodeToJson(TreeSnapshot snapshot, int id, TreeDiffStringTable strings) {
+		JsonObject nodeJson = new JsonObject();
+		if (strings != null && strings.isInterningLabels()) {
+			nodeJson.addProperty("label", strings.indexOfLabel(snapshot.getLabel(id)));
+		} else {
+			nodeJson.addProperty("label", snapshot.getLabel(id));
+		}
+		if (strings != null && strings.isInterningTypes()) {
+			nodeJson.addProperty("type", strings.indexOfType(snapshot.getType(id)));
+		} else {
+			nodeJson.addProperty("type", snapshot.getType(id));
 		}
 		return nodeJson;
 	}
@@ -347,4 +1801,30 @@ public class TreeDiffFormatBuilder {
 		return nodeJson;
 	}
 
+	/**
+	 * Creates a Json from a Tree without children. The label and the type are
+	 * replaced by their index in the string tables when they are interned.
+	 * 
+	 * @param nodeTree
+	 * @param strings  the tables of strings, or null
+	 * @return
+	 */
+	public JsonObject convertTreeToJsonSingleNode(Tree nodeTree, TreeDiffStringTable strings) {
+		if (strings == null) {
+			return convertTreeToJsonSingleNode(nodeTree);
+		}
+		JsonObject nodeJson = new JsonObject();
+		if (strings.isInterningLabels()) {
+			nodeJson.addProperty("label", strings.indexOfLabel(nodeTree.getLabel()));
+		} else {
+			nodeJson.addProperty("label", nodeTree.getLabel());
+		}
+		if (strings.isInterningTypes()) {
+			nodeJson.addProperty("type", strings.indexOfType(nodeTree.getType().name));
+		} else {
+			nodeJson.addProperty("type", nodeTree.getType().name);
+		}
+		return nodeJson;
+	}
+
 }
@@ -0,0 +1,448 @@
+package fr.gumtree.treediff.jdt;
+
+/**
+ * The configuration of a {@link TreeDiffFormatBuilder}: what a TreeDiff
+ * contains and how it is encoded, and the collaborators that compute it
+ * (matching strategy, caches, fast path...).
+ *
+ * A configuration is immutable, so a TreeDiffFormatBuilder created from it can
+ * be shared by the threads of a pipeline. The collaborators it refers to can
+ * be used from several threads. The filter is copied when the configuration is
+ * built, so modifying it afterwards does not change the configuration.
+ *
+ * A configuration is created with a {@link Builder}:
+ *
+ * <pre>
+ * TreeDiffFormatConfig config = TreeDiffFormatConfig.builder().setStoreTrees(true).setStoreNodeTable(true)
+ * 		.build();
+ * TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(config);
+ * </pre>
+ *
+ * @author Matias Martinez
+ *
+ */
+public final class TreeDiffFormatConfig {
+
+	/** the configuration of {@code new TreeDiffFormatBuilder()} */
+	public static final TreeDiffFormatConfig DEFAULT = builder().build();
+
+	final boolean storeTrees;
+	final boolean storeMappings;
+	final boolean storeNodeTable;
+	final boolean storeTypeTable;
+	final boolean storeLabelTable;
+	final boolean storeStats;
+	final boolean summaryOnly;
+	final boolean compactMappings;
+	final boolean omitIsomorphicMappings;
+	final int parallelSerializationThreshold;
+	final int parallelSerializationChunkSize;
+	final TreeDiffFilter filter;
+	final TreeContextCache treeContextCache;
+	final TreeDiffMatchingStrategy matchingStrategy;
+	final TreeDiffPartitionedDiffer partitionedDiffer;
+	final TreeDiffFastPath fastPath;
+	final TreeDiffResultCache resultCache;
+
+	private TreeDiffFormatConfig(Builder builder) {
+		this.storeTrees = builder.storeTrees;
+		this.storeMappings = builder.storeMappings;
+		this.storeNodeTable = builder.storeNodeTable;
+		this.storeTypeTable = builder.storeTypeTable;
+		this.storeLabelTable = builder.storeLabelTable;
+		this.storeStats = builder.storeStats;
+		this.summaryOnly = builder.summaryOnly;
+		this.compactMappings = builder.compactMappings;
+		this.omitIsomorphicMappings = builder.omitIsomorphicMappings;
+		this.parallelSerializationThreshold = builder.parallelSerializationThreshold;
+		this.parallelSerializationChunkSize = builder.parallelSerializationChunkSize;
+		this.filter = (builder.filter != null) ? new TreeDiffFilter(builder.filter) : null;
+		this.treeContextCache = builder.treeContextCache;
+		this.matchingStrategy = builder.matchingStrategy;
+		this.partitionedDiffer = builder.partitionedDiffer;
+		this.fastPath = builder.fastPath;
+		this.resultCache = builder.resultCache;
+	}
+
+	/**
+	 *
+	 * @return a builder of the default configuration
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 *
+	 * @return a builder initialized with this configuration
+	 */
+	public Builder toBuilder() {
+		Builder builder = new Builder();
+		builder.storeTrees = storeTrees;
+		builder.storeMappings = storeMappings;
+		builder.storeNodeTable = storeNodeTable;
+		builder.storeTypeTable = storeTypeTable;
+		builder.storeLabelTable = storeLabelTable;
+		builder.storeStats = storeStats;
+		builder.summaryOnly = summaryOnly;
+		builder.compactMappings = compactMappings;
+		builder.omitIsomorphicMappings = omitIsomorphicMappings;
+		builder.parallelSerializationThreshold = parallelSerializationThreshold;
+		builder.parallelSerializationChunkSize = parallelSerializationChunkSize;
+		builder.filter = filter;
+		builder.treeContextCache = treeContextCache;
+		builder.matchingStrategy = matchingStrategy;
+		builder.partitionedDiffer = partitionedDiffer;
+		builder.fastPath = fastPath;
+		builder.resultCache = resultCache;
+		return builder;
+	}
+
+	public boolean isStoreTrees() {
+		return storeTrees;
+	}
+
+	public boolean isStoreMappings() {
+		return storeMappings;
+	}
+
+	public boolean isStoreNodeTable() {
+		return storeNodeTable;
+	}
+
+	public boolean isStoreTypeTable() {
+		return storeTypeTable;
+	}
+
+	public boolean isStoreLabelTable() {
+		return storeLabelTable;
+	}
+
+	public boolean isStoreStats() {
+		return storeStats;
+	}
+
+	public boolean isSummaryOnly() {
+		return summaryOnly;
+	}
+
+	public boolean isCompactMappings() {
+		return compactMappings;
+	}
+
+	public boolean isOmitIsomorphicMappings() {
+		return omitIsomorphicMappings;
+	}
+
+	public int getParallelSerializationThreshold() {
+		return parallelSerializationThreshold;
+	}
+
+	public int getParallelSerializationChunkSize() {
+		return parallelSerializationChunkSize;
+	}
+
+	/**
+	 *
+	 * @return a copy of the filter, or null
+	 */
+	public TreeDiffFilter getFilter() {
+		return (filter != null) ? new TreeDiffFilter(filter) : null;
+	}
+
+	public TreeContextCache getTreeContextCache() {
+		return treeContextCache;
+	}
+
+	public TreeDiffMatchingStrategy getMatchingStrategy() {
+		return matchingStrategy;
+	}
+
+	public TreeDiffPartitionedDiffer getPartitionedDiffer() {
+		return partitionedDiffer;
+	}
+
+	public TreeDiffFastPath getFastPath() {
+		return fastPath;
+	}
+
+	public TreeDiffResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * Builds a {@link TreeDiffFormatConfig}. A builder is not thread-safe, but the
+	 * configurations it builds are independent of it.
+	 */
+	public static final class Builder {
+
+		boolean storeTrees = false;
+		boolean storeMappings = false;
+		boolean storeNodeTable = false;
+		boolean storeTypeTable = false;
+		boolean storeLabelTable = false;
+		boolean storeStats = false;
+		boolean summaryOnly = false;
+		boolean compactMappings = false;
+		boolean omitIsomorphicMappings = false;
+		int parallelSerializationThreshold = Integer.MAX_VALUE;
+		int parallelSerializationChunkSize = 1024;
+		TreeDiffFilter filter = null;
+		TreeContextCache treeContextCache = null;
+		TreeDiffMatchingStrategy matchingStrategy = new TreeDiffMatchingStrategy();
+		TreeDiffPartitionedDiffer partitionedDiffer = null;
+		TreeDiffFastPath fastPath = null;
+		TreeDiffResultCache resultCache = null;
+
+		private Builder() {
+			super();
+		}
+
+		/**
+		 * Sets if the complete Trees are stored.
+		 *
+		 * @param storeTrees
+		 * @return this builder
+		 */
+		public Builder setStoreTrees(boolean storeTrees) {
+			this.storeTrees = storeTrees;
+			return this;
+		}
+
+		/**
+		 * Sets if the mappings are stored.
+		 *
+		 * @param storeMappings
+		 * @return this builder
+		 */
+		public Builder setStoreMappings(boolean storeMappings) {
+			this.storeMappings = storeMappings;
+			return this;
+		}
+
+		/**
+		 * Sets the node-table mode: each tree is stored once as a table of nodes in
+		 * pre-order, and the actions and mappings refer to the nodes by their index
+		 * in the table (see {@link TreeNodeTable}) instead of embedding a copy of
+		 * them. In this mode the trees are always stored.
+		 *
+		 * @param storeNodeTable
+		 * @return this builder
+		 */
+		public Builder setStoreNodeTable(boolean storeNodeTable) {
+			this.storeNodeTable = storeNodeTable;
+			return this;
+		}
+
+		/**
+		 * Sets the interning of the types of the nodes: the "type" of each node is
+		 * the index of the type in the array "types" of "string-table", stored at the
+		 * end of the document (see {@link TreeDiffStringTable}).
+		 *
+		 * @param storeTypeTable
+		 * @return this builder
+		 */
+		public Builder setStoreTypeTable(boolean storeTypeTable) {
+			this.storeTypeTable = storeTypeTable;
+			return this;
+		}
+
+		/**
+		 * Sets the interning of the labels of the nodes: the "label" of each node is
+		 * the index of the label in the array "labels" of "string-table". The
+		 * "node-str" of actions and mappings is not interned.
+		 *
+		 * @param storeLabelTable
+		 * @return this builder
+		 */
+		public Builder setStoreLabelTable(boolean storeLabelTable) {
+			this.storeLabelTable = storeLabelTable;
+			return this;
+		}
+
+		/**
+		 * Sets if the measures of the diff (see {@link TreeDiffMetrics}) are stored
+		 * in "stats" of the "tool-info". When the TreeDiff is written, only the
+		 * measures taken before writing are stored.
+		 *
+		 * @param storeStats
+		 * @return this builder
+		 */
+		public Builder setStoreStats(boolean storeStats) {
+			this.storeStats = storeStats;
+			return this;
+		}
+
+		/**
+		 * Sets the summary mode: instead of the actions, the trees and the mappings,
+		 * the TreeDiff only contains the paths of the files and the counts of the
+		 * actions (see {@link TreeDiffSummary}) in "summary". No JSON is created for
+		 * the actions or the nodes.
+		 *
+		 * @param summaryOnly
+		 * @return this builder
+		 */
+		public Builder setSummaryOnly(boolean summaryOnly) {
+			this.summaryOnly = summaryOnly;
+			return this;
+		}
+
+		/**
+		 * Sets the compact encoding of the mappings: runs of pairs of pre-order
+		 * indexes of nodes (see {@link TreeDiffMappingCodec}) instead of one object,
+		 * with the label and the positions of both nodes, per mapping.
+		 *
+		 * @param compactMappings
+		 * @return this builder
+		 */
+		public Builder setCompactMappings(boolean compactMappings) {
+			this.compactMappings = compactMappings;
+			return this;
+		}
+
+		/**
+		 * Sets if the compact encoding of the mappings leaves out the mappings
+		 * implied by isomorphic subtrees, which the decoder restores from the trees.
+		 *
+		 * @param omitIsomorphicMappings
+		 * @return this builder
+		 */
+		public Builder setOmitIsomorphicMappings(boolean omitIsomorphicMappings) {
+			this.omitIsomorphicMappings = omitIsomorphicMappings;
+			return this;
+		}
+
+		/**
+		 * Sets the number of actions from which the actions of an edit script are
+		 * converted in parallel: the edit script is split in chunks, converted by the
+		 * threads of the common pool, and the chunks are concatenated in their
+		 * order, so the TreeDiff is the same than the one converted by a single
+		 * thread. The actions are converted by a single thread when the labels or
+		 * the types are interned in a string table, whose indexes depend on the
+		 * order of the conversion.
+		 *
+		 * @param parallelSerializationThreshold the number of actions, or
+		 *                                       {@link Integer#MAX_VALUE} (the
+		 *                                       default) to always use a single
+		 *                                       thread
+		 * @return this builder
+		 */
+		public Builder setParallelSerializationThreshold(int parallelSerializationThreshold) {
+			this.parallelSerializationThreshold = parallelSerializationThreshold;
+			return this;
+		}
+
+		/**
+		 * Sets the number of actions of each chunk converted in parallel.
+		 *
+		 * @param parallelSerializationChunkSize
+		 * @return this builder
+		 */
+		public Builder setParallelSerializationChunkSize(int parallelSerializationChunkSize) {
+			if (parallelSerializationChunkSize < 1) {
+				throw new IllegalArgumentException(
+						"The size of a chunk must be positive: " + parallelSerializationChunkSize);
+			}
+			this.parallelSerializationChunkSize = parallelSerializationChunkSize;
+			return this;
+		}
+
+		/**
+		 * Sets the filter that selects the actions written and their properties
+		 * (see {@link TreeDiffFilter}). It is applied before creating the JSON of the
+		 * actions, and to the counts of the summary mode. The configuration keeps a
+		 * copy of the filter.
+		 *
+		 * @param filter the filter, or null to write all the actions
+		 * @return this builder
+		 */
+		public Builder setFilter(TreeDiffFilter filter) {
+			this.filter = filter;
+			return this;
+		}
+
+		/**
+		 * Sets the cache used to avoid parsing again files with the same content.
+		 *
+		 * @param treeContextCache the cache, or null to parse every file
+		 * @return this builder
+		 */
+		public Builder setTreeContextCache(TreeContextCache treeContextCache) {
+			this.treeContextCache = treeContextCache;
+			return this;
+		}
+
+		/**
+		 * Sets the strategy that chooses the matcher of the diffs computed from
+		 * files, and bounds their time.
+		 *
+		 * The time budget is only checked between the phases of the matching (and
+		 * before the edit script), as a matcher can not be interrupted: a phase
+		 * that starts before the deadline runs to its end, so a diff can last
+		 * longer than its budget, by up to its longest phase. With large trees, a
+		 * low large tree threshold bounds that phase better than the budget.
+		 *
+		 * @param matchingStrategy
+		 * @return this builder
+		 */
+		public Builder setMatchingStrategy(TreeDiffMatchingStrategy matchingStrategy) {
+			if (matchingStrategy == null) {
+				throw new IllegalArgumentException("The matching strategy can not be null");
+			}
+			this.matchingStrategy = matchingStrategy;
+			return this;
+		}
+
+		/**
+		 * Sets the differ that diffs the files declaration by declaration, only
+		 * matching the declarations that changed. The matcher of each declaration is
+		 * chosen by the matching strategy.
+		 *
+		 * @param partitionedDiffer the differ, or null to match the complete trees
+		 * @return this builder
+		 */
+		public Builder setPartitionedDiffer(TreeDiffPartitionedDiffer partitionedDiffer) {
+			this.partitionedDiffer = partitionedDiffer;
+			return this;
+		}
+
+		/**
+		 * Sets the check that detects the files with the same content, or that
+		 * differ only in whitespace or comments. For those files, the TreeDiff has
+		 * an empty "diff" and the trees are not matched; they are not even parsed
+		 * unless the trees or the mappings are stored. See
+		 * {@link TreeDiffFastPath#TreeDiffFastPath(boolean)} for the files that do
+		 * not compile.
+		 *
+		 * @param fastPath the check, which counts the pairs that took the fast path,
+		 *                 or null to diff every pair
+		 * @return this builder
+		 */
+		public Builder setFastPath(TreeDiffFastPath fastPath) {
+			this.fastPath = fastPath;
+			return this;
+		}
+
+		/**
+		 * Sets the persistent cache of the TreeDiffs computed from files. A TreeDiff
+		 * found in the cache is returned without parsing nor matching the files: the
+		 * metrics listeners only receive the time spent reading it (and the size of
+		 * the output when it is written). Degraded diffs are not stored, nor the
+		 * TreeDiffs larger than {@link TreeDiffResultCache#getMaxDocumentBytes()},
+		 * and the cache is not used when the stats are stored, as they describe the
+		 * diff that created them.
+		 *
+		 * @param resultCache the cache, or null to compute every TreeDiff
+		 * @return this builder
+		 */
+		public Builder setResultCache(TreeDiffResultCache resultCache) {
+			this.resultCache = resultCache;
+			return this;
+		}
+
+		public TreeDiffFormatConfig build() {
+			return new TreeDiffFormatConfig(this);
+		}
+	}
+
+}
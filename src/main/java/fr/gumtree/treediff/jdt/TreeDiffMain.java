@@ -0,0 +1,246 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.gson.Gson;
+
+/**
+ * The command line of TreeDiffFormat: computes the TreeDiff of two files, or of
+ * the Java files with the same relative path in two directories, or runs a
+ * {@link TreeDiffDaemon}.
+ *
+ * <pre>
+ * treediff [options] &lt;left&gt; &lt;right&gt;
+ * treediff --serve &lt;port&gt;
+ * </pre>
+ *
+ * The TreeDiff of two files is written to the output file, or to the standard
+ * output. For two directories, one TreeDiff per line is written to the
+ * standard output, or one file {@code <relative path>.json} per pair in the
+ * output directory. The exit code is 0 on success, 1 if a diff failed and 2 if
+ * the arguments are invalid.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffMain {
+
+	public static final String ALGORITHM_NAME = "GumTree";
+	public static final String ALGORITHM_VERSION = "3.0.0";
+
+	static final int EXIT_OK = 0;
+	static final int EXIT_FAILED = 1;
+	static final int EXIT_USAGE = 2;
+
+	static final String USAGE = "Usage: treediff [options] <left> <right>\n" //
+			+ "       treediff --serve <port>\n" //
+			+ "  <left> <right>       two files, or two directories whose .java files are paired by relative path\n"
+			+ "  -t, --trees          store the trees\n" //
+			+ "  -m, --mappings       store the mappings\n" //
+			+ "  -o, --output <path>  the output file, or the output directory for two directories\n"
+			+ "                       (default: the standard output)\n" //
+			+ "  --serve <port>       run a diff daemon on a port of the loopback address (0 for any)\n"
+			+ "  -h, --help           print this help\n";
+
+	public static void main(String[] args) {
+		System.exit(run(args, System.out, System.err));
+	}
+
+	/**
+	 * Runs the command line.
+	 *
+	 * @param args
+	 * @param out  the standard output
+	 * @param err  the error output
+	 * @return the exit code
+	 */
+	public static int run(String[] args, PrintStream out, PrintStream err) {
+		boolean storeTrees = false;
+		boolean storeMappings = false;
+		String output = null;
+		Integer servePort = null;
+		List<String> paths = new ArrayList<>();
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "-t":
+				case "--trees":
+					storeTrees = true;
+					break;
+				case "-m":
+				case "--mappings":
+					storeMappings = true;
+					break;
+				case "-o":
+				case "--output":
+					output = value(args, ++i);
+					break;
+				case "--serve":
+					servePort = Integer.parseInt(value(args, ++i));
+					break;
+				case "-h":
+				case "--help":
+					out.print(USAGE);
+					return EXIT_OK;
+				default:
+					if (args[i].startsWith("-")) {
+						throw new IllegalArgumentException("Unknown option: " + args[i]);
+					}
+					paths.add(args[i]);
+				}
+			}
+			if (servePort == null && paths.size() != 2) {
+				throw new IllegalArgumentException("Two files or directories are expected");
+			}
+		} catch (IllegalArgumentException e) {
+			err.println(e.getMessage());
+			err.print(USAGE);
+			return EXIT_USAGE;
+		}
+
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(storeTrees, storeMappings);
+		try {
+			if (servePort != null) {
+				return serve(builder, servePort, err);
+			}
+			File left = new File(paths.get(0));
+			File right = new File(paths.get(1));
+			if (left.isDirectory() && right.isDirectory()) {
+				return diffDirectories(builder, left, right, (output != null) ? new File(output) : null, out, err);
+			}
+			if (!left.isFile() || !right.isFile()) {
+				err.println("Not two files nor two directories: " + left + " " + right);
+				return EXIT_USAGE;
+			}
+			if (output == null) {
+				Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+				builder.write(left, right, ALGORITHM_NAME, ALGORITHM_VERSION, writer);
+				writer.write('\n');
+				writer.flush();
+			} else {
+				try (Writer writer = Files.newBufferedWriter(new File(output).toPath(), StandardCharsets.UTF_8)) {
+					builder.write(left, right, ALGORITHM_NAME, ALGORITHM_VERSION, writer);
+				}
+			}
+			return EXIT_OK;
+		} catch (IOException | RuntimeException e) {
+			err.println("Error: " + e);
+			return EXIT_FAILED;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return EXIT_FAILED;
+		}
+	}
+
+	private static String value(String[] args, int i) {
+		if (i >= args.length) {
+			throw new IllegalArgumentException("Missing value of " + args[i - 1]);
+		}
+		return args[i];
+	}
+
+	/**
+	 * Diffs the Java files present in both directories. The files present in only
+	 * one of them are reported in the error output.
+	 */
+	static int diffDirectories(TreeDiffFormatBuilder builder, File left, File right, File output, PrintStream out,
+			PrintStream err) throws IOException, InterruptedException {
+		List<Path> leftFiles = javaFiles(left.toPath());
+		List<Path> rightFiles = javaFiles(right.toPath());
+		Set<Path> leftSet = new HashSet<>(leftFiles);
+		Set<Path> rightSet = new HashSet<>(rightFiles);
+		List<TreeDiffBatchBuilder.FilePair> pairs = new ArrayList<>();
+		List<Path> relativePaths = new ArrayList<>();
+		for (Path relative : leftFiles) {
+			if (rightSet.contains(relative)) {
+				pairs.add(new TreeDiffBatchBuilder.FilePair(left.toPath().resolve(relative).toFile(),
+						right.toPath().resolve(relative).toFile()));
+				relativePaths.add(relative);
+			} else {
+				err.println("Only in " + left + ": " + relative);
+			}
+		}
+		for (Path relative : rightFiles) {
+			if (!leftSet.contains(relative)) {
+				err.println("Only in " + right + ": " + relative);
+			}
+		}
+
+		Writer lines = (output == null) ? new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))
+				: null;
+		Gson gson = new Gson();
+		int[] failed = { 0 };
+		try (TreeDiffBatchBuilder batch = new TreeDiffBatchBuilder(builder)) {
+			batch.build(pairs.iterator(), ALGORITHM_NAME, ALGORITHM_VERSION, result -> {
+				try {
+					if (!result.isSuccess()) {
+						failed[0]++;
+						err.println("Error: " + result.pair + ": " + result.error);
+					} else if (lines != null) {
+						gson.toJson(result.treeDiff, lines);
+						lines.write('\n');
+					} else {
+						Path file = output.toPath().resolve(relativePaths.get((int) result.index) + ".json");
+						Files.createDirectories(file.getParent());
+						Files.write(file, gson.toJson(result.treeDiff).getBytes(StandardCharsets.UTF_8));
+					}
+				} catch (IOException e) {
+					failed[0]++;
+					err.println("Error: " + result.pair + ": " + e);
+				}
+			});
+		}
+		if (lines != null) {
+			lines.flush();
+		}
+		return (failed[0] == 0) ? EXIT_OK : EXIT_FAILED;
+	}
+
+	/**
+	 * @return the relative paths of the Java files of a directory, sorted
+	 */
+	private static List<Path> javaFiles(Path directory) throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			return files.filter(p -> p.toString().endsWith(".java") && Files.isRegularFile(p))
+					.map(directory::relativize).sorted().collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Runs a daemon until the process is stopped.
+	 */
+	static int serve(TreeDiffFormatBuilder builder, int port, PrintStream err)
+			throws IOException, InterruptedException {
+		TreeDiffDaemon daemon = new TreeDiffDaemon(builder, port, ALGORITHM_NAME, ALGORITHM_VERSION);
+		CountDownLatch stopped = new CountDownLatch(1);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				daemon.close();
+			} catch (IOException e) {
+				// stopping anyway
+			}
+			stopped.countDown();
+		}));
+		daemon.warmUp(20);
+		err.println("Listening on " + daemon.getPort() + ", token in " + daemon.getTokenFile());
+		stopped.await();
+		return EXIT_OK;
+	}
+
+}
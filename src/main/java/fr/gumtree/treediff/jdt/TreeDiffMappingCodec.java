@@ -0,0 +1,332 @@
+package fr.gumtree.treediff.jdt;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.github.gumtreediff.matchers.Mapping;
+import com.github.gumtreediff.matchers.MappingStore;
+import com.github.gumtreediff.tree.Tree;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+/**
+ * Encodes the mappings of a diff in a compact form, and decodes them.
+ *
+ * The nodes are identified by their pre-order index in their tree (see
+ * {@link TreeNodeTable}), and the mappings, sorted by the index of the left
+ * node, are grouped in runs of nodes mapped one-to-one: "runs" is a flat array
+ * of triples (left index, right index, length), where the run maps left node
+ * {@code left + k} to right node {@code right + k} for each {@code k <
+ * length}. An unchanged region of the file is then a single run.
+ *
+ * Optionally, the mappings implied by the structure of the trees are left out
+ * ("isomorphic-omitted" is true): a node whose subtree is isomorphic to the
+ * subtree of its mapped node, mapped node by node, whose parent is mapped to
+ * the parent of the mapped node, at the same position. The decoder restores
+ * them by mapping, under each mapped pair of nodes, the unmapped children at
+ * the same position whose subtrees are isomorphic. The encoder checks that
+ * decoding restores exactly the mappings, and that leaving them out saves
+ * runs; otherwise nothing is left out.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffMappingCodec {
+
+	protected final boolean omitIsomorphic;
+
+	public TreeDiffMappingCodec() {
+		this(false);
+	}
+
+	/**
+	 *
+	 * @param omitIsomorphic true to leave out the mappings implied by isomorphic
+	 *                       subtrees
+	 */
+	public TreeDiffMappingCodec(boolean omitIsomorphic) {
+		super();
+		this.omitIsomorphic = omitIsomorphic;
+	}
+
+	/**
+	 * The structure of a tree in pre-order, as arrays.
+	 */
+	protected static class Structure {
+		final TreeNodeTable table;
+		final int[] sizes;
+		final int[] positions;
+
+		Structure(TreeNodeTable table) {
+			this.table = table;
+			int n = table.size();
+			this.sizes = new int[n];
+			this.positions = new int[n];
+			Arrays.fill(sizes, 1);
+			int[] childCounts = new int[n];
+			for (int i = 1; i < n; i++) {
+				positions[i] = childCounts[table.parentOf(i)]++;
+			}
+			for (int i = n - 1; i > 0; i--) {
+				sizes[table.parentOf(i)] += sizes[i];
+			}
+		}
+
+		int childAt(int id, int position) {
+			List<Tree> children = table.get(id).getChildren();
+			if (position >= children.size()) {
+				return -1;
+			}
+			// the children follow their parent in pre-order
+			int child = id + 1;
+			for (int i = 0; i < position; i++) {
+				child += sizes[child];
+			}
+			return child;
+		}
+	}
+
+	/**
+	 *
+	 * @param mappings
+	 * @param before   the nodes of the left tree
+	 * @param after    the nodes of the right tree
+	 * @return the json of the mappings
+	 */
+	public JsonObject encode(MappingStore mappings, TreeNodeTable before, TreeNodeTable after) {
+		int[] dstOf = new int[before.size()];
+		Arrays.fill(dstOf, -1);
+		for (Mapping mapping : mappings.asSet()) {
+			dstOf[before.idOf(mapping.first)] = after.idOf(mapping.second);
+		}
+
+		JsonArray runs = runs(dstOf, null);
+		boolean omitted = false;
+		if (omitIsomorphic && dstOf.length > 0) {
+			Structure left = new Structure(before);
+			Structure right = new Structure(after);
+			boolean[] implied = implied(dstOf, left, right);
+
+			int[] written = new int[dstOf.length];
+			JsonArray impliedRuns = runs(dstOf, implied, written);
+			restoreIsomorphic(written, left, right);
+			if (impliedRuns.size() < runs.size() && Arrays.equals(written, dstOf)) {
+				runs = impliedRuns;
+				omitted = true;
+			}
+		}
+
+		JsonObject mappingJson = new JsonObject();
+		mappingJson.add("runs", runs);
+		if (omitted) {
+			mappingJson.addProperty("isomorphic-omitted", true);
+		}
+		return mappingJson;
+	}
+
+	private static JsonArray runs(int[] dstOf, boolean[] implied) {
+		return runs(dstOf, implied, new int[dstOf.length]);
+	}
+
+	/**
+	 * Groups the mappings in runs. An implied mapping is left out, unless it
+	 * continues the current run (it is then written for free).
+	 *
+	 * @param written receives the mappings written, -1 for the others
+	 */
+	private static JsonArray runs(int[] dstOf, boolean[] implied, int[] written) {
+		Arrays.fill(written, -1);
+		JsonArray runs = new JsonArray();
+		int runSrc = -1;
+		int runDst = -1;
+		int runLength = 0;
+		for (int i = 0; i < dstOf.length; i++) {
+			if (dstOf[i] < 0) {
+				continue;
+			}
+			boolean continues = runLength > 0 && i == runSrc + runLength && dstOf[i] == runDst + runLength;
+			if (continues) {
+				runLength++;
+			} else if (implied != null && implied[i]) {
+				continue;
+			} else {
+				if (runLength > 0) {
+					addRun(runs, runSrc, runDst, runLength);
+				}
+				runSrc = i;
+				runDst = dstOf[i];
+				runLength = 1;
+			}
+			written[i] = dstOf[i];
+		}
+		if (runLength > 0) {
+			addRun(runs, runSrc, runDst, runLength);
+		}
+		return runs;
+	}
+
+	private static void addRun(JsonArray runs, int src, int dst, int length) {
+		runs.add(src);
+		runs.add(dst);
+		runs.add(length);
+	}
+
+	/**
+	 * Finds the mappings that the decoder restores: the nodes whose subtree is
+	 * mapped node by node to an isomorphic subtree, at the same position under
+	 * mapped parents.
+	 */
+	private static boolean[] implied(int[] dstOf, Structure left, Structure right) {
+		int n = dstOf.length;
+		// the subtree is mapped node by node to an isomorphic subtree
+		boolean[] exact = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			int j = dstOf[i];
+			exact[i] = j >= 0 && left.sizes[i] == right.sizes[j] && sameNode(left.table.get(i), right.table.get(j));
+		}
+		for (int i = n - 1; i > 0; i--) {
+			int p = left.table.parentOf(i);
+			if (!exact[i] || dstOf[p] < 0 || dstOf[i] - dstOf[p] != i - p
+					|| right.table.parentOf(dstOf[i]) != dstOf[p]) {
+				exact[p] = false;
+			}
+		}
+
+		boolean[] implied = new boolean[n];
+		for (int i = 1; i < n; i++) {
+			int p = left.table.parentOf(i);
+			int j = dstOf[i];
+			implied[i] = exact[i] && dstOf[p] >= 0 && right.table.parentOf(j) == dstOf[p]
+					&& left.positions[i] == right.positions[j];
+		}
+		return implied;
+	}
+
+	/**
+	 * Maps, under each mapped pair of nodes, the unmapped children at the same
+	 * position whose subtrees are isomorphic (and their descendants).
+	 */
+	private static void restoreIsomorphic(int[] dstOf, Structure left, Structure right) {
+		boolean[] dstMapped = new boolean[right.table.size()];
+		for (int j : dstOf) {
+			if (j >= 0) {
+				dstMapped[j] = true;
+			}
+		}
+		// in pre-order, a parent is restored before its children
+		for (int i = 1; i < dstOf.length; i++) {
+			int q = dstOf[left.table.parentOf(i)];
+			if (dstOf[i] >= 0 || q < 0) {
+				continue;
+			}
+			int j = right.childAt(q, left.positions[i]);
+			if (j < 0 || dstMapped[j] || !isomorphic(i, j, left, right) || isPartlyMapped(i, j, dstOf, dstMapped,
+					left.sizes[i])) {
+				continue;
+			}
+			for (int k = 0; k < left.sizes[i]; k++) {
+				dstOf[i + k] = j + k;
+				dstMapped[j + k] = true;
+			}
+		}
+	}
+
+	private static boolean isPartlyMapped(int i, int j, int[] dstOf, boolean[] dstMapped, int size) {
+		for (int k = 0; k < size; k++) {
+			if (dstOf[i + k] >= 0 || dstMapped[j + k]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isomorphic(int i, int j, Structure left, Structure right) {
+		if (left.sizes[i] != right.sizes[j]) {
+			return false;
+		}
+		for (int k = 0; k < left.sizes[i]; k++) {
+			if (!sameNode(left.table.get(i + k), right.table.get(j + k))) {
+				return false;
+			}
+			if (k > 0 && left.table.parentOf(i + k) - i != right.table.parentOf(j + k) - j) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean sameNode(Tree left, Tree right) {
+		return left.getType() == right.getType() && left.getLabel().equals(right.getLabel());
+	}
+
+	/**
+	 * Decodes the mappings.
+	 *
+	 * @param mappingJson the json created by
+	 *                    {@link #encode(MappingStore, TreeNodeTable, TreeNodeTable)}
+	 * @param before      the nodes of the left tree
+	 * @param after       the nodes of the right tree
+	 * @return for each left node (by index), the index of its mapped right node,
+	 *         or -1
+	 * @throws JsonParseException if the runs are not triples, or map nodes that
+	 *                            are not in the trees
+	 */
+	public int[] decode(JsonElement mappingJson, TreeNodeTable before, TreeNodeTable after) {
+		JsonObject mappingObject = mappingJson.getAsJsonObject();
+		JsonElement runsJson = mappingObject.get("runs");
+		if (runsJson == null || !runsJson.isJsonArray()) {
+			throw new JsonParseException("The mappings have no runs");
+		}
+		JsonArray runs = runsJson.getAsJsonArray();
+		if (runs.size() % 3 != 0) {
+			throw new JsonParseException("The runs of the mappings are not triples: " + runs.size() + " numbers");
+		}
+
+		int[] dstOf = new int[before.size()];
+		Arrays.fill(dstOf, -1);
+		for (int r = 0; r < runs.size(); r += 3) {
+			int src = runs.get(r).getAsInt();
+			int dst = runs.get(r + 1).getAsInt();
+			int length = runs.get(r + 2).getAsInt();
+			if (src < 0 || dst < 0 || length < 0 || (long) src + length > before.size()
+					|| (long) dst + length > after.size()) {
+				throw new JsonParseException("The run (" + src + ", " + dst + ", " + length + ") maps nodes out of the "
+						+ before.size() + " left nodes and " + after.size() + " right nodes");
+			}
+			for (int k = 0; k < length; k++) {
+				dstOf[src + k] = dst + k;
+			}
+		}
+
+		if (mappingObject.has("isomorphic-omitted") && mappingObject.get("isomorphic-omitted").getAsBoolean()
+				&& dstOf.length > 0) {
+			restoreIsomorphic(dstOf, new Structure(before), new Structure(after));
+		}
+		return dstOf;
+	}
+
+	/**
+	 * Decodes the mappings between two trees.
+	 *
+	 * @param mappingJson
+	 * @param src         the left tree
+	 * @param dst         the right tree
+	 * @return
+	 */
+	public MappingStore decode(JsonElement mappingJson, Tree src, Tree dst) {
+		TreeNodeTable before = new TreeNodeTable(src);
+		TreeNodeTable after = new TreeNodeTable(dst);
+		int[] dstOf = decode(mappingJson, before, after);
+
+		MappingStore mappings = new MappingStore(src, dst);
+		for (int i = 0; i < dstOf.length; i++) {
+			if (dstOf[i] >= 0) {
+				mappings.addMapping(before.get(i), after.get(dstOf[i]));
+			}
+		}
+		return mappings;
+	}
+
+}
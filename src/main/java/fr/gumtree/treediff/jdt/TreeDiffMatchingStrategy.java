@@ -0,0 +1,239 @@
+package fr.gumtree.treediff.jdt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.github.gumtreediff.actions.EditScriptGenerator;
+import com.github.gumtreediff.actions.SimplifiedChawatheScriptGenerator;
+import com.github.gumtreediff.matchers.CompositeMatchers;
+import com.github.gumtreediff.matchers.MappingStore;
+import com.github.gumtreediff.matchers.Matcher;
+import com.github.gumtreediff.tree.Tree;
+
+/**
+ * Chooses the matcher of a diff from the size of the trees, and bounds the time
+ * of the diff.
+ *
+ * The full matcher ({@link CompositeMatchers.SimpleGumtree} by default) is used
+ * when both trees have at most {@code largeTreeThreshold} nodes, otherwise the
+ * cheaper one ({@link CompositeMatchers.XyMatcher} by default, whose bottom-up
+ * phase is much faster on large trees).
+ *
+ * The time budget starts with the parsing of the files. A composite matcher is
+ * run phase by phase, and the budget is checked before each phase after the
+ * first one and before the generation of the edit script, but not during a
+ * phase, which can not be interrupted: a diff can exceed its budget by the
+ * time of the phase running at the deadline. When the budget is exceeded, the
+ * diff is either cancelled with a {@link TreeDiffTimeoutException}, or
+ * degraded: the remaining phases are the ones of the cheaper matcher (if it
+ * starts with the same phases than the ones already run), or they are
+ * skipped. A degraded diff is flagged in the "tool-info".
+ *
+ * The default strategy always uses the full matcher, without time budget.
+ *
+ * The matchers and the edit script generators keep the state of the diff
+ * they run (its trees and mappings), so one of each is created for each diff,
+ * and is dropped with it. A strategy can thus be used from several threads,
+ * and the factory methods only have to return a new instance each time they
+ * are called.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffMatchingStrategy {
+
+	public enum OnTimeout {
+		/** finishes the diff with the cheaper matcher */
+		DEGRADE,
+		/** throws a TreeDiffTimeoutException */
+		CANCEL
+	}
+
+	/**
+	 * The mappings computed by the strategy, and the matcher that computed them.
+	 */
+	public static class Matching {
+
+		final MappingStore mappings;
+		final String matcherName;
+		final boolean degraded;
+
+		Matching(MappingStore mappings, String matcherName, boolean degraded) {
+			this.mappings = mappings;
+			this.matcherName = matcherName;
+			this.degraded = degraded;
+		}
+
+		public MappingStore getMappings() {
+			return mappings;
+		}
+
+		/**
+		 *
+		 * @return the class name of the matcher that ran, or the class names of its
+		 *         phases separated by "+" when only some phases ran
+		 */
+		public String getMatcherName() {
+			return matcherName;
+		}
+
+		/**
+		 *
+		 * @return true if the time budget was exceeded and the matching was finished
+		 *         with a cheaper matcher
+		 */
+		public boolean isDegraded() {
+			return degraded;
+		}
+	}
+
+	protected final int largeTreeThreshold;
+
+	protected final long timeBudgetNanos;
+
+	protected final OnTimeout onTimeout;
+
+	public TreeDiffMatchingStrategy() {
+		this(Integer.MAX_VALUE, 0, OnTimeout.DEGRADE);
+	}
+
+	/**
+	 *
+	 * @param largeTreeThreshold the number of nodes of a tree above which the
+	 *                           cheaper matcher is used
+	 * @param timeBudgetMillis   the time budget of each diff, or 0 for no budget,
+	 *                           checked between the phases
+	 * @param onTimeout          what to do when the budget is exceeded
+	 */
+	public TreeDiffMatchingStrategy(int largeTreeThreshold, long timeBudgetMillis, OnTimeout onTimeout) {
+		super();
+		this.largeTreeThreshold = largeTreeThreshold;
+		this.timeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis);
+		this.onTimeout = onTimeout;
+	}
+
+	public int getLargeTreeThreshold() {
+		return largeTreeThreshold;
+	}
+
+	public long getTimeBudgetMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(timeBudgetNanos);
+	}
+
+	public OnTimeout getOnTimeout() {
+		return onTimeout;
+	}
+
+	protected Matcher createFullMatcher() {
+		return new CompositeMatchers.SimpleGumtree();
+	}
+
+	protected Matcher createCheapMatcher() {
+		return new CompositeMatchers.XyMatcher();
+	}
+
+	public EditScriptGenerator createGenerator() {
+		return new SimplifiedChawatheScriptGenerator();
+	}
+
+	/**
+	 *
+	 * @param startNanos the value of {@link System#nanoTime()} when the diff
+	 *                   started
+	 * @return the value of {@link System#nanoTime()} when the budget expires, or
+	 *         {@link Long#MAX_VALUE} if there is no budget
+	 */
+	public long deadline(long startNanos) {
+		return (timeBudgetNanos > 0) ? startNanos + timeBudgetNanos : Long.MAX_VALUE;
+	}
+
+	protected boolean isExpired(long deadline) {
+		return deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0;
+	}
+
+	/**
+	 * Cancels the diff if the budget is exceeded and the strategy cancels.
+	 *
+	 * @param deadline
+	 * @param phase    the name of the next phase, for the message
+	 * @throws TreeDiffTimeoutException
+	 */
+	public void checkDeadline(long deadline, String phase) throws TreeDiffTimeoutException {
+		if (onTimeout == OnTimeout.CANCEL && isExpired(deadline)) {
+			throw new TreeDiffTimeoutException("Time budget of " + getTimeBudgetMillis() + " ms exceeded before "
+					+ phase);
+		}
+	}
+
+	/**
+	 * Matches the trees with the matcher chosen from their size, within the
+	 * deadline.
+	 *
+	 * @param left
+	 * @param right
+	 * @param deadline see {@link #deadline(long)}
+	 * @return
+	 * @throws TreeDiffTimeoutException if the budget is exceeded and the strategy
+	 *                                  cancels
+	 */
+	public Matching match(Tree left, Tree right, long deadline) throws TreeDiffTimeoutException {
+		int nodes = Math.max(left.getMetrics().size, right.getMetrics().size);
+		boolean large = nodes > largeTreeThreshold;
+		Matcher matcher = (large) ? createCheapMatcher() : createFullMatcher();
+
+		List<Matcher> phases = phasesOf(matcher);
+		MappingStore mappings = new MappingStore(left, right);
+		for (int done = 0; done < phases.size(); done++) {
+			if (done > 0 && isExpired(deadline)) {
+				checkDeadline(deadline, "the matching phase " + phases.get(done).getClass().getName());
+				return degrade(left, right, mappings, phases.subList(0, done), large);
+			}
+			mappings = phases.get(done).match(left, right, mappings);
+		}
+		return new Matching(mappings, matcher.getClass().getName(), false);
+	}
+
+	/**
+	 * Finishes the matching with the phases of the cheaper matcher, if it starts
+	 * with the phases already run, otherwise stops.
+	 */
+	private Matching degrade(Tree left, Tree right, MappingStore mappings, List<Matcher> done, boolean cheap) {
+		if (!cheap) {
+			Matcher cheapMatcher = createCheapMatcher();
+			List<Matcher> cheapPhases = phasesOf(cheapMatcher);
+			if (startsWith(cheapPhases, done)) {
+				for (Matcher phase : cheapPhases.subList(done.size(), cheapPhases.size())) {
+					mappings = phase.match(left, right, mappings);
+				}
+				return new Matching(mappings, cheapMatcher.getClass().getName(), true);
+			}
+		}
+		StringBuilder name = new StringBuilder();
+		for (Matcher phase : done) {
+			name.append((name.length() > 0) ? "+" : "").append(phase.getClass().getName());
+		}
+		return new Matching(mappings, name.toString(), true);
+	}
+
+	private static boolean startsWith(List<Matcher> phases, List<Matcher> prefix) {
+		if (phases.size() < prefix.size()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.size(); i++) {
+			if (phases.get(i).getClass() != prefix.get(i).getClass()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static List<Matcher> phasesOf(Matcher matcher) {
+		if (matcher instanceof CompositeMatchers.CompositeMatcher) {
+			return new ArrayList<>(((CompositeMatchers.CompositeMatcher) matcher).matchers());
+		}
+		return Collections.singletonList(matcher);
+	}
+
+}
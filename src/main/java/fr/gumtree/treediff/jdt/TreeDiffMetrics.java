@@ -0,0 +1,204 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+import com.github.gumtreediff.actions.Diff;
+import com.google.gson.JsonObject;
+
+/**
+ * The measures of one diff computed by {@link TreeDiffFormatBuilder}: the wall
+ * time of each phase, the size of the trees, of the edit script and of the
+ * mappings, and the size of the output when it is written.
+ *
+ * The measures are only taken when a {@link TreeDiffMetricsListener} is
+ * registered in the builder, or when the stats are stored in the "tool-info".
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffMetrics {
+
+	public enum Phase {
+		PARSE("parse-ns"), MATCH("match-ns"), EDIT_SCRIPT("edit-script-ns"), SERIALIZE("serialize-ns");
+
+		private final String jsonName;
+
+		Phase(String jsonName) {
+			this.jsonName = jsonName;
+		}
+
+		public String getJsonName() {
+			return jsonName;
+		}
+	}
+
+	/** Value of the measures that were not taken. */
+	public static final long UNKNOWN = -1;
+
+	protected final String pathLeft;
+	protected final String pathRight;
+
+	protected final long[] nanos = new long[Phase.values().length];
+
+	protected long nodesLeft = UNKNOWN;
+	protected long nodesRight = UNKNOWN;
+	protected long actions = UNKNOWN;
+	protected long mappings = UNKNOWN;
+	protected long outputBytes = UNKNOWN;
+
+	public TreeDiffMetrics(String pathLeft, String pathRight) {
+		super();
+		this.pathLeft = pathLeft;
+		this.pathRight = pathRight;
+		Arrays.fill(nanos, UNKNOWN);
+	}
+
+	/**
+	 * Records the wall time of a phase. A phase recorded twice accumulates its
+	 * time (e.g., the parsing of both files).
+	 *
+	 * @param phase
+	 * @param elapsedNanos
+	 */
+	public void record(Phase phase, long elapsedNanos) {
+		int index = phase.ordinal();
+		nanos[index] = (nanos[index] == UNKNOWN) ? elapsedNanos : nanos[index] + elapsedNanos;
+	}
+
+	/**
+	 * Records the sizes of the trees, of the edit script and of the mappings.
+	 *
+	 * @param diff
+	 */
+	public void record(Diff diff) {
+		if (diff.src != null) {
+			nodesLeft = diff.src.getRoot().getMetrics().size;
+		}
+		if (diff.dst != null) {
+			nodesRight = diff.dst.getRoot().getMetrics().size;
+		}
+		actions = diff.editScript.size();
+		mappings = diff.mappings.size();
+	}
+
+	public void setOutputBytes(long outputBytes) {
+		this.outputBytes = outputBytes;
+	}
+
+	public String getPathLeft() {
+		return pathLeft;
+	}
+
+	public String getPathRight() {
+		return pathRight;
+	}
+
+	/**
+	 *
+	 * @param phase
+	 * @return the wall time of the phase in nanoseconds, or {@link #UNKNOWN}
+	 */
+	public long getNanos(Phase phase) {
+		return nanos[phase.ordinal()];
+	}
+
+	public long getNodesLeft() {
+		return nodesLeft;
+	}
+
+	public long getNodesRight() {
+		return nodesRight;
+	}
+
+	public long getActions() {
+		return actions;
+	}
+
+	public long getMappings() {
+		return mappings;
+	}
+
+	/**
+	 *
+	 * @return the size of the output encoded in UTF-8, or {@link #UNKNOWN} when the
+	 *         TreeDiff is built in memory
+	 */
+	public long getOutputBytes() {
+		return outputBytes;
+	}
+
+	/**
+	 * Creates the Json of the measures taken, e.g., the "stats" of the
+	 * "tool-info". The paths of the files are not included.
+	 *
+	 * @return
+	 */
+	public JsonObject toJson() {
+		JsonObject stats = new JsonObject();
+		for (Phase phase : Phase.values()) {
+			addIfKnown(stats, phase.getJsonName(), nanos[phase.ordinal()]);
+		}
+		addIfKnown(stats, "nodes-left", nodesLeft);
+		addIfKnown(stats, "nodes-right", nodesRight);
+		addIfKnown(stats, "actions", actions);
+		addIfKnown(stats, "mappings", mappings);
+		addIfKnown(stats, "output-bytes", outputBytes);
+		return stats;
+	}
+
+	private static void addIfKnown(JsonObject stats, String name, long value) {
+		if (value != UNKNOWN) {
+			stats.addProperty(name, value);
+		}
+	}
+
+	/**
+	 * Counts the bytes of the characters written, encoded in UTF-8.
+	 */
+	static class CountingWriter extends FilterWriter {
+
+		long bytes = 0;
+
+		CountingWriter(Writer out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int c) throws IOException {
+			out.write(c);
+			bytes += utf8Length((char) c);
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			out.write(cbuf, off, len);
+			for (int i = off; i < off + len; i++) {
+				bytes += utf8Length(cbuf[i]);
+			}
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			out.write(str, off, len);
+			for (int i = off; i < off + len; i++) {
+				bytes += utf8Length(str.charAt(i));
+			}
+		}
+
+		/**
+		 * A surrogate pair is encoded in 4 bytes, so each surrogate counts 2.
+		 */
+		private static int utf8Length(char c) {
+			if (c < 0x80) {
+				return 1;
+			} else if (c < 0x800 || Character.isSurrogate(c)) {
+				return 2;
+			}
+			return 3;
+		}
+	}
+
+}
@@ -0,0 +1,77 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Map.Entry;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Writes the measures of each diff as one line of Json (JSON-lines), with the
+ * paths of both files, e.g.:
+ *
+ * <pre>
+ * {"left":"A.java","right":"B.java","parse-ns":1200,...,"actions":3}
+ * </pre>
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffMetricsJsonLinesWriter implements TreeDiffMetricsListener, Flushable, Closeable {
+
+	protected final Writer out;
+
+	protected final Gson gson = new Gson();
+
+	/**
+	 *
+	 * @param out the destination of the lines, which is closed by
+	 *            {@link #close()}
+	 */
+	public TreeDiffMetricsJsonLinesWriter(Writer out) {
+		super();
+		this.out = out;
+	}
+
+	/**
+	 * @throws UncheckedIOException if the line cannot be written
+	 */
+	@Override
+	public void onDiff(TreeDiffMetrics metrics) {
+		JsonObject line = new JsonObject();
+		line.addProperty("left", metrics.getPathLeft());
+		line.addProperty("right", metrics.getPathRight());
+		for (Entry<String, JsonElement> measure : metrics.toJson().entrySet()) {
+			line.add(measure.getKey(), measure.getValue());
+		}
+		String text = gson.toJson(line);
+		synchronized (out) {
+			try {
+				out.write(text);
+				out.write('\n');
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		synchronized (out) {
+			out.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (out) {
+			out.close();
+		}
+	}
+
+}
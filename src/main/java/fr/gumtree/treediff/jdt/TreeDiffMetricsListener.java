@@ -0,0 +1,20 @@
+package fr.gumtree.treediff.jdt;
+
+/**
+ * Receives the measures of each diff computed by a
+ * {@link TreeDiffFormatBuilder}. A listener registered in a builder used by
+ * several threads (e.g., by {@link TreeDiffBatchBuilder}) must be thread-safe.
+ *
+ * @author Matias Martinez
+ *
+ */
+public interface TreeDiffMetricsListener {
+
+	/**
+	 * Called once the TreeDiff of a diff is built or written.
+	 *
+	 * @param metrics the measures of the diff
+	 */
+	void onDiff(TreeDiffMetrics metrics);
+
+}
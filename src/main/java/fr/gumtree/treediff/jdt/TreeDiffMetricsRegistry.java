@@ -0,0 +1,184 @@
+package fr.gumtree.treediff.jdt;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+
+import fr.gumtree.treediff.jdt.TreeDiffMetrics.Phase;
+
+/**
+ * Keeps in memory a histogram of each measure of the diffs (time of each
+ * phase, sizes), to obtain counts, means and percentiles.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffMetricsRegistry implements TreeDiffMetricsListener {
+
+	protected final Map<String, Histogram> histograms = new LinkedHashMap<>();
+
+	public TreeDiffMetricsRegistry() {
+		super();
+		for (Phase phase : Phase.values()) {
+			histograms.put(phase.getJsonName(), new Histogram());
+		}
+		for (String name : new String[] { "nodes-left", "nodes-right", "actions", "mappings", "output-bytes" }) {
+			histograms.put(name, new Histogram());
+		}
+	}
+
+	@Override
+	public void onDiff(TreeDiffMetrics metrics) {
+		for (Phase phase : Phase.values()) {
+			record(phase.getJsonName(), metrics.getNanos(phase));
+		}
+		record("nodes-left", metrics.getNodesLeft());
+		record("nodes-right", metrics.getNodesRight());
+		record("actions", metrics.getActions());
+		record("mappings", metrics.getMappings());
+		record("output-bytes", metrics.getOutputBytes());
+	}
+
+	private void record(String name, long value) {
+		if (value != TreeDiffMetrics.UNKNOWN) {
+			histograms.get(name).record(value);
+		}
+	}
+
+	/**
+	 *
+	 * @param phase
+	 * @return the histogram of the time of the phase, in nanoseconds
+	 */
+	public Histogram getHistogram(Phase phase) {
+		return histograms.get(phase.getJsonName());
+	}
+
+	/**
+	 *
+	 * @param name the name of the measure in {@link TreeDiffMetrics#toJson()},
+	 *             e.g. "actions"
+	 * @return the histogram, or null if there is no such measure
+	 */
+	public Histogram getHistogram(String name) {
+		return histograms.get(name);
+	}
+
+	/**
+	 * Creates a summary of each histogram with values: count, min, mean, max and
+	 * percentiles 50, 90 and 99.
+	 *
+	 * @return
+	 */
+	public JsonObject toJson() {
+		JsonObject summary = new JsonObject();
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			Histogram histogram = entry.getValue();
+			synchronized (histogram) {
+				if (histogram.getCount() == 0) {
+					continue;
+				}
+				JsonObject values = new JsonObject();
+				values.addProperty("count", histogram.getCount());
+				values.addProperty("min", histogram.getMin());
+				values.addProperty("mean", histogram.getMean());
+				values.addProperty("max", histogram.getMax());
+				values.addProperty("p50", histogram.getValueAtPercentile(50));
+				values.addProperty("p90", histogram.getValueAtPercentile(90));
+				values.addProperty("p99", histogram.getValueAtPercentile(99));
+				summary.add(entry.getKey(), values);
+			}
+		}
+		return summary;
+	}
+
+	/**
+	 * A histogram of non-negative values with logarithmic buckets: each power of
+	 * two is divided in 16 buckets, so a percentile is estimated with an error
+	 * lower than 1/16 of the value. Count, min, max and mean are exact.
+	 */
+	public static class Histogram {
+
+		private static final int SUB_BUCKET_BITS = 4;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+		private final long[] counts = new long[SUB_BUCKETS * (64 - SUB_BUCKET_BITS + 1)];
+		private long count = 0;
+		private long sum = 0;
+		private long min = Long.MAX_VALUE;
+		private long max = Long.MIN_VALUE;
+
+		public synchronized void record(long value) {
+			if (value < 0) {
+				throw new IllegalArgumentException("Negative value: " + value);
+			}
+			counts[indexOf(value)]++;
+			count++;
+			sum += value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+
+		static int indexOf(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int shift = exponent - SUB_BUCKET_BITS;
+			int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+			return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+		}
+
+		/**
+		 * Returns the highest value of a bucket.
+		 */
+		static long highestValueOf(int index) {
+			if (index < SUB_BUCKETS) {
+				return index;
+			}
+			int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+			int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+			long lowest = (long) (SUB_BUCKETS + subBucket) << shift;
+			return lowest + (1L << shift) - 1;
+		}
+
+		public synchronized long getCount() {
+			return count;
+		}
+
+		public synchronized long getMin() {
+			return (count == 0) ? 0 : min;
+		}
+
+		public synchronized long getMax() {
+			return (count == 0) ? 0 : max;
+		}
+
+		public synchronized double getMean() {
+			return (count == 0) ? 0 : (double) sum / count;
+		}
+
+		/**
+		 *
+		 * @param percentile between 0 and 100
+		 * @return the highest value of the bucket that contains the percentile,
+		 *         bounded by the maximum value recorded
+		 */
+		public synchronized long getValueAtPercentile(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(highestValueOf(i), max);
+				}
+			}
+			return max;
+		}
+	}
+
+}
@@ -0,0 +1,105 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.Map;
+
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.ToolFactory;
+import org.eclipse.jdt.core.compiler.IScanner;
+import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.ASTParser;
+
+import com.github.gumtreediff.gen.SyntaxException;
+import com.github.gumtreediff.gen.jdt.AbstractJdtVisitor;
+import com.github.gumtreediff.gen.jdt.JdtTreeGenerator;
+import com.github.gumtreediff.tree.TreeContext;
+
+/**
+ * A {@link JdtTreeGenerator} that does not set up a parser per file: each
+ * thread reuses its {@link ASTParser} and its scanner, and the compiler options
+ * are computed once. The trees are the ones of {@link JdtTreeGenerator}.
+ *
+ * The parsers are shared by all the instances, so creating an instance costs
+ * nothing, and an instance can be used from several threads.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffParser extends JdtTreeGenerator {
+
+	/** the options of {@link JdtTreeGenerator}: Java 14, with the Javadoc */
+	private static final Map<String, String> COMPILER_OPTIONS = compilerOptions();
+
+	/** at the level of {@link JdtTreeGenerator}, deprecated by newer versions of JDT */
+	@SuppressWarnings("deprecation")
+	private static final ThreadLocal<ASTParser> PARSERS = ThreadLocal
+			.withInitial(() -> ASTParser.newParser(AST.JLS14));
+
+	private static final ThreadLocal<IScanner> SCANNERS = ThreadLocal
+			.withInitial(() -> ToolFactory.createScanner(false, false, false, false));
+
+	private static Map<String, String> compilerOptions() {
+		Map<String, String> options = JavaCore.getOptions();
+		options.put(JavaCore.COMPILER_COMPLIANCE, JavaCore.VERSION_14);
+		options.put(JavaCore.COMPILER_CODEGEN_TARGET_PLATFORM, JavaCore.VERSION_14);
+		options.put(JavaCore.COMPILER_SOURCE, JavaCore.VERSION_14);
+		options.put(JavaCore.COMPILER_DOC_COMMENT_SUPPORT, JavaCore.ENABLED);
+		return Collections.unmodifiableMap(options);
+	}
+
+	@Override
+	public TreeContext generate(Reader reader) throws IOException {
+		char[] source = read(reader);
+
+		// the scanner is reset by its source
+		IScanner scanner = SCANNERS.get();
+		scanner.setSource(source);
+
+		AbstractJdtVisitor visitor = createVisitor(scanner);
+		ASTNode node = createAST(source);
+		if ((node.getFlags() & ASTNode.MALFORMED) != 0) {
+			throw new SyntaxException(this, reader, null);
+		}
+		node.accept(visitor);
+		return visitor.getTreeContext();
+	}
+
+	/**
+	 * Checks if a source can be parsed, without creating its tree: its AST is
+	 * created, but not visited.
+	 *
+	 * @param source
+	 * @return true if {@link #generate(Reader)} throws a {@link SyntaxException}
+	 *         for the source
+	 */
+	public static boolean isMalformed(char[] source) {
+		return (createAST(source).getFlags() & ASTNode.MALFORMED) != 0;
+	}
+
+	private static ASTNode createAST(char[] source) {
+		// The parser goes back to its defaults after each AST (the options are
+		// copied).
+		ASTParser parser = PARSERS.get();
+		parser.setKind(ASTParser.K_COMPILATION_UNIT);
+		parser.setCompilerOptions(COMPILER_OPTIONS);
+		parser.setSource(source);
+		return parser.createAST(null);
+	}
+
+	private static char[] read(Reader reader) throws IOException {
+		StringBuilder content = new StringBuilder();
+		char[] buffer = new char[8192];
+		try (Reader input = reader) {
+			for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+				content.append(buffer, 0, read);
+			}
+		}
+		char[] source = new char[content.length()];
+		content.getChars(0, source.length, source, 0);
+		return source;
+	}
+
+}
@@ -0,0 +1,487 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.github.gumtreediff.actions.Diff;
+import com.github.gumtreediff.actions.EditScript;
+import com.github.gumtreediff.actions.EditScriptGenerator;
+import com.github.gumtreediff.actions.model.Action;
+import com.github.gumtreediff.actions.model.Move;
+import com.github.gumtreediff.actions.model.TreeDelete;
+import com.github.gumtreediff.actions.model.TreeInsert;
+import com.github.gumtreediff.actions.model.Update;
+import com.github.gumtreediff.matchers.Mapping;
+import com.github.gumtreediff.matchers.MappingStore;
+import com.github.gumtreediff.tree.Tree;
+import com.github.gumtreediff.tree.TreeContext;
+
+/**
+ * Computes the diff of two compilation units declaration by declaration.
+ *
+ * The children of the compilation units and of the type declarations (imports,
+ * types, fields, methods, ...) are paired: first the identical ones (same
+ * subtree hash), which are mapped without running any matcher, then the ones
+ * with the same signature (the name of a type, field or enum constant, the
+ * name and number of parameters of a method). The paired type declarations are
+ * partitioned in the same way, and only the other paired declarations that
+ * changed are diffed, in parallel, with the matcher chosen by the
+ * {@link TreeDiffMatchingStrategy}.
+ *
+ * The mappings and edit scripts of the declarations are merged into one diff
+ * of the complete trees (the positions of the nodes are those of the files, so
+ * they need no translation), together with the insertions and deletions of
+ * the declarations that are not paired, and the moves of the paired
+ * declarations that changed their order.
+ *
+ * A declaration moved to another type, or renamed, is deleted and inserted,
+ * while a full diff could detect the move or the update.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffPartitionedDiffer {
+
+	/** The types of the nodes whose children are partitioned. */
+	protected static final Set<String> CONTAINER_TYPES = new HashSet<>(Arrays.asList("CompilationUnit",
+			"TypeDeclaration", "EnumDeclaration", "AnnotationTypeDeclaration"));
+
+	/**
+	 * The diff computed by the partitioned differ, with the matchers that
+	 * computed it, and the counts of declarations.
+	 */
+	public static class Result {
+
+		final Diff diff;
+		final String matcherName;
+		final String generatorName;
+		final boolean degraded;
+		final int identical;
+		final int changed;
+		final int inserted;
+		final int deleted;
+
+		Result(Diff diff, String matcherName, String generatorName, boolean degraded, int identical, int changed,
+				int inserted, int deleted) {
+			this.diff = diff;
+			this.matcherName = matcherName;
+			this.generatorName = generatorName;
+			this.degraded = degraded;
+			this.identical = identical;
+			this.changed = changed;
+			this.inserted = inserted;
+			this.deleted = deleted;
+		}
+
+		public Diff getDiff() {
+			return diff;
+		}
+
+		/**
+		 *
+		 * @return the class names of the matchers that diffed the changed
+		 *         declarations, separated by ",", or the name of this class if no
+		 *         declaration changed
+		 */
+		public String getMatcherName() {
+			return matcherName;
+		}
+
+		public String getGeneratorName() {
+			return generatorName;
+		}
+
+		/**
+		 *
+		 * @return true if the matching of a declaration was degraded
+		 */
+		public boolean isDegraded() {
+			return degraded;
+		}
+
+		/**
+		 *
+		 * @return the number of paired declarations that are identical
+		 */
+		public int getIdentical() {
+			return identical;
+		}
+
+		/**
+		 *
+		 * @return the number of paired declarations that were diffed
+		 */
+		public int getChanged() {
+			return changed;
+		}
+
+		public int getInserted() {
+			return inserted;
+		}
+
+		public int getDeleted() {
+			return deleted;
+		}
+	}
+
+	/** The diff of one pair of changed declarations. */
+	private static class SubDiff {
+		final MappingStore mappings;
+		final EditScript actions;
+		final String matcherName;
+		final boolean degraded;
+
+		SubDiff(MappingStore mappings, EditScript actions, String matcherName, boolean degraded) {
+			this.mappings = mappings;
+			this.actions = actions;
+			this.matcherName = matcherName;
+			this.degraded = degraded;
+		}
+	}
+
+	protected final ExecutorService executor;
+
+	/**
+	 * Creates a differ that diffs the changed declarations in the common
+	 * fork-join pool.
+	 */
+	public TreeDiffPartitionedDiffer() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 *
+	 * @param executor the executor that diffs the changed declarations
+	 */
+	public TreeDiffPartitionedDiffer(ExecutorService executor) {
+		super();
+		this.executor = executor;
+	}
+
+	/**
+	 * Computes the diff between two trees.
+	 *
+	 * @param ctxL
+	 * @param ctxR
+	 * @param strategy chooses the matcher of each changed declaration
+	 * @param deadline see {@link TreeDiffMatchingStrategy#deadline(long)}
+	 * @return
+	 * @throws TreeDiffTimeoutException if the budget is exceeded and the strategy
+	 *                                  cancels
+	 */
+	public Result diff(TreeContext ctxL, TreeContext ctxR, TreeDiffMatchingStrategy strategy, long deadline)
+			throws IOException {
+		Tree left = ctxL.getRoot();
+		Tree right = ctxR.getRoot();
+
+		// The metrics are computed lazily from the root: they must be computed
+		// before the declarations are diffed in parallel
+		left.getMetrics();
+		right.getMetrics();
+
+		MappingStore mappings = new MappingStore(left, right);
+		List<Action> spine = new ArrayList<>();
+		List<Action> deletions = new ArrayList<>();
+		List<Tree[]> changed = new ArrayList<>();
+		int identical = 0;
+		int inserted = 0;
+
+		Deque<Tree[]> containers = new ArrayDeque<>();
+		if (isContainer(left) && left.getType() == right.getType()) {
+			containers.push(new Tree[] { left, right });
+		} else {
+			changed.add(new Tree[] { left, right });
+		}
+
+		while (!containers.isEmpty()) {
+			Tree[] container = containers.pop();
+			Tree l = container[0];
+			Tree r = container[1];
+			mappings.addMapping(l, r);
+			if (!l.getLabel().equals(r.getLabel())) {
+				spine.add(new Update(l, r.getLabel()));
+			}
+
+			int[] pairs = pairChildren(l.getChildren(), r.getChildren());
+			List<Tree> leftChildren = l.getChildren();
+			List<Tree> rightChildren = r.getChildren();
+			boolean[] leftPaired = new boolean[leftChildren.size()];
+			boolean[] inOrder = inOrder(pairs);
+
+			for (int i = 0; i < pairs.length; i++) {
+				Tree rc = rightChildren.get(i);
+				if (pairs[i] < 0) {
+					spine.add(new TreeInsert(rc, l, i));
+					inserted++;
+					continue;
+				}
+				Tree lc = leftChildren.get(pairs[i]);
+				leftPaired[pairs[i]] = true;
+				if (!inOrder[i]) {
+					spine.add(new Move(lc, l, i));
+				}
+				if (isIdentical(lc, rc)) {
+					mappings.addMappingRecursively(lc, rc);
+					identical++;
+				} else if (isContainer(lc)) {
+					containers.push(new Tree[] { lc, rc });
+				} else {
+					changed.add(new Tree[] { lc, rc });
+				}
+			}
+			for (int i = 0; i < leftChildren.size(); i++) {
+				if (!leftPaired[i]) {
+					deletions.add(new TreeDelete(leftChildren.get(i)));
+				}
+			}
+		}
+
+		List<SubDiff> subDiffs = diffAll(changed, strategy, deadline);
+
+		EditScript actions = new EditScript();
+		for (Action action : spine) {
+			actions.add(action);
+		}
+		Set<String> matcherNames = new LinkedHashSet<>();
+		boolean degraded = false;
+		for (SubDiff subDiff : subDiffs) {
+			for (Mapping mapping : subDiff.mappings) {
+				mappings.addMapping(mapping.first, mapping.second);
+			}
+			for (Action action : subDiff.actions) {
+				actions.add(action);
+			}
+			matcherNames.add(subDiff.matcherName);
+			degraded |= subDiff.degraded;
+		}
+		for (Action action : deletions) {
+			actions.add(action);
+		}
+
+		String matcherName = (matcherNames.isEmpty()) ? getClass().getName() : String.join(",", matcherNames);
+		return new Result(new Diff(ctxL, ctxR, mappings, actions), matcherName,
+				strategy.createGenerator().getClass().getName(), degraded, identical, changed.size(), inserted,
+				deletions.size());
+	}
+
+	/**
+	 * Diffs the pairs of changed declarations in the executor, keeping the order
+	 * of the pairs.
+	 */
+	private List<SubDiff> diffAll(List<Tree[]> changed, TreeDiffMatchingStrategy strategy, long deadline)
+			throws IOException {
+		if (changed.size() == 1) {
+			return Collections.singletonList(diff(changed.get(0)[0], changed.get(0)[1], strategy, deadline));
+		}
+		List<Future<SubDiff>> futures = new ArrayList<>(changed.size());
+		for (Tree[] pair : changed) {
+			futures.add(executor.submit(() -> {
+				try {
+					return diff(pair[0], pair[1], strategy, deadline);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}));
+		}
+		List<SubDiff> subDiffs = new ArrayList<>(changed.size());
+		try {
+			for (Future<SubDiff> future : futures) {
+				subDiffs.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			futures.forEach(f -> f.cancel(true));
+			throw new IOException("Interrupted while diffing the declarations", e);
+		} catch (ExecutionException e) {
+			futures.forEach(f -> f.cancel(true));
+			Throwable cause = e.getCause();
+			if (cause instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) cause).getCause();
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+		return subDiffs;
+	}
+
+	/**
+	 * Diffs two declarations. Both are detached from their parents while they are
+	 * diffed, so that the matchers and the generator see them as roots and never
+	 * reach the rest of the trees.
+	 */
+	private SubDiff diff(Tree left, Tree right, TreeDiffMatchingStrategy strategy, long deadline)
+			throws IOException {
+		Tree leftParent = left.getParent();
+		Tree rightParent = right.getParent();
+		left.setParent(null);
+		right.setParent(null);
+		try {
+			TreeDiffMatchingStrategy.Matching matching = strategy.match(left, right, deadline);
+			MappingStore mappings = matching.getMappings();
+			if (mappings.areBothUnmapped(left, right)) {
+				mappings.addMapping(left, right);
+			}
+			strategy.checkDeadline(deadline, "the edit script");
+			EditScriptGenerator generator = strategy.createGenerator();
+			EditScript actions = generator.computeActions(mappings);
+			return new SubDiff(mappings, actions, matching.getMatcherName(), matching.isDegraded());
+		} finally {
+			left.setParent(leftParent);
+			right.setParent(rightParent);
+		}
+	}
+
+	/**
+	 * Pairs the children of two paired nodes: first the identical ones, then the
+	 * ones with the same signature, in order.
+	 *
+	 * @return for each right child, the index of the paired left child, or -1
+	 */
+	protected int[] pairChildren(List<Tree> leftChildren, List<Tree> rightChildren) {
+		int[] pairs = new int[rightChildren.size()];
+		Arrays.fill(pairs, -1);
+		boolean[] leftPaired = new boolean[leftChildren.size()];
+
+		Map<Integer, Deque<Integer>> byHash = new HashMap<>();
+		for (int i = 0; i < leftChildren.size(); i++) {
+			byHash.computeIfAbsent(leftChildren.get(i).getMetrics().hash, k -> new ArrayDeque<>()).add(i);
+		}
+		for (int i = 0; i < rightChildren.size(); i++) {
+			Deque<Integer> candidates = byHash.get(rightChildren.get(i).getMetrics().hash);
+			if (candidates == null) {
+				continue;
+			}
+			for (Integer candidate : candidates) {
+				if (isIdentical(leftChildren.get(candidate), rightChildren.get(i))) {
+					candidates.remove(candidate);
+					pairs[i] = candidate;
+					leftPaired[candidate] = true;
+					break;
+				}
+			}
+		}
+
+		Map<String, Deque<Integer>> bySignature = new HashMap<>();
+		for (int i = 0; i < leftChildren.size(); i++) {
+			if (!leftPaired[i]) {
+				bySignature.computeIfAbsent(signatureOf(leftChildren.get(i)), k -> new ArrayDeque<>()).add(i);
+			}
+		}
+		for (int i = 0; i < rightChildren.size(); i++) {
+			if (pairs[i] < 0) {
+				Deque<Integer> candidates = bySignature.get(signatureOf(rightChildren.get(i)));
+				if (candidates != null && !candidates.isEmpty()) {
+					pairs[i] = candidates.poll();
+				}
+			}
+		}
+		return pairs;
+	}
+
+	/**
+	 * Returns the signature of a declaration: its type followed by its name (and
+	 * the number of parameters of a method). Nodes without name have only their
+	 * type as signature, so they are paired in order.
+	 *
+	 * @param node
+	 * @return
+	 */
+	protected String signatureOf(Tree node) {
+		String type = node.getType().name;
+		StringBuilder signature = new StringBuilder(type);
+		if (type.equals("FieldDeclaration")) {
+			for (Tree child : node.getChildren()) {
+				if (child.getType().name.equals("VariableDeclarationFragment")) {
+					signature.append(':').append(nameOf(child));
+				}
+			}
+		} else if (type.equals("MethodDeclaration")) {
+			int parameters = 0;
+			for (Tree child : node.getChildren()) {
+				if (child.getType().name.equals("SingleVariableDeclaration")) {
+					parameters++;
+				}
+			}
+			signature.append(':').append(nameOf(node)).append('/').append(parameters);
+		} else if (isContainer(node) || type.equals("EnumConstantDeclaration")
+				|| type.equals("AnnotationTypeMemberDeclaration")) {
+			signature.append(':').append(nameOf(node));
+		}
+		return signature.toString();
+	}
+
+	private static String nameOf(Tree node) {
+		for (Tree child : node.getChildren()) {
+			if (child.getType().name.equals("SimpleName")) {
+				return child.getLabel();
+			}
+		}
+		return "";
+	}
+
+	protected boolean isContainer(Tree node) {
+		return CONTAINER_TYPES.contains(node.getType().name);
+	}
+
+	private static boolean isIdentical(Tree left, Tree right) {
+		return left.getMetrics().hash == right.getMetrics().hash && left.isIsomorphicTo(right);
+	}
+
+	/**
+	 * Finds the paired children that keep their relative order: the longest
+	 * increasing subsequence of the indexes of the left children. The other ones
+	 * are moved.
+	 *
+	 * @param pairs see {@link #pairChildren(List, List)}
+	 * @return for each right child, true if it is paired and keeps its order
+	 */
+	private static boolean[] inOrder(int[] pairs) {
+		int[] tails = new int[pairs.length];
+		int[] previous = new int[pairs.length];
+		int length = 0;
+		for (int i = 0; i < pairs.length; i++) {
+			if (pairs[i] < 0) {
+				continue;
+			}
+			int low = 0;
+			int high = length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (pairs[tails[middle]] < pairs[i]) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			previous[i] = (low > 0) ? tails[low - 1] : -1;
+			tails[low] = i;
+			if (low == length) {
+				length++;
+			}
+		}
+		boolean[] inOrder = new boolean[pairs.length];
+		for (int i = (length > 0) ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+			inOrder[i] = true;
+		}
+		return inOrder;
+	}
+
+}
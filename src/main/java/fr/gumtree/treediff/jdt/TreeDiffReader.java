@@ -0,0 +1,589 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import fr.gumtree.treediff.jdt.TreeDiffRecord.Side;
+
+/**
+ * Reads a TreeDiff document (as written by {@link TreeDiffFormatBuilder} or
+ * {@link TreeDiffStreamWriter}) one record at a time, without building the
+ * document in memory.
+ *
+ * The records are returned in the order of the document. By default, the trees
+ * ("before-file", "after-file" and the subtrees of the nodes of the actions)
+ * are skipped without being parsed into objects, so reading the edit script of
+ * a document with large trees only costs the scan of their text.
+ *
+ * Both the embedded trees and the node-table mode are supported. When the
+ * types or labels are interned, the nodes only have their indexes, which are
+ * resolved by the string table returned last. The nodes of the trees are
+ * expected to have their label and type before their children, as written by
+ * this library.
+ *
+ * The compact mappings (see {@link TreeDiffMappingCodec}) are returned as one
+ * mapping record per pair of nodes, with their pre-order ids. When the
+ * mappings implied by isomorphic subtrees are left out, they can only be
+ * restored from the trees, so reading them throws an exception.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffReader implements Closeable {
+
+	private enum State {
+		DOCUMENT, DIFF, FILE, CHILDREN, NODES, MAPPING
+	}
+
+	/**
+	 * An object or array of the document being read.
+	 */
+	private static class Frame {
+		final State state;
+		final Side side;
+		final int parentId;
+		final int depth;
+
+		Frame(State state, Side side, int parentId, int depth) {
+			this.state = state;
+			this.side = side;
+			this.parentId = parentId;
+			this.depth = depth;
+		}
+	}
+
+	private final JsonReader reader;
+	private final boolean readTrees;
+	private final Deque<Frame> open = new ArrayDeque<>();
+	private boolean started = false;
+
+	/** state of the tree being read */
+	private String path;
+	private int nextId;
+	private int[] depths = new int[64];
+
+	/** the compact mappings left to return, as triples (src, dst, length) */
+	private int[] runs;
+	private int runCount;
+	private int run;
+	private int runOffset;
+
+	public TreeDiffReader(Reader in) {
+		this(in, false);
+	}
+
+	/**
+	 *
+	 * @param in
+	 * @param readTrees if true, the nodes of "before-file" and "after-file" are
+	 *                  returned, and the actions keep their complete "node"
+	 */
+	public TreeDiffReader(Reader in, boolean readTrees) {
+		this.reader = new JsonReader(in);
+		this.readTrees = readTrees;
+	}
+
+	/**
+	 * Returns the next record of the document.
+	 *
+	 * @return the next record, null at the end of the document
+	 * @throws IOException if the document cannot be read or is not a TreeDiff
+	 */
+	public TreeDiffRecord next() throws IOException {
+		if (!started) {
+			started = true;
+			reader.beginObject();
+			open.push(new Frame(State.DOCUMENT, null, TreeDiffRecord.ABSENT, 0));
+		}
+
+		while (!open.isEmpty()) {
+			if (runs != null) {
+				return nextRunMapping();
+			}
+			Frame frame = open.peek();
+			if (!reader.hasNext()) {
+				close(frame);
+				continue;
+			}
+			TreeDiffRecord record = read(frame);
+			if (record != null) {
+				return record;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the next member of the object or array on top of the stack, which
+	 * returns a record or opens a new object or array.
+	 */
+	private TreeDiffRecord read(Frame frame) throws IOException {
+		switch (frame.state) {
+		case DOCUMENT:
+			return readDocumentMember();
+		case DIFF:
+			return readAction();
+		case FILE:
+			return readFileMember(frame);
+		case CHILDREN:
+			return readTreeNode(frame.side, frame.parentId, frame.depth);
+		case NODES:
+			return readTableNode(frame.side);
+		case MAPPING:
+			return readMapping();
+		default:
+			throw new IllegalStateException(frame.state.toString());
+		}
+	}
+
+	private void close(Frame frame) throws IOException {
+		open.pop();
+		switch (frame.state) {
+		case DOCUMENT:
+		case FILE:
+			reader.endObject();
+			break;
+		case CHILDREN:
+			reader.endArray();
+			// the rest of the node that contains the children
+			skipRemainingMembers();
+			break;
+		default:
+			reader.endArray();
+		}
+	}
+
+	private TreeDiffRecord readDocumentMember() throws IOException {
+		String name = reader.nextName();
+		JsonToken token = reader.peek();
+		switch (name) {
+		case "tool-info":
+			return new TreeDiffRecord.ToolInfo(new JsonParser().parse(reader));
+		case "diff":
+			if (token == JsonToken.BEGIN_ARRAY) {
+				reader.beginArray();
+				open.push(new Frame(State.DIFF, null, TreeDiffRecord.ABSENT, 0));
+				return null;
+			}
+			break;
+		case "before-file":
+		case "after-file":
+			if (readTrees && token == JsonToken.BEGIN_OBJECT) {
+				reader.beginObject();
+				path = null;
+				nextId = 0;
+				Side side = name.equals("before-file") ? Side.BEFORE : Side.AFTER;
+				open.push(new Frame(State.FILE, side, TreeDiffRecord.ABSENT, 0));
+				return null;
+			}
+			break;
+		case "string-table":
+			if (token == JsonToken.BEGIN_OBJECT) {
+				return readStringTable();
+			}
+			break;
+		case "mapping":
+			// without mappings, the value is an empty object
+			if (token == JsonToken.BEGIN_ARRAY) {
+				reader.beginArray();
+				open.push(new Frame(State.MAPPING, null, TreeDiffRecord.ABSENT, 0));
+				return null;
+			}
+			if (token == JsonToken.BEGIN_OBJECT) {
+				readRuns();
+				return null;
+			}
+			break;
+		default:
+		}
+		reader.skipValue();
+		return null;
+	}
+
+	private TreeDiffRecord readFileMember(Frame frame) throws IOException {
+		String name = reader.nextName();
+		JsonToken token = reader.peek();
+		if (name.equals("path") && token == JsonToken.STRING) {
+			path = reader.nextString();
+		} else if (name.equals("ast") && token == JsonToken.BEGIN_OBJECT) {
+			return readTreeNode(frame.side, TreeDiffRecord.ABSENT, 0);
+		} else if (name.equals("nodes") && token == JsonToken.BEGIN_ARRAY) {
+			reader.beginArray();
+			open.push(new Frame(State.NODES, frame.side, TreeDiffRecord.ABSENT, 0));
+		} else {
+			reader.skipValue();
+		}
+		return null;
+	}
+
+	/**
+	 * Reads a node of an embedded tree up to its children. If the node has
+	 * children, they are read by the next calls, and the node is closed after
+	 * them.
+	 */
+	private TreeDiffRecord readTreeNode(Side side, int parentId, int depth) throws IOException {
+		TreeDiffRecord.Node node = createNode(side, parentId, depth);
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals("children") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+				reader.beginArray();
+				open.push(new Frame(State.CHILDREN, side, node.id, depth + 1));
+				return node;
+			}
+			readNodeMember(name, node);
+		}
+		reader.endObject();
+		return node;
+	}
+
+	private TreeDiffRecord readTableNode(Side side) throws IOException {
+		TreeDiffRecord.Node node = createNode(side, TreeDiffRecord.ABSENT, 0);
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals("parent")) {
+				node.parentId = nextInt();
+				node.depth = (node.parentId >= 0 && node.parentId < node.id) ? depths[node.parentId] + 1 : 0;
+				depths[node.id] = node.depth;
+			} else {
+				readNodeMember(name, node);
+			}
+		}
+		reader.endObject();
+		return node;
+	}
+
+	private TreeDiffRecord.Node createNode(Side side, int parentId, int depth) {
+		TreeDiffRecord.Node node = new TreeDiffRecord.Node();
+		node.side = side;
+		node.path = path;
+		node.id = nextId++;
+		node.parentId = parentId;
+		node.depth = depth;
+		if (node.id == depths.length) {
+			depths = Arrays.copyOf(depths, depths.length * 2);
+		}
+		depths[node.id] = depth;
+		return node;
+	}
+
+	private void readNodeMember(String name, TreeDiffRecord.Node node) throws IOException {
+		switch (name) {
+		case "label":
+			if (reader.peek() == JsonToken.NUMBER) {
+				node.labelIndex = reader.nextInt();
+			} else {
+				node.label = nextString();
+			}
+			break;
+		case "type":
+			if (reader.peek() == JsonToken.NUMBER) {
+				node.typeIndex = reader.nextInt();
+			} else {
+				node.type = nextString();
+			}
+			break;
+		case "start":
+			node.start = nextInt();
+			break;
+		case "end":
+			node.end = nextInt();
+			break;
+		default:
+			reader.skipValue();
+		}
+	}
+
+	private TreeDiffRecord readAction() throws IOException {
+		TreeDiffRecord.Action action = new TreeDiffRecord.Action();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			switch (name) {
+			case "type":
+				action.type = nextString();
+				break;
+			case "node":
+				readActionNode(action);
+				break;
+			case "node-id":
+				action.nodeId = nextInt();
+				break;
+			case "node-after-id":
+				action.nodeAfterId = nextInt();
+				break;
+			case "location-before-char-start":
+				action.beforeStart = nextInt();
+				break;
+			case "location-before-char-end":
+				action.beforeEnd = nextInt();
+				break;
+			case "location-after-char-start":
+				action.afterStart = nextInt();
+				break;
+			case "location-after-char-end":
+				action.afterEnd = nextInt();
+				break;
+			case "node-str":
+				action.nodeStr = nextString();
+				break;
+			case "meta":
+				JsonElement meta = new JsonParser().parse(reader);
+				action.meta = meta.isJsonNull() ? null : meta;
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return action;
+	}
+
+	/**
+	 * Reads the label and type of the node of an action, and skips its children
+	 * unless the trees are read.
+	 */
+	private void readActionNode(TreeDiffRecord.Action action) throws IOException {
+		if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+			reader.skipValue();
+			return;
+		}
+		if (readTrees) {
+			action.node = new JsonParser().parse(reader);
+			JsonElement label = action.node.getAsJsonObject().get("label");
+			JsonElement type = action.node.getAsJsonObject().get("type");
+			if (label != null && label.isJsonPrimitive()) {
+				if (label.getAsJsonPrimitive().isNumber()) {
+					action.nodeLabelIndex = label.getAsInt();
+				} else {
+					action.nodeLabel = label.getAsString();
+				}
+			}
+			if (type != null && type.isJsonPrimitive()) {
+				if (type.getAsJsonPrimitive().isNumber()) {
+					action.nodeTypeIndex = type.getAsInt();
+				} else {
+					action.nodeType = type.getAsString();
+				}
+			}
+			return;
+		}
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			boolean interned = reader.peek() == JsonToken.NUMBER;
+			if (name.equals("label")) {
+				if (interned) {
+					action.nodeLabelIndex = reader.nextInt();
+				} else {
+					action.nodeLabel = nextString();
+				}
+			} else if (name.equals("type")) {
+				if (interned) {
+					action.nodeTypeIndex = reader.nextInt();
+				} else {
+					action.nodeType = nextString();
+				}
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+	}
+
+	private TreeDiffRecord readMapping() throws IOException {
+		TreeDiffRecord.Mapping mapping = new TreeDiffRecord.Mapping();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			boolean src = name.equals("src");
+			if (!src && !name.equals("dst")) {
+				reader.skipValue();
+			} else if (reader.peek() == JsonToken.NUMBER) {
+				if (src) {
+					mapping.srcId = reader.nextInt();
+				} else {
+					mapping.dstId = reader.nextInt();
+				}
+			} else if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+				readMappedNode(mapping, src);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return mapping;
+	}
+
+	/**
+	 * Reads the runs of compact mappings, which are then returned by the next
+	 * calls.
+	 */
+	private void readRuns() throws IOException {
+		int[] read = new int[48];
+		int count = 0;
+		boolean isomorphicOmitted = false;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals("runs") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					if (count == read.length) {
+						read = Arrays.copyOf(read, count * 2);
+					}
+					read[count++] = reader.nextInt();
+				}
+				reader.endArray();
+			} else if (name.equals("isomorphic-omitted") && reader.peek() == JsonToken.BOOLEAN) {
+				isomorphicOmitted = reader.nextBoolean();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if (isomorphicOmitted) {
+			throw new IOException("The mappings of the isomorphic subtrees are left out, they can only be decoded "
+					+ "with the trees (see TreeDiffMappingCodec)");
+		}
+		if (count % 3 != 0) {
+			throw new IOException("The runs of the mappings are not triples: " + count + " numbers");
+		}
+		// the empty runs are dropped, so each remaining run returns a mapping
+		int kept = 0;
+		for (int r = 0; r < count; r += 3) {
+			if (read[r] < 0 || read[r + 1] < 0 || read[r + 2] < 0
+					|| (long) Math.max(read[r], read[r + 1]) + read[r + 2] > Integer.MAX_VALUE) {
+				throw new IOException(
+						"Invalid run of the mappings: (" + read[r] + ", " + read[r + 1] + ", " + read[r + 2] + ")");
+			}
+			if (read[r + 2] > 0) {
+				System.arraycopy(read, r, read, kept, 3);
+				kept += 3;
+			}
+		}
+		if (kept > 0) {
+			runs = read;
+			runCount = kept;
+			run = 0;
+			runOffset = 0;
+		}
+	}
+
+	private TreeDiffRecord nextRunMapping() {
+		TreeDiffRecord.Mapping mapping = new TreeDiffRecord.Mapping();
+		mapping.srcId = runs[run] + runOffset;
+		mapping.dstId = runs[run + 1] + runOffset;
+		if (++runOffset == runs[run + 2]) {
+			runOffset = 0;
+			run += 3;
+			if (run == runCount) {
+				runs = null;
+			}
+		}
+		return mapping;
+	}
+
+	private void readMappedNode(TreeDiffRecord.Mapping mapping, boolean src) throws IOException {
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals("node-str")) {
+				String nodeStr = nextString();
+				if (src) {
+					mapping.srcNodeStr = nodeStr;
+				} else {
+					mapping.dstNodeStr = nodeStr;
+				}
+			} else if (name.equals("start")) {
+				int start = nextInt();
+				if (src) {
+					mapping.srcStart = start;
+				} else {
+					mapping.dstStart = start;
+				}
+			} else if (name.equals("end")) {
+				int end = nextInt();
+				if (src) {
+					mapping.srcEnd = end;
+				} else {
+					mapping.dstEnd = end;
+				}
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+	}
+
+	private TreeDiffRecord readStringTable() throws IOException {
+		List<String> types = null;
+		List<String> labels = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals("types") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+				types = readStrings();
+			} else if (name.equals("labels") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+				labels = readStrings();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return new TreeDiffRecord.StringTable(types, labels);
+	}
+
+	private List<String> readStrings() throws IOException {
+		List<String> values = new ArrayList<>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			values.add(nextString());
+		}
+		reader.endArray();
+		return values;
+	}
+
+	private void skipRemainingMembers() throws IOException {
+		while (reader.hasNext()) {
+			reader.nextName();
+			reader.skipValue();
+		}
+		reader.endObject();
+	}
+
+	private String nextString() throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+		return reader.nextString();
+	}
+
+	private int nextInt() throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return TreeDiffRecord.ABSENT;
+		}
+		return reader.nextInt();
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+}
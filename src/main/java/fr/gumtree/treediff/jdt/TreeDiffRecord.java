@@ -0,0 +1,318 @@
+package fr.gumtree.treediff.jdt;
+
+import java.util.List;
+
+import com.google.gson.JsonElement;
+
+/**
+ * A record read from a TreeDiff document by {@link TreeDiffReader}: the tool
+ * information, an action, a node of one of the trees, or a mapping.
+ *
+ * @author Matias Martinez
+ *
+ */
+public abstract class TreeDiffRecord {
+
+	public enum Kind {
+		TOOL_INFO, ACTION, NODE, MAPPING, STRING_TABLE
+	}
+
+	public enum Side {
+		BEFORE, AFTER
+	}
+
+	/** Value of the positions and ids that are not present in the document. */
+	public static final int ABSENT = -1;
+
+	public abstract Kind getKind();
+
+	/**
+	 * The content of "tool-info".
+	 */
+	public static class ToolInfo extends TreeDiffRecord {
+
+		final JsonElement info;
+
+		ToolInfo(JsonElement info) {
+			this.info = info;
+		}
+
+		@Override
+		public Kind getKind() {
+			return Kind.TOOL_INFO;
+		}
+
+		public JsonElement getInfo() {
+			return info;
+		}
+	}
+
+	/**
+	 * An element of "diff". The node of the action is only read up to its label
+	 * and type, unless the reader is asked to read the trees.
+	 */
+	public static class Action extends TreeDiffRecord {
+
+		String type;
+		String nodeType;
+		String nodeLabel;
+		int nodeTypeIndex = ABSENT;
+		int nodeLabelIndex = ABSENT;
+		JsonElement node;
+		int nodeId = ABSENT;
+		int nodeAfterId = ABSENT;
+		int beforeStart = ABSENT;
+		int beforeEnd = ABSENT;
+		int afterStart = ABSENT;
+		int afterEnd = ABSENT;
+		String nodeStr;
+		JsonElement meta;
+
+		@Override
+		public Kind getKind() {
+			return Kind.ACTION;
+		}
+
+		/**
+		 *
+		 * @return the name of the action, e.g. "update-node"
+		 */
+		public String getType() {
+			return type;
+		}
+
+		public String getNodeType() {
+			return nodeType;
+		}
+
+		public String getNodeLabel() {
+			return nodeLabel;
+		}
+
+		/**
+		 *
+		 * @return the index of the type of the node in the string table, if the
+		 *         types are interned, {@link #ABSENT} otherwise
+		 */
+		public int getNodeTypeIndex() {
+			return nodeTypeIndex;
+		}
+
+		public int getNodeLabelIndex() {
+			return nodeLabelIndex;
+		}
+
+		/**
+		 *
+		 * @return the complete "node" (with its children), only if the reader reads
+		 *         the trees
+		 */
+		public JsonElement getNode() {
+			return node;
+		}
+
+		/**
+		 *
+		 * @return the id of the node in node-table mode, {@link #ABSENT} otherwise
+		 */
+		public int getNodeId() {
+			return nodeId;
+		}
+
+		public int getNodeAfterId() {
+			return nodeAfterId;
+		}
+
+		public int getBeforeStart() {
+			return beforeStart;
+		}
+
+		public int getBeforeEnd() {
+			return beforeEnd;
+		}
+
+		public int getAfterStart() {
+			return afterStart;
+		}
+
+		public int getAfterEnd() {
+			return afterEnd;
+		}
+
+		public String getNodeStr() {
+			return nodeStr;
+		}
+
+		public JsonElement getMeta() {
+			return meta;
+		}
+	}
+
+	/**
+	 * A node of "before-file" or "after-file", in pre-order.
+	 */
+	public static class Node extends TreeDiffRecord {
+
+		Side side;
+		String path;
+		int id;
+		int parentId = ABSENT;
+		int depth;
+		String type;
+		String label;
+		int typeIndex = ABSENT;
+		int labelIndex = ABSENT;
+		int start = ABSENT;
+		int end = ABSENT;
+
+		@Override
+		public Kind getKind() {
+			return Kind.NODE;
+		}
+
+		public Side getSide() {
+			return side;
+		}
+
+		/**
+		 *
+		 * @return the path of the file of the tree, if it was written before the
+		 *         tree
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 *
+		 * @return the index of the node in the pre-order traversal of its tree
+		 */
+		public int getId() {
+			return id;
+		}
+
+		public int getParentId() {
+			return parentId;
+		}
+
+		public int getDepth() {
+			return depth;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		/**
+		 *
+		 * @return the index of the type in the string table, if the types are
+		 *         interned, {@link #ABSENT} otherwise
+		 */
+		public int getTypeIndex() {
+			return typeIndex;
+		}
+
+		public int getLabelIndex() {
+			return labelIndex;
+		}
+
+		public int getStart() {
+			return start;
+		}
+
+		public int getEnd() {
+			return end;
+		}
+	}
+
+	/**
+	 * An element of "mapping". In node-table mode, and for each node of the runs
+	 * of compact mappings, only the ids are present, otherwise only the
+	 * "node-str" and positions.
+	 */
+	public static class Mapping extends TreeDiffRecord {
+
+		int srcId = ABSENT;
+		int dstId = ABSENT;
+		String srcNodeStr;
+		String dstNodeStr;
+		int srcStart = ABSENT;
+		int srcEnd = ABSENT;
+		int dstStart = ABSENT;
+		int dstEnd = ABSENT;
+
+		@Override
+		public Kind getKind() {
+			return Kind.MAPPING;
+		}
+
+		public int getSrcId() {
+			return srcId;
+		}
+
+		public int getDstId() {
+			return dstId;
+		}
+
+		public String getSrcNodeStr() {
+			return srcNodeStr;
+		}
+
+		public String getDstNodeStr() {
+			return dstNodeStr;
+		}
+
+		public int getSrcStart() {
+			return srcStart;
+		}
+
+		public int getSrcEnd() {
+			return srcEnd;
+		}
+
+		public int getDstStart() {
+			return dstStart;
+		}
+
+		public int getDstEnd() {
+			return dstEnd;
+		}
+	}
+
+	/**
+	 * The content of "string-table", at the end of the document, which resolves
+	 * the indexes of interned types and labels.
+	 */
+	public static class StringTable extends TreeDiffRecord {
+
+		final List<String> types;
+		final List<String> labels;
+
+		StringTable(List<String> types, List<String> labels) {
+			this.types = types;
+			this.labels = labels;
+		}
+
+		@Override
+		public Kind getKind() {
+			return Kind.STRING_TABLE;
+		}
+
+		/**
+		 *
+		 * @return the interned types, or null if the types are not interned
+		 */
+		public List<String> getTypes() {
+			return types;
+		}
+
+		public List<String> getLabels() {
+			return labels;
+		}
+	}
+
+}
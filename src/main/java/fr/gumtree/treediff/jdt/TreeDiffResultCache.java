@@ -0,0 +1,448 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent cache of TreeDiff documents, kept in a directory so it survives
+ * across runs.
+ *
+ * The documents are appended to a segment file, each one in a record with its
+ * key (a SHA-256 hash), its length and its CRC-32. The index (the position of
+ * the record of each key) is kept in memory and saved in an index file when the
+ * cache is closed. When the cache is opened, the index is loaded and the
+ * records appended after it was saved are read from the segment; a record
+ * truncated by a crash, or whose checksum is wrong, is dropped with the rest of
+ * the segment.
+ *
+ * When the segment grows over the max size, it is compacted: the most recent
+ * documents, up to half the max size, are copied into a new segment, which
+ * replaces the previous one.
+ *
+ * The cache can be used from several threads.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffResultCache implements Closeable {
+
+	/**
+	 * The version of the TreeDiff documents, which is part of the keys: it must
+	 * change when the documents created by the builder change.
+	 */
+	public static final int FORMAT_VERSION = 1;
+
+	protected static final String SEGMENT_FILE = "treediff.seg";
+	protected static final String INDEX_FILE = "treediff.idx";
+
+	protected static final int SEGMENT_MAGIC = 0x54445347;
+	protected static final int INDEX_MAGIC = 0x54444958;
+	protected static final int VERSION = 1;
+
+	protected static final int KEY_LENGTH = 32;
+	protected static final int HEADER_LENGTH = 8;
+	protected static final int RECORD_HEADER_LENGTH = KEY_LENGTH + 8;
+
+	/** The position and length of the document of a key in the segment. */
+	protected static class Entry {
+		final long offset;
+		final int length;
+
+		Entry(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/** A key of the index, comparing the bytes of the hash. */
+	protected static class Key {
+		final byte[] hash;
+
+		Key(byte[] hash) {
+			this.hash = hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key && Arrays.equals(hash, ((Key) obj).hash);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(hash);
+		}
+	}
+
+	protected final Path directory;
+	protected final long maxBytes;
+
+	protected final Map<Key, Entry> index = new HashMap<>();
+	protected FileChannel segment;
+
+	protected long hits = 0;
+	protected long misses = 0;
+	protected long evictions = 0;
+	protected long compactions = 0;
+
+	/**
+	 * Opens the cache of a directory, creating it if needed.
+	 *
+	 * @param directory
+	 * @param maxBytes  the max size of the segment, above which it is compacted
+	 * @throws IOException
+	 */
+	public TreeDiffResultCache(File directory, long maxBytes) throws IOException {
+		super();
+		this.directory = directory.toPath();
+		this.maxBytes = maxBytes;
+		Files.createDirectories(this.directory);
+		open();
+	}
+
+	private void open() throws IOException {
+		Path segmentPath = directory.resolve(SEGMENT_FILE);
+		segment = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		if (segment.size() < HEADER_LENGTH || !hasHeader()) {
+			segment.truncate(0);
+			writeHeader(segment);
+			Files.deleteIfExists(directory.resolve(INDEX_FILE));
+		}
+		long indexed = readIndex();
+		scan(indexed);
+	}
+
+	private boolean hasHeader() throws IOException {
+		ByteBuffer header = read(0, HEADER_LENGTH);
+		return header != null && header.getInt() == SEGMENT_MAGIC && header.getInt() == VERSION;
+	}
+
+	private static void writeHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(SEGMENT_MAGIC).putInt(VERSION).flip();
+		write(channel, header, 0);
+	}
+
+	/**
+	 * Loads the index file, if it is valid.
+	 *
+	 * @return the length of the segment covered by the index
+	 */
+	private long readIndex() throws IOException {
+		Path indexPath = directory.resolve(INDEX_FILE);
+		if (!Files.exists(indexPath)) {
+			return HEADER_LENGTH;
+		}
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(indexPath))) {
+			if (in.readInt() != INDEX_MAGIC || in.readInt() != VERSION) {
+				return HEADER_LENGTH;
+			}
+			long covered = in.readLong();
+			int count = in.readInt();
+			if (covered > segment.size()) {
+				return HEADER_LENGTH;
+			}
+			Map<Key, Entry> entries = new HashMap<>();
+			for (int i = 0; i < count; i++) {
+				byte[] hash = new byte[KEY_LENGTH];
+				in.readFully(hash);
+				entries.put(new Key(hash), new Entry(in.readLong(), in.readInt()));
+			}
+			index.putAll(entries);
+			return covered;
+		} catch (EOFException e) {
+			index.clear();
+			return HEADER_LENGTH;
+		}
+	}
+
+	/**
+	 * Reads the records of the segment from a position, and drops the rest of the
+	 * segment from the first invalid record.
+	 */
+	private void scan(long position) throws IOException {
+		long size = segment.size();
+		while (position < size) {
+			ByteBuffer header = read(position, RECORD_HEADER_LENGTH);
+			if (header == null) {
+				break;
+			}
+			byte[] hash = new byte[KEY_LENGTH];
+			header.get(hash);
+			int length = header.getInt();
+			int crc = header.getInt();
+			long offset = position + RECORD_HEADER_LENGTH;
+			if (length < 0 || offset + length > size) {
+				break;
+			}
+			ByteBuffer value = read(offset, length);
+			if (checksum(value.array()) != crc) {
+				break;
+			}
+			index.put(new Key(hash), new Entry(offset, length));
+			position = offset + length;
+		}
+		if (position < size) {
+			segment.truncate(position);
+		}
+	}
+
+	/**
+	 * Returns the document stored with the key.
+	 *
+	 * @param key see {@link #key(String)}
+	 * @return the bytes of the document, or null if it is not in the cache
+	 * @throws IOException
+	 */
+	public synchronized byte[] get(byte[] key) throws IOException {
+		Key k = new Key(key);
+		Entry entry = index.get(k);
+		if (entry != null) {
+			byte[] value = readRecord(key, entry);
+			if (value != null) {
+				hits++;
+				return value;
+			}
+			index.remove(k);
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Reads the document of a record, checking that the record has the key, the
+	 * length and the checksum of the entry.
+	 */
+	private byte[] readRecord(byte[] key, Entry entry) throws IOException {
+		ByteBuffer header = read(entry.offset - RECORD_HEADER_LENGTH, RECORD_HEADER_LENGTH);
+		if (header == null) {
+			return null;
+		}
+		byte[] hash = new byte[KEY_LENGTH];
+		header.get(hash);
+		if (!Arrays.equals(hash, key) || header.getInt() != entry.length) {
+			return null;
+		}
+		int crc = header.getInt();
+		ByteBuffer value = read(entry.offset, entry.length);
+		return (value != null && checksum(value.array()) == crc) ? value.array() : null;
+	}
+
+	/**
+	 * Appends a document to the segment, unless one is already stored with the
+	 * key, and compacts the segment if it is too large.
+	 *
+	 * @param key   see {@link #key(String)}
+	 * @param value the bytes of the document
+	 * @throws IOException
+	 */
+	public synchronized void put(byte[] key, byte[] value) throws IOException {
+		Key k = new Key(key);
+		if (index.containsKey(k)) {
+			return;
+		}
+		long position = segment.size();
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + value.length);
+		record.put(key).putInt(value.length).putInt(checksum(value)).put(value).flip();
+		write(segment, record, position);
+		index.put(k, new Entry(position + RECORD_HEADER_LENGTH, value.length));
+
+		if (segment.size() > maxBytes) {
+			compact();
+		}
+	}
+
+	/**
+	 * Returns the size of the largest document that a compaction keeps: a larger
+	 * one is dropped by the first compaction, so it is not worth storing.
+	 *
+	 * @return
+	 */
+	public long getMaxDocumentBytes() {
+		return maxBytes / 2 - HEADER_LENGTH - RECORD_HEADER_LENGTH;
+	}
+
+	/**
+	 * Copies the most recent documents, up to half the max size, into a new
+	 * segment which replaces the current one.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void compact() throws IOException {
+		List<Map.Entry<Key, Entry>> entries = new ArrayList<>(index.entrySet());
+		entries.sort(Comparator.comparingLong((Map.Entry<Key, Entry> e) -> e.getValue().offset).reversed());
+
+		long budget = maxBytes / 2;
+		long kept = HEADER_LENGTH;
+		int keep = 0;
+		while (keep < entries.size()
+				&& kept + RECORD_HEADER_LENGTH + entries.get(keep).getValue().length <= budget) {
+			kept += RECORD_HEADER_LENGTH + entries.get(keep).getValue().length;
+			keep++;
+		}
+		List<Map.Entry<Key, Entry>> live = entries.subList(0, keep);
+		live.sort(Comparator.comparingLong(e -> e.getValue().offset));
+
+		Path compacted = directory.resolve(SEGMENT_FILE + ".tmp");
+		Map<Key, Entry> newIndex = new HashMap<>();
+		try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			writeHeader(target);
+			long position = HEADER_LENGTH;
+			// transferTo writes at the position of the target
+			target.position(position);
+			for (Map.Entry<Key, Entry> e : live) {
+				Entry entry = e.getValue();
+				long from = entry.offset - RECORD_HEADER_LENGTH;
+				long length = RECORD_HEADER_LENGTH + entry.length;
+				long copied = 0;
+				while (copied < length) {
+					copied += segment.transferTo(from + copied, length - copied, target);
+				}
+				newIndex.put(e.getKey(), new Entry(position + RECORD_HEADER_LENGTH, entry.length));
+				position += length;
+			}
+			target.force(true);
+		}
+
+		// without index, a crash before the new index is written reads the segment
+		Files.deleteIfExists(directory.resolve(INDEX_FILE));
+		segment.close();
+		Files.move(compacted, directory.resolve(SEGMENT_FILE), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		segment = FileChannel.open(directory.resolve(SEGMENT_FILE), StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+
+		evictions += index.size() - newIndex.size();
+		compactions++;
+		index.clear();
+		index.putAll(newIndex);
+		writeIndex();
+	}
+
+	/**
+	 * Saves the index, so the next opening of the cache does not read the whole
+	 * segment.
+	 *
+	 * @throws IOException
+	 */
+	protected void writeIndex() throws IOException {
+		segment.force(false);
+		Path indexPath = directory.resolve(INDEX_FILE);
+		Path tmp = directory.resolve(INDEX_FILE + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(segment.size());
+			out.writeInt(index.size());
+			for (Map.Entry<Key, Entry> e : index.entrySet()) {
+				out.write(e.getKey().hash);
+				out.writeLong(e.getValue().offset);
+				out.writeInt(e.getValue().length);
+			}
+		}
+		Files.move(tmp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (segment.isOpen()) {
+			writeIndex();
+			segment.close();
+		}
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (segment.read(buffer, position + buffer.position()) < 0) {
+				return null;
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	private static int checksum(byte[] value) {
+		CRC32 crc = new CRC32();
+		crc.update(value, 0, value.length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Returns the key (the SHA-256 hash) of a description of a diff.
+	 *
+	 * @param description
+	 * @return
+	 */
+	public static byte[] key(String description) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(description.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-256 is available in every Java platform
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 *
+	 * @return the number of documents dropped by the compactions
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getCompactions() {
+		return compactions;
+	}
+
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 *
+	 * @return the size of the segment file
+	 * @throws IOException
+	 */
+	public synchronized long getSegmentBytes() throws IOException {
+		return segment.size();
+	}
+
+}
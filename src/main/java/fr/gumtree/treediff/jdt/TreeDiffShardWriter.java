@@ -0,0 +1,499 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
+/**
+ * Appends TreeDiff documents, one per line (NDJSON), to rolling shard files.
+ * A shard is closed, and the next one created, when it reaches a max size or
+ * a max number of documents. The shards are named
+ * {@code <prefix>-<number>.ndjson} (with {@code .gz} when compressed). The
+ * numbers continue after the ones of the shards already in the directory with
+ * the same prefix, so a new writer appends shards next to them, and a shard is
+ * never overwritten: creating a file that exists fails.
+ *
+ * Each shard has a sidecar index, {@code <shard>.idx}, with one line per
+ * document: its key, the position in the shard of the block to read, the
+ * position of the document in the (uncompressed) block, and its length in
+ * bytes, separated by tabs. The block depends on the compression: the whole
+ * file without compression, the gzip stream starting at 0 with gzip
+ * compression, and the gzip member containing the document with gzip blocks
+ * (each block of documents is compressed in its own gzip member, so a
+ * document can be read by decompressing only its block; the shard is still a
+ * valid gzip file).
+ *
+ * The documents are encoded by the threads that append them and written by a
+ * background thread, through a bounded queue: the threads appending block
+ * only when the queue is full. An error of the background thread (any
+ * exception or error) is thrown by the next call to append, flush or close,
+ * and the background thread keeps taking the documents from the queue, so the
+ * threads appending or flushing never wait forever.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffShardWriter implements Flushable, Closeable {
+
+	public enum Compression {
+		NONE(".ndjson"), GZIP(".ndjson.gz"), GZIP_BLOCKS(".ndjson.gz");
+
+		final String extension;
+
+		Compression(String extension) {
+			this.extension = extension;
+		}
+
+		public String getExtension() {
+			return extension;
+		}
+	}
+
+	public static final String INDEX_EXTENSION = ".idx";
+
+	/** A document waiting to be written. */
+	private static class Document {
+		final String key;
+		final byte[] line;
+
+		Document(String key, byte[] line) {
+			this.key = key;
+			this.line = line;
+		}
+	}
+
+	/** A request to flush, released once all the previous documents are written. */
+	private static class FlushRequest {
+		final CountDownLatch done = new CountDownLatch(1);
+	}
+
+	private static final Object CLOSE = new Object();
+
+	protected final File directory;
+	protected final String prefix;
+	protected final Compression compression;
+	protected final long maxShardBytes;
+	protected final int maxShardDocuments;
+	protected final int blockBytes;
+
+	protected final Gson gson = new Gson();
+
+	protected final BlockingQueue<Object> queue;
+	protected final Thread thread;
+	protected volatile Throwable error;
+	protected volatile boolean closed = false;
+
+	// state of the background thread
+	private Shard shard;
+	private long nextShard = -1;
+	private volatile int shards = 0;
+	private volatile long documents = 0;
+
+	/**
+	 * Creates a writer whose shards have at most 256 MB, and blocks of 1 MB.
+	 *
+	 * @param directory
+	 * @param prefix
+	 * @param compression
+	 */
+	public TreeDiffShardWriter(File directory, String prefix, Compression compression) {
+		this(directory, prefix, compression, 256L << 20, Integer.MAX_VALUE, 1 << 20, 1024);
+	}
+
+	/**
+	 *
+	 * @param directory         where the shards are created
+	 * @param prefix            the prefix of the names of the shards
+	 * @param compression
+	 * @param maxShardBytes     the size (compressed) of a shard above which the
+	 *                          next shard is created
+	 * @param maxShardDocuments the max number of documents of a shard
+	 * @param blockBytes        the max size (uncompressed) of a block of
+	 *                          documents compressed together, with
+	 *                          {@link Compression#GZIP_BLOCKS}; a larger document
+	 *                          has its own block
+	 * @param queueCapacity     the max number of documents waiting to be written
+	 */
+	public TreeDiffShardWriter(File directory, String prefix, Compression compression, long maxShardBytes,
+			int maxShardDocuments, int blockBytes, int queueCapacity) {
+		super();
+		this.directory = directory;
+		this.prefix = prefix;
+		this.compression = compression;
+		this.maxShardBytes = maxShardBytes;
+		this.maxShardDocuments = maxShardDocuments;
+		this.blockBytes = blockBytes;
+		this.queue = new ArrayBlockingQueue<>(queueCapacity);
+		this.thread = new Thread(this::run, "treediff-shard-writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Appends a TreeDiff.
+	 *
+	 * @param key      the key of the document in the index (without tabs nor
+	 *                 line breaks), e.g. the commit and the path of the file
+	 * @param treeDiff
+	 * @throws IOException if a previous document could not be written
+	 */
+	public void append(String key, JsonElement treeDiff) throws IOException {
+		append(key, gson.toJson(treeDiff));
+	}
+
+	/**
+	 * Appends a TreeDiff already serialized in one line.
+	 *
+	 * @param key  the key of the document in the index
+	 * @param json the TreeDiff, without line breaks
+	 * @throws IOException if a previous document could not be written
+	 */
+	public void append(String key, String json) throws IOException {
+		if (key.indexOf('\t') >= 0 || key.indexOf('\n') >= 0 || key.indexOf('\r') >= 0) {
+			throw new IllegalArgumentException("The key contains a tab or a line break: " + key);
+		}
+		if (json.indexOf('\n') >= 0) {
+			throw new IllegalArgumentException("The document of " + key + " is not in one line");
+		}
+		byte[] line = (json + "\n").getBytes(StandardCharsets.UTF_8);
+		enqueue(new Document(key, line));
+	}
+
+	/**
+	 * Waits until all the documents appended are written, and makes them
+	 * readable: the current block is compressed and the files are flushed.
+	 */
+	@Override
+	public void flush() throws IOException {
+		FlushRequest request = new FlushRequest();
+		enqueue(request);
+		try {
+			request.done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while flushing the shards");
+		}
+		checkError();
+	}
+
+	/**
+	 * Writes the documents appended, closes the last shard and stops the
+	 * background thread.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			queue.put(CLOSE);
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while closing the shards");
+		}
+		checkError();
+	}
+
+	/**
+	 * Queues a document or a request. It is synchronized with {@link #close()},
+	 * so nothing is queued after the request to close, which would never be
+	 * taken.
+	 */
+	private synchronized void enqueue(Object item) throws IOException {
+		checkError();
+		if (closed) {
+			throw new IOException("The shard writer is closed");
+		}
+		try {
+			queue.put(item);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while appending a document");
+		}
+	}
+
+	private void checkError() throws IOException {
+		Throwable e = error;
+		if (e != null) {
+			throw new IOException("Failed to write the shards", e);
+		}
+	}
+
+	/**
+	 * The loop of the background thread. After an error, the documents are
+	 * dropped and the flush requests released, so the threads appending never
+	 * wait forever.
+	 */
+	private void run() {
+		while (true) {
+			Object item;
+			try {
+				item = queue.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if (item == CLOSE) {
+				break;
+			}
+			if (item instanceof FlushRequest) {
+				try {
+					if (error == null && shard != null) {
+						shard.flush();
+					}
+				} catch (Throwable e) {
+					error = e;
+				} finally {
+					((FlushRequest) item).done.countDown();
+				}
+				continue;
+			}
+			if (error == null) {
+				try {
+					write((Document) item);
+				} catch (Throwable e) {
+					error = e;
+				}
+			}
+		}
+		if (shard != null) {
+			try {
+				shard.close();
+			} catch (Throwable e) {
+				if (error == null) {
+					error = e;
+				}
+			}
+			shard = null;
+		}
+	}
+
+	private void write(Document document) throws IOException {
+		if (shard == null) {
+			if (nextShard < 0) {
+				nextShard = nextShardNumber();
+			}
+			shard = new Shard(String.format("%s-%05d%s", prefix, nextShard++, compression.extension));
+			shards++;
+		}
+		shard.write(document);
+		documents++;
+		if (shard.documents >= maxShardDocuments || shard.size() >= maxShardBytes) {
+			shard.close();
+			shard = null;
+		}
+	}
+
+	/**
+	 * Finds the number of the first shard: the one after the shards (or their
+	 * index) already in the directory.
+	 */
+	private long nextShardNumber() throws IOException {
+		Pattern shardName = TreeDiffArchive.shardNamePattern(prefix);
+		File[] files = directory.listFiles();
+		if (files == null) {
+			if (directory.exists()) {
+				throw new IOException("Not a directory: " + directory);
+			}
+			return 0;
+		}
+		long next = 0;
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(INDEX_EXTENSION)) {
+				name = name.substring(0, name.length() - INDEX_EXTENSION.length());
+			}
+			if (shardName.matcher(name).matches()) {
+				next = Math.max(next, TreeDiffArchive.shardNumber(shardName, new File(directory, name)) + 1);
+			}
+		}
+		return next;
+	}
+
+	/**
+	 *
+	 * @return the number of documents written
+	 */
+	public long getDocuments() {
+		return documents;
+	}
+
+	/**
+	 *
+	 * @return the number of shards created
+	 */
+	public int getShards() {
+		return shards;
+	}
+
+	/**
+	 * A shard and its index, written by the background thread.
+	 */
+	private class Shard {
+		final CountingOutputStream file;
+		final OutputStream out;
+		final Writer index;
+		final ByteArrayOutputStream block;
+		final List<String> blockKeys = new ArrayList<>();
+		final List<long[]> blockEntries = new ArrayList<>();
+		long uncompressed = 0;
+		int documents = 0;
+
+		Shard(String name) throws IOException {
+			directory.mkdirs();
+			file = new CountingOutputStream(new BufferedOutputStream(
+					Files.newOutputStream(new File(directory, name).toPath(), StandardOpenOption.CREATE_NEW),
+					1 << 16));
+			out = (compression == Compression.GZIP) ? new GZIPOutputStream(file, 1 << 16, true) : file;
+			try {
+				index = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(
+						new File(directory, name + INDEX_EXTENSION).toPath(), StandardOpenOption.CREATE_NEW),
+						StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				file.close();
+				throw e;
+			}
+			block = (compression == Compression.GZIP_BLOCKS) ? new ByteArrayOutputStream() : null;
+		}
+
+		void write(Document document) throws IOException {
+			int length = document.line.length - 1;
+			switch (compression) {
+			case NONE:
+				writeIndex(document.key, file.count, 0, length);
+				out.write(document.line);
+				break;
+			case GZIP:
+				writeIndex(document.key, 0, uncompressed, length);
+				out.write(document.line);
+				break;
+			case GZIP_BLOCKS:
+				if (block.size() > 0 && block.size() + document.line.length > blockBytes) {
+					endBlock();
+				}
+				blockKeys.add(document.key);
+				blockEntries.add(new long[] { block.size(), length });
+				block.write(document.line);
+				break;
+			}
+			uncompressed += document.line.length;
+			documents++;
+		}
+
+		/**
+		 * Compresses the current block in its own gzip member.
+		 */
+		void endBlock() throws IOException {
+			if (block == null || block.size() == 0) {
+				return;
+			}
+			long offset = file.count;
+			try (GZIPOutputStream member = new GZIPOutputStream(new NonClosingOutputStream(file), 1 << 16)) {
+				block.writeTo(member);
+			}
+			for (int i = 0; i < blockKeys.size(); i++) {
+				writeIndex(blockKeys.get(i), offset, blockEntries.get(i)[0], blockEntries.get(i)[1]);
+			}
+			blockKeys.clear();
+			blockEntries.clear();
+			block.reset();
+		}
+
+		private void writeIndex(String key, long block, long offset, long length) throws IOException {
+			index.write(key);
+			index.write('\t');
+			index.write(Long.toString(block));
+			index.write('\t');
+			index.write(Long.toString(offset));
+			index.write('\t');
+			index.write(Long.toString(length));
+			index.write('\n');
+		}
+
+		/**
+		 *
+		 * @return the size of the shard, counting the block not yet compressed
+		 */
+		long size() {
+			return file.count + ((block != null) ? block.size() : 0);
+		}
+
+		void flush() throws IOException {
+			endBlock();
+			out.flush();
+			index.flush();
+		}
+
+		void close() throws IOException {
+			try {
+				endBlock();
+				out.close();
+			} finally {
+				index.close();
+			}
+		}
+	}
+
+	/** Counts the bytes written into the file. */
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	/** Lets a gzip member be closed (releasing its deflater) without closing the file. */
+	private static class NonClosingOutputStream extends FilterOutputStream {
+
+		NonClosingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.flush();
+		}
+	}
+
+}
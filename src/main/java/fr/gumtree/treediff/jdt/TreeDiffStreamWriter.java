@@ -0,0 +1,654 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import com.github.gumtreediff.actions.Diff;
+import com.github.gumtreediff.actions.model.Action;
+import com.github.gumtreediff.matchers.Mapping;
+import com.github.gumtreediff.matchers.MappingStore;
+import com.github.gumtreediff.tree.Tree;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes a TreeDiff directly into a {@link JsonWriter}, without building the
+ * Json representation in memory. The output has the same schema (and, with the
+ * default {@link Gson}, the same bytes) than the one produced by
+ * {@link TreeDiffFormatBuilder}, which provides the configuration (e.g., if
+ * trees and mappings are stored).
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffStreamWriter {
+
+	protected final TreeDiffFormatBuilder configuration;
+
+	protected final Gson gson;
+
+	/** if the writers of the Gson do not indent, so chunks can be concatenated */
+	protected final boolean compact;
+
+	public TreeDiffStreamWriter(TreeDiffFormatBuilder configuration) {
+		this(configuration, new Gson());
+	}
+
+	/**
+	 *
+	 * @param configuration the builder that provides the options of the output
+	 * @param gson          used to create the JsonWriter (e.g., pretty printing)
+	 */
+	public TreeDiffStreamWriter(TreeDiffFormatBuilder configuration, Gson gson) {
+		super();
+		this.configuration = configuration;
+		this.gson = gson;
+		this.compact = isCompact(gson);
+	}
+
+	private static boolean isCompact(Gson gson) {
+		StringWriter probe = new StringWriter();
+		try {
+			gson.newJsonWriter(probe).beginArray().value(0).value(1).endArray().close();
+		} catch (IOException e) {
+			return false;
+		}
+		return probe.toString().equals("[0,1]");
+	}
+
+	/**
+	 * Writes the TreeDiff only using the Diff information.
+	 *
+	 * @param diff
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(Diff diff, Writer out) throws IOException {
+		write(diff.src.getRoot(), "unknowpath", diff.dst.getRoot(), "unknowpath", diff, null, out);
+	}
+
+	/**
+	 * Writes the TreeDiff encoded in UTF-8.
+	 *
+	 * @param treeLeft      the left tree, or null to not store it
+	 * @param pathFileLeft
+	 * @param treeRight     the right tree, or null to not store it
+	 * @param pathFileRight
+	 * @param diff
+	 * @param toolInfo
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(Tree treeLeft, String pathFileLeft, Tree treeRight, String pathFileRight, Diff diff,
+			JsonElement toolInfo, OutputStream out) throws IOException {
+		write(treeLeft, pathFileLeft, treeRight, pathFileRight, diff, toolInfo,
+				new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Writes the TreeDiff. The writer is flushed but not closed.
+	 *
+	 * @param treeLeft      the left tree, or null to not store it
+	 * @param pathFileLeft
+	 * @param treeRight     the right tree, or null to not store it
+	 * @param pathFileRight
+	 * @param diff
+	 * @param toolInfo
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(Tree treeLeft, String pathFileLeft, Tree treeRight, String pathFileRight, Diff diff,
+			JsonElement toolInfo, Writer out) throws IOException {
+		JsonWriter writer = gson.newJsonWriter(out);
+		write(treeLeft, pathFileLeft, treeRight, pathFileRight, diff, toolInfo, writer);
+		writer.flush();
+	}
+
+	/**
+	 * Writes the TreeDiff in the same order than
+	 * {@link TreeDiffFormatBuilder#build(JsonElement, JsonElement, Diff, JsonElement)}
+	 *
+	 * @param treeLeft      the left tree, or null to not store it
+	 * @param pathFileLeft
+	 * @param treeRight     the right tree, or null to not store it
+	 * @param pathFileRight
+	 * @param diff
+	 * @param toolInfo
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void write(Tree treeLeft, String pathFileLeft, Tree treeRight, String pathFileRight, Diff diff,
+			JsonElement toolInfo, JsonWriter writer) throws IOException {
+		if (configuration.storeNodeTable) {
+			writeWithNodeTable((treeLeft != null) ? treeLeft : diff.src.getRoot(), pathFileLeft,
+					(treeRight != null) ? treeRight : diff.dst.getRoot(), pathFileRight, diff, toolInfo, writer);
+			return;
+		}
+		TreeDiffStringTable strings = configuration.createStringTable();
+
+		writer.beginObject();
+
+		writer.name("tool-info");
+		writeElement(toolInfo, writer);
+
+		writer.name("diff");
+		writeEditScript(diff, strings, writer);
+
+		writer.name("before-file");
+		writeFile(treeLeft, pathFileLeft, strings, writer);
+		writer.name("after-file");
+		writeFile(treeRight, pathFileRight, strings, writer);
+
+		writer.name("mapping");
+		if (configuration.storeMappings && configuration.compactMappings) {
+			writeElement(configuration.buildMapping(diff, null, null), writer);
+		} else if (configuration.storeMappings) {
+			writeMappings(diff.mappings, writer);
+		} else {
+			writer.beginObject().endObject();
+		}
+
+		writeStringTable(strings, writer);
+		writer.endObject();
+	}
+
+	/**
+	 * Writes the TreeDiff in node-table mode, in the same order than
+	 * {@link TreeDiffFormatBuilder#buildWithNodeTable(Tree, String, Tree, String, Diff, JsonElement)}
+	 *
+	 * @param treeLeft
+	 * @param pathFileLeft
+	 * @param treeRight
+	 * @param pathFileRight
+	 * @param diff
+	 * @param toolInfo
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void writeWithNodeTable(Tree treeLeft, String pathFileLeft, Tree treeRight, String pathFileRight,
+			Diff diff, JsonElement toolInfo, JsonWriter writer) throws IOException {
+		TreeNodeTable before = new TreeNodeTable(treeLeft);
+		TreeNodeTable after = new TreeNodeTable(treeRight);
+		TreeDiffStringTable strings = configuration.createStringTable();
+
+		writer.beginObject();
+
+		writer.name("tool-info");
+		writeElement(toolInfo, writer);
+
+		writer.name("diff");
+		writer.beginArray();
+		writeActions(diff, (iAction, type, chunkWriter) -> writeActionWithNodeIds(diff, iAction, type, before, after,
+				chunkWriter), writer);
+		writer.endArray();
+
+		writer.name("before-file");
+		writeNodeTable(before, pathFileLeft, strings, writer);
+		writer.name("after-file");
+		writeNodeTable(after, pathFileRight, strings, writer);
+
+		writer.name("mapping");
+		if (configuration.storeMappings && configuration.compactMappings) {
+			writeElement(configuration.buildMapping(diff, before, after), writer);
+		} else if (configuration.storeMappings) {
+			writer.beginArray();
+			for (Mapping oneMap : diff.mappings.asSet()) {
+				writer.beginObject();
+				writer.name("src").value(before.idOf(oneMap.first));
+				writer.name("dst").value(after.idOf(oneMap.second));
+				writer.endObject();
+			}
+			writer.endArray();
+		} else {
+			writer.beginObject().endObject();
+		}
+
+		writeStringTable(strings, writer);
+		writer.endObject();
+	}
+
+	/**
+	 * Writes "string-table", after the rest of the document, so the tables are
+	 * filled while the document is written.
+	 *
+	 * @param strings the tables, or null if nothing is interned
+	 * @param writer
+	 * @throws IOException
+	 */
+	protected void writeStringTable(TreeDiffStringTable strings, JsonWriter writer) throws IOException {
+		if (strings == null) {
+			return;
+		}
+		writer.name("string-table");
+		writer.beginObject();
+		if (strings.isInterningTypes()) {
+			writer.name("types");
+			writeStrings(strings.getTypes(), writer);
+		}
+		if (strings.isInterningLabels()) {
+			writer.name("labels");
+			writeStrings(strings.getLabels(), writer);
+		}
+		writer.endObject();
+	}
+
+	private void writeStrings(List<String> values, JsonWriter writer) throws IOException {
+		writer.beginArray();
+		for (String value : values) {
+			writer.value(value);
+		}
+		writer.endArray();
+	}
+
+	protected void writeActionWithNodeIds(Diff diff, Action iAction, TreeDiffActionType type, TreeNodeTable before,
+			TreeNodeTable after, JsonWriter writer) throws IOException {
+		Tree node = iAction.getNode();
+		String label = node.getLabel();
+
+		boolean writeNode = configuration.isWritten(TreeDiffFilter.Field.NODE);
+		boolean writeAfter = configuration.isWritten(TreeDiffFilter.Field.LOCATION_AFTER);
+
+		writer.beginObject();
+		writer.name("type").value(type.getJsonName());
+
+		if (type.isAddition()) {
+			if (writeNode) {
+				writer.name("node-id").value(after.idOf(node));
+			}
+			if (writeAfter) {
+				writer.name("location-after-char-start").value(node.getPos());
+				writer.name("location-after-char-end").value(node.getEndPos());
+			}
+		} else {
+			if (writeNode) {
+				writer.name("node-id").value(before.idOf(node));
+			}
+			if (configuration.isWritten(TreeDiffFilter.Field.LOCATION_BEFORE)) {
+				writer.name("location-before-char-start").value(node.getPos());
+				writer.name("location-before-char-end").value(node.getEndPos());
+			}
+			if (type.isMapped()) {
+				Tree dst = diff.mappings.getDstForSrc(node);
+				if (writeNode) {
+					writer.name("node-after-id").value(after.idOf(dst));
+				}
+				if (writeAfter) {
+					writer.name("location-after-char-start").value(dst.getPos());
+					writer.name("location-after-char-end").value(dst.getEndPos());
+				}
+				label = dst.getLabel();
+			}
+		}
+
+		writeEnd(label, writer);
+	}
+
+	protected void writeNodeTable(TreeNodeTable table, String path, TreeDiffStringTable strings, JsonWriter writer)
+			throws IOException {
+		writer.beginObject();
+		writer.name("path").value(path);
+		writer.name("nodes");
+		writer.beginArray();
+		TreeSnapshot snapshot = table.getSnapshot();
+		for (int id = 0; id < snapshot.size(); id++) {
+			writeSingleNode(snapshot, id, strings, writer);
+			writer.name("parent").value(snapshot.parentOf(id));
+			writer.name("start").value(snapshot.getPos(id));
+			writer.name("end").value(snapshot.getEndPos(id));
+			writer.endObject();
+		}
+		writer.endArray();
+		writer.endObject();
+	}
+
+	public void writeEditScript(Diff diff, JsonWriter writer) throws IOException {
+		writeEditScript(diff, null, writer);
+	}
+
+	/**
+	 * Writes the actions of the edit script.
+	 *
+	 * @param diff
+	 * @param strings the tables where the types and labels of the nodes are
+	 *                interned, or null
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void writeEditScript(Diff diff, TreeDiffStringTable strings, JsonWriter writer) throws IOException {
+		writer.beginArray();
+		if (strings != null) {
+			// the strings are interned in the order of the actions
+			for (Action iAction : diff.editScript.asList()) {
+				TreeDiffActionType type = TreeDiffActionType.of(iAction);
+				if (configuration.accept(diff, iAction, type)) {
+					writeAction(diff, iAction, type, strings, writer);
+				}
+			}
+		} else {
+			writeActions(diff, (iAction, type, chunkWriter) -> writeAction(diff, iAction, type, null, chunkWriter),
+					writer);
+		}
+		writer.endArray();
+	}
+
+	/**
+	 * Writes one action of the edit script.
+	 */
+	protected interface ActionWriter {
+		void write(Action action, TreeDiffActionType type, JsonWriter writer) throws IOException;
+	}
+
+	/**
+	 * Writes the actions accepted by the configuration into the array being
+	 * written. For a large edit script (see
+	 * {@link TreeDiffFormatConfig.Builder#setParallelSerializationThreshold(int)}), the
+	 * chunks of actions are written in parallel into buffers, by writers with the
+	 * same settings than the writer, and the buffers are copied into the writer in
+	 * the order of the chunks, so the output is the same. This requires a writer
+	 * that does not indent, created by the Gson of this writer.
+	 *
+	 * @param diff
+	 * @param actionWriter writes one action
+	 * @param writer
+	 * @throws IOException
+	 */
+	protected void writeActions(Diff diff, ActionWriter actionWriter, JsonWriter writer) throws IOException {
+		List<Action> actions = diff.editScript.asList();
+		if (!compact || actions.size() < configuration.parallelSerializationThreshold
+				|| actions.size() <= configuration.parallelSerializationChunkSize) {
+			writeActions(diff, actions, actionWriter, writer);
+			return;
+		}
+
+		List<String> chunks;
+		try {
+			chunks = configuration.convertInChunks(actions, chunk -> {
+				StringWriter buffer = new StringWriter();
+				try {
+					JsonWriter chunkWriter = gson.newJsonWriter(buffer);
+					chunkWriter.setSerializeNulls(writer.getSerializeNulls());
+					chunkWriter.setHtmlSafe(writer.isHtmlSafe());
+					chunkWriter.setLenient(writer.isLenient());
+					chunkWriter.beginArray();
+					writeActions(diff, chunk, actionWriter, chunkWriter);
+					chunkWriter.endArray();
+					chunkWriter.flush();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				// the actions, without the brackets of the array
+				return buffer.getBuffer().substring(1, buffer.getBuffer().length() - 1);
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		for (String chunk : chunks) {
+			if (!chunk.isEmpty()) {
+				// a value of the array, preceded by a comma if needed
+				writer.jsonValue(chunk);
+			}
+		}
+	}
+
+	private void writeActions(Diff diff, List<Action> actions, ActionWriter actionWriter, JsonWriter writer)
+			throws IOException {
+		for (Action iAction : actions) {
+			TreeDiffActionType type = TreeDiffActionType.of(iAction);
+			if (configuration.accept(diff, iAction, type)) {
+				actionWriter.write(iAction, type, writer);
+			}
+		}
+	}
+
+	/**
+	 * Writes one action, with the same properties than the ones created by
+	 * {@link TreeDiffFormatBuilder#buildEditScript(Diff)}
+	 *
+	 * @param diff
+	 * @param iAction
+	 * @param type
+	 * @param writer
+	 * @throws IOException
+	 */
+	protected void writeAction(Diff diff, Action iAction, TreeDiffActionType type, TreeDiffStringTable strings,
+			JsonWriter writer) throws IOException {
+		Tree node = iAction.getNode();
+
+		boolean writeAfter = configuration.isWritten(TreeDiffFilter.Field.LOCATION_AFTER);
+
+		writer.beginObject();
+		writer.name("type").value(type.getJsonName());
+		if (configuration.isWritten(TreeDiffFilter.Field.NODE)) {
+			writer.name("node");
+			if (configuration.storeTrees) {
+				writeTree(node, strings, writer);
+			} else {
+				writeSingleNode(node, strings, writer);
+				writer.endObject();
+			}
+		}
+
+		String label = node.getLabel();
+		if (type.isAddition()) {
+			if (writeAfter) {
+				writer.name("location-after-char-start").value(node.getPos());
+				writer.name("location-after-char-end").value(node.getEndPos());
+			}
+		} else {
+			if (configuration.isWritten(TreeDiffFilter.Field.LOCATION_BEFORE)) {
+				writer.name("location-before-char-start").value(node.getPos());
+				writer.name("location-before-char-end").value(node.getEndPos());
+			}
+			if (type.isMapped()) {
+				Tree dst = diff.mappings.getDstForSrc(node);
+				if (writeAfter) {
+					writer.name("location-after-char-start").value(dst.getPos());
+					writer.name("location-after-char-end").value(dst.getEndPos());
+				}
+				label = dst.getLabel();
+			}
+		}
+
+		writeEnd(label, writer);
+	}
+
+	/**
+	 * Writes the "node-str" and "meta" of an action, if they are not filtered
+	 * out, and closes it.
+	 */
+	private void writeEnd(String label, JsonWriter writer) throws IOException {
+		if (configuration.isWritten(TreeDiffFilter.Field.NODE_STR)) {
+			writer.name("node-str").value(label);
+		}
+		if (configuration.isWritten(TreeDiffFilter.Field.META)) {
+			writer.name("meta").nullValue();
+		}
+		writer.endObject();
+	}
+
+	/**
+	 * Writes the object of a file: its path and its tree, streamed from the tree
+	 * itself, without copying it.
+	 *
+	 * @param tree    the root of the tree, or null to write an empty object
+	 * @param path
+	 * @param strings the tables of strings, or null
+	 * @param writer
+	 * @throws IOException
+	 */
+	protected void writeFile(Tree tree, String path, TreeDiffStringTable strings, JsonWriter writer)
+			throws IOException {
+		writer.beginObject();
+		if (tree != null) {
+			writer.name("path").value(path);
+			writer.name("ast");
+			writeTree(tree, strings, writer);
+		}
+		writer.endObject();
+	}
+
+	/**
+	 * Writes a tree including its children. The tree is traversed with an explicit
+	 * stack, which holds the iterator over the children of each open node, so the
+	 * memory used grows with the depth of the tree and not with the thread stack.
+	 *
+	 * @param nodeTree
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void writeTree(Tree nodeTree, JsonWriter writer) throws IOException {
+		writeTree(nodeTree, null, writer);
+	}
+
+	/**
+	 * Writes a tree including its children, interning the types and labels.
+	 *
+	 * @param nodeTree
+	 * @param strings  the tables of strings, or null
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void writeTree(Tree nodeTree, TreeDiffStringTable strings, JsonWriter writer) throws IOException {
+		Deque<Iterator<Tree>> openNodes = new ArrayDeque<>();
+		openNode(nodeTree, strings, writer, openNodes);
+
+		while (!openNodes.isEmpty()) {
+			Iterator<Tree> children = openNodes.peek();
+			if (children.hasNext()) {
+				openNode(children.next(), strings, writer, openNodes);
+			} else {
+				openNodes.pop();
+				writer.endArray();
+				writer.endObject();
+			}
+		}
+	}
+
+	private void openNode(Tree node, TreeDiffStringTable strings, JsonWriter writer,
+			Deque<Iterator<Tree>> openNodes) throws IOException {
+		writeSingleNode(node, strings, writer);
+		writer.name("children");
+		writer.beginArray();
+		openNodes.push(node.getChildren().iterator());
+	}
+
+	/**
+	 * Writes a tree from its snapshot, with the same content as
+	 * {@link #writeTree(Tree, TreeDiffStringTable, JsonWriter)}. The nodes are
+	 * written in pre-order, the order of their ids; after the last node of a
+	 * subtree, the arrays of children and the objects of the nodes whose subtree
+	 * ends there are closed.
+	 *
+	 * @param snapshot
+	 * @param strings  the tables of strings, or null
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void writeTree(TreeSnapshot snapshot, TreeDiffStringTable strings, JsonWriter writer) throws IOException {
+		for (int id = 0; id < snapshot.size(); id++) {
+			writeSingleNode(snapshot, id, strings, writer);
+			writer.name("children");
+			writer.beginArray();
+			if (snapshot.firstChildOf(id) >= 0) {
+				continue;
+			}
+			// closes the node, and its ancestors of which it is the last node
+			int node = id;
+			while (node >= 0 && node + snapshot.subtreeSizeOf(node) == id + 1) {
+				writer.endArray();
+				writer.endObject();
+				node = snapshot.parentOf(node);
+			}
+		}
+	}
+
+	/**
+	 * Opens the object of a node of a snapshot and writes its label and type, or
+	 * their indexes when they are interned.
+	 *
+	 * @param snapshot
+	 * @param id       the id of the node
+	 * @param strings  the tables of strings, or null
+	 * @param writer
+	 * @throws IOException
+	 */
+	protected void writeSingleNode(TreeSnapshot snapshot, int id, TreeDiffStringTable strings, JsonWriter writer)
+			throws IOException {
+		writer.beginObject();
+		if (strings != null && strings.isInterningLabels()) {
+			writer.name("label").value(strings.indexOfLabel(snapshot.getLabel(id)));
+		} else {
+			writer.name("label").value(snapshot.getLabel(id));
+		}
+		if (strings != null && strings.isInterningTypes()) {
+			writer.name("type").value(strings.indexOfType(snapshot.getType(id)));
+		} else {
+			writer.name("type").value(snapshot.getType(id));
+		}
+	}
+
+	/**
+	 * Opens the object of a node and writes its label and type, or their indexes
+	 * when they are interned. The caller is responsible of closing the object.
+	 *
+	 * @param nodeTree
+	 * @param strings  the tables of strings, or null
+	 * @param writer
+	 * @throws IOException
+	 */
+	protected void writeSingleNode(Tree nodeTree, TreeDiffStringTable strings, JsonWriter writer)
+			throws IOException {
+		writer.beginObject();
+		if (strings != null && strings.isInterningLabels()) {
+			writer.name("label").value(strings.indexOfLabel(nodeTree.getLabel()));
+		} else {
+			writer.name("label").value(nodeTree.getLabel());
+		}
+		if (strings != null && strings.isInterningTypes()) {
+			writer.name("type").value(strings.indexOfType(nodeTree.getType().name));
+		} else {
+			writer.name("type").value(nodeTree.getType().name);
+		}
+	}
+
+	public void writeMappings(MappingStore mappings, JsonWriter writer) throws IOException {
+		writer.beginArray();
+		for (Mapping oneMap : mappings.asSet()) {
+			writer.beginObject();
+			writer.name("src");
+			writeMappedNode(oneMap.first, writer);
+			writer.name("dst");
+			writeMappedNode(oneMap.second, writer);
+			writer.endObject();
+		}
+		writer.endArray();
+	}
+
+	protected void writeMappedNode(Tree nodeT, JsonWriter writer) throws IOException {
+		writer.beginObject();
+		writer.name("node-str").value(nodeT.getLabel());
+		writer.name("start").value(nodeT.getPos());
+		writer.name("end").value(nodeT.getEndPos());
+		writer.endObject();
+	}
+
+	protected void writeElement(JsonElement element, JsonWriter writer) throws IOException {
+		if (element == null) {
+			writer.nullValue();
+		} else {
+			gson.toJson(element, writer);
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+package fr.gumtree.treediff.jdt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * The string tables of one TreeDiff document. When the types (and optionally the
+ * labels) are interned, the "type" and "label" of each node are the index of the
+ * string in the table, and the tables are stored at the end of the document in
+ * "string-table".
+ *
+ * The tables are filled while the document is written: a string receives the
+ * next index the first time it appears.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffStringTable {
+
+	protected final Map<String, Integer> typeIndexes;
+	protected final List<String> types;
+
+	protected final Map<String, Integer> labelIndexes;
+	protected final List<String> labels;
+
+	/**
+	 *
+	 * @param internTypes  indicates if the types of the nodes are interned
+	 * @param internLabels indicates if the labels of the nodes are interned
+	 */
+	public TreeDiffStringTable(boolean internTypes, boolean internLabels) {
+		super();
+		this.typeIndexes = (internTypes) ? new HashMap<>() : null;
+		this.types = (internTypes) ? new ArrayList<>() : null;
+		this.labelIndexes = (internLabels) ? new HashMap<>() : null;
+		this.labels = (internLabels) ? new ArrayList<>() : null;
+	}
+
+	public boolean isInterningTypes() {
+		return types != null;
+	}
+
+	public boolean isInterningLabels() {
+		return labels != null;
+	}
+
+	/**
+	 * Returns the index of the type, adding it to the table if it is new.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public int indexOfType(String type) {
+		return indexOf(type, typeIndexes, types);
+	}
+
+	/**
+	 * Returns the index of the label, adding it to the table if it is new.
+	 *
+	 * @param label
+	 * @return
+	 */
+	public int indexOfLabel(String label) {
+		return indexOf(label, labelIndexes, labels);
+	}
+
+	private static int indexOf(String value, Map<String, Integer> indexes, List<String> values) {
+		Integer index = indexes.get(value);
+		if (index == null) {
+			index = values.size();
+			indexes.put(value, index);
+			values.add(value);
+		}
+		return index;
+	}
+
+	/**
+	 *
+	 * @return the interned types, in order of index, or null if the types are not
+	 *         interned
+	 */
+	public List<String> getTypes() {
+		return (types != null) ? Collections.unmodifiableList(types) : null;
+	}
+
+	/**
+	 *
+	 * @return the interned labels, in order of index, or null if the labels are
+	 *         not interned
+	 */
+	public List<String> getLabels() {
+		return (labels != null) ? Collections.unmodifiableList(labels) : null;
+	}
+
+	/**
+	 * Creates the "string-table" of the document, with the arrays "types" and/or
+	 * "labels".
+	 *
+	 * @return
+	 */
+	public JsonObject toJson() {
+		JsonObject table = new JsonObject();
+		if (types != null) {
+			table.add("types", toJsonArray(types));
+		}
+		if (labels != null) {
+			table.add("labels", toJsonArray(labels));
+		}
+		return table;
+	}
+
+	private static JsonArray toJsonArray(List<String> values) {
+		JsonArray array = new JsonArray(values.size());
+		for (String value : values) {
+			array.add(value);
+		}
+		return array;
+	}
+
+}
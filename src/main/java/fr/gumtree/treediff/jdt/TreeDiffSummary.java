@@ -0,0 +1,275 @@
+package fr.gumtree.treediff.jdt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.github.gumtreediff.actions.Diff;
+import com.github.gumtreediff.actions.model.Action;
+import com.github.gumtreediff.tree.FakeTree;
+import com.github.gumtreediff.tree.Tree;
+import com.github.gumtreediff.tree.Type;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Counts the actions of edit scripts, without creating their JSON: by kind of
+ * action (see {@link TreeDiffActionType}), by type of node, by depth of the
+ * node, and by declaration enclosing the node. The counts are kept in arrays
+ * indexed by kind, and by the id of the type or the depth.
+ *
+ * The node of an insertion is in the right tree; the node of the other actions
+ * is in the left tree. The enclosing declaration is the closest ancestor that
+ * declares a type, a member or an initializer, named by the names of the
+ * declarations containing it (e.g. {@code Foo.Inner.bar}); the actions outside
+ * any declaration are counted in {@link #NO_DECLARATION}.
+ *
+ * Several diffs can be added to the same summary. A summary is not
+ * thread-safe.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffSummary {
+
+	public static final String NO_DECLARATION = "CompilationUnit";
+
+	static final Set<String> DECLARATION_TYPES = new HashSet<>(Arrays.asList("TypeDeclaration", "EnumDeclaration",
+			"AnnotationTypeDeclaration", "MethodDeclaration", "FieldDeclaration", "Initializer",
+			"EnumConstantDeclaration", "AnnotationTypeMemberDeclaration"));
+
+	private static final TreeDiffActionType[] KINDS = TreeDiffActionType.values();
+
+	protected int actions = 0;
+	protected final int[] byKind = new int[KINDS.length];
+
+	/** the ids of the types, in order of appearance */
+	protected final Map<Type, Integer> typeIds = new IdentityHashMap<>();
+	protected final List<Type> types = new ArrayList<>();
+	/** count of (type id, kind) at typeId * kinds + kind */
+	protected int[] byType = new int[16 * KINDS.length];
+	/** count of (depth, kind) at depth * kinds + kind */
+	protected int[] byDepth = new int[16 * KINDS.length];
+	protected int maxDepth = -1;
+
+	protected final Map<String, int[]> byDeclaration = new LinkedHashMap<>();
+
+	/**
+	 * Counts the actions of the edit script of a diff.
+	 *
+	 * @param diff
+	 */
+	public void add(Diff diff) {
+		add(diff, null);
+	}
+
+	/**
+	 * Counts the actions of the edit script of a diff kept by a filter.
+	 *
+	 * @param diff
+	 * @param filter the filter, or null to count all the actions
+	 */
+	public void add(Diff diff, TreeDiffFilter filter) {
+		// the names of the declarations of this diff
+		Map<Tree, String> names = new IdentityHashMap<>();
+		for (Action action : diff.editScript.asList()) {
+			TreeDiffActionType type = TreeDiffActionType.of(action);
+			if (filter == null || filter.accept(diff, action, type)) {
+				add(action, type, names);
+			}
+		}
+	}
+
+	private void add(Action action, TreeDiffActionType type, Map<Tree, String> names) {
+		int kind = type.ordinal();
+		Tree node = action.getNode();
+
+		actions++;
+		byKind[kind]++;
+
+		Type nodeType = node.getType();
+		Integer typeId = typeIds.get(nodeType);
+		if (typeId == null) {
+			typeId = types.size();
+			typeIds.put(nodeType, typeId);
+			types.add(nodeType);
+		}
+		byType = increment(byType, typeId * KINDS.length + kind);
+
+		int depth = 0;
+		Tree declaration = null;
+		for (Tree parent = node.getParent(); parent != null && !(parent instanceof FakeTree); parent = parent
+				.getParent()) {
+			if (declaration == null && DECLARATION_TYPES.contains(parent.getType().name)) {
+				declaration = parent;
+			}
+			depth++;
+		}
+		byDepth = increment(byDepth, depth * KINDS.length + kind);
+		maxDepth = Math.max(maxDepth, depth);
+
+		String name = (declaration == null) ? NO_DECLARATION
+				: names.computeIfAbsent(declaration, TreeDiffSummary::qualifiedName);
+		byDeclaration.computeIfAbsent(name, k -> new int[KINDS.length])[kind]++;
+	}
+
+	private static int[] increment(int[] counts, int index) {
+		if (index >= counts.length) {
+			counts = Arrays.copyOf(counts, Math.max(counts.length * 2, index + KINDS.length));
+		}
+		counts[index]++;
+		return counts;
+	}
+
+	/**
+	 * Returns the names of the declarations containing a declaration, and its
+	 * name, separated by dots.
+	 */
+	static String qualifiedName(Tree declaration) {
+		List<String> names = new ArrayList<>();
+		for (Tree node = declaration; node != null && !(node instanceof FakeTree); node = node.getParent()) {
+			if (DECLARATION_TYPES.contains(node.getType().name)) {
+				names.add(nameOf(node));
+			}
+		}
+		StringBuilder name = new StringBuilder();
+		for (int i = names.size() - 1; i >= 0; i--) {
+			name.append(names.get(i));
+			if (i > 0) {
+				name.append('.');
+			}
+		}
+		return name.toString();
+	}
+
+	/**
+	 * The name of a declaration: its simple name, the names of its variables for
+	 * a field, and the type for an initializer.
+	 */
+	private static String nameOf(Tree declaration) {
+		String type = declaration.getType().name;
+		if (type.equals("FieldDeclaration")) {
+			StringBuilder name = new StringBuilder();
+			for (Tree child : declaration.getChildren()) {
+				if (child.getType().name.equals("VariableDeclarationFragment")) {
+					if (name.length() > 0) {
+						name.append(',');
+					}
+					name.append(simpleNameOf(child, "?"));
+				}
+			}
+			return name.toString();
+		}
+		return simpleNameOf(declaration, "<" + type + ">");
+	}
+
+	private static String simpleNameOf(Tree node, String defaultName) {
+		for (Tree child : node.getChildren()) {
+			if (child.getType().name.equals("SimpleName")) {
+				return child.getLabel();
+			}
+		}
+		return defaultName;
+	}
+
+	/**
+	 *
+	 * @return the number of actions counted
+	 */
+	public int getActions() {
+		return actions;
+	}
+
+	/**
+	 *
+	 * @param kind
+	 * @return the number of actions of a kind
+	 */
+	public int getCount(TreeDiffActionType kind) {
+		return byKind[kind.ordinal()];
+	}
+
+	/**
+	 *
+	 * @param type the name of a type of node
+	 * @param kind
+	 * @return the number of actions of a kind on nodes of a type
+	 */
+	public int getCount(String type, TreeDiffActionType kind) {
+		for (int id = 0; id < types.size(); id++) {
+			if (types.get(id).name.equals(type)) {
+				return byType[id * KINDS.length + kind.ordinal()];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 *
+	 * @param depth the depth of the node, 0 for the root
+	 * @param kind
+	 * @return the number of actions of a kind on nodes at a depth
+	 */
+	public int getCountAtDepth(int depth, TreeDiffActionType kind) {
+		return (depth > maxDepth) ? 0 : byDepth[depth * KINDS.length + kind.ordinal()];
+	}
+
+	/**
+	 *
+	 * @param declaration the qualified name of a declaration
+	 * @param kind
+	 * @return the number of actions of a kind on nodes inside a declaration
+	 */
+	public int getCountInDeclaration(String declaration, TreeDiffActionType kind) {
+		int[] counts = byDeclaration.get(declaration);
+		return (counts == null) ? 0 : counts[kind.ordinal()];
+	}
+
+	/**
+	 * Creates the json of the summary. Each group of counts is an object with
+	 * the name of each kind of action (only the kinds with actions).
+	 *
+	 * @return
+	 */
+	public JsonObject toJson() {
+		JsonObject summary = new JsonObject();
+		summary.addProperty("actions", actions);
+		summary.add("by-kind", countsToJson(byKind, 0));
+
+		JsonObject typesJson = new JsonObject();
+		for (int id = 0; id < types.size(); id++) {
+			typesJson.add(types.get(id).name, countsToJson(byType, id * KINDS.length));
+		}
+		summary.add("by-type", typesJson);
+
+		JsonArray depthsJson = new JsonArray();
+		for (int depth = 0; depth <= maxDepth; depth++) {
+			depthsJson.add(countsToJson(byDepth, depth * KINDS.length));
+		}
+		summary.add("by-depth", depthsJson);
+
+		JsonObject declarationsJson = new JsonObject();
+		for (Map.Entry<String, int[]> declaration : byDeclaration.entrySet()) {
+			declarationsJson.add(declaration.getKey(), countsToJson(declaration.getValue(), 0));
+		}
+		summary.add("by-declaration", declarationsJson);
+		return summary;
+	}
+
+	private static JsonObject countsToJson(int[] counts, int offset) {
+		JsonObject countsJson = new JsonObject();
+		for (TreeDiffActionType kind : KINDS) {
+			int count = counts[offset + kind.ordinal()];
+			if (count > 0) {
+				countsJson.addProperty(kind.getJsonName(), count);
+			}
+		}
+		return countsJson;
+	}
+
+}
@@ -0,0 +1,20 @@
+package fr.gumtree.treediff.jdt;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a diff exceeds the time budget of its
+ * {@link TreeDiffMatchingStrategy} and the strategy cancels it.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeDiffTimeoutException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public TreeDiffTimeoutException(String message) {
+		super(message);
+	}
+
+}
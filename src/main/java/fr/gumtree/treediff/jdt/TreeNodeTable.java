@@ -0,0 +1,84 @@
+package fr.gumtree.treediff.jdt;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.gumtreediff.tree.Tree;
+
+/**
+ * Assigns to each node of a tree a stable id: its index in the pre-order
+ * traversal of the tree. The root has id 0.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeNodeTable {
+
+	protected final List<Tree> nodes;
+
+	protected final int[] parents;
+
+	protected final Map<Tree, Integer> ids;
+
+	protected TreeSnapshot snapshot = null;
+
+	public TreeNodeTable(Tree root) {
+		super();
+		this.nodes = new ArrayList<>();
+		this.ids = new IdentityHashMap<>();
+		for (Tree node : root.preOrder()) {
+			ids.put(node, nodes.size());
+			nodes.add(node);
+		}
+		this.parents = new int[nodes.size()];
+		for (int i = 0; i < parents.length; i++) {
+			Tree node = nodes.get(i);
+			parents[i] = (node == root) ? -1 : ids.get(node.getParent());
+		}
+	}
+
+	/**
+	 *
+	 * @param node a node of the tree
+	 * @return the id of the node
+	 * @throws IllegalArgumentException if the node does not belong to the tree
+	 */
+	public int idOf(Tree node) {
+		Integer id = ids.get(node);
+		if (id == null) {
+			throw new IllegalArgumentException("The node does not belong to the tree: " + node);
+		}
+		return id;
+	}
+
+	public Tree get(int id) {
+		return nodes.get(id);
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return the id of the parent of the node, -1 for the root
+	 */
+	public int parentOf(int id) {
+		return parents[id];
+	}
+
+	public int size() {
+		return nodes.size();
+	}
+
+	/**
+	 *
+	 * @return the snapshot of the tree, whose nodes have the same ids
+	 */
+	public TreeSnapshot getSnapshot() {
+		if (snapshot == null) {
+			snapshot = new TreeSnapshot(nodes.get(0));
+		}
+		return snapshot;
+	}
+
+}
@@ -0,0 +1,244 @@
+package fr.gumtree.treediff.jdt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.gumtreediff.tree.Tree;
+import com.github.gumtreediff.tree.TreeContext;
+import com.github.gumtreediff.tree.Type;
+
+/**
+ * A copy of a tree as columns of ints, one entry per node, indexed by the id of
+ * the node: its index in the pre-order traversal, as in {@link TreeNodeTable}.
+ * The types and the labels are kept once, in pools, and the nodes refer to
+ * them by index.
+ *
+ * Serializing a snapshot reads consecutive entries of a few arrays instead of
+ * following the references between the nodes of the tree, and a snapshot
+ * keeps no reference to the tree, so the tree can be released once the
+ * snapshot is created.
+ *
+ * @author Matias Martinez
+ *
+ */
+public class TreeSnapshot {
+
+	protected final int size;
+	protected final int[] types;
+	protected final int[] labels;
+	protected final int[] positions;
+	protected final int[] lengths;
+	protected final int[] parents;
+	/** the id of the first child of each node, -1 for a leaf */
+	protected final int[] firstChildren;
+	/** the number of nodes of the subtree of each node, including it */
+	protected final int[] subtreeSizes;
+
+	protected final String[] typeNames;
+	protected final String[] labelPool;
+
+	public TreeSnapshot(TreeContext context) {
+		this(context.getRoot());
+	}
+
+	/**
+	 * Creates the snapshot in one traversal of the tree.
+	 *
+	 * @param root
+	 */
+	public TreeSnapshot(Tree root) {
+		super();
+		int capacity = 64;
+		int[] types = new int[capacity];
+		int[] labels = new int[capacity];
+		int[] positions = new int[capacity];
+		int[] lengths = new int[capacity];
+		int[] parents = new int[capacity];
+		int[] firstChildren = new int[capacity];
+
+		Map<Type, Integer> typeIds = new IdentityHashMap<>();
+		List<String> typeNames = new ArrayList<>();
+		Map<String, Integer> labelIds = new HashMap<>();
+		List<String> labelPool = new ArrayList<>();
+
+		// the nodes to visit, and the ids of their parents at the same depth of the stack
+		Deque<Tree> nodes = new ArrayDeque<>();
+		int[] nodeParents = new int[16];
+		nodes.push(root);
+		nodeParents[0] = -1;
+		int n = 0;
+		while (!nodes.isEmpty()) {
+			Tree node = nodes.pop();
+			int parent = nodeParents[nodes.size()];
+			if (n == capacity) {
+				capacity *= 2;
+				types = Arrays.copyOf(types, capacity);
+				labels = Arrays.copyOf(labels, capacity);
+				positions = Arrays.copyOf(positions, capacity);
+				lengths = Arrays.copyOf(lengths, capacity);
+				parents = Arrays.copyOf(parents, capacity);
+				firstChildren = Arrays.copyOf(firstChildren, capacity);
+			}
+
+			Type type = node.getType();
+			Integer typeId = typeIds.get(type);
+			if (typeId == null) {
+				typeId = typeNames.size();
+				typeIds.put(type, typeId);
+				typeNames.add(type.name);
+			}
+			String label = node.getLabel();
+			Integer labelId = labelIds.get(label);
+			if (labelId == null) {
+				labelId = labelPool.size();
+				labelIds.put(label, labelId);
+				labelPool.add(label);
+			}
+
+			types[n] = typeId;
+			labels[n] = labelId;
+			positions[n] = node.getPos();
+			lengths[n] = node.getLength();
+			parents[n] = parent;
+			firstChildren[n] = -1;
+			// the children are visited in order, so the first one visited is the first
+			if (parent >= 0 && firstChildren[parent] < 0) {
+				firstChildren[parent] = n;
+			}
+
+			List<Tree> children = node.getChildren();
+			if (nodes.size() + children.size() > nodeParents.length) {
+				nodeParents = Arrays.copyOf(nodeParents,
+						Math.max(nodeParents.length * 2, nodes.size() + children.size()));
+			}
+			for (int i = children.size() - 1; i >= 0; i--) {
+				nodeParents[nodes.size()] = n;
+				nodes.push(children.get(i));
+			}
+			n++;
+		}
+
+		this.size = n;
+		this.types = Arrays.copyOf(types, n);
+		this.labels = Arrays.copyOf(labels, n);
+		this.positions = Arrays.copyOf(positions, n);
+		this.lengths = Arrays.copyOf(lengths, n);
+		this.parents = Arrays.copyOf(parents, n);
+		this.firstChildren = Arrays.copyOf(firstChildren, n);
+		this.subtreeSizes = new int[n];
+		Arrays.fill(subtreeSizes, 1);
+		// a node comes after its parent in pre-order
+		for (int id = n - 1; id > 0; id--) {
+			subtreeSizes[this.parents[id]] += subtreeSizes[id];
+		}
+		this.typeNames = typeNames.toArray(new String[0]);
+		this.labelPool = labelPool.toArray(new String[0]);
+	}
+
+	/**
+	 *
+	 * @return the number of nodes
+	 */
+	public int size() {
+		return size;
+	}
+
+	public String getType(int id) {
+		return typeNames[types[id]];
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return the index of the type of the node in the pool of types
+	 */
+	public int getTypeId(int id) {
+		return types[id];
+	}
+
+	public String getLabel(int id) {
+		return labelPool[labels[id]];
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return the index of the label of the node in the pool of labels
+	 */
+	public int getLabelId(int id) {
+		return labels[id];
+	}
+
+	public int getPos(int id) {
+		return positions[id];
+	}
+
+	public int getLength(int id) {
+		return lengths[id];
+	}
+
+	public int getEndPos(int id) {
+		return positions[id] + lengths[id];
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return the id of the parent of the node, -1 for the root
+	 */
+	public int parentOf(int id) {
+		return parents[id];
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return the id of the first child of the node, -1 if it has no children
+	 */
+	public int firstChildOf(int id) {
+		return firstChildren[id];
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return the id of the next sibling of the node, -1 if it is the last child
+	 */
+	public int nextSiblingOf(int id) {
+		int parent = parents[id];
+		int next = id + subtreeSizes[id];
+		return (parent >= 0 && next < parent + subtreeSizes[parent]) ? next : -1;
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return the number of nodes of the subtree of the node, including it
+	 */
+	public int subtreeSizeOf(int id) {
+		return subtreeSizes[id];
+	}
+
+	/**
+	 *
+	 * @return the number of distinct types
+	 */
+	public int getTypeCount() {
+		return typeNames.length;
+	}
+
+	/**
+	 *
+	 * @return the number of distinct labels
+	 */
+	public int getLabelCount() {
+		return labelPool.length;
+	}
+
+}
@@ -0,0 +1,117 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.github.gumtreediff.tree.TreeContext;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
+public class TreeContextCacheTest {
+
+	static final String V1 = "class Main {\n void foo() {\n a.b();\n }\n}\n";
+	static final String V2 = "class Main {\n void foo() {\n a.b(1);\n }\n}\n";
+	static final String V3 = "class Main {\n void foo() {\n a.b(1, 2);\n }\n}\n";
+
+	@Test
+	public void testHitsAndMisses() throws IOException {
+		TreeContextCache cache = new TreeContextCache(10_000);
+
+		TreeContext first = cache.get(V1.getBytes(StandardCharsets.UTF_8));
+		TreeContext second = cache.get(V1.getBytes(StandardCharsets.UTF_8));
+		TreeContext other = cache.get(V2.getBytes(StandardCharsets.UTF_8));
+
+		// a copy of the cached tree
+		assertNotSame(first.getRoot(), second.getRoot());
+		assertTrue(first.getRoot().isIsomorphicTo(second.getRoot()));
+		assertFalse(first.getRoot().isIsomorphicTo(other.getRoot()));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		assertEquals(0, cache.getEvictions());
+		assertEquals(2, cache.size());
+		assertEquals(first.getRoot().getMetrics().size + other.getRoot().getMetrics().size, cache.getNodes());
+	}
+
+	@Test
+	public void testEvictionLeastRecentlyUsed() throws IOException {
+		TreeContextCache sizes = new TreeContextCache(10_000);
+		int size1 = sizes.get(V1.getBytes(StandardCharsets.UTF_8)).getRoot().getMetrics().size;
+		int size2 = sizes.get(V2.getBytes(StandardCharsets.UTF_8)).getRoot().getMetrics().size;
+		int size3 = sizes.get(V3.getBytes(StandardCharsets.UTF_8)).getRoot().getMetrics().size;
+		// room for V1 and one of the other two trees
+		TreeContextCache cache = new TreeContextCache(size1 + Math.max(size2, size3));
+
+		cache.get(V1.getBytes(StandardCharsets.UTF_8));
+		cache.get(V2.getBytes(StandardCharsets.UTF_8));
+		// V1 becomes the most recently used
+		cache.get(V1.getBytes(StandardCharsets.UTF_8));
+		cache.get(V3.getBytes(StandardCharsets.UTF_8));
+
+		assertEquals(1, cache.getEvictions());
+		assertEquals(size1 + size3, cache.getNodes());
+		cache.get(V1.getBytes(StandardCharsets.UTF_8));
+		assertEquals(2, cache.getHits());
+
+		cache.get(V2.getBytes(StandardCharsets.UTF_8));
+		assertEquals(4, cache.getMisses());
+	}
+
+	@Test
+	public void testBuildWithCache() throws IOException {
+		File v1 = TreeDiffBatchBuilderTest.createJavaFile(V1);
+		File v2 = TreeDiffBatchBuilderTest.createJavaFile(V2);
+		File v3 = TreeDiffBatchBuilderTest.createJavaFile(V3);
+
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(true, false);
+		TreeContextCache cache = new TreeContextCache(10_000);
+		TreeDiffFormatBuilder cachedBuilder = new TreeDiffFormatBuilder(
+				TreeDiffFormatConfig.builder().setStoreTrees(true).setTreeContextCache(cache).build());
+
+		Gson gson = new Gson();
+		assertEquals(gson.toJson(builder.build(v1, v2, "gumtree", "3.0.0")),
+				gson.toJson(cachedBuilder.build(v1, v2, "gumtree", "3.0.0")));
+		// v2 is the "after" of the previous diff and the "before" of this one
+		assertEquals(gson.toJson(builder.build(v2, v3, "gumtree", "3.0.0")),
+				gson.toJson(cachedBuilder.build(v2, v3, "gumtree", "3.0.0")));
+
+		assertEquals(1, cache.getHits());
+		assertEquals(3, cache.getMisses());
+
+		// the same tree on both sides
+		JsonElement same = cachedBuilder.build(v3, v3, "gumtree", "3.0.0");
+		assertEquals(0, same.getAsJsonObject().get("diff").getAsJsonArray().size());
+	}
+
+	@Test
+	public void testCopy() throws IOException {
+		TreeContextCache cache = new TreeContextCache(10_000);
+		TreeContext context = new TreeDiffParser().generateFrom().string(TreeDiffStreamWriterTest.INPUT_LEFT);
+
+		TreeContext copy = cache.copy(context);
+		assertNotSame(context.getRoot(), copy.getRoot());
+		assertTrue(context.getRoot().isIsomorphicTo(copy.getRoot()));
+		Gson gson = new Gson();
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder();
+		assertEquals(gson.toJson(builder.convertTreeToJSon(context.getRoot(), null)),
+				gson.toJson(builder.convertTreeToJSon(copy.getRoot(), null)));
+	}
+
+	@Test
+	public void testCopyDeepTree() {
+		int depth = 200_000;
+		TreeContext context = new TreeContext();
+		context.setRoot(TreeDiffFormatBuilderTest.createChain(depth));
+
+		TreeContext copy = new TreeContextCache(10).copy(context);
+		assertEquals(depth, copy.getRoot().getMetrics().size);
+	}
+
+}
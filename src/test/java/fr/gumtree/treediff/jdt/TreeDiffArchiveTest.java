@@ -0,0 +1,138 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
+import fr.gumtree.treediff.jdt.TreeDiffShardWriter.Compression;
+
+public class TreeDiffArchiveTest {
+
+	static File createArchive(Compression compression, int documents) throws IOException {
+		File directory = TreeDiffResultCacheTest.createDirectory();
+		try (TreeDiffShardWriter writer = new TreeDiffShardWriter(directory, "diffs", compression, 1L << 30, 70, 2_000,
+				16)) {
+			for (int i = 0; i < documents; i++) {
+				writer.append("commit" + (i / 10) + ":src/File" + i + ".java", TreeDiffShardWriterTest.document(i));
+			}
+		}
+		TreeDiffArchive.writeIndex(directory, "diffs");
+		return directory;
+	}
+
+	@Test
+	public void testRead() throws IOException {
+		for (Compression compression : Compression.values()) {
+			File directory = createArchive(compression, 300);
+			try (TreeDiffArchive archive = new TreeDiffArchive(directory, "diffs")) {
+				assertEquals(300, archive.size());
+				for (int i = 0; i < 300; i++) {
+					String key = "commit" + (i / 10) + ":src/File" + i + ".java";
+					assertTrue(archive.contains(key));
+					assertEquals(compression.name(), TreeDiffShardWriterTest.document(i),
+							new String(archive.read(key), StandardCharsets.UTF_8));
+				}
+				assertFalse(archive.contains("commit0:src/File300.java"));
+				assertNull(archive.read("commit0:src/File300.java"));
+				assertNull(archive.get("other"));
+			}
+		}
+	}
+
+	@Test
+	public void testLastDocumentOfKey() throws IOException {
+		File directory = TreeDiffResultCacheTest.createDirectory();
+		try (TreeDiffShardWriter writer = new TreeDiffShardWriter(directory, "diffs", Compression.NONE, 1L << 30, 2,
+				1 << 20, 16)) {
+			writer.append("a", "{\"v\":1}");
+			writer.append("b", "{\"v\":2}");
+			writer.append("a", "{\"v\":3}");
+		}
+		TreeDiffArchive.writeIndex(directory, "diffs");
+		try (TreeDiffArchive archive = new TreeDiffArchive(directory, "diffs")) {
+			assertEquals(2, archive.size());
+			assertEquals(3, archive.get("a").getAsJsonObject().get("v").getAsInt());
+			assertEquals(2, archive.get("b").getAsJsonObject().get("v").getAsInt());
+		}
+	}
+
+	@Test
+	public void testTreeDiffs() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT);
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(true, true);
+		JsonElement forward = builder.build(left, right, "test", "1");
+		JsonElement backward = builder.build(right, left, "test", "1");
+
+		File directory = TreeDiffResultCacheTest.createDirectory();
+		try (TreeDiffShardWriter writer = new TreeDiffShardWriter(directory, "diffs",
+				Compression.GZIP_BLOCKS)) {
+			writer.append("forward", forward);
+			writer.append("backward", backward);
+		}
+		TreeDiffArchive.writeIndex(directory, "diffs");
+		try (TreeDiffArchive archive = new TreeDiffArchive(directory, "diffs")) {
+			// the nulls are not written
+			assertEquals(new Gson().toJson(forward), archive.get("forward").toString());
+			assertEquals(new Gson().toJson(backward), archive.get("backward").toString());
+		}
+	}
+
+	@Test
+	public void testShardNames() throws IOException {
+		File directory = TreeDiffResultCacheTest.createDirectory();
+		// shards written in this order, the last one past %05d
+		String[] names = { "diffs-99999", "diffs-100000" };
+		for (int i = 0; i < names.length; i++) {
+			Files.write(new File(directory, names[i] + Compression.NONE.getExtension()).toPath(),
+					("{\"v\":" + i + "}\n").getBytes(StandardCharsets.UTF_8));
+			Files.write(
+					new File(directory,
+							names[i] + Compression.NONE.getExtension() + TreeDiffShardWriter.INDEX_EXTENSION).toPath(),
+					("a\t0\t0\t7\n" + names[i] + "\t0\t0\t7\n").getBytes(StandardCharsets.UTF_8));
+		}
+		// the shards of another prefix
+		Files.write(new File(directory, "diffs-other-00000" + Compression.NONE.getExtension()).toPath(),
+				"{\"v\":7}\n".getBytes(StandardCharsets.UTF_8));
+		Files.write(new File(directory, "diffs-other-00000" + Compression.NONE.getExtension()
+				+ TreeDiffShardWriter.INDEX_EXTENSION).toPath(), "a\t0\t0\t7\n".getBytes(StandardCharsets.UTF_8));
+
+		TreeDiffArchive.writeIndex(directory, "diffs");
+		try (TreeDiffArchive archive = new TreeDiffArchive(directory, "diffs")) {
+			assertEquals(3, archive.size());
+			assertTrue(archive.contains("diffs-99999"));
+			assertTrue(archive.contains("diffs-100000"));
+			// the last shard written has the last document of the key
+			assertEquals(1, archive.get("a").getAsJsonObject().get("v").getAsInt());
+			assertEquals(0, archive.get("diffs-99999").getAsJsonObject().get("v").getAsInt());
+		}
+		assertTrue(TreeDiffArchive.shardNamePattern("diffs").matcher("diffs-00012.ndjson.gz").matches());
+		assertFalse(TreeDiffArchive.shardNamePattern("diffs").matcher("diffs-00012.ndjson.idx").matches());
+		assertFalse(TreeDiffArchive.shardNamePattern("diffs").matcher("diffs-other-00000.ndjson").matches());
+	}
+
+	@Test
+	public void testNotAnIndex() throws IOException {
+		File directory = TreeDiffResultCacheTest.createDirectory();
+		Files.write(new File(directory, "diffs" + TreeDiffArchive.INDEX_EXTENSION).toPath(),
+				new byte[40]);
+		try {
+			new TreeDiffArchive(directory, "diffs").close();
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+}
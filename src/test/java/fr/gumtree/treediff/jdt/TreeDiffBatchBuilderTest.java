@@ -0,0 +1,210 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
+import fr.gumtree.treediff.jdt.TreeDiffBatchBuilder.FilePair;
+import fr.gumtree.treediff.jdt.TreeDiffBatchBuilder.Result;
+
+public class TreeDiffBatchBuilderTest {
+
+	static File createJavaFile(String content) throws IOException {
+		File file = File.createTempFile("batch", ".java");
+		file.deleteOnExit();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	static List<FilePair> createPairs(int n) throws IOException {
+		List<FilePair> pairs = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			File left = createJavaFile("class Main {\n void foo() {\n a.b(" + i + ");\n }\n}\n");
+			File right = createJavaFile("class Main {\n void foo() {\n a.b(" + (i + 1) + ", x);\n }\n}\n");
+			pairs.add(new FilePair(left, right));
+		}
+		return pairs;
+	}
+
+	@Test
+	public void testOrderedWithFailure() throws Exception {
+		List<FilePair> pairs = createPairs(20);
+		pairs.add(7, new FilePair(new File("does-not-exist-left.java"), new File("does-not-exist-right.java")));
+
+		// the order of the mappings depends on the identity of the parsed nodes
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(true, false);
+
+		List<Result> results;
+		try (TreeDiffBatchBuilder batch = new TreeDiffBatchBuilder(builder, 4, true)) {
+			results = batch.build(pairs, "gumtree", "3.0.0");
+		}
+
+		assertEquals(pairs.size(), results.size());
+		Gson gson = new Gson();
+		for (int i = 0; i < results.size(); i++) {
+			Result result = results.get(i);
+			assertEquals(i, result.index);
+			assertEquals(pairs.get(i), result.pair);
+			if (i == 7) {
+				assertFalse(result.isSuccess());
+				assertNotNull(result.error);
+			} else {
+				assertTrue(result.isSuccess());
+				FilePair pair = pairs.get(i);
+				assertEquals(gson.toJson(builder.build(pair.left, pair.right, "gumtree", "3.0.0")),
+						gson.toJson(result.treeDiff));
+			}
+		}
+	}
+
+	@Test
+	public void testUnorderedStream() throws Exception {
+		List<FilePair> pairs = createPairs(30);
+
+		List<Long> delivered = Collections.synchronizedList(new ArrayList<>());
+		try (TreeDiffBatchBuilder batch = new TreeDiffBatchBuilder(new TreeDiffFormatBuilder(),
+				new ForkJoinPool(3), true, 2, false)) {
+			batch.build(pairs.stream(), "gumtree", "3.0.0", r -> {
+				assertTrue(r.isSuccess());
+				delivered.add(r.index);
+			});
+		}
+
+		assertEquals(pairs.size(), delivered.size());
+		Set<Long> indexes = new HashSet<>(delivered);
+		assertEquals(pairs.size(), indexes.size());
+	}
+
+	@Test(timeout = 60_000)
+	public void testFailingIterator() throws Exception {
+		List<FilePair> pairs = createPairs(5);
+		Iterator<FilePair> iterator = new Iterator<FilePair>() {
+			int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return true;
+			}
+
+			@Override
+			public FilePair next() {
+				if (next == pairs.size()) {
+					throw new IllegalStateException("broken source");
+				}
+				return pairs.get(next++);
+			}
+		};
+
+		List<Result> delivered = Collections.synchronizedList(new ArrayList<>());
+		try (TreeDiffBatchBuilder batch = new TreeDiffBatchBuilder(new TreeDiffFormatBuilder(),
+				new ForkJoinPool(2), true, 2, true)) {
+			batch.build(iterator, "gumtree", "3.0.0", delivered::add);
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals("broken source", e.getMessage());
+		}
+		// the pairs submitted before the failure are delivered
+		assertEquals(pairs.size(), delivered.size());
+	}
+
+	@Test(timeout = 60_000)
+	public void testMaxPending() throws Exception {
+		List<FilePair> pairs = createPairs(10);
+		CountDownLatch release = new CountDownLatch(1);
+		TreeDiffFormatBuilder blocking = new TreeDiffFormatBuilder() {
+			@Override
+			public JsonElement build(File fileLeft, File fileRight, String algorithmName, String algorithmVersion)
+					throws IOException {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.build(fileLeft, fileRight, algorithmName, algorithmVersion);
+			}
+		};
+		AtomicInteger pulled = new AtomicInteger();
+		Iterator<FilePair> iterator = new Iterator<FilePair>() {
+			@Override
+			public boolean hasNext() {
+				return pulled.get() < pairs.size();
+			}
+
+			@Override
+			public FilePair next() {
+				return pairs.get(pulled.getAndIncrement());
+			}
+		};
+
+		List<Result> delivered = Collections.synchronizedList(new ArrayList<>());
+		try (TreeDiffBatchBuilder batch = new TreeDiffBatchBuilder(blocking, Executors.newFixedThreadPool(4), true,
+				3, false)) {
+			Thread producer = new Thread(() -> {
+				try {
+					batch.build(iterator, "gumtree", "3.0.0", delivered::add);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			producer.start();
+			while (pulled.get() < 3) {
+				Thread.sleep(10);
+			}
+			// the producer waits for a result before pulling the fourth pair
+			Thread.sleep(300);
+			assertEquals(3, pulled.get());
+			assertTrue(delivered.isEmpty());
+
+			release.countDown();
+			producer.join();
+		}
+		assertEquals(pairs.size(), pulled.get());
+		assertEquals(pairs.size(), delivered.size());
+	}
+
+	@Test(timeout = 60_000)
+	public void testErrorStopsBatch() throws Exception {
+		List<FilePair> pairs = createPairs(10);
+		TreeDiffFormatBuilder failing = new TreeDiffFormatBuilder() {
+			@Override
+			public JsonElement build(File fileLeft, File fileRight, String algorithmName, String algorithmVersion)
+					throws IOException {
+				if (fileLeft.equals(pairs.get(3).left)) {
+					throw new InternalError("fatal");
+				}
+				return super.build(fileLeft, fileRight, algorithmName, algorithmVersion);
+			}
+		};
+
+		List<Result> delivered = Collections.synchronizedList(new ArrayList<>());
+		try (TreeDiffBatchBuilder batch = new TreeDiffBatchBuilder(failing, new ForkJoinPool(2), true, 2, true)) {
+			batch.build(pairs, "gumtree", "3.0.0");
+			fail();
+		} catch (InternalError e) {
+			assertEquals("fatal", e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,169 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.github.gumtreediff.actions.Diff;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class TreeDiffBinaryEncoderTest {
+
+	static String createClass(int methods, int variant) {
+		StringBuilder content = new StringBuilder("class Main {\n");
+		for (int i = 0; i < methods; i++) {
+			int value = (i % 10 == 0) ? i + variant : i;
+			content.append("    int m" + i + "(int x) {\n        if (x > " + value + ") {\n            return a.b(x + 1).c(\"s"
+					+ i + "\");\n        }\n        return x * 2;\n    }\n");
+		}
+		return content.append("}\n").toString();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Diff diff = TreeDiffStreamWriterTest.createDiff(TreeDiffStreamWriterTest.INPUT_LEFT,
+				TreeDiffStreamWriterTest.INPUT_RIGHT);
+
+		for (boolean storeTrees : new boolean[] { false, true }) {
+			for (boolean storeNodeTable : new boolean[] { false, true }) {
+				TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(TreeDiffFormatConfig.builder()
+						.setStoreTrees(storeTrees).setStoreMappings(true).setStoreNodeTable(storeNodeTable).build());
+				JsonElement treeDiff = builder.build(diff);
+
+				byte[] encoded = new TreeDiffBinaryEncoder().encode(treeDiff);
+				JsonElement decoded = new TreeDiffBinaryDecoder().decode(encoded);
+
+				assertEquals(treeDiff, decoded);
+				assertEquals(new Gson().toJson(treeDiff), new Gson().toJson(decoded));
+			}
+		}
+	}
+
+	@Test
+	public void testRoundTripValues() throws IOException {
+		JsonObject object = new JsonObject();
+		object.addProperty("negative", -42);
+		object.addProperty("long", Long.MIN_VALUE);
+		object.addProperty("decimal", 1.5);
+		object.addProperty("yes", true);
+		object.addProperty("no", false);
+		object.add("nothing", null);
+		object.addProperty("text", "unicode é中");
+		object.add("empty", new JsonObject());
+		JsonArray array = new JsonArray();
+		array.add(10);
+		array.add(3);
+		array.add("text");
+		array.add(new JsonArray());
+		object.add("array", array);
+
+		JsonElement decoded = new TreeDiffBinaryDecoder().decode(new TreeDiffBinaryEncoder().encode(object));
+
+		assertEquals(object, decoded);
+		assertEquals(new Gson().toJson(object), new Gson().toJson(decoded));
+	}
+
+	@Test
+	public void testDeepDocument() throws IOException {
+		JsonElement deep = new TreeDiffFormatBuilder().convertTreeToJSon(TreeDiffFormatBuilderTest.createChain(100_000));
+
+		JsonElement decoded = new TreeDiffBinaryDecoder().decode(new TreeDiffBinaryEncoder().encode(deep));
+
+		int levels = 0;
+		JsonElement current = decoded;
+		while (current != null) {
+			levels++;
+			JsonArray children = current.getAsJsonObject().get("children").getAsJsonArray();
+			current = (children.size() > 0) ? children.get(0) : null;
+		}
+		assertEquals(100_000, levels);
+	}
+
+	@Test
+	public void testSize() throws IOException {
+		Diff diff = TreeDiffStreamWriterTest.createDiff(createClass(200, 0), createClass(200, 7));
+		JsonElement treeDiff = new TreeDiffFormatBuilder(true, true).build(diff);
+
+		int jsonSize = new Gson().toJson(treeDiff).getBytes(StandardCharsets.UTF_8).length;
+		int binarySize = new TreeDiffBinaryEncoder().encode(treeDiff).length;
+		assertTrue("json: " + jsonSize + " binary: " + binarySize, jsonSize >= 5 * binarySize);
+		assertEquals(treeDiff,
+				new TreeDiffBinaryDecoder().decode(new TreeDiffBinaryEncoder().encode(treeDiff)));
+	}
+
+	@Test
+	public void testConcatenatedDocuments() throws IOException {
+		JsonObject first = new JsonObject();
+		first.addProperty("name", "first");
+		JsonArray second = new JsonArray();
+		second.add("second");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new TreeDiffBinaryEncoder().encode(first, out);
+		new TreeDiffBinaryEncoder().encode(second, out);
+		out.write(42);
+
+		InputStream in = new BufferedInputStream(new ByteArrayInputStream(out.toByteArray()));
+		TreeDiffBinaryDecoder decoder = new TreeDiffBinaryDecoder();
+		assertEquals(first, decoder.decode(in));
+		assertEquals(second, decoder.decode(in));
+		// the stream is not read past the documents
+		assertEquals(42, in.read());
+	}
+
+	@Test
+	public void testCorruptDocuments() {
+		byte[] header = { 'T', 'D', 'B', TreeDiffBinaryEncoder.VERSION };
+		// a reference to a string not read yet
+		assertInvalid(header, TreeDiffBinaryEncoder.TAG_STRING, 3);
+		// a reference to a shape not read yet
+		assertInvalid(header, TreeDiffBinaryEncoder.TAG_OBJECT, 5);
+		// an array of 2^31 - 1 elements, truncated
+		assertInvalid(header, TreeDiffBinaryEncoder.TAG_ARRAY, 0xFF, 0xFF, 0xFF, 0xFF, 0x07);
+		// a size larger than an int
+		assertInvalid(header, TreeDiffBinaryEncoder.TAG_ARRAY, 0xFF, 0xFF, 0xFF, 0xFF, 0x7F);
+		// a string of 2^31 - 1 bytes, truncated
+		assertInvalid(header, TreeDiffBinaryEncoder.TAG_STRING, 0, 0xFF, 0xFF, 0xFF, 0xFF, 0x07, 'a');
+		// a varint that never ends
+		assertInvalid(header, TreeDiffBinaryEncoder.TAG_INT, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF,
+				0xFF, 0xFF, 0x01);
+		// a number that is not one
+		assertInvalid(header, TreeDiffBinaryEncoder.TAG_NUMBER, 0, 1, 'x');
+		// an unknown tag
+		assertInvalid(header, 99);
+		// a truncated document
+		byte[] valid = new TreeDiffBinaryEncoder().encode(new JsonPrimitive("a string"));
+		for (int length = 0; length < valid.length; length++) {
+			byte[] truncated = new byte[length];
+			System.arraycopy(valid, 0, truncated, 0, length);
+			assertInvalid(truncated);
+		}
+	}
+
+	private static void assertInvalid(byte[] header, int... content) {
+		byte[] bytes = new byte[header.length + content.length];
+		System.arraycopy(header, 0, bytes, 0, header.length);
+		for (int i = 0; i < content.length; i++) {
+			bytes[header.length + i] = (byte) content[i];
+		}
+		try {
+			new TreeDiffBinaryDecoder().decode(bytes);
+			fail("decoded " + bytes.length + " bytes");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+}
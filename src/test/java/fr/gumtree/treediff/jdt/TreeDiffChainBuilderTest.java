@@ -0,0 +1,103 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+public class TreeDiffChainBuilderTest {
+
+	static List<File> createVersions() throws IOException {
+		return Arrays.asList(TreeDiffBatchBuilderTest.createJavaFile(TreeDiffBinaryEncoderTest.createClass(20, 0)),
+				TreeDiffBatchBuilderTest.createJavaFile(TreeDiffBinaryEncoderTest.createClass(20, 3)),
+				TreeDiffBatchBuilderTest.createJavaFile(TreeDiffBinaryEncoderTest.createClass(22, 3)),
+				TreeDiffBatchBuilderTest.createJavaFile(TreeDiffBinaryEncoderTest.createClass(21, 5)));
+	}
+
+	static List<String> sorted(JsonElement mapping) {
+		List<String> elements = new ArrayList<>();
+		if (mapping.isJsonArray()) {
+			mapping.getAsJsonArray().forEach(e -> elements.add(e.toString()));
+		}
+		Collections.sort(elements);
+		return elements;
+	}
+
+	static void assertSameTreeDiff(JsonElement expected, JsonElement actual) {
+		JsonObject expectedObject = expected.getAsJsonObject();
+		JsonObject actualObject = actual.getAsJsonObject();
+		for (String member : new String[] { "tool-info", "diff", "before-file", "after-file", "string-table" }) {
+			assertEquals(member, expectedObject.get(member), actualObject.get(member));
+		}
+		// the order of the mappings is not deterministic
+		assertEquals(sorted(expectedObject.get("mapping")), sorted(actualObject.get("mapping")));
+	}
+
+	@Test
+	public void testSameAsPairs() throws IOException {
+		List<File> versions = createVersions();
+
+		for (int mode = 0; mode < 4; mode++) {
+			TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(TreeDiffFormatConfig.builder()
+					.setStoreTrees(mode != 0).setStoreMappings(true).setStoreNodeTable(mode == 2)
+					.setStoreTypeTable(mode == 3).build());
+
+			List<JsonElement> chain = new TreeDiffChainBuilder(builder).build(versions, "test", "1");
+
+			assertEquals(versions.size() - 1, chain.size());
+			for (int i = 0; i < chain.size(); i++) {
+				assertSameTreeDiff(builder.build(versions.get(i), versions.get(i + 1), "test", "1"), chain.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void testReuse() throws IOException {
+		List<File> versions = createVersions();
+
+		TreeDiffFastPathTest.CountingBuilder builder = new TreeDiffFastPathTest.CountingBuilder(true, false);
+		List<JsonElement> chain = new TreeDiffChainBuilder(builder).build(versions, "test", "1");
+
+		assertEquals(versions.size(), builder.parsed);
+		for (int i = 1; i < chain.size(); i++) {
+			assertSame(chain.get(i - 1).getAsJsonObject().get("after-file"),
+					chain.get(i).getAsJsonObject().get("before-file"));
+		}
+	}
+
+	@Test
+	public void testFastPath() throws IOException {
+		File v1 = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffFastPathTest.CONTENT);
+		File v2 = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffFastPathTest.REFORMATTED);
+		File v3 = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffFastPathTest.CONTENT.replace("x + ", "x - "));
+
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(
+				TreeDiffFormatConfig.builder().setStoreMappings(true).setFastPath(new TreeDiffFastPath()).build());
+		List<JsonElement> chain = new TreeDiffChainBuilder(builder).build(Arrays.asList(v1, v2, v3), "test", "1");
+
+		JsonObject first = chain.get(0).getAsJsonObject();
+		assertEquals("equivalent", first.get("tool-info").getAsJsonObject().get("fast-path").getAsString());
+		assertEquals(0, first.get("diff").getAsJsonArray().size());
+		assertSameTreeDiff(new TreeDiffFormatBuilder(false, true).build(v2, v3, "test", "1"), chain.get(1));
+		assertEquals(1, builder.getFastPath().getFastPathPairs());
+	}
+
+	@Test
+	public void testShortChains() throws IOException {
+		TreeDiffChainBuilder chainBuilder = new TreeDiffChainBuilder(new TreeDiffFormatBuilder());
+
+		assertEquals(0, chainBuilder.build(Collections.emptyList(), "test", "1").size());
+		assertEquals(0, chainBuilder.build(createVersions().subList(0, 1), "test", "1").size());
+	}
+
+}
@@ -0,0 +1,311 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+public class TreeDiffDaemonTest {
+
+	static List<JsonObject> send(Socket socket, JsonObject batch) throws IOException {
+		Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+		out.write(new Gson().toJson(batch) + "\n");
+		out.flush();
+
+		BufferedReader in = new BufferedReader(
+				new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		List<JsonObject> responses = new ArrayList<>();
+		while (true) {
+			JsonObject response = new JsonParser().parse(in.readLine()).getAsJsonObject();
+			responses.add(response);
+			if (response.has("done") || !response.has("id")) {
+				return responses;
+			}
+		}
+	}
+
+	/**
+	 * Creates a batch with the token of the daemon.
+	 */
+	static JsonObject batch(TreeDiffDaemon daemon, String id) throws IOException {
+		JsonObject batch = new JsonObject();
+		batch.addProperty("token",
+				new String(Files.readAllBytes(daemon.getTokenFile().toPath()), StandardCharsets.UTF_8));
+		batch.addProperty("id", id);
+		return batch;
+	}
+
+	static JsonObject filePair(File left, File right) {
+		JsonObject pair = new JsonObject();
+		pair.addProperty("left", left.getAbsolutePath());
+		pair.addProperty("right", right.getAbsolutePath());
+		return pair;
+	}
+
+	static JsonObject contentPair(String left, String right, String path) {
+		JsonObject pair = new JsonObject();
+		pair.addProperty("left-content", left);
+		pair.addProperty("right-content", right);
+		pair.addProperty("left-path", path);
+		pair.addProperty("right-path", path);
+		return pair;
+	}
+
+	@Test
+	public void testBatch() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT);
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder();
+		JsonElement expected = builder.build(left, right, "test", "1");
+
+		try (TreeDiffDaemon daemon = new TreeDiffDaemon(builder, 0, "test", "1", 2);
+				Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+			daemon.warmUp(1);
+
+			JsonObject batch = batch(daemon, "b1");
+			JsonArray pairs = new JsonArray();
+			pairs.add(filePair(left, right));
+			pairs.add(contentPair(TreeDiffStreamWriterTest.INPUT_LEFT, TreeDiffStreamWriterTest.INPUT_RIGHT,
+					"Foo.java"));
+			pairs.add(filePair(left, new File(left.getParentFile(), "missing.java")));
+			batch.add("pairs", pairs);
+
+			List<JsonObject> responses = send(socket, batch);
+			assertEquals(4, responses.size());
+			for (int i = 0; i < 3; i++) {
+				assertEquals("b1", responses.get(i).get("id").getAsString());
+				assertEquals(i, responses.get(i).get("index").getAsInt());
+			}
+			assertEquals(new Gson().toJson(expected), new Gson().toJson(responses.get(0).get("treediff")));
+			// the diff of the contents is the diff of the files
+			assertEquals(new Gson().toJson(expected.getAsJsonObject().get("diff")),
+					new Gson().toJson(responses.get(1).get("treediff").getAsJsonObject().get("diff")));
+			assertFalse(responses.get(2).has("treediff"));
+			assertTrue(responses.get(2).get("error").getAsString().contains("missing.java"));
+			assertTrue(responses.get(3).get("done").getAsBoolean());
+			assertEquals(3, responses.get(3).get("count").getAsInt());
+
+			// a second batch on the same connection
+			batch.addProperty("id", "b2");
+			batch.add("pairs", new JsonArray());
+			responses = send(socket, batch);
+			assertEquals(1, responses.size());
+			assertEquals(0, responses.get(0).get("count").getAsInt());
+		}
+	}
+
+	@Test
+	public void testContentPaths() throws IOException {
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(true, false);
+		try (TreeDiffDaemon daemon = new TreeDiffDaemon(builder, 0, "test", "1", 1);
+				Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+			JsonObject batch = batch(daemon, null);
+			batch.addProperty("id", 7);
+			JsonArray pairs = new JsonArray();
+			pairs.add(contentPair("class A {}", "class A { int x; }", "src/A.java"));
+			batch.add("pairs", pairs);
+
+			JsonObject treeDiff = send(socket, batch).get(0).get("treediff").getAsJsonObject();
+			assertEquals("src/A.java", treeDiff.get("before-file").getAsJsonObject().get("path").getAsString());
+			assertEquals("src/A.java", treeDiff.get("after-file").getAsJsonObject().get("path").getAsString());
+			assertTrue(treeDiff.get("diff").getAsJsonArray().size() > 0);
+		}
+	}
+
+	@Test
+	public void testInvalidBatch() throws IOException {
+		try (TreeDiffDaemon daemon = new TreeDiffDaemon(new TreeDiffFormatBuilder(), 0, "test", "1", 1);
+				Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+			JsonObject batch = batch(daemon, "b1");
+
+			List<JsonObject> responses = send(socket, batch);
+			assertEquals(1, responses.size());
+			assertTrue(responses.get(0).has("error"));
+
+			// pairs that are not pairs of files or contents
+			JsonElement[] invalidPairs = { new JsonPrimitive("A.java"), new JsonObject(),
+					contentPair("class A {}", null, "A.java"), filePair(new File("A.java"), new File("B.java")) };
+			invalidPairs[3].getAsJsonObject().add("left", new JsonArray());
+			for (JsonElement pair : invalidPairs) {
+				JsonArray pairs = new JsonArray();
+				pairs.add(pair);
+				batch.add("pairs", pairs);
+				responses = send(socket, batch);
+				assertEquals(pair.toString(), 1, responses.size());
+				assertTrue(responses.get(0).get("error").getAsString().startsWith("Not a batch of pairs"));
+			}
+			batch.remove("id");
+			responses = send(socket, batch);
+			assertTrue(responses.get(0).get("error").getAsString().contains("\"id\""));
+
+			// the connection is still usable
+			batch.addProperty("id", "b1");
+			batch.add("pairs", new JsonArray());
+			responses = send(socket, batch);
+			assertTrue(responses.get(0).get("done").getAsBoolean());
+		}
+	}
+
+	@Test
+	public void testContentsCached() throws IOException {
+		try (TreeDiffResultCache cache = new TreeDiffResultCache(TreeDiffResultCacheTest.createDirectory(), 1 << 24)) {
+			TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(
+					TreeDiffFormatConfig.builder().setStoreTrees(true).setResultCache(cache).build());
+			try (TreeDiffDaemon daemon = new TreeDiffDaemon(builder, 0, "test", "1", 2);
+					Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+				JsonObject batch = batch(daemon, "b1");
+				JsonArray pairs = new JsonArray();
+				// the same pair twice in a batch, then in another batch
+				for (int i = 0; i < 2; i++) {
+					pairs.add(contentPair(TreeDiffStreamWriterTest.INPUT_LEFT, TreeDiffStreamWriterTest.INPUT_RIGHT,
+							"Foo.java"));
+				}
+				batch.add("pairs", pairs);
+				List<JsonObject> first = send(socket, batch);
+				List<JsonObject> second = send(socket, batch);
+
+				assertEquals(1, cache.size());
+				assertTrue(cache.getHits() >= 2);
+				for (List<JsonObject> responses : Arrays.asList(first, second)) {
+					for (int i = 0; i < 2; i++) {
+						JsonObject treeDiff = responses.get(i).get("treediff").getAsJsonObject();
+						assertEquals("Foo.java",
+								treeDiff.get("before-file").getAsJsonObject().get("path").getAsString());
+					}
+				}
+				// the contents are deleted once diffed
+				assertEquals(0, daemon.contentUses.size());
+			}
+		}
+	}
+
+	@Test
+	public void testLongLine() throws IOException {
+		try (TreeDiffDaemon daemon = new TreeDiffDaemon(new TreeDiffFormatBuilder(), 0, "test", "1", 1, 50);
+				Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+			JsonObject batch = batch(daemon, "b1");
+			batch.add("pairs", new JsonArray());
+			// the token alone is longer than the line
+			List<JsonObject> responses = send(socket, batch);
+			assertEquals(1, responses.size());
+			assertEquals("Line longer than 50 characters", responses.get(0).get("error").getAsString());
+
+			// the connection is closed
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			assertNull(in.readLine());
+		}
+
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			line.append('x');
+		}
+		BufferedReader in = new BufferedReader(new StringReader(line + "\r\nend\n" + line + "xx"));
+		assertEquals(line.toString(), TreeDiffDaemon.readLine(in, 100));
+		assertEquals("end", TreeDiffDaemon.readLine(in, 100));
+		// not read past the max length
+		assertEquals(101, TreeDiffDaemon.readLine(in, 100).length());
+		assertEquals("x", TreeDiffDaemon.readLine(in, 100));
+		assertNull(TreeDiffDaemon.readLine(in, 100));
+	}
+
+	@Test
+	public void testToken() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		try (TreeDiffDaemon daemon = new TreeDiffDaemon(new TreeDiffFormatBuilder(), 0, "test", "1", 1);
+				Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+			if (daemon.getTokenFile().toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+				assertEquals(PosixFilePermissions.fromString("rw-------"),
+						Files.getPosixFilePermissions(daemon.getTokenFile().toPath()));
+			}
+
+			JsonObject batch = batch(daemon, "b1");
+			JsonArray pairs = new JsonArray();
+			pairs.add(filePair(left, left));
+			batch.add("pairs", pairs);
+			for (String token : new String[] { null, "", "0123" }) {
+				batch.remove("token");
+				if (token != null) {
+					batch.addProperty("token", token);
+				}
+				List<JsonObject> responses = send(socket, batch);
+				assertEquals(1, responses.size());
+				assertEquals("Invalid token", responses.get(0).get("error").getAsString());
+			}
+		}
+	}
+
+	@Test
+	public void testCloseAnswersBatchInProgress() throws Exception {
+		TreeDiffDaemon daemon = new TreeDiffDaemon(new TreeDiffFormatBuilder(), 0, "test", "1", 1);
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+			JsonObject batch = batch(daemon, "b1");
+			JsonArray pairs = new JsonArray();
+			// more pairs than the pending ones, so some are not submitted when closing
+			for (int i = 0; i < 20; i++) {
+				pairs.add(contentPair(TreeDiffStreamWriterTest.INPUT_LEFT, TreeDiffStreamWriterTest.INPUT_RIGHT,
+						"Foo" + i + ".java"));
+			}
+			batch.add("pairs", pairs);
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+			out.write(new Gson().toJson(batch) + "\n");
+			out.flush();
+
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			assertEquals(0, new JsonParser().parse(in.readLine()).getAsJsonObject().get("index").getAsInt());
+
+			Thread closing = new Thread(() -> {
+				try {
+					daemon.close();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			closing.start();
+
+			for (int i = 1; i < 20; i++) {
+				JsonObject response = new JsonParser().parse(in.readLine()).getAsJsonObject();
+				assertEquals(i, response.get("index").getAsInt());
+				assertTrue(response.has("treediff"));
+			}
+			assertEquals(20, new JsonParser().parse(in.readLine()).getAsJsonObject().get("count").getAsInt());
+			// no more batch is read, and the connection is closed
+			assertNull(in.readLine());
+
+			closing.join(TimeUnit.SECONDS.toMillis(TreeDiffDaemon.DRAIN_TIMEOUT_SECONDS));
+			assertFalse(closing.isAlive());
+			assertTrue(daemon.diffPool.isTerminated());
+		} finally {
+			daemon.close();
+		}
+	}
+
+}
@@ -0,0 +1,171 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.github.gumtreediff.actions.Diff;
+import com.github.gumtreediff.gen.SyntaxException;
+import com.github.gumtreediff.tree.TreeContext;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import fr.gumtree.treediff.jdt.TreeDiffFastPath.Outcome;
+
+public class TreeDiffFastPathTest {
+
+	static final String CONTENT = "package a;\n\n/** The main class. */\nclass Main {\n    int foo(int x) {\n"
+			+ "        return x + \"a  b\".length();\n    }\n}\n";
+
+	static final String REFORMATTED = "package a;\n/** The main class. */\nclass Main { // main\n"
+			+ "  int foo( int x ) { /* foo */ return x\n    + \"a  b\".length(); }\n}";
+
+	/**
+	 * A builder that counts the files it parses.
+	 */
+	static class CountingBuilder extends TreeDiffFormatBuilder {
+
+		int parsed = 0;
+
+		CountingBuilder(boolean storeTrees, boolean storeMappings) {
+			super(storeTrees, storeMappings);
+		}
+
+		CountingBuilder(TreeDiffFormatConfig config) {
+			super(config);
+		}
+
+		@Override
+		protected TreeContext parse(File file) throws IOException {
+			parsed++;
+			return super.parse(file);
+		}
+
+		@Override
+		protected TreeContext parse(byte[] content) throws IOException {
+			parsed++;
+			return super.parse(content);
+		}
+	}
+
+	static Outcome check(TreeDiffFastPath fastPath, String left, String right) {
+		return fastPath.check(left.getBytes(StandardCharsets.UTF_8), right.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testCheck() {
+		TreeDiffFastPath fastPath = new TreeDiffFastPath();
+
+		assertEquals(Outcome.IDENTICAL, check(fastPath, CONTENT, CONTENT));
+		assertEquals(Outcome.EQUIVALENT, check(fastPath, CONTENT, REFORMATTED));
+		assertEquals(Outcome.DIFFERENT, check(fastPath, CONTENT, CONTENT.replace("a  b", "a b")));
+		assertEquals(Outcome.DIFFERENT, check(fastPath, CONTENT, CONTENT.replace("main class", "Main class")));
+		assertEquals(Outcome.DIFFERENT, check(fastPath, CONTENT, CONTENT.replace("x + ", "x - ")));
+		assertEquals(Outcome.DIFFERENT, check(fastPath, CONTENT, CONTENT + "class Other {}\n"));
+
+		assertEquals(6, fastPath.getChecked());
+		assertEquals(1, fastPath.getIdentical());
+		assertEquals(1, fastPath.getEquivalent());
+		assertEquals(2, fastPath.getFastPathPairs());
+	}
+
+	@Test
+	public void testEquivalentTreesHaveNoAction() throws IOException {
+		Diff diff = TreeDiffStreamWriterTest.createDiff(CONTENT, REFORMATTED);
+
+		assertEquals(0, diff.editScript.size());
+	}
+
+	@Test
+	public void testBuilderDoesNotParse() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(CONTENT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(REFORMATTED);
+
+		CountingBuilder builder = new CountingBuilder(
+				TreeDiffFormatConfig.builder().setFastPath(new TreeDiffFastPath()).setStoreStats(true).build());
+		JsonObject treeDiff = builder.build(left, right, "test", "1").getAsJsonObject();
+
+		assertEquals(0, builder.parsed);
+		assertEquals(0, treeDiff.get("diff").getAsJsonArray().size());
+		JsonObject toolInfo = treeDiff.get("tool-info").getAsJsonObject();
+		assertEquals("equivalent", toolInfo.get("fast-path").getAsString());
+		assertEquals(TreeDiffFastPath.class.getName(), toolInfo.get("matcher").getAsString());
+		assertEquals(0, toolInfo.get("stats").getAsJsonObject().get("actions").getAsInt());
+		assertEquals(new JsonObject(), treeDiff.get("before-file"));
+		assertEquals(new JsonObject(), treeDiff.get("mapping"));
+
+		StringWriter out = new StringWriter();
+		CountingBuilder writer = new CountingBuilder(builder.getConfig().toBuilder().setStoreStats(false).build());
+		writer.write(left, right, "test", "1", out);
+		JsonObject written = new JsonParser().parse(out.toString()).getAsJsonObject();
+		toolInfo.remove("stats");
+		assertEquals(treeDiff, written);
+		assertEquals(0, writer.parsed);
+		assertEquals(2, builder.getFastPath().getEquivalent());
+	}
+
+	@Test
+	public void testBuilderStoresTrees() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(CONTENT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(REFORMATTED);
+
+		TreeDiffFormatBuilder full = new TreeDiffFormatBuilder(true, true);
+		JsonObject expected = full.build(left, right, "test", "1").getAsJsonObject();
+
+		CountingBuilder builder = new CountingBuilder(TreeDiffFormatConfig.builder().setStoreTrees(true)
+				.setStoreMappings(true).setFastPath(new TreeDiffFastPath()).build());
+		JsonObject treeDiff = builder.build(left, right, "test", "1").getAsJsonObject();
+
+		assertEquals(2, builder.parsed);
+		assertEquals(expected.get("diff"), treeDiff.get("diff"));
+		assertEquals(expected.get("before-file"), treeDiff.get("before-file"));
+		assertEquals(expected.get("after-file"), treeDiff.get("after-file"));
+		assertEquals(expected.get("mapping").getAsJsonArray().size(), treeDiff.get("mapping").getAsJsonArray().size());
+		assertNull(expected.get("tool-info").getAsJsonObject().get("fast-path"));
+
+		builder.parsed = 0;
+		builder.build(left, left, "test", "1");
+		assertEquals(1, builder.parsed);
+	}
+
+	@Test
+	public void testSyntaxError() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile("class A { int f() { return 1; } } }");
+		File right = TreeDiffBatchBuilderTest.createJavaFile("class A { int f() { return /* one */ 1; } } }");
+
+		// equal by default, without parsing
+		CountingBuilder unchecked = new CountingBuilder(
+				TreeDiffFormatConfig.builder().setFastPath(new TreeDiffFastPath()).build());
+		assertEquals(0, unchecked.build(left, right, "test", "1").getAsJsonObject().get("diff").getAsJsonArray().size());
+		assertEquals(0, unchecked.parsed);
+
+		// as without the fast path
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(
+				TreeDiffFormatConfig.builder().setFastPath(new TreeDiffFastPath(true)).build());
+		for (File other : new File[] { left, right }) {
+			try {
+				builder.build(left, other, "test", "1");
+				fail();
+			} catch (SyntaxException e) {
+				// expected
+			}
+			try {
+				builder.write(left, other, "test", "1", new StringWriter());
+				fail();
+			} catch (SyntaxException e) {
+				// expected
+			}
+		}
+		assertEquals(4, builder.getFastPath().getChecked());
+		assertEquals(0, builder.getFastPath().getIdentical());
+		assertEquals(0, builder.getFastPath().getEquivalent());
+	}
+
+}
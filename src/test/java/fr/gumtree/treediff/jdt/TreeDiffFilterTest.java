@@ -0,0 +1,140 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+public class TreeDiffFilterTest {
+
+	static JsonArray actions(TreeDiffFormatBuilder builder, File left, File right) throws IOException {
+		JsonElement treeDiff = builder.build(left, right, "test", "1");
+
+		// the builder and the stream writer apply the same filter
+		StringWriter written = new StringWriter();
+		builder.write(left, right, "test", "1", written);
+		assertEquals(new Gson().toJson(treeDiff), written.toString());
+
+		return treeDiff.getAsJsonObject().get("diff").getAsJsonArray();
+	}
+
+	@Test
+	public void testDefaultFilter() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT);
+
+		for (boolean storeNodeTable : new boolean[] { false, true }) {
+			// the order of the mappings is not deterministic
+			TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(
+					TreeDiffFormatConfig.builder().setStoreTrees(true).setStoreNodeTable(storeNodeTable).build());
+			String expected = new Gson().toJson(builder.build(left, right, "test", "1"));
+
+			builder = new TreeDiffFormatBuilder(
+					builder.getConfig().toBuilder().setFilter(new TreeDiffFilter()).build());
+			assertEquals(expected, new Gson().toJson(builder.build(left, right, "test", "1")));
+		}
+	}
+
+	@Test
+	public void testActionAndNodeTypes() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT);
+		JsonArray all = actions(new TreeDiffFormatBuilder(), left, right);
+
+		TreeDiffFilter filter = new TreeDiffFilter();
+		filter.setActionTypes(EnumSet.of(TreeDiffActionType.UPDATE_NODE, TreeDiffActionType.MOVE_SUBTREE));
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(
+				TreeDiffFormatConfig.builder().setFilter(filter).build());
+
+		JsonArray selected = actions(builder, left, right);
+		int expected = 0;
+		for (JsonElement action : all) {
+			String type = action.getAsJsonObject().get("type").getAsString();
+			if (type.equals("update-node") || type.equals("move-subtree")) {
+				assertTrue(selected.contains(action));
+				expected++;
+			}
+		}
+		assertEquals(expected, selected.size());
+		assertTrue(expected > 0);
+
+		filter.setActionTypes(EnumSet.allOf(TreeDiffActionType.class));
+		filter.setNodeTypes(Collections.singleton("NumberLiteral"));
+		builder = new TreeDiffFormatBuilder(TreeDiffFormatConfig.builder().setFilter(filter).build());
+		selected = actions(builder, left, right);
+		assertTrue(selected.size() > 0);
+		for (JsonElement action : selected) {
+			assertEquals("NumberLiteral",
+					action.getAsJsonObject().get("node").getAsJsonObject().get("type").getAsString());
+		}
+
+		builder = new TreeDiffFormatBuilder(builder.getConfig().toBuilder().setSummaryOnly(true).build());
+		JsonObject summary = builder.build(left, right, "test", "1").getAsJsonObject().get("summary")
+				.getAsJsonObject();
+		assertEquals(selected.size(), summary.get("actions").getAsInt());
+	}
+
+	@Test
+	public void testCharRange() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT);
+
+		// the body of foo1
+		int start = TreeDiffStreamWriterTest.INPUT_RIGHT.indexOf("foo1");
+		TreeDiffFilter filter = new TreeDiffFilter();
+		filter.setCharRange(start, TreeDiffStreamWriterTest.INPUT_RIGHT.length());
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(
+				TreeDiffFormatConfig.builder().setFilter(filter).build());
+
+		JsonArray selected = actions(builder, left, right);
+		assertTrue(selected.size() > 0);
+		assertTrue(selected.size() < actions(new TreeDiffFormatBuilder(), left, right).size());
+		for (JsonElement action : selected) {
+			JsonObject actionJson = action.getAsJsonObject();
+			boolean inside = false;
+			for (String side : new String[] { "before", "after" }) {
+				if (actionJson.has("location-" + side + "-char-start")) {
+					inside |= actionJson.get("location-" + side + "-char-start").getAsInt() >= start;
+				}
+			}
+			assertTrue(actionJson.toString(), inside);
+		}
+	}
+
+	@Test
+	public void testFields() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT);
+
+		TreeDiffFilter filter = new TreeDiffFilter();
+		filter.setFields(EnumSet.of(TreeDiffFilter.Field.NODE_STR, TreeDiffFilter.Field.LOCATION_AFTER));
+
+		for (boolean storeNodeTable : new boolean[] { false, true }) {
+			TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(TreeDiffFormatConfig.builder().setStoreTrees(true)
+					.setStoreNodeTable(storeNodeTable).setFilter(filter).build());
+
+			Set<String> allowed = new HashSet<>();
+			Collections.addAll(allowed, "type", "node-str", "location-after-char-start", "location-after-char-end");
+			for (JsonElement action : actions(builder, left, right)) {
+				for (String property : action.getAsJsonObject().keySet()) {
+					assertTrue(property, allowed.contains(property));
+				}
+				assertTrue(action.getAsJsonObject().has("node-str"));
+			}
+		}
+	}
+
+}
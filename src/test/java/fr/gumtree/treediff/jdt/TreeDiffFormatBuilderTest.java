@@ -2,10 +2,19 @@ package fr.gumtree.treediff.jdt;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
@@ -27,6 +36,7 @@ import com.github.gumtreediff.matchers.MappingStore;
 import com.github.gumtreediff.matchers.Matcher;
 import com.github.gumtreediff.tree.Tree;
 import com.github.gumtreediff.tree.TreeContext;
+import com.github.gumtreediff.tree.TypeSet;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
@@ -423,4 +433,211 @@ public class TreeDiffFormatBuilderTest {
 
 	}
 
+	@Test
+	public void testNodeTable() throws IOException {
+		String inputLeft = "class Main {\n" + "    public static void foo() {\n" + "        a.b();  a.c(1);  a.d();\n"
+				+ "    }\n" + "    public static void foo1() {\n" + "    a.c();}\n" + "}\n";
+
+		TreeContext ctxL = new JdtTreeGenerator().generateFrom().string(inputLeft);
+		Tree left = ctxL.getRoot();
+		String inputRight = "class Main {\n" + "    public static void foo() {\n" + "        a.c(2);  a.d(x); \n"
+				+ "    }\n" + "    public static void foo1() {\n" + "     a.c(); a.b();}\n" + "}";
+
+		TreeContext ctxR = new JdtTreeGenerator().generateFrom().string(inputRight);
+		Tree right = ctxR.getRoot();
+
+		Matcher matcher = new CompositeMatchers.SimpleGumtree();
+		MappingStore mappings = matcher.match(left, right);
+
+		EditScriptGenerator generator = new SimplifiedChawatheScriptGenerator();
+		EditScript computeActions = generator.computeActions(mappings);
+
+		Diff diff = new Diff(ctxL, ctxR, mappings, computeActions);
+
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(TreeDiffFormatConfig.builder().setStoreTrees(true)
+				.setStoreMappings(true).setStoreNodeTable(true).build());
+
+		JsonObject outJson = builder.build(left, "./File1.java", right, "./File2.java", diff, null)
+				.getAsJsonObject();
+
+		// the nodes of the actions and of the mappings are not embedded
+		JsonElement embedded = new TreeDiffFormatBuilder(true, true).build(left, "./File1.java", right,
+				"./File2.java", diff, null);
+		assertTrue(new Gson().toJson(outJson).length() < new Gson().toJson(embedded).length());
+
+		JsonArray before = outJson.get("before-file").getAsJsonObject().get("nodes").getAsJsonArray();
+		JsonArray after = outJson.get("after-file").getAsJsonObject().get("nodes").getAsJsonArray();
+		assertEquals(left.getMetrics().size, before.size());
+		assertEquals(right.getMetrics().size, after.size());
+		assertEquals(-1, before.get(0).getAsJsonObject().get("parent").getAsInt());
+
+		JsonArray diffs = outJson.get("diff").getAsJsonArray();
+		assertEquals(computeActions.size(), diffs.size());
+		for (JsonElement action : diffs) {
+			JsonObject actionJson = action.getAsJsonObject();
+			assertNull(actionJson.get("node"));
+			int id = actionJson.get("node-id").getAsInt();
+			if (actionJson.has("location-before-char-start")) {
+				assertEquals(actionJson.get("location-before-char-start").getAsInt(),
+						before.get(id).getAsJsonObject().get("start").getAsInt());
+			} else {
+				assertEquals(actionJson.get("location-after-char-start").getAsInt(),
+						after.get(id).getAsJsonObject().get("start").getAsInt());
+			}
+			if (actionJson.has("node-after-id")) {
+				assertEquals(actionJson.get("location-after-char-end").getAsInt(),
+						after.get(actionJson.get("node-after-id").getAsInt()).getAsJsonObject().get("end").getAsInt());
+			}
+		}
+
+		JsonArray mappingsJson = outJson.get("mapping").getAsJsonArray();
+		assertEquals(mappings.size(), mappingsJson.size());
+		for (JsonElement mapping : mappingsJson) {
+			int src = mapping.getAsJsonObject().get("src").getAsInt();
+			int dst = mapping.getAsJsonObject().get("dst").getAsInt();
+			assertEquals(before.get(src).getAsJsonObject().get("type"), after.get(dst).getAsJsonObject().get("type"));
+		}
+	}
+
+	@Test
+	public void testConvertTreeSameAsRecursive() throws IOException {
+		String input = "class Main {\n" + "    public static void foo() {\n"
+				+ "        a.b(x + 1, \"s\").c().d(new int[] {1, 2});\n" + "    }\n" + "}\n";
+		Tree tree = new JdtTreeGenerator().generateFrom().string(input).getRoot();
+
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder();
+
+		Gson gson = new Gson();
+		assertEquals(gson.toJson(convertRecursively(builder, tree)), gson.toJson(builder.convertTreeToJSon(tree)));
+	}
+
+	private JsonElement convertRecursively(TreeDiffFormatBuilder builder, Tree nodeTree) {
+		JsonObject nodeJson = builder.convertTreeToJsonSingleNode(nodeTree);
+		JsonArray children = new JsonArray();
+		nodeJson.add("children", children);
+		for (Tree child : nodeTree.getChildren()) {
+			children.add(convertRecursively(builder, child));
+		}
+		return nodeJson;
+	}
+
+	@Test
+	public void testConvertDeepTree() {
+		int depth = 200_000;
+		Tree root = createChain(depth);
+
+		JsonElement json = new TreeDiffFormatBuilder().convertTreeToJSon(root);
+
+		int levels = 0;
+		JsonElement current = json;
+		while (current != null) {
+			levels++;
+			JsonArray children = current.getAsJsonObject().get("children").getAsJsonArray();
+			current = (children.size() > 0) ? children.get(0) : null;
+		}
+		assertEquals(depth, levels);
+	}
+
+	@Test
+	public void testParallelSerialization() throws IOException {
+		String leftContent = TreeDiffBinaryEncoderTest.createClass(60, 0);
+		// renames the parameter of every method, and changes some literals
+		String rightContent = TreeDiffBinaryEncoderTest.createClass(60, 5).replace("x", "y");
+		File left = TreeDiffBatchBuilderTest.createJavaFile(leftContent);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(rightContent);
+		Diff diff = TreeDiffStreamWriterTest.createDiff(leftContent, rightContent);
+		assertTrue(diff.editScript.size() > 200);
+
+		TreeDiffFilter filter = new TreeDiffFilter();
+		filter.setActionTypes(EnumSet.of(TreeDiffActionType.UPDATE_NODE));
+
+		for (boolean storeTrees : new boolean[] { false, true }) {
+			for (boolean storeNodeTable : new boolean[] { false, true }) {
+				for (TreeDiffFilter actionFilter : new TreeDiffFilter[] { null, filter }) {
+					// the compact mappings are in a deterministic order
+					TreeDiffFormatConfig config = TreeDiffFormatConfig.builder().setStoreTrees(storeTrees)
+							.setStoreMappings(true).setCompactMappings(true).setStoreNodeTable(storeNodeTable)
+							.setFilter(actionFilter).build();
+					TreeDiffFormatBuilder sequential = new TreeDiffFormatBuilder(config);
+
+					TreeDiffFormatBuilder parallel = new TreeDiffFormatBuilder(config.toBuilder()
+							.setParallelSerializationThreshold(0).setParallelSerializationChunkSize(7).build());
+
+					String expected = new Gson().toJson(sequential.build(left, right, "test", "1"));
+					assertEquals(expected, new Gson().toJson(parallel.build(left, right, "test", "1")));
+
+					StringWriter expectedWritten = new StringWriter();
+					sequential.write(left, right, "test", "1", expectedWritten);
+					StringWriter written = new StringWriter();
+					parallel.write(left, right, "test", "1", written);
+					assertEquals(expectedWritten.toString(), written.toString());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSharedBetweenThreads() throws Exception {
+		List<File[]> pairs = new ArrayList<>();
+		for (String[] version : TreeDiffMappingCodecTest.VERSIONS) {
+			pairs.add(new File[] { TreeDiffBatchBuilderTest.createJavaFile(version[0]),
+					TreeDiffBatchBuilderTest.createJavaFile(version[1]) });
+		}
+		// the compact mappings are in a deterministic order
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(TreeDiffFormatConfig.builder().setStoreTrees(true)
+				.setStoreMappings(true).setCompactMappings(true).build());
+		// built, then written
+		List<String> expected = new ArrayList<>();
+		for (File[] pair : pairs) {
+			expected.add(new Gson().toJson(builder.build(pair[0], pair[1], "test", "1")));
+		}
+		for (File[] pair : pairs) {
+			StringWriter written = new StringWriter();
+			builder.write(pair[0], pair[1], "test", "1", written);
+			expected.add(written.toString());
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<List<String>>> results = new ArrayList<>();
+			for (int task = 0; task < 8; task++) {
+				int first = task;
+				results.add(pool.submit(() -> {
+					// each task diffs the pairs from a different one
+					List<String> treeDiffs = new ArrayList<>(Collections.nCopies(2 * pairs.size(), (String) null));
+					for (int i = 0; i < pairs.size(); i++) {
+						int index = (first + i) % pairs.size();
+						File[] pair = pairs.get(index);
+						treeDiffs.set(index, new Gson().toJson(builder.build(pair[0], pair[1], "test", "1")));
+						StringWriter written = new StringWriter();
+						builder.write(pair[0], pair[1], "test", "1", written);
+						treeDiffs.set(pairs.size() + index, written.toString());
+					}
+					return treeDiffs;
+				}));
+			}
+			for (Future<List<String>> result : results) {
+				assertEquals(expected, result.get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Creates a tree with a single node per level, as deeply nested expressions
+	 * do.
+	 */
+	static Tree createChain(int depth) {
+		TreeContext context = new TreeContext();
+		Tree root = context.createTree(TypeSet.type("InfixExpression"), "+");
+		Tree current = root;
+		for (int i = 1; i < depth; i++) {
+			Tree child = context.createTree(TypeSet.type("InfixExpression"), "+");
+			current.addChild(child);
+			current = child;
+		}
+		return root;
+	}
+
 }
@@ -0,0 +1,86 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.EnumSet;
+
+import org.junit.Test;
+
+public class TreeDiffFormatConfigTest {
+
+	@Test
+	public void testDefault() {
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder();
+		assertSame(TreeDiffFormatConfig.DEFAULT, builder.getConfig());
+		assertFalse(builder.isStoreTrees());
+		assertFalse(builder.isStoreMappings());
+		assertNull(builder.getFilter());
+		assertEquals(Integer.MAX_VALUE, builder.getParallelSerializationThreshold());
+
+		builder = new TreeDiffFormatBuilder(true, false);
+		assertTrue(builder.isStoreTrees());
+		assertFalse(builder.isStoreMappings());
+	}
+
+	@Test
+	public void testToBuilder() {
+		TreeDiffFastPath fastPath = new TreeDiffFastPath();
+		TreeDiffMatchingStrategy strategy = new TreeDiffMatchingStrategy(10, 0,
+				TreeDiffMatchingStrategy.OnTimeout.DEGRADE);
+		TreeDiffFormatConfig config = TreeDiffFormatConfig.builder().setStoreTrees(true).setStoreNodeTable(true)
+				.setCompactMappings(true).setParallelSerializationChunkSize(7).setFastPath(fastPath)
+				.setMatchingStrategy(strategy).build();
+
+		TreeDiffFormatConfig copy = config.toBuilder().setStoreStats(true).build();
+		assertTrue(copy.isStoreTrees());
+		assertTrue(copy.isStoreNodeTable());
+		assertTrue(copy.isCompactMappings());
+		assertTrue(copy.isStoreStats());
+		assertEquals(7, copy.getParallelSerializationChunkSize());
+		assertSame(fastPath, copy.getFastPath());
+		assertSame(strategy, copy.getMatchingStrategy());
+		// the original is unchanged
+		assertFalse(config.isStoreStats());
+	}
+
+	@Test
+	public void testFilterIsCopied() {
+		TreeDiffFilter filter = new TreeDiffFilter();
+		filter.setActionTypes(EnumSet.of(TreeDiffActionType.UPDATE_NODE));
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(
+				TreeDiffFormatConfig.builder().setFilter(filter).build());
+
+		filter.setActionTypes(EnumSet.allOf(TreeDiffActionType.class));
+		filter.setCharRange(10, 20);
+		assertEquals(EnumSet.of(TreeDiffActionType.UPDATE_NODE), builder.getFilter().getActionTypes());
+		assertEquals(0, builder.getFilter().getRangeStart());
+
+		builder.getFilter().setActionTypes(EnumSet.allOf(TreeDiffActionType.class));
+		assertEquals(EnumSet.of(TreeDiffActionType.UPDATE_NODE), builder.getFilter().getActionTypes());
+		assertNotSame(builder.getFilter(), builder.getFilter());
+		assertEquals(new TreeDiffFilter(filter).toString(), filter.toString());
+	}
+
+	@Test
+	public void testInvalidValues() {
+		try {
+			TreeDiffFormatConfig.builder().setParallelSerializationChunkSize(0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			TreeDiffFormatConfig.builder().setMatchingStrategy(null);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+}
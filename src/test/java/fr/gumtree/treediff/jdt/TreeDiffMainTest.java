@@ -0,0 +1,110 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
+public class TreeDiffMainTest {
+
+	static class Output {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final ByteArrayOutputStream err = new ByteArrayOutputStream();
+		int exitCode;
+
+		Output run(String... args) {
+			exitCode = TreeDiffMain.run(args, new PrintStream(out, true), new PrintStream(err, true));
+			return this;
+		}
+
+		String out() {
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+
+		String err() {
+			return new String(err.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	@Test
+	public void testFiles() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT);
+		JsonElement expected = new TreeDiffFormatBuilder(true, false).build(left, right, TreeDiffMain.ALGORITHM_NAME,
+				TreeDiffMain.ALGORITHM_VERSION);
+
+		Output output = new Output().run("-t", left.getPath(), right.getPath());
+		assertEquals(0, output.exitCode);
+		assertEquals(new Gson().toJson(expected) + "\n", output.out());
+
+		File file = File.createTempFile("treediff", ".json");
+		output = new Output().run("--trees", "-o", file.getPath(), left.getPath(), right.getPath());
+		assertEquals(0, output.exitCode);
+		assertEquals(new Gson().toJson(expected),
+				new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		file.delete();
+	}
+
+	@Test
+	public void testDirectories() throws IOException {
+		Path left = Files.createTempDirectory("left");
+		Path right = Files.createTempDirectory("right");
+		Files.createDirectories(left.resolve("a"));
+		Files.createDirectories(right.resolve("a"));
+		Files.write(left.resolve("a/Foo.java"), TreeDiffStreamWriterTest.INPUT_LEFT.getBytes(StandardCharsets.UTF_8));
+		Files.write(right.resolve("a/Foo.java"),
+				TreeDiffStreamWriterTest.INPUT_RIGHT.getBytes(StandardCharsets.UTF_8));
+		Files.write(left.resolve("Bar.java"), "class Bar {}".getBytes(StandardCharsets.UTF_8));
+		Files.write(right.resolve("Bar.java"), "class Bar { int x; }".getBytes(StandardCharsets.UTF_8));
+		Files.write(left.resolve("Old.java"), "class Old {}".getBytes(StandardCharsets.UTF_8));
+
+		Output output = new Output().run(left.toString(), right.toString());
+		assertEquals(0, output.exitCode);
+		String[] lines = output.out().split("\n");
+		assertEquals(2, lines.length);
+		// in the order of the relative paths
+		JsonElement foo = new TreeDiffFormatBuilder().build(left.resolve("a/Foo.java").toFile(),
+				right.resolve("a/Foo.java").toFile(), TreeDiffMain.ALGORITHM_NAME, TreeDiffMain.ALGORITHM_VERSION);
+		assertEquals(new Gson().toJson(foo), lines[1]);
+		assertTrue(output.err().contains("Only in " + left + ": Old.java"));
+
+		Path out = Files.createTempDirectory("out");
+		output = new Output().run("-o", out.toString(), left.toString(), right.toString());
+		assertEquals(0, output.exitCode);
+		assertEquals(lines[1],
+				new String(Files.readAllBytes(out.resolve("a/Foo.java.json")), StandardCharsets.UTF_8));
+		assertEquals(lines[0], new String(Files.readAllBytes(out.resolve("Bar.java.json")), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testUsage() {
+		Output output = new Output().run("--help");
+		assertEquals(0, output.exitCode);
+		assertTrue(output.out().startsWith("Usage"));
+
+		output = new Output().run("onlyOne.java");
+		assertEquals(2, output.exitCode);
+		assertTrue(output.err().contains("Usage"));
+
+		output = new Output().run("--unknown", "a", "b");
+		assertEquals(2, output.exitCode);
+
+		output = new Output().run("-o");
+		assertEquals(2, output.exitCode);
+
+		output = new Output().run("missingLeft.java", "missingRight.java");
+		assertEquals(2, output.exitCode);
+	}
+
+}
@@ -0,0 +1,122 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.github.gumtreediff.actions.Diff;
+import com.github.gumtreediff.matchers.MappingStore;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+public class TreeDiffMappingCodecTest {
+
+	static final String[][] VERSIONS = new String[][] {
+			{ TreeDiffStreamWriterTest.INPUT_LEFT, TreeDiffStreamWriterTest.INPUT_RIGHT },
+			{ TreeDiffBinaryEncoderTest.createClass(20, 0), TreeDiffBinaryEncoderTest.createClass(20, 3) },
+			{ TreeDiffBinaryEncoderTest.createClass(5, 0), "class Main {\n int x = 1;\n}\n" },
+			{ "class A {\n void a() { f(1); }\n void b() { g(2); }\n}\n",
+					"class A {\n void b() { g(2); }\n void a() { f(1); h(); }\n}\n" },
+			{ "class A {\n void a() { f(1); g(2); }\n void b() { g(2); }\n}\n",
+					"class A {\n void a() { f(1, 5); g(2); }\n void b() { g(2); }\n}\n" } };
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		for (String[] version : VERSIONS) {
+			Diff diff = TreeDiffStreamWriterTest.createDiff(version[0], version[1]);
+			TreeNodeTable before = new TreeNodeTable(diff.src.getRoot());
+			TreeNodeTable after = new TreeNodeTable(diff.dst.getRoot());
+
+			for (boolean omitIsomorphic : new boolean[] { false, true }) {
+				TreeDiffMappingCodec codec = new TreeDiffMappingCodec(omitIsomorphic);
+				JsonObject encoded = codec.encode(diff.mappings, before, after);
+				// through the text of the json
+				JsonElement parsed = new Gson().fromJson(encoded.toString(), JsonElement.class);
+
+				MappingStore decoded = codec.decode(parsed, diff.src.getRoot(), diff.dst.getRoot());
+				assertEquals(diff.mappings.asSet(), decoded.asSet());
+			}
+		}
+	}
+
+	@Test
+	public void testSize() throws IOException {
+		Diff diff = TreeDiffStreamWriterTest.createDiff(TreeDiffBinaryEncoderTest.createClass(20, 0),
+				TreeDiffBinaryEncoderTest.createClass(20, 3));
+		TreeNodeTable before = new TreeNodeTable(diff.src.getRoot());
+		TreeNodeTable after = new TreeNodeTable(diff.dst.getRoot());
+
+		int full = new TreeDiffFormatBuilder().createMappingJson(diff.mappings).toString().length();
+		JsonObject runs = new TreeDiffMappingCodec().encode(diff.mappings, before, after);
+		assertTrue(runs.toString().length() * 10 <= full);
+		// all the mappings are in runs, nothing to leave out
+		assertFalse(new TreeDiffMappingCodec(true).encode(diff.mappings, before, after).has("isomorphic-omitted"));
+
+		// the subtrees after the inserted argument are implied by their parents
+		diff = TreeDiffStreamWriterTest.createDiff(VERSIONS[4][0], VERSIONS[4][1]);
+		before = new TreeNodeTable(diff.src.getRoot());
+		after = new TreeNodeTable(diff.dst.getRoot());
+		runs = new TreeDiffMappingCodec().encode(diff.mappings, before, after);
+		JsonObject omitted = new TreeDiffMappingCodec(true).encode(diff.mappings, before, after);
+		assertTrue(omitted.get("isomorphic-omitted").getAsBoolean());
+		assertTrue(omitted.get("runs").getAsJsonArray().size() < runs.get("runs").getAsJsonArray().size());
+	}
+
+	@Test
+	public void testBuilder() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT);
+		Diff diff = TreeDiffStreamWriterTest.createDiff(TreeDiffStreamWriterTest.INPUT_LEFT,
+				TreeDiffStreamWriterTest.INPUT_RIGHT);
+
+		for (boolean storeNodeTable : new boolean[] { false, true }) {
+			TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(TreeDiffFormatConfig.builder()
+					.setStoreMappings(true).setStoreNodeTable(storeNodeTable).setCompactMappings(true)
+					.setOmitIsomorphicMappings(true).build());
+
+			JsonElement treeDiff = builder.build(left, right, "test", "1");
+			// the compact mappings are in a deterministic order
+			StringWriter written = new StringWriter();
+			builder.write(left, right, "test", "1", written);
+			assertEquals(new Gson().toJson(treeDiff), written.toString());
+
+			JsonElement mapping = treeDiff.getAsJsonObject().get("mapping");
+			MappingStore decoded = new TreeDiffMappingCodec().decode(mapping, diff.src.getRoot(),
+					diff.dst.getRoot());
+			assertEquals(diff.mappings.asSet().size(), decoded.asSet().size());
+		}
+	}
+
+	@Test
+	public void testInvalidRuns() throws IOException {
+		Diff diff = TreeDiffStreamWriterTest.createDiff(TreeDiffStreamWriterTest.INPUT_LEFT,
+				TreeDiffStreamWriterTest.INPUT_RIGHT);
+		TreeNodeTable before = new TreeNodeTable(diff.src.getRoot());
+		TreeNodeTable after = new TreeNodeTable(diff.dst.getRoot());
+		int nodes = Math.min(before.size(), after.size());
+
+		int[][] invalid = { { 0, 0 }, { -1, 0, 1 }, { 0, -1, 1 }, { 0, 0, -1 }, { 0, 0, nodes + 1 },
+				{ before.size(), 0, 1 }, { 0, after.size(), 1 }, { 1, 1, Integer.MAX_VALUE } };
+		for (int[] runs : invalid) {
+			JsonObject mapping = new JsonObject();
+			mapping.add("runs", new Gson().toJsonTree(runs));
+			try {
+				new TreeDiffMappingCodec().decode(mapping, before, after);
+				fail(Arrays.toString(runs));
+			} catch (JsonParseException e) {
+				// expected
+			}
+		}
+	}
+
+}
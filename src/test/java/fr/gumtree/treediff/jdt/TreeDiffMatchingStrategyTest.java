@@ -0,0 +1,152 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.github.gumtreediff.actions.SimplifiedChawatheScriptGenerator;
+import com.github.gumtreediff.gen.jdt.JdtTreeGenerator;
+import com.github.gumtreediff.matchers.CompositeMatchers;
+import com.github.gumtreediff.matchers.MappingStore;
+import com.github.gumtreediff.matchers.Matcher;
+import com.github.gumtreediff.matchers.heuristic.gt.GreedySubtreeMatcher;
+import com.github.gumtreediff.tree.TreeContext;
+import com.google.gson.JsonObject;
+
+import fr.gumtree.treediff.jdt.TreeDiffMatchingStrategy.Matching;
+import fr.gumtree.treediff.jdt.TreeDiffMatchingStrategy.OnTimeout;
+
+public class TreeDiffMatchingStrategyTest {
+
+	/**
+	 * A strategy whose budget is always exceeded.
+	 */
+	static class ExpiredStrategy extends TreeDiffMatchingStrategy {
+
+		ExpiredStrategy(OnTimeout onTimeout) {
+			super(Integer.MAX_VALUE, 1, onTimeout);
+		}
+
+		@Override
+		protected boolean isExpired(long deadline) {
+			return true;
+		}
+	}
+
+	@Test
+	public void testDefaultSameAsSimpleGumtree() throws IOException {
+		TreeContext left = new JdtTreeGenerator().generateFrom().string(TreeDiffStreamWriterTest.INPUT_LEFT);
+		TreeContext right = new JdtTreeGenerator().generateFrom().string(TreeDiffStreamWriterTest.INPUT_RIGHT);
+
+		Matching matching = new TreeDiffMatchingStrategy().match(left.getRoot(), right.getRoot(), Long.MAX_VALUE);
+		MappingStore expected = new CompositeMatchers.SimpleGumtree().match(left.getRoot(), right.getRoot());
+
+		assertEquals(CompositeMatchers.SimpleGumtree.class.getName(), matching.getMatcherName());
+		assertFalse(matching.isDegraded());
+		assertEquals(expected.asSet(), matching.getMappings().asSet());
+	}
+
+	@Test
+	public void testMatchersPerDiff() throws Exception {
+		List<Matcher> created = new ArrayList<>();
+		TreeDiffMatchingStrategy strategy = new TreeDiffMatchingStrategy() {
+			@Override
+			protected Matcher createFullMatcher() {
+				Matcher matcher = super.createFullMatcher();
+				created.add(matcher);
+				return matcher;
+			}
+		};
+		// a generator per diff, which does not keep the previous diff alive
+		assertNotSame(strategy.createGenerator(), strategy.createGenerator());
+
+		// a matcher per diff, which computes the same mappings than a new one
+		for (String[] version : TreeDiffMappingCodecTest.VERSIONS) {
+			TreeContext left = new JdtTreeGenerator().generateFrom().string(version[0]);
+			TreeContext right = new JdtTreeGenerator().generateFrom().string(version[1]);
+			MappingStore expected = new CompositeMatchers.SimpleGumtree().match(left.getRoot(), right.getRoot());
+			assertEquals(expected.asSet(),
+					strategy.match(left.getRoot(), right.getRoot(), Long.MAX_VALUE).getMappings().asSet());
+		}
+		assertEquals(TreeDiffMappingCodecTest.VERSIONS.length, created.size());
+		assertEquals(created.size(), new HashSet<>(created).size());
+	}
+
+	@Test
+	public void testLargeTrees() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT);
+
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder();
+		JsonObject toolInfo = builder.build(left, right, "gumtree", "3.0.0").getAsJsonObject().get("tool-info")
+				.getAsJsonObject();
+		assertEquals(CompositeMatchers.SimpleGumtree.class.getName(), toolInfo.get("matcher").getAsString());
+		assertEquals(SimplifiedChawatheScriptGenerator.class.getName(),
+				toolInfo.get("editscriptgenerator").getAsString());
+
+		builder = new TreeDiffFormatBuilder(TreeDiffFormatConfig.builder()
+				.setMatchingStrategy(new TreeDiffMatchingStrategy(10, 0, OnTimeout.DEGRADE)).build());
+		toolInfo = builder.build(left, right, "gumtree", "3.0.0").getAsJsonObject().get("tool-info")
+				.getAsJsonObject();
+		assertEquals(CompositeMatchers.XyMatcher.class.getName(), toolInfo.get("matcher").getAsString());
+		assertFalse(toolInfo.has("degraded"));
+	}
+
+	@Test
+	public void testDegrade() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT);
+
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(
+				TreeDiffFormatConfig.builder().setMatchingStrategy(new ExpiredStrategy(OnTimeout.DEGRADE)).build());
+		JsonObject toolInfo = builder.build(left, right, "gumtree", "3.0.0").getAsJsonObject().get("tool-info")
+				.getAsJsonObject();
+
+		// the subtree phase is shared, the bottom-up phase is the one of the cheaper matcher
+		assertEquals(CompositeMatchers.XyMatcher.class.getName(), toolInfo.get("matcher").getAsString());
+		assertTrue(toolInfo.get("degraded").getAsBoolean());
+	}
+
+	@Test
+	public void testDegradeWithoutCheaperPhases() throws IOException {
+		TreeContext left = new JdtTreeGenerator().generateFrom().string(TreeDiffStreamWriterTest.INPUT_LEFT);
+		TreeContext right = new JdtTreeGenerator().generateFrom().string(TreeDiffStreamWriterTest.INPUT_RIGHT);
+
+		TreeDiffMatchingStrategy strategy = new ExpiredStrategy(OnTimeout.DEGRADE) {
+			@Override
+			protected Matcher createCheapMatcher() {
+				return new CompositeMatchers.ChangeDistiller();
+			}
+		};
+		Matching matching = strategy.match(left.getRoot(), right.getRoot(), 0);
+
+		assertEquals(GreedySubtreeMatcher.class.getName(), matching.getMatcherName());
+		assertTrue(matching.isDegraded());
+	}
+
+	@Test
+	public void testCancel() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT);
+
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(
+				TreeDiffFormatConfig.builder().setMatchingStrategy(new ExpiredStrategy(OnTimeout.CANCEL)).build());
+		try {
+			builder.build(left, right, "gumtree", "3.0.0");
+			fail();
+		} catch (TreeDiffTimeoutException e) {
+			assertTrue(e.getMessage().contains("1 ms"));
+		}
+	}
+
+}
@@ -0,0 +1,29 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import fr.gumtree.treediff.jdt.TreeDiffMetrics.Phase;
+
+public class TreeDiffMetricsJsonLinesWriterTest {
+
+	@Test
+	public void testLines() throws IOException {
+		StringWriter out = new StringWriter();
+		try (TreeDiffMetricsJsonLinesWriter writer = new TreeDiffMetricsJsonLinesWriter(out)) {
+			TreeDiffMetrics metrics = new TreeDiffMetrics("A.java", "B.java");
+			metrics.record(Phase.PARSE, 10);
+			metrics.setOutputBytes(42);
+			writer.onDiff(metrics);
+			writer.onDiff(new TreeDiffMetrics("C.java", "D.java"));
+		}
+
+		assertEquals("{\"left\":\"A.java\",\"right\":\"B.java\",\"parse-ns\":10,\"output-bytes\":42}\n"
+				+ "{\"left\":\"C.java\",\"right\":\"D.java\"}\n", out.toString());
+	}
+
+}
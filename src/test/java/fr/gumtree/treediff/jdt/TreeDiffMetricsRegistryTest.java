@@ -0,0 +1,63 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+import fr.gumtree.treediff.jdt.TreeDiffMetrics.Phase;
+import fr.gumtree.treediff.jdt.TreeDiffMetricsRegistry.Histogram;
+
+public class TreeDiffMetricsRegistryTest {
+
+	@Test
+	public void testHistogram() {
+		Histogram histogram = new Histogram();
+		for (long value = 1; value <= 1000; value++) {
+			histogram.record(value * 1000);
+		}
+
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000, histogram.getMin());
+		assertEquals(1_000_000, histogram.getMax());
+		assertEquals(500_500, histogram.getMean(), 0.001);
+		for (double percentile : new double[] { 50, 90, 99 }) {
+			double exact = percentile * 10_000;
+			long estimated = histogram.getValueAtPercentile(percentile);
+			assertTrue(estimated >= exact);
+			assertTrue(estimated <= exact * 17 / 16);
+		}
+		assertEquals(1_000_000, histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void testBuckets() {
+		for (long value : new long[] { 0, 1, 15, 16, 17, 31, 32, 1000, 123_456_789, Long.MAX_VALUE }) {
+			int index = Histogram.indexOf(value);
+			assertTrue(value <= Histogram.highestValueOf(index));
+			assertTrue(index == 0 || value > Histogram.highestValueOf(index - 1));
+		}
+	}
+
+	@Test
+	public void testRegistry() {
+		TreeDiffMetricsRegistry registry = new TreeDiffMetricsRegistry();
+		for (int i = 1; i <= 3; i++) {
+			TreeDiffMetrics metrics = new TreeDiffMetrics("A.java", "B.java");
+			metrics.record(Phase.PARSE, i * 100);
+			metrics.record(Phase.PARSE, i * 100);
+			registry.onDiff(metrics);
+		}
+
+		assertEquals(3, registry.getHistogram(Phase.PARSE).getCount());
+		assertEquals(400, registry.getHistogram(Phase.PARSE).getMean(), 0.001);
+		assertEquals(0, registry.getHistogram(Phase.MATCH).getCount());
+
+		JsonObject summary = registry.toJson();
+		assertEquals(3, summary.get("parse-ns").getAsJsonObject().get("count").getAsInt());
+		assertTrue(!summary.has("match-ns"));
+	}
+
+}
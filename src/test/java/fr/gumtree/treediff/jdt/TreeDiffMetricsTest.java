@@ -0,0 +1,86 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import fr.gumtree.treediff.jdt.TreeDiffMetrics.Phase;
+
+public class TreeDiffMetricsTest {
+
+	@Test
+	public void testBuildMetrics() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT);
+
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(
+				TreeDiffFormatConfig.builder().setStoreMappings(true).setStoreStats(true).build());
+		List<TreeDiffMetrics> received = new ArrayList<>();
+		builder.addMetricsListener(received::add);
+
+		JsonObject treeDiff = builder.build(left, right, "gumtree", "3.0.0").getAsJsonObject();
+
+		assertEquals(1, received.size());
+		TreeDiffMetrics metrics = received.get(0);
+		assertEquals(left.getPath(), metrics.getPathLeft());
+		for (Phase phase : Phase.values()) {
+			assertTrue(metrics.getNanos(phase) >= 0);
+		}
+		assertEquals(treeDiff.get("diff").getAsJsonArray().size(), metrics.getActions());
+		assertEquals(treeDiff.get("mapping").getAsJsonArray().size(), metrics.getMappings());
+		assertTrue(metrics.getNodesLeft() > 0);
+		assertEquals(TreeDiffMetrics.UNKNOWN, metrics.getOutputBytes());
+
+		JsonObject stats = treeDiff.get("tool-info").getAsJsonObject().get("stats").getAsJsonObject();
+		assertEquals(metrics.getActions(), stats.get("actions").getAsLong());
+		assertFalse(stats.has("output-bytes"));
+	}
+
+	@Test
+	public void testWriteMetrics() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT + "// é中\n");
+
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(TreeDiffFormatConfig.builder().setStoreTrees(true)
+				.setStoreMappings(true).setStoreStats(true).build());
+		List<TreeDiffMetrics> received = new ArrayList<>();
+		builder.addMetricsListener(received::add);
+
+		StringWriter out = new StringWriter();
+		builder.write(left, right, "gumtree", "3.0.0", out);
+
+		TreeDiffMetrics metrics = received.get(0);
+		assertEquals(out.toString().getBytes(StandardCharsets.UTF_8).length, metrics.getOutputBytes());
+
+		// the stats are written before the serialization
+		JsonObject stats = new JsonParser().parse(out.toString()).getAsJsonObject().get("tool-info")
+				.getAsJsonObject().get("stats").getAsJsonObject();
+		assertTrue(stats.has(Phase.MATCH.getJsonName()));
+		assertFalse(stats.has(Phase.SERIALIZE.getJsonName()));
+	}
+
+	@Test
+	public void testNoMetricsByDefault() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT);
+
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder();
+		assertEquals(null, builder.createMetrics(left, right));
+
+		JsonObject treeDiff = builder.build(left, right, "gumtree", "3.0.0").getAsJsonObject();
+		assertFalse(treeDiff.get("tool-info").getAsJsonObject().has("stats"));
+	}
+
+}
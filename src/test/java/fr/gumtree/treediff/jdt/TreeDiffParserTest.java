@@ -0,0 +1,76 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.github.gumtreediff.gen.TreeGenerator;
+import com.github.gumtreediff.gen.jdt.JdtTreeGenerator;
+import com.github.gumtreediff.tree.Tree;
+import com.google.gson.Gson;
+
+public class TreeDiffParserTest {
+
+	static final String[] CONTENTS = { TreeDiffStreamWriterTest.INPUT_LEFT, TreeDiffStreamWriterTest.INPUT_RIGHT,
+			TreeDiffFastPathTest.CONTENT, TreeDiffBinaryEncoderTest.createClass(20, 3),
+			"/** doc */ record R(int x) { R { assert x > 0; } }", "class A { void f() { int x = ; } }",
+			"class B {" };
+
+	/**
+	 * @return the JSON of the tree, or the class of the exception thrown
+	 */
+	static String parse(TreeGenerator generator, String content) {
+		try {
+			Tree root = generator.generateFrom().string(content).getRoot();
+			return new Gson().toJson(new TreeDiffFormatBuilder().convertTreeToJSon(root, null));
+		} catch (Exception e) {
+			return e.getClass().getName();
+		}
+	}
+
+	@Test
+	public void testSameTrees() {
+		TreeDiffParser parser = new TreeDiffParser();
+		// twice, with the reused parser
+		for (int round = 0; round < 2; round++) {
+			for (String content : CONTENTS) {
+				assertEquals(content, parse(new JdtTreeGenerator(), content), parse(parser, content));
+			}
+		}
+	}
+
+	@Test
+	public void testThreads() throws Exception {
+		List<String> expected = new ArrayList<>();
+		for (String content : CONTENTS) {
+			expected.add(parse(new JdtTreeGenerator(), content));
+		}
+
+		TreeDiffParser parser = new TreeDiffParser();
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<List<String>>> results = new ArrayList<>();
+			for (int thread = 0; thread < 8; thread++) {
+				results.add(pool.submit(() -> {
+					List<String> trees = new ArrayList<>();
+					for (String content : CONTENTS) {
+						trees.add(parse(parser, content));
+					}
+					return trees;
+				}));
+			}
+			for (Future<List<String>> result : results) {
+				assertEquals(expected, result.get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+}
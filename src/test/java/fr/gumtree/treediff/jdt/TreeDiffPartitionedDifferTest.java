@@ -0,0 +1,105 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.github.gumtreediff.actions.Diff;
+import com.github.gumtreediff.actions.model.Action;
+import com.github.gumtreediff.gen.jdt.JdtTreeGenerator;
+import com.github.gumtreediff.tree.TreeContext;
+import com.google.gson.JsonObject;
+
+public class TreeDiffPartitionedDifferTest {
+
+	static TreeDiffPartitionedDiffer.Result diff(String left, String right) throws IOException {
+		TreeContext ctxL = new JdtTreeGenerator().generateFrom().string(left);
+		TreeContext ctxR = new JdtTreeGenerator().generateFrom().string(right);
+		return new TreeDiffPartitionedDiffer().diff(ctxL, ctxR, new TreeDiffMatchingStrategy(), Long.MAX_VALUE);
+	}
+
+	static Set<String> describe(Diff diff) {
+		Set<String> actions = new HashSet<>();
+		for (Action action : diff.editScript) {
+			actions.add(action.getName() + " " + action.getNode().getType() + " " + action.getNode().getLabel() + " "
+					+ action.getNode().getPos() + " " + action.getNode().getEndPos());
+		}
+		return actions;
+	}
+
+	@Test
+	public void testSameActionsAsFullDiff() throws IOException {
+		String left = TreeDiffBinaryEncoderTest.createClass(50, 0);
+		String right = TreeDiffBinaryEncoderTest.createClass(50, 7);
+
+		TreeDiffPartitionedDiffer.Result result = diff(left, right);
+		Diff full = TreeDiffStreamWriterTest.createDiff(left, right);
+
+		assertEquals(describe(full), describe(result.getDiff()));
+		assertEquals(full.mappings.size(), result.getDiff().mappings.size());
+		assertEquals(5, result.getChanged());
+		assertEquals(0, result.getInserted());
+		assertEquals(0, result.getDeleted());
+		assertTrue(result.getIdentical() >= 45);
+		assertFalse(result.isDegraded());
+	}
+
+	@Test
+	public void testInsertDeleteMove() throws IOException {
+		TreeDiffPartitionedDiffer.Result result = diff(
+				"class Main {\n int a() { return 1; }\n int b() { return 2; }\n int c() { return 3; }\n}\n",
+				"class Main {\n int c() { return 3; }\n int a() { return 1; }\n int d() { return 4; }\n}\n");
+
+		Set<String> actions = new HashSet<>();
+		for (Action action : result.getDiff().editScript) {
+			if (action.getNode().getType().name.equals("MethodDeclaration")) {
+				actions.add(action.getName() + " " + action.getNode().getChild(1).getLabel());
+			}
+		}
+		assertEquals(3, actions.size());
+		assertTrue(actions.contains("move-tree c"));
+		assertTrue(actions.contains("insert-tree d"));
+		assertTrue(actions.contains("delete-tree b"));
+		assertEquals(0, result.getChanged());
+		assertEquals(TreeDiffPartitionedDiffer.class.getName(), result.getMatcherName());
+	}
+
+	@Test
+	public void testNoChange() throws IOException {
+		String content = TreeDiffBinaryEncoderTest.createClass(10, 0);
+
+		TreeDiffPartitionedDiffer.Result result = diff(content, content);
+
+		assertEquals(0, result.getDiff().editScript.size());
+		assertEquals(0, result.getChanged());
+		assertEquals(TreeDiffPartitionedDiffer.class.getName(), result.getMatcherName());
+	}
+
+	@Test
+	public void testBuilder() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffBinaryEncoderTest.createClass(30, 0));
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffBinaryEncoderTest.createClass(30, 3));
+
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(false, true);
+		JsonObject full = builder.build(left, right, "test", "1").getAsJsonObject();
+
+		builder = new TreeDiffFormatBuilder(
+				builder.getConfig().toBuilder().setPartitionedDiffer(new TreeDiffPartitionedDiffer()).build());
+		JsonObject partitioned = builder.build(left, right, "test", "1").getAsJsonObject();
+
+		JsonObject toolInfo = partitioned.get("tool-info").getAsJsonObject();
+		assertTrue(toolInfo.get("partitioned").getAsBoolean());
+		assertNull(full.get("tool-info").getAsJsonObject().get("partitioned"));
+		assertEquals(full.get("diff").getAsJsonArray().size(), partitioned.get("diff").getAsJsonArray().size());
+		assertEquals(full.get("mapping").getAsJsonArray().size(), partitioned.get("mapping").getAsJsonArray().size());
+	}
+
+}
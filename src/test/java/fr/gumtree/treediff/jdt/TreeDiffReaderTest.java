@@ -0,0 +1,246 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.github.gumtreediff.actions.Diff;
+import com.github.gumtreediff.tree.Tree;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+import fr.gumtree.treediff.jdt.TreeDiffRecord.Kind;
+import fr.gumtree.treediff.jdt.TreeDiffRecord.Side;
+
+public class TreeDiffReaderTest {
+
+	static List<TreeDiffRecord> readAll(JsonElement treeDiff, boolean readTrees) throws IOException {
+		List<TreeDiffRecord> records = new ArrayList<>();
+		try (TreeDiffReader reader = new TreeDiffReader(new StringReader(new Gson().toJson(treeDiff)), readTrees)) {
+			TreeDiffRecord record;
+			while ((record = reader.next()) != null) {
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+	static List<TreeDiffRecord> ofKind(List<TreeDiffRecord> records, Kind kind) {
+		List<TreeDiffRecord> filtered = new ArrayList<>();
+		for (TreeDiffRecord record : records) {
+			if (record.getKind() == kind) {
+				filtered.add(record);
+			}
+		}
+		return filtered;
+	}
+
+	@Test
+	public void testReadActions() throws IOException {
+		Diff diff = TreeDiffStreamWriterTest.createDiff(TreeDiffStreamWriterTest.INPUT_LEFT,
+				TreeDiffStreamWriterTest.INPUT_RIGHT);
+		JsonObject toolInfo = new JsonObject();
+		toolInfo.addProperty("tool", "GumTree");
+		JsonObject treeDiff = new TreeDiffFormatBuilder(true, true).build(diff.src.getRoot(), "./File1.java",
+				diff.dst.getRoot(), "./File2.java", diff, toolInfo).getAsJsonObject();
+
+		List<TreeDiffRecord> records = readAll(treeDiff, false);
+
+		assertEquals(Kind.TOOL_INFO, records.get(0).getKind());
+		assertEquals(toolInfo, ((TreeDiffRecord.ToolInfo) records.get(0)).getInfo());
+		// the trees are skipped
+		assertEquals(0, ofKind(records, Kind.NODE).size());
+
+		JsonArray actions = treeDiff.get("diff").getAsJsonArray();
+		List<TreeDiffRecord> actionRecords = ofKind(records, Kind.ACTION);
+		assertEquals(actions.size(), actionRecords.size());
+		for (int i = 0; i < actions.size(); i++) {
+			JsonObject expected = actions.get(i).getAsJsonObject();
+			TreeDiffRecord.Action action = (TreeDiffRecord.Action) actionRecords.get(i);
+			assertEquals(expected.get("type").getAsString(), action.getType());
+			assertEquals(expected.get("node-str").getAsString(), action.getNodeStr());
+			JsonObject node = expected.get("node").getAsJsonObject();
+			assertEquals(node.get("type").getAsString(), action.getNodeType());
+			assertEquals(node.get("label").getAsString(), action.getNodeLabel());
+			assertNull(action.getNode());
+			assertEquals(intOrAbsent(expected, "location-before-char-start"), action.getBeforeStart());
+			assertEquals(intOrAbsent(expected, "location-before-char-end"), action.getBeforeEnd());
+			assertEquals(intOrAbsent(expected, "location-after-char-start"), action.getAfterStart());
+			assertEquals(intOrAbsent(expected, "location-after-char-end"), action.getAfterEnd());
+			assertEquals(TreeDiffRecord.ABSENT, action.getNodeId());
+		}
+
+		JsonArray mappings = treeDiff.get("mapping").getAsJsonArray();
+		List<TreeDiffRecord> mappingRecords = ofKind(records, Kind.MAPPING);
+		assertEquals(mappings.size(), mappingRecords.size());
+		for (int i = 0; i < mappings.size(); i++) {
+			JsonObject src = mappings.get(i).getAsJsonObject().get("src").getAsJsonObject();
+			TreeDiffRecord.Mapping mapping = (TreeDiffRecord.Mapping) mappingRecords.get(i);
+			assertEquals(src.get("node-str").getAsString(), mapping.getSrcNodeStr());
+			assertEquals(src.get("start").getAsInt(), mapping.getSrcStart());
+			assertEquals(src.get("end").getAsInt(), mapping.getSrcEnd());
+		}
+	}
+
+	@Test
+	public void testReadTrees() throws IOException {
+		Diff diff = TreeDiffStreamWriterTest.createDiff(TreeDiffStreamWriterTest.INPUT_LEFT,
+				TreeDiffStreamWriterTest.INPUT_RIGHT);
+
+		for (boolean storeNodeTable : new boolean[] { false, true }) {
+			TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(
+					TreeDiffFormatConfig.builder().setStoreTrees(true).setStoreNodeTable(storeNodeTable).build());
+			List<TreeDiffRecord> records = readAll(builder.build(diff), true);
+
+			List<TreeDiffRecord> nodes = ofKind(records, Kind.NODE);
+			assertNodes(diff.src.getRoot(), Side.BEFORE, nodes.subList(0, diff.src.getRoot().getMetrics().size),
+					storeNodeTable);
+			assertNodes(diff.dst.getRoot(), Side.AFTER,
+					nodes.subList(diff.src.getRoot().getMetrics().size, nodes.size()), storeNodeTable);
+			assertEquals(0, ofKind(records, Kind.MAPPING).size());
+
+			TreeDiffRecord.Action action = (TreeDiffRecord.Action) ofKind(records, Kind.ACTION).get(0);
+			Tree actionNode = diff.editScript.get(0).getNode();
+			if (storeNodeTable) {
+				assertNull(action.getNode());
+				assertEquals(new TreeNodeTable(diff.src.getRoot()).idOf(actionNode), action.getNodeId());
+			} else {
+				assertNotNull(action.getNode());
+				assertEquals(actionNode.getType().name, action.getNodeType());
+			}
+		}
+	}
+
+	private static void assertNodes(Tree root, Side side, List<TreeDiffRecord> records, boolean withPositions) {
+		TreeNodeTable table = new TreeNodeTable(root);
+		assertEquals(table.size(), records.size());
+		for (int id = 0; id < table.size(); id++) {
+			TreeDiffRecord.Node node = (TreeDiffRecord.Node) records.get(id);
+			Tree expected = table.get(id);
+			assertEquals(side, node.getSide());
+			assertEquals(id, node.getId());
+			assertEquals(table.parentOf(id), node.getParentId());
+			int depth = 0;
+			for (int parent = table.parentOf(id); parent >= 0; parent = table.parentOf(parent)) {
+				depth++;
+			}
+			assertEquals(depth, node.getDepth());
+			assertEquals(expected.getType().name, node.getType());
+			assertEquals(expected.getLabel(), node.getLabel());
+			assertEquals(withPositions ? expected.getPos() : TreeDiffRecord.ABSENT, node.getStart());
+			assertEquals(withPositions ? expected.getEndPos() : TreeDiffRecord.ABSENT, node.getEnd());
+		}
+	}
+
+	@Test
+	public void testReadDeepTree() throws IOException {
+		int depth = 100_000;
+		// Gson cannot serialize such a tree, so it is written with the stream writer
+		StringWriter out = new StringWriter();
+		JsonWriter writer = new Gson().newJsonWriter(out);
+		writer.beginObject();
+		writer.name("before-file").beginObject();
+		writer.name("path").value("deep");
+		writer.name("ast");
+		new TreeDiffStreamWriter(new TreeDiffFormatBuilder()).writeTree(TreeDiffFormatBuilderTest.createChain(depth),
+				writer);
+		writer.endObject();
+		writer.endObject();
+		writer.flush();
+
+		List<TreeDiffRecord> records = new ArrayList<>();
+		try (TreeDiffReader reader = new TreeDiffReader(new StringReader(out.toString()), true)) {
+			TreeDiffRecord record;
+			while ((record = reader.next()) != null) {
+				records.add(record);
+			}
+		}
+
+		assertEquals(depth, records.size());
+		TreeDiffRecord.Node last = (TreeDiffRecord.Node) records.get(depth - 1);
+		assertEquals(depth - 1, last.getDepth());
+		assertEquals(depth - 2, last.getParentId());
+		assertEquals("deep", last.getPath());
+	}
+
+	@Test
+	public void testReadInternedStrings() throws IOException {
+		Diff diff = TreeDiffStreamWriterTest.createDiff(TreeDiffStreamWriterTest.INPUT_LEFT,
+				TreeDiffStreamWriterTest.INPUT_RIGHT);
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(
+				TreeDiffFormatConfig.builder().setStoreTypeTable(true).setStoreLabelTable(true).build());
+
+		List<TreeDiffRecord> records = readAll(builder.build(diff), true);
+
+		TreeDiffRecord.StringTable table = (TreeDiffRecord.StringTable) records.get(records.size() - 1);
+		TreeDiffRecord.Node root = (TreeDiffRecord.Node) ofKind(records, Kind.NODE).get(0);
+		assertNull(root.getType());
+		assertEquals(diff.src.getRoot().getType().name, table.getTypes().get(root.getTypeIndex()));
+
+		TreeDiffRecord.Action action = (TreeDiffRecord.Action) ofKind(records, Kind.ACTION).get(0);
+		Tree actionNode = diff.editScript.get(0).getNode();
+		assertEquals(actionNode.getType().name, table.getTypes().get(action.getNodeTypeIndex()));
+		assertEquals(actionNode.getLabel(), table.getLabels().get(action.getNodeLabelIndex()));
+	}
+
+	private static int intOrAbsent(JsonObject object, String key) {
+		return object.has(key) ? object.get(key).getAsInt() : TreeDiffRecord.ABSENT;
+	}
+
+	@Test
+	public void testCompactMappings() throws IOException {
+		Diff diff = TreeDiffStreamWriterTest.createDiff(TreeDiffStreamWriterTest.INPUT_LEFT,
+				TreeDiffStreamWriterTest.INPUT_RIGHT);
+		TreeNodeTable before = new TreeNodeTable(diff.src.getRoot());
+		TreeNodeTable after = new TreeNodeTable(diff.dst.getRoot());
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(TreeDiffFormatConfig.builder()
+				.setStoreMappings(true).setStoreNodeTable(true).setCompactMappings(true).build());
+		JsonObject treeDiff = builder.build(diff).getAsJsonObject();
+
+		List<TreeDiffRecord> mappings = ofKind(readAll(treeDiff, false), Kind.MAPPING);
+		assertEquals(diff.mappings.size(), mappings.size());
+		int[] dstOf = new TreeDiffMappingCodec().decode(treeDiff.get("mapping"), before, after);
+		for (TreeDiffRecord record : mappings) {
+			TreeDiffRecord.Mapping mapping = (TreeDiffRecord.Mapping) record;
+			assertEquals(dstOf[mapping.getSrcId()], mapping.getDstId());
+			assertTrue(diff.mappings.has(before.get(mapping.getSrcId()), after.get(mapping.getDstId())));
+		}
+
+		// the left out mappings can not be restored without the trees
+		builder = new TreeDiffFormatBuilder(builder.getConfig().toBuilder().setOmitIsomorphicMappings(true).build());
+		JsonObject omitted = builder.build(TreeDiffStreamWriterTest.createDiff(TreeDiffMappingCodecTest.VERSIONS[4][0],
+				TreeDiffMappingCodecTest.VERSIONS[4][1])).getAsJsonObject();
+		assertTrue(omitted.get("mapping").getAsJsonObject().has("isomorphic-omitted"));
+		try {
+			readAll(omitted, false);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+
+		JsonObject invalid = new JsonObject();
+		JsonObject mapping = new JsonObject();
+		mapping.add("runs", new Gson().toJsonTree(new int[] { 0, 0, 1, 2 }));
+		invalid.add("mapping", mapping);
+		try {
+			readAll(invalid, false);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,254 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+public class TreeDiffResultCacheTest {
+
+	static File createDirectory() throws IOException {
+		File directory = Files.createTempDirectory("treediff-cache").toFile();
+		directory.deleteOnExit();
+		return directory;
+	}
+
+	static byte[] value(int i, int length) {
+		byte[] value = new byte[length];
+		for (int j = 0; j < length; j++) {
+			value[j] = (byte) (i + j);
+		}
+		return value;
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		File directory = createDirectory();
+		try (TreeDiffResultCache cache = new TreeDiffResultCache(directory, 1 << 20)) {
+			for (int i = 0; i < 10; i++) {
+				cache.put(TreeDiffResultCache.key("k" + i), value(i, 100 + i));
+			}
+			assertNull(cache.get(TreeDiffResultCache.key("other")));
+		}
+
+		try (TreeDiffResultCache cache = new TreeDiffResultCache(directory, 1 << 20)) {
+			assertEquals(10, cache.size());
+			for (int i = 0; i < 10; i++) {
+				assertArrayEquals(value(i, 100 + i), cache.get(TreeDiffResultCache.key("k" + i)));
+			}
+			assertEquals(10, cache.getHits());
+			assertEquals(0, cache.getMisses());
+		}
+	}
+
+	@Test
+	public void testTruncatedRecord() throws IOException {
+		File directory = createDirectory();
+		try (TreeDiffResultCache cache = new TreeDiffResultCache(directory, 1 << 20)) {
+			cache.put(TreeDiffResultCache.key("a"), value(1, 100));
+		}
+		// records appended after the index was saved, the last one truncated
+		try (TreeDiffResultCache cache = new TreeDiffResultCache(directory, 1 << 20)) {
+			cache.put(TreeDiffResultCache.key("b"), value(2, 100));
+			cache.put(TreeDiffResultCache.key("c"), value(3, 100));
+			try (RandomAccessFile segment = new RandomAccessFile(new File(directory, "treediff.seg"), "rw")) {
+				segment.setLength(segment.length() - 10);
+			}
+		}
+		new File(directory, "treediff.idx").delete();
+
+		try (TreeDiffResultCache cache = new TreeDiffResultCache(directory, 1 << 20)) {
+			assertEquals(2, cache.size());
+			assertArrayEquals(value(1, 100), cache.get(TreeDiffResultCache.key("a")));
+			assertArrayEquals(value(2, 100), cache.get(TreeDiffResultCache.key("b")));
+			assertNull(cache.get(TreeDiffResultCache.key("c")));
+
+			cache.put(TreeDiffResultCache.key("c"), value(3, 100));
+			assertArrayEquals(value(3, 100), cache.get(TreeDiffResultCache.key("c")));
+		}
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+		File directory = createDirectory();
+		try (TreeDiffResultCache cache = new TreeDiffResultCache(directory, 10_000)) {
+			for (int i = 0; i < 50; i++) {
+				cache.put(TreeDiffResultCache.key("k" + i), value(i, 1000));
+				assertTrue(cache.getSegmentBytes() <= 10_000);
+			}
+			assertTrue(cache.getCompactions() > 0);
+			assertEquals(50, cache.size() + cache.getEvictions());
+			assertNull(cache.get(TreeDiffResultCache.key("k0")));
+			assertArrayEquals(value(49, 1000), cache.get(TreeDiffResultCache.key("k49")));
+		}
+
+		try (TreeDiffResultCache cache = new TreeDiffResultCache(directory, 10_000)) {
+			assertArrayEquals(value(49, 1000), cache.get(TreeDiffResultCache.key("k49")));
+		}
+	}
+
+	@Test
+	public void testBuilder() throws IOException {
+		File directory = createDirectory();
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT);
+
+		JsonElement built = new TreeDiffFormatBuilder(true, false).build(left, right, "test", "1");
+		String expected = new Gson().toJson(built);
+
+		try (TreeDiffResultCache cache = new TreeDiffResultCache(directory, 1 << 24)) {
+			TreeDiffFastPathTest.CountingBuilder builder = new TreeDiffFastPathTest.CountingBuilder(
+					TreeDiffFormatConfig.builder().setStoreTrees(true).setResultCache(cache).build());
+
+			assertEquals(built, builder.build(left, right, "test", "1"));
+			assertEquals(2, builder.parsed);
+			assertEquals(expected, new String(cache.get(builder.resultCacheKey(left, right, "test", "1")),
+					StandardCharsets.UTF_8));
+			// with the "meta" of the actions, which is not written
+			assertEquals(built, builder.build(left, right, "test", "1"));
+			assertEquals(2, builder.parsed);
+
+			// another configuration, another key
+			TreeDiffFastPathTest.CountingBuilder mappingBuilder = new TreeDiffFastPathTest.CountingBuilder(
+					builder.getConfig().toBuilder().setStoreMappings(true).build());
+			mappingBuilder.build(left, right, "test", "1");
+			assertEquals(2, mappingBuilder.parsed);
+			assertEquals(2, cache.size());
+		}
+
+		// a new run
+		try (TreeDiffResultCache cache = new TreeDiffResultCache(directory, 1 << 24)) {
+			TreeDiffFastPathTest.CountingBuilder builder = new TreeDiffFastPathTest.CountingBuilder(
+					TreeDiffFormatConfig.builder().setStoreTrees(true).setResultCache(cache).build());
+
+			StringWriter written = new StringWriter();
+			builder.write(left, right, "test", "1", written);
+			assertEquals(0, builder.parsed);
+			assertEquals(expected, written.toString());
+
+			StringWriter writtenRight = new StringWriter();
+			builder.write(right, left, "test", "1", writtenRight);
+			assertEquals(2, builder.parsed);
+			assertEquals(new String(cache.get(builder.resultCacheKey(right, left, "test", "1")),
+					StandardCharsets.UTF_8), writtenRight.toString());
+		}
+	}
+
+	@Test
+	public void testLargeDocument() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT);
+		String expected = new Gson().toJson(new TreeDiffFormatBuilder(true, false).build(left, right, "test", "1"));
+
+		// the segment can not keep the document
+		try (TreeDiffResultCache cache = new TreeDiffResultCache(createDirectory(), expected.length())) {
+			TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(
+					TreeDiffFormatConfig.builder().setStoreTrees(true).setResultCache(cache).build());
+
+			StringWriter written = new StringWriter();
+			builder.write(left, right, "test", "1", written);
+			assertEquals(expected, written.toString());
+			builder.build(left, right, "test", "1");
+			assertEquals(0, cache.size());
+		}
+	}
+
+	@Test
+	public void testSummaryPaths() throws IOException {
+		File[] lefts = { TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT),
+				TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT) };
+		File[] rights = { TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT),
+				TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT) };
+
+		try (TreeDiffResultCache cache = new TreeDiffResultCache(createDirectory(), 1 << 24)) {
+			TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(
+					TreeDiffFormatConfig.builder().setSummaryOnly(true).setResultCache(cache).build());
+			// the pairs have the same contents, at different paths
+			for (int i = 0; i < 2; i++) {
+				for (int pair = 0; pair < 2; pair++) {
+					JsonObject summary = builder.build(lefts[pair], rights[pair], "test", "1").getAsJsonObject();
+					assertEquals(lefts[pair].getAbsolutePath(),
+							summary.get("before-file").getAsJsonObject().get("path").getAsString());
+					assertEquals(rights[pair].getAbsolutePath(),
+							summary.get("after-file").getAsJsonObject().get("path").getAsString());
+				}
+			}
+			assertEquals(2, cache.size());
+		}
+	}
+
+	@Test
+	public void testMetrics() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT);
+
+		try (TreeDiffResultCache cache = new TreeDiffResultCache(createDirectory(), 1 << 24)) {
+			// the hits are notified
+			TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(
+					TreeDiffFormatConfig.builder().setResultCache(cache).build());
+			List<TreeDiffMetrics> notified = new ArrayList<>();
+			builder.addMetricsListener(notified::add);
+			builder.build(left, right, "test", "1");
+			builder.build(left, right, "test", "1");
+			StringWriter out = new StringWriter();
+			builder.write(left, right, "test", "1", out);
+			assertEquals(3, notified.size());
+			assertTrue(notified.get(0).getActions() > 0);
+			assertEquals(TreeDiffMetrics.UNKNOWN, notified.get(1).getNanos(TreeDiffMetrics.Phase.PARSE));
+			assertTrue(notified.get(1).getNanos(TreeDiffMetrics.Phase.SERIALIZE) >= 0);
+			assertEquals(out.toString().getBytes(StandardCharsets.UTF_8).length, notified.get(2).getOutputBytes());
+			assertEquals(1, cache.size());
+
+			// the stats are the ones of each diff, so they are not cached
+			TreeDiffFormatBuilder statsBuilder = new TreeDiffFormatBuilder(
+					builder.getConfig().toBuilder().setStoreStats(true).build());
+			for (int i = 0; i < 2; i++) {
+				JsonObject toolInfo = statsBuilder.build(left, right, "test", "1").getAsJsonObject().get("tool-info")
+						.getAsJsonObject();
+				assertTrue(toolInfo.get("stats").getAsJsonObject().has("parse-ns"));
+			}
+			assertEquals(1, cache.size());
+		}
+	}
+
+	@Test
+	public void testDeepTree() throws IOException {
+		int depth = 100_000;
+		StringWriter out = new StringWriter();
+		JsonWriter writer = new Gson().newJsonWriter(out);
+		new TreeDiffStreamWriter(new TreeDiffFormatBuilder())
+				.writeTree(TreeDiffFormatBuilderTest.createChain(depth), writer);
+		writer.flush();
+
+		JsonElement tree = new TreeDiffFormatBuilder().parseCached(out.toString().getBytes(StandardCharsets.UTF_8));
+		StringWriter rewritten = new StringWriter();
+		new TreeDiffFormatBuilder().writeCached(tree, rewritten);
+		assertEquals(out.toString(), rewritten.toString());
+
+		int levels = 0;
+		while (tree != null) {
+			levels++;
+			JsonArray children = tree.getAsJsonObject().get("children").getAsJsonArray();
+			tree = (children.size() > 0) ? children.get(0) : null;
+		}
+		assertEquals(depth, levels);
+	}
+
+}
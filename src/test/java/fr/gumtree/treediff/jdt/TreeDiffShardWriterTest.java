@@ -0,0 +1,306 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import fr.gumtree.treediff.jdt.TreeDiffShardWriter.Compression;
+
+public class TreeDiffShardWriterTest {
+
+	static String document(int i) {
+		JsonObject document = new JsonObject();
+		document.addProperty("id", i);
+		StringBuilder padding = new StringBuilder();
+		for (int j = 0; j < i % 50; j++) {
+			padding.append("é").append(j);
+		}
+		document.addProperty("padding", padding.toString());
+		return document.toString();
+	}
+
+	static File[] shards(File directory, Compression compression) {
+		File[] shards = directory.listFiles((d, name) -> name.endsWith(compression.getExtension()));
+		Arrays.sort(shards);
+		return shards;
+	}
+
+	/**
+	 * Reads the documents of a shard as described by its index.
+	 */
+	static Map<String, String> readIndexed(File shard, Compression compression) throws IOException {
+		Map<String, String> documents = new HashMap<>();
+		for (String line : Files.readAllLines(new File(shard.getPath() + TreeDiffShardWriter.INDEX_EXTENSION).toPath())) {
+			String[] columns = line.split("\t");
+			try (InputStream file = new FileInputStream(shard)) {
+				file.skip(Long.parseLong(columns[1]));
+				InputStream in = (compression == Compression.NONE) ? file : new GZIPInputStream(file);
+				in.skip(Long.parseLong(columns[2]));
+				byte[] bytes = new byte[Integer.parseInt(columns[3])];
+				int read = 0;
+				while (read < bytes.length) {
+					read += in.read(bytes, read, bytes.length - read);
+				}
+				documents.put(columns[0], new String(bytes, StandardCharsets.UTF_8));
+			}
+		}
+		return documents;
+	}
+
+	static List<String> readLines(File shard, Compression compression) throws IOException {
+		InputStream in = new FileInputStream(shard);
+		if (compression != Compression.NONE) {
+			in = new GZIPInputStream(in);
+		}
+		List<String> lines = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	@Test
+	public void testRollByCount() throws IOException {
+		for (Compression compression : Compression.values()) {
+			File directory = TreeDiffResultCacheTest.createDirectory();
+			TreeDiffShardWriter writer = new TreeDiffShardWriter(directory, "diffs", compression, 1L << 30, 40, 500,
+					8);
+			try {
+				for (int i = 0; i < 100; i++) {
+					writer.append("k" + i, document(i));
+				}
+			} finally {
+				writer.close();
+			}
+			assertEquals(100, writer.getDocuments());
+			assertEquals(3, writer.getShards());
+
+			File[] shards = shards(directory, compression);
+			assertEquals(3, shards.length);
+			int i = 0;
+			for (File shard : shards) {
+				Map<String, String> indexed = readIndexed(shard, compression);
+				List<String> lines = readLines(shard, compression);
+				assertEquals(lines.size(), indexed.size());
+				for (String line : lines) {
+					assertEquals(document(i), line);
+					assertEquals(compression.name(), line, indexed.get("k" + i));
+					i++;
+				}
+			}
+			assertEquals(100, i);
+		}
+	}
+
+	@Test
+	public void testRollBySize() throws IOException {
+		File directory = TreeDiffResultCacheTest.createDirectory();
+		try (TreeDiffShardWriter writer = new TreeDiffShardWriter(directory, "diffs", Compression.NONE, 2_000,
+				Integer.MAX_VALUE, 1 << 20, 8)) {
+			for (int i = 0; i < 100; i++) {
+				writer.append("k" + i, document(i));
+			}
+		}
+		File[] shards = shards(directory, Compression.NONE);
+		assertTrue(shards.length > 1);
+		int documents = 0;
+		for (File shard : shards) {
+			// a shard is closed by the document that reaches the max size
+			assertTrue(shard.length() < 2_000 + document(49).getBytes(StandardCharsets.UTF_8).length + 1);
+			documents += readIndexed(shard, Compression.NONE).size();
+		}
+		assertEquals(100, documents);
+	}
+
+	@Test
+	public void testSecondRun() throws IOException {
+		File directory = TreeDiffResultCacheTest.createDirectory();
+		for (int run = 0; run < 2; run++) {
+			try (TreeDiffShardWriter writer = new TreeDiffShardWriter(directory, "diffs", Compression.NONE, 1L << 30,
+					10, 1 << 20, 8)) {
+				for (int i = 0; i < 20; i++) {
+					writer.append("k" + (run * 20 + i), document(run * 20 + i));
+				}
+			}
+		}
+		// the shards of the first run are kept
+		File[] shards = shards(directory, Compression.NONE);
+		assertEquals(4, shards.length);
+		assertEquals("diffs-00003.ndjson", shards[3].getName());
+		int i = 0;
+		for (File shard : shards) {
+			for (String line : readLines(shard, Compression.NONE)) {
+				assertEquals(document(i++), line);
+			}
+		}
+		assertEquals(40, i);
+		TreeDiffArchive.writeIndex(directory, "diffs");
+		try (TreeDiffArchive archive = new TreeDiffArchive(directory, "diffs")) {
+			assertEquals(40, archive.size());
+		}
+	}
+
+	@Test
+	public void testFlush() throws IOException {
+		File directory = TreeDiffResultCacheTest.createDirectory();
+		try (TreeDiffShardWriter writer = new TreeDiffShardWriter(directory, "diffs", Compression.GZIP_BLOCKS)) {
+			writer.append("a", document(1));
+			writer.append("b", document(2));
+			writer.flush();
+			Map<String, String> indexed = readIndexed(shards(directory, Compression.GZIP_BLOCKS)[0],
+					Compression.GZIP_BLOCKS);
+			assertEquals(document(1), indexed.get("a"));
+			assertEquals(document(2), indexed.get("b"));
+
+			writer.append("c", document(3));
+		}
+		assertEquals(3, readLines(shards(directory, Compression.GZIP_BLOCKS)[0], Compression.GZIP_BLOCKS).size());
+	}
+
+	@Test
+	public void testConcurrentAppends() throws Exception {
+		File directory = TreeDiffResultCacheTest.createDirectory();
+		File left = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(TreeDiffStreamWriterTest.INPUT_RIGHT);
+		JsonElement treeDiff = new TreeDiffFormatBuilder(true, true).build(left, right, "test", "1");
+
+		try (TreeDiffShardWriter writer = new TreeDiffShardWriter(directory, "diffs", Compression.GZIP, 1L << 30,
+				25, 1 << 20, 4)) {
+			List<Thread> threads = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				int thread = t;
+				threads.add(new Thread(() -> {
+					try {
+						for (int i = 0; i < 25; i++) {
+							writer.append(thread + "/" + i, treeDiff);
+						}
+					} catch (IOException e) {
+						fail(e.toString());
+					}
+				}));
+			}
+			threads.forEach(Thread::start);
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		}
+
+		Map<String, String> indexed = new HashMap<>();
+		for (File shard : shards(directory, Compression.GZIP)) {
+			indexed.putAll(readIndexed(shard, Compression.GZIP));
+		}
+		assertEquals(100, indexed.size());
+		// the nulls are not written
+		assertEquals(new Gson().toJson(treeDiff), indexed.get("3/24"));
+	}
+
+	@Test
+	public void testInvalidDocuments() throws IOException {
+		TreeDiffShardWriter writer = new TreeDiffShardWriter(TreeDiffResultCacheTest.createDirectory(), "diffs",
+				Compression.NONE);
+		try {
+			try {
+				writer.append("a\tb", "{}");
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+			try {
+				writer.append("a", "{\n}");
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+		} finally {
+			writer.close();
+		}
+		try {
+			writer.append("a", "{}");
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void testFailureDoesNotBlock() throws Exception {
+		// the shards can not be created in a file
+		File directory = new File(TreeDiffResultCacheTest.createDirectory(), "file");
+		Files.write(directory.toPath(), new byte[0]);
+		TreeDiffShardWriter writer = new TreeDiffShardWriter(directory, "diffs", Compression.NONE, 1L << 30,
+				Integer.MAX_VALUE, 1 << 20, 2);
+		try {
+			// more documents than the queue holds
+			for (int i = 0; i < 10; i++) {
+				writer.append("k" + i, document(i));
+			}
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			writer.flush();
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			writer.close();
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testAppendWhileClosing() throws Exception {
+		File directory = TreeDiffResultCacheTest.createDirectory();
+		TreeDiffShardWriter writer = new TreeDiffShardWriter(directory, "diffs", Compression.NONE, 1L << 30,
+				Integer.MAX_VALUE, 1 << 20, 1);
+		List<Thread> threads = new ArrayList<>();
+		int[] appended = new int[4];
+		for (int t = 0; t < 4; t++) {
+			int thread = t;
+			threads.add(new Thread(() -> {
+				try {
+					for (int i = 0; i < 1000; i++) {
+						writer.append(thread + "/" + i, document(i));
+						appended[thread]++;
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		writer.close();
+		for (Thread thread : threads) {
+			thread.join(10_000);
+			assertTrue(!thread.isAlive());
+		}
+		// every document accepted was written
+		assertEquals(Arrays.stream(appended).sum(), writer.getDocuments());
+	}
+
+}
@@ -0,0 +1,122 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.github.gumtreediff.actions.ChawatheScriptGenerator;
+import com.github.gumtreediff.actions.Diff;
+import com.github.gumtreediff.actions.EditScript;
+import com.github.gumtreediff.gen.jdt.JdtTreeGenerator;
+import com.github.gumtreediff.matchers.CompositeMatchers;
+import com.github.gumtreediff.matchers.MappingStore;
+import com.github.gumtreediff.tree.Tree;
+import com.github.gumtreediff.tree.TreeContext;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+public class TreeDiffStreamWriterTest {
+
+	static final String INPUT_LEFT = "class Main {\n" + "    public static void foo() {\n"
+			+ "        a.b();  a.c(222333);  a.d();\n" + "    }\n" + "    public static void foo1() {\n"
+			+ "    a.c();}\n" + "}\n";
+
+	static final String INPUT_RIGHT = "class Main {\n" + "    public static void foo() {\n"
+			+ "        a.c(10);  a.d(1); \n" + "    }\n" + "    public static void foo1() {\n"
+			+ "     a.c(); a.b();}\n" + "}";
+
+	static Diff createDiff(String inputLeft, String inputRight) throws IOException {
+		TreeContext ctxL = new JdtTreeGenerator().generateFrom().string(inputLeft);
+		TreeContext ctxR = new JdtTreeGenerator().generateFrom().string(inputRight);
+		MappingStore mappings = new CompositeMatchers.SimpleGumtree().match(ctxL.getRoot(), ctxR.getRoot());
+		EditScript actions = new ChawatheScriptGenerator().computeActions(mappings);
+		return new Diff(ctxL, ctxR, mappings, actions);
+	}
+
+	@Test
+	public void testSameOutputThanDom() throws IOException {
+		Diff diff = createDiff(INPUT_LEFT, INPUT_RIGHT);
+
+		for (boolean storeTrees : new boolean[] { false, true }) {
+			for (boolean storeMappings : new boolean[] { false, true }) {
+				for (boolean storeNodeTable : new boolean[] { false, true }) {
+					TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(TreeDiffFormatConfig.builder()
+							.setStoreTrees(storeTrees).setStoreMappings(storeMappings)
+							.setStoreNodeTable(storeNodeTable).build());
+
+					JsonObject toolInfoJson = new JsonObject();
+					toolInfoJson.addProperty("tool", "GumTree");
+
+					JsonElement outJson = builder.build(diff.src.getRoot(), "./File1.java", diff.dst.getRoot(),
+							"./File2.java", diff, toolInfoJson);
+
+					StringWriter out = new StringWriter();
+					new TreeDiffStreamWriter(builder).write(diff.src.getRoot(), "./File1.java", diff.dst.getRoot(),
+							"./File2.java", diff, toolInfoJson, out);
+
+					assertEquals(new Gson().toJson(outJson), out.toString());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSameOutputThanDomPrettyPrinting() throws IOException {
+		Diff diff = createDiff(INPUT_LEFT, INPUT_RIGHT);
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(true, true);
+		Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+		StringWriter out = new StringWriter();
+		new TreeDiffStreamWriter(builder, gson).write(diff, out);
+
+		assertEquals(gson.toJson(builder.build(diff)), out.toString());
+	}
+
+	@Test
+	public void testWriteFiles() throws IOException {
+		File left = File.createTempFile("left", ".java");
+		File right = File.createTempFile("right", ".java");
+		try {
+			Files.write(left.toPath(), INPUT_LEFT.getBytes(StandardCharsets.UTF_8));
+			Files.write(right.toPath(), INPUT_RIGHT.getBytes(StandardCharsets.UTF_8));
+
+			TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(true, false);
+
+			StringWriter out = new StringWriter();
+			builder.write(left, right, "gumtree", "3.0.0", out);
+
+			assertEquals(new Gson().toJson(builder.build(left, right, "gumtree", "3.0.0")), out.toString());
+		} finally {
+			left.delete();
+			right.delete();
+		}
+	}
+
+	@Test
+	public void testWriteDeepTree() throws IOException {
+		int depth = 200_000;
+		Tree root = TreeDiffFormatBuilderTest.createChain(depth);
+
+		StringWriter out = new StringWriter();
+		JsonWriter writer = new Gson().newJsonWriter(out);
+		new TreeDiffStreamWriter(new TreeDiffFormatBuilder()).writeTree(root, writer);
+		writer.flush();
+
+		String json = out.toString();
+		String node = "{\"label\":\"+\",\"type\":\"InfixExpression\",\"children\":[";
+		assertTrue(json.startsWith(node + node));
+		assertTrue(json.endsWith("]}]}"));
+		assertEquals(depth * (node.length() + "]}".length()), json.length());
+	}
+
+}
@@ -0,0 +1,109 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map.Entry;
+
+import org.junit.Test;
+
+import com.github.gumtreediff.actions.Diff;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+public class TreeDiffStringTableTest {
+
+	/**
+	 * Replaces the indexes of the nodes by the strings of the tables.
+	 */
+	static void resolve(JsonElement element, JsonArray types, JsonArray labels) {
+		if (element.isJsonArray()) {
+			for (JsonElement child : element.getAsJsonArray()) {
+				resolve(child, types, labels);
+			}
+		} else if (element.isJsonObject()) {
+			JsonObject object = element.getAsJsonObject();
+			for (Entry<String, JsonElement> member : object.entrySet()) {
+				JsonElement value = member.getValue();
+				if (member.getKey().equals("type") && types != null && isNumber(value)) {
+					member.setValue(types.get(value.getAsInt()));
+				} else if (member.getKey().equals("label") && labels != null && isNumber(value)) {
+					member.setValue(labels.get(value.getAsInt()));
+				} else {
+					resolve(value, types, labels);
+				}
+			}
+		}
+	}
+
+	private static boolean isNumber(JsonElement value) {
+		return value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber();
+	}
+
+	@Test
+	public void testIndexes() {
+		TreeDiffStringTable strings = new TreeDiffStringTable(true, false);
+		assertTrue(strings.isInterningTypes());
+		assertFalse(strings.isInterningLabels());
+
+		assertEquals(0, strings.indexOfType("SimpleName"));
+		assertEquals(1, strings.indexOfType("MethodInvocation"));
+		assertEquals(0, strings.indexOfType("SimpleName"));
+		assertEquals("[SimpleName, MethodInvocation]", strings.getTypes().toString());
+		assertEquals("{\"types\":[\"SimpleName\",\"MethodInvocation\"]}", strings.toJson().toString());
+	}
+
+	@Test
+	public void testResolvesToPlainDocument() throws IOException {
+		Diff diff = TreeDiffStreamWriterTest.createDiff(TreeDiffStreamWriterTest.INPUT_LEFT,
+				TreeDiffStreamWriterTest.INPUT_RIGHT);
+
+		for (boolean storeTrees : new boolean[] { false, true }) {
+			for (boolean storeNodeTable : new boolean[] { false, true }) {
+				for (boolean storeLabelTable : new boolean[] { false, true }) {
+					TreeDiffFormatConfig config = TreeDiffFormatConfig.builder().setStoreTrees(storeTrees)
+							.setStoreMappings(true).setStoreNodeTable(storeNodeTable).build();
+					TreeDiffFormatBuilder plainBuilder = new TreeDiffFormatBuilder(config);
+					JsonObject plain = plainBuilder.build(diff).getAsJsonObject();
+
+					TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(config.toBuilder()
+							.setStoreTypeTable(true).setStoreLabelTable(storeLabelTable).build());
+					JsonObject interned = builder.build(diff).getAsJsonObject();
+
+					// the stream writer fills the tables in the same order
+					StringWriter out = new StringWriter();
+					new TreeDiffStreamWriter(builder).write(diff, out);
+					assertEquals(new Gson().toJson(interned), out.toString());
+
+					JsonObject table = interned.remove("string-table").getAsJsonObject();
+					assertEquals(storeLabelTable, table.has("labels"));
+					resolve(interned, table.getAsJsonArray("types"), table.getAsJsonArray("labels"));
+					assertEquals(plain, interned);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSmallerOutput() throws IOException {
+		Diff diff = TreeDiffStreamWriterTest.createDiff(TreeDiffBinaryEncoderTest.createClass(100, 0),
+				TreeDiffBinaryEncoderTest.createClass(100, 3));
+
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(true, true);
+		StringWriter plain = new StringWriter();
+		new TreeDiffStreamWriter(builder).write(diff, plain);
+
+		builder = new TreeDiffFormatBuilder(builder.getConfig().toBuilder().setStoreTypeTable(true).build());
+		StringWriter interned = new StringWriter();
+		new TreeDiffStreamWriter(builder).write(diff, interned);
+
+		assertTrue("plain: " + plain.toString().length() + " interned: " + interned.toString().length(),
+				interned.toString().length() < plain.toString().length() * 9 / 10);
+	}
+
+}
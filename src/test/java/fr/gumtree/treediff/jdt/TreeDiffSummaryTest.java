@@ -0,0 +1,114 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.github.gumtreediff.actions.Diff;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+public class TreeDiffSummaryTest {
+
+	static final String NESTED_LEFT = "class Main {\n" + "    int f = 1;\n" + "    class Inner {\n"
+			+ "        void bar() { a.b(1); }\n" + "    }\n" + "    void foo() { a.c(); }\n" + "}\n";
+
+	static final String NESTED_RIGHT = "class Main {\n" + "    int f = 2;\n" + "    class Inner {\n"
+			+ "        void bar() { a.b(2); a.d(); }\n" + "    }\n" + "    void foo() { a.c(); }\n" + "}\n";
+
+	@Test
+	public void testSameCountsAsEditScript() throws IOException {
+		Diff diff = TreeDiffStreamWriterTest.createDiff(TreeDiffStreamWriterTest.INPUT_LEFT,
+				TreeDiffStreamWriterTest.INPUT_RIGHT);
+
+		TreeDiffSummary summary = new TreeDiffSummary();
+		summary.add(diff);
+
+		Map<String, Integer> byKind = new HashMap<>();
+		Map<String, Integer> byType = new HashMap<>();
+		for (JsonElement action : new TreeDiffFormatBuilder().buildEditScript(diff)) {
+			JsonObject actionJson = action.getAsJsonObject();
+			String kind = actionJson.get("type").getAsString();
+			byKind.merge(kind, 1, Integer::sum);
+			byType.merge(actionJson.get("node").getAsJsonObject().get("type").getAsString() + " " + kind, 1,
+					Integer::sum);
+		}
+
+		assertEquals(diff.editScript.size(), summary.getActions());
+		int depths = 0;
+		for (TreeDiffActionType kind : TreeDiffActionType.values()) {
+			assertEquals(byKind.getOrDefault(kind.getJsonName(), 0).intValue(), summary.getCount(kind));
+			for (int depth = 0; depth < 100; depth++) {
+				depths += summary.getCountAtDepth(depth, kind);
+			}
+		}
+		assertEquals(summary.getActions(), depths);
+		for (Map.Entry<String, Integer> count : byType.entrySet()) {
+			String[] typeAndKind = count.getKey().split(" ");
+			TreeDiffActionType kind = null;
+			for (TreeDiffActionType k : TreeDiffActionType.values()) {
+				if (k.getJsonName().equals(typeAndKind[1])) {
+					kind = k;
+				}
+			}
+			assertEquals(count.getKey(), count.getValue().intValue(), summary.getCount(typeAndKind[0], kind));
+		}
+	}
+
+	@Test
+	public void testDeclarations() throws IOException {
+		Diff diff = TreeDiffStreamWriterTest.createDiff(NESTED_LEFT, NESTED_RIGHT);
+
+		TreeDiffSummary summary = new TreeDiffSummary();
+		summary.add(diff);
+
+		assertEquals(1, summary.getCountInDeclaration("Main.f", TreeDiffActionType.UPDATE_NODE));
+		assertEquals(1, summary.getCountInDeclaration("Main.Inner.bar", TreeDiffActionType.UPDATE_NODE));
+		assertTrue(summary.getCountInDeclaration("Main.Inner.bar", TreeDiffActionType.INSERT_SUBTREE)
+				+ summary.getCountInDeclaration("Main.Inner.bar", TreeDiffActionType.INSERT_NODE) > 0);
+		assertEquals(0, summary.getCountInDeclaration("Main.foo", TreeDiffActionType.UPDATE_NODE));
+
+		JsonObject summaryJson = summary.toJson();
+		assertEquals(summary.getActions(), summaryJson.get("actions").getAsInt());
+		assertEquals(1, summaryJson.get("by-declaration").getAsJsonObject().get("Main.f").getAsJsonObject()
+				.get("update-node").getAsInt());
+	}
+
+	@Test
+	public void testBuilder() throws IOException {
+		File left = TreeDiffBatchBuilderTest.createJavaFile(NESTED_LEFT);
+		File right = TreeDiffBatchBuilderTest.createJavaFile(NESTED_RIGHT);
+
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder(TreeDiffFormatConfig.builder().setStoreTrees(true)
+				.setStoreMappings(true).setSummaryOnly(true).build());
+		JsonObject treeDiff = builder.build(left, right, "test", "1").getAsJsonObject();
+
+		assertFalse(treeDiff.has("diff"));
+		assertFalse(treeDiff.has("mapping"));
+		assertEquals(left.getAbsolutePath(),
+				treeDiff.get("before-file").getAsJsonObject().get("path").getAsString());
+		int actions = new TreeDiffFormatBuilder().build(left, right, "test", "1").getAsJsonObject().get("diff")
+				.getAsJsonArray().size();
+		assertEquals(actions, treeDiff.get("summary").getAsJsonObject().get("actions").getAsInt());
+
+		StringWriter written = new StringWriter();
+		builder.write(left, right, "test", "1", written);
+		assertEquals(new Gson().toJson(treeDiff), written.toString());
+
+		List<JsonElement> chain = new TreeDiffChainBuilder(builder).build(Arrays.asList(left, right),
+				"test", "1");
+		assertEquals(treeDiff, chain.get(0));
+	}
+
+}
@@ -0,0 +1,109 @@
+package fr.gumtree.treediff.jdt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.github.gumtreediff.actions.Diff;
+import com.github.gumtreediff.tree.Tree;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+public class TreeSnapshotTest {
+
+	@Test
+	public void testSameNodes() throws IOException {
+		Diff diff = TreeDiffStreamWriterTest.createDiff(TreeDiffStreamWriterTest.INPUT_LEFT,
+				TreeDiffStreamWriterTest.INPUT_RIGHT);
+		for (Tree root : new Tree[] { diff.src.getRoot(), diff.dst.getRoot() }) {
+			TreeNodeTable table = new TreeNodeTable(root);
+			TreeSnapshot snapshot = new TreeSnapshot(root);
+			assertEquals(table.size(), snapshot.size());
+
+			for (int id = 0; id < table.size(); id++) {
+				Tree node = table.get(id);
+				assertEquals(node.getType().name, snapshot.getType(id));
+				assertEquals(node.getLabel(), snapshot.getLabel(id));
+				assertEquals(node.getPos(), snapshot.getPos(id));
+				assertEquals(node.getEndPos(), snapshot.getEndPos(id));
+				assertEquals(table.parentOf(id), snapshot.parentOf(id));
+				assertEquals(node.getDescendants().size() + 1, snapshot.subtreeSizeOf(id));
+
+				List<Tree> children = node.getChildren();
+				assertEquals(children.isEmpty() ? -1 : table.idOf(children.get(0)), snapshot.firstChildOf(id));
+				int next = -1;
+				if (id > 0) {
+					List<Tree> siblings = node.getParent().getChildren();
+					int position = node.positionInParent();
+					next = (position + 1 < siblings.size()) ? table.idOf(siblings.get(position + 1)) : -1;
+				}
+				assertEquals(next, snapshot.nextSiblingOf(id));
+			}
+		}
+	}
+
+	@Test
+	public void testPools() throws IOException {
+		Tree root = TreeDiffStreamWriterTest.createDiff(TreeDiffBinaryEncoderTest.createClass(20, 0),
+				TreeDiffBinaryEncoderTest.createClass(20, 0)).src.getRoot();
+		TreeSnapshot snapshot = new TreeSnapshot(root);
+
+		for (int id = 0; id < snapshot.size(); id++) {
+			for (int other = id + 1; other < snapshot.size(); other++) {
+				assertEquals(snapshot.getLabel(id).equals(snapshot.getLabel(other)),
+						snapshot.getLabelId(id) == snapshot.getLabelId(other));
+				assertEquals(snapshot.getType(id).equals(snapshot.getType(other)),
+						snapshot.getTypeId(id) == snapshot.getTypeId(other));
+			}
+		}
+		Set<String> labels = new HashSet<>();
+		for (Tree node : root.preOrder()) {
+			labels.add(node.getLabel());
+		}
+		assertEquals(labels.size(), snapshot.getLabelCount());
+	}
+
+	@Test
+	public void testSameJsonAsTree() throws IOException {
+		Diff diff = TreeDiffStreamWriterTest.createDiff(TreeDiffStreamWriterTest.INPUT_LEFT,
+				TreeDiffStreamWriterTest.INPUT_RIGHT);
+		Tree root = diff.src.getRoot();
+		TreeSnapshot snapshot = new TreeSnapshot(root);
+		TreeDiffFormatBuilder builder = new TreeDiffFormatBuilder();
+
+		for (TreeDiffStringTable strings : new TreeDiffStringTable[] { null, new TreeDiffStringTable(true, true) }) {
+			String expected = new Gson().toJson(builder.convertTreeToJSon(root, strings));
+			assertEquals(expected, new Gson().toJson(builder.convertSnapshotToJson(snapshot, strings)));
+
+			StringWriter out = new StringWriter();
+			JsonWriter writer = new Gson().newJsonWriter(out);
+			new TreeDiffStreamWriter(builder).writeTree(snapshot, strings, writer);
+			writer.flush();
+			assertEquals(expected, out.toString());
+		}
+	}
+
+	@Test
+	public void testDeepTree() throws IOException {
+		int depth = 200_000;
+		Tree root = TreeDiffFormatBuilderTest.createChain(depth);
+		TreeSnapshot snapshot = new TreeSnapshot(root);
+		assertEquals(depth, snapshot.size());
+		assertEquals(depth, snapshot.subtreeSizeOf(0));
+		assertEquals(depth - 2, snapshot.parentOf(depth - 1));
+
+		StringWriter out = new StringWriter();
+		JsonWriter writer = new Gson().newJsonWriter(out);
+		new TreeDiffStreamWriter(new TreeDiffFormatBuilder()).writeTree(snapshot, null, writer);
+		writer.flush();
+		String node = "{\"label\":\"+\",\"type\":\"InfixExpression\",\"children\":[";
+		assertEquals(depth * (node.length() + "]}".length()), out.toString().length());
+	}
+
+}